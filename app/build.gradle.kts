@@ -62,6 +62,9 @@ android {
 }
 
 dependencies {
+    // File formats and cipher engines (plain JVM module)
+    implementation(project(":crypto"))
+
     // AndroidX Core
     implementation("androidx.appcompat:appcompat:1.6.1")
     implementation("androidx.core:core-ktx:1.12.0")
@@ -14,7 +14,19 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.FileProvider;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.Data;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import com.example.ciphershield.security.ChunkedCryptoWorker;
 import com.example.ciphershield.security.ChunkedEncryptionUtil;
+import com.example.ciphershield.security.ChunkedFileHeader;
+import com.example.ciphershield.security.CryptoCheckpoint;
+import com.example.ciphershield.security.DeviceKey;
+import com.example.ciphershield.security.EncryptedMediaProvider;
+import com.example.ciphershield.security.FileSizeResolver;
+import com.example.ciphershield.security.PasswordKeys;
 import com.example.ciphershield.security.SecureEncryptionUtil;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
@@ -25,6 +37,9 @@ import com.google.android.material.snackbar.Snackbar;
 import com.google.android.material.textfield.TextInputEditText;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
 
 public class ModernDecryptionActivity extends AppCompatActivity {
 
@@ -39,6 +54,7 @@ public class ModernDecryptionActivity extends AppCompatActivity {
     private Uri encryptedFileUri = null;
     private byte[] encryptedData = null;
     private byte[] keyBytes = null;
+    private boolean hasDeviceKey = false; // Used when no key file is picked
     private byte[] decryptedData = null;
     private Uri decryptedFileUri = null;
     private File tempDecryptedFile = null;
@@ -46,6 +62,9 @@ public class ModernDecryptionActivity extends AppCompatActivity {
     private boolean isPasswordProtected = false;
     private boolean isVerified = false;
     private boolean isLargeFile = false;
+    private boolean isSegmentedFile = false;
+    private final java.util.List<Uri> mediaSessions = new java.util.ArrayList<>();
+    private UUID decryptionWorkId = null;
 
     private final ActivityResultLauncher<Intent> encryptedFileLauncher =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
@@ -76,6 +95,13 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         initializeViews();
         setupClickListeners();
         animateInitialEntry();
+        resumeBackgroundDecryption();
+
+        // Keystore lookup once, off the UI thread
+        new Thread(() -> {
+            boolean exists = DeviceKey.exists();
+            runOnUiThread(() -> hasDeviceKey = exists);
+        }).start();
     }
 
     private void initializeViews() {
@@ -184,22 +210,32 @@ public class ModernDecryptionActivity extends AppCompatActivity {
 
             if (isEncryptedFile) {
                 encryptedFileUri = uri;
-                isLargeFile = fileSize > (10 * 1024 * 1024);
+                isLargeFile = fileSize == FileSizeResolver.UNKNOWN_SIZE
+                        || fileSize > (10 * 1024 * 1024);
 
                 txtSelectedEncrypted.setText(fileName + " (" + formatFileSize(fileSize) + ")");
 
+                // Undo a rekey or update cut short by a crash before anything reads the file
+                ChunkedEncryptionUtil.recoverInterrupted(this, uri);
+
                 // Read header to detect file type
-                byte[] header = readHeaderBytes(uri, 3);
+                byte[] header = readHeaderBytes(uri, 7);
                 if (header != null && header.length >= 3) {
                     String headerStr = new String(header, 0, 3);
-                    isPasswordProtected = "CP2".equals(headerStr);
-                    boolean isChunkedFile = "CL2".equals(headerStr);
+                    isSegmentedFile = "CL3".equals(headerStr);
+                    // CL3 marks password mode in its flags word
+                    isPasswordProtected = SecureEncryptionUtil.isPasswordVersion(headerStr) || (isSegmentedFile && header.length >= 7
+                            && (ByteBuffer.wrap(header, 3, 4).getInt() & ChunkedFileHeader.FLAG_PASSWORD) != 0);
+                    boolean isChunkedFile = "CL2".equals(headerStr) || isSegmentedFile;
 
                     if (isPasswordProtected) {
                         cardKeyFile.setVisibility(View.GONE);
                         showSnackbar("Password-protected file detected", false);
                     } else {
                         cardKeyFile.setVisibility(View.VISIBLE);
+                        if (keyBytes == null && hasDeviceKey) {
+                            txtSelectedKey.setText("Device key (pick a key file to override)");
+                        }
                     }
 
                     if (isChunkedFile || isLargeFile) {
@@ -226,7 +262,7 @@ public class ModernDecryptionActivity extends AppCompatActivity {
                 txtSelectedKey.setText(fileName + " (" + formatFileSize(fileSize) + ")");
             }
 
-            if (encryptedFileUri != null && (isPasswordProtected || keyBytes != null)) {
+            if (encryptedFileUri != null && (isPasswordProtected || keyBytes != null || hasDeviceKey)) {
                 btnDecrypt.setEnabled(true);
                 animateButtonAppearance(btnDecrypt);
             }
@@ -244,8 +280,13 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         try (InputStream in = getContentResolver().openInputStream(uri)) {
             if (in == null) return null;
             byte[] header = new byte[numBytes];
-            int read = in.read(header);
-            return read == numBytes ? header : null;
+            int total = 0;
+            int read;
+            while (total < numBytes && (read = in.read(header, total, numBytes - total)) > 0) {
+                total += read;
+            }
+            // Short files return what was there
+            return total == 0 ? null : Arrays.copyOf(header, total);
         }
     }
 
@@ -313,7 +354,7 @@ public class ModernDecryptionActivity extends AppCompatActivity {
             return;
         }
 
-        if (!isPasswordProtected && keyBytes == null) {
+        if (!isPasswordProtected && keyBytes == null && !hasDeviceKey) {
             showSnackbar("Please select a key file", true);
             return;
         }
@@ -342,7 +383,8 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         try {
             byte[] header = readHeaderBytes(uri, 3);
             if (header != null && header.length >= 3) {
-                return "CL2".equals(new String(header, 0, 3));
+                String version = new String(header, 0, 3);
+                return "CL2".equals(version) || "CL3".equals(version);
             }
         } catch (IOException e) {
             // Ignore
@@ -356,6 +398,7 @@ public class ModernDecryptionActivity extends AppCompatActivity {
             if (fileSize > (10 * 1024 * 1024)) {
                 throw new Exception("File too large for standard decryption");
             }
+            ChunkedEncryptionUtil.recoverInterrupted(this, encryptedFileUri);
             encryptedData = readBytesFromUri(encryptedFileUri);
         }
 
@@ -364,7 +407,9 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         if (isPasswordProtected) {
             result = SecureEncryptionUtil.decryptWithPassword(encryptedData, password);
         } else {
-            result = SecureEncryptionUtil.decrypt(encryptedData, keyBytes);
+            result = keyBytes != null
+                    ? SecureEncryptionUtil.decrypt(encryptedData, keyBytes)
+                    : SecureEncryptionUtil.decrypt(encryptedData, DeviceKey.privateKey());
         }
 
         decryptedData = result.decryptedData;
@@ -380,15 +425,7 @@ public class ModernDecryptionActivity extends AppCompatActivity {
     }
 
     private void decryptLargeFile(String password) throws Exception {
-        runOnUiThread(() -> {
-            if (linearProgress != null) {
-                linearProgress.setVisibility(View.VISIBLE);
-                linearProgress.setProgress(0);
-            }
-            if (txtProgress != null) {
-                txtProgress.setVisibility(View.VISIBLE);
-            }
-        });
+        runOnUiThread(() -> setProgressVisible(true));
 
         // Extract extension from file header
         String extractedExtension = extractExtensionFromHeader(encryptedFileUri);
@@ -398,11 +435,41 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         File outputFile = File.createTempFile("decrypted_", fileExtension, getCacheDir());
         Uri outputUri = Uri.fromFile(outputFile);
 
+        if (isSegmentedFile) {
+            // CL3 runs as a foreground job that checkpoints and resumes after a restart
+            UUID workId;
+            try {
+                workId = isPasswordProtected || keyBytes != null
+                        ? ChunkedCryptoWorker.enqueueDecryption(this, encryptedFileUri, outputUri,
+                                isPasswordProtected ? null : keyBytes, isPasswordProtected ? password : null)
+                        : ChunkedCryptoWorker.enqueueDecryption(this, encryptedFileUri, outputUri,
+                                DeviceKey.privateKey());
+            } catch (Exception e) {
+                outputFile.delete();
+                runOnUiThread(() -> setProgressVisible(false));
+                throw e;
+            }
+            runOnUiThread(() -> observeDecryptionWork(workId));
+            return;
+        }
+
         ChunkedEncryptionUtil.ProgressCallback callback = new ChunkedEncryptionUtil.ProgressCallback() {
             @Override
             public void onProgress(int percentage, long bytesProcessed, long totalBytes) {
                 runOnUiThread(() -> {
+                    if (percentage == ChunkedEncryptionUtil.UNKNOWN_PROGRESS) {
+                        // Source size unknown - show bytes only
+                        if (linearProgress != null) {
+                            linearProgress.setIndeterminate(true);
+                        }
+                        if (txtProgress != null) {
+                            txtProgress.setText("Processed: " + formatFileSize(bytesProcessed));
+                        }
+                        txtStatus.setText("Decrypting: " + formatFileSize(bytesProcessed));
+                        return;
+                    }
                     if (linearProgress != null) {
+                        linearProgress.setIndeterminate(false);
                         linearProgress.setProgress(percentage);
                     }
                     if (txtProgress != null) {
@@ -441,9 +508,19 @@ public class ModernDecryptionActivity extends AppCompatActivity {
             }
         };
 
-        ChunkedEncryptionUtil.decryptLargeFile(
-                this, encryptedFileUri, outputUri, keyBytes, callback
-        );
+        if (isPasswordProtected) {
+            ChunkedEncryptionUtil.decryptLargeFileWithPassword(
+                    this, encryptedFileUri, outputUri, password, callback
+            );
+        } else if (keyBytes != null) {
+            ChunkedEncryptionUtil.decryptLargeFile(
+                    this, encryptedFileUri, outputUri, keyBytes, callback
+            );
+        } else {
+            ChunkedEncryptionUtil.decryptLargeFile(
+                    this, encryptedFileUri, outputUri, DeviceKey.privateKey(), callback
+            );
+        }
 
         decryptedFileUri = outputUri;
         tempDecryptedFile = outputFile;
@@ -451,20 +528,127 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         isVerified = true;
     }
 
+    private void observeDecryptionWork(UUID workId) {
+        decryptionWorkId = workId;
+        LiveData<WorkInfo> work = WorkManager.getInstance(this).getWorkInfoByIdLiveData(workId);
+        work.observe(this, info -> {
+            if (info == null) return;
+
+            if (!info.getState().isFinished()) {
+                showWorkProgress(info.getProgress());
+                return;
+            }
+
+            work.removeObservers(this);
+            decryptionWorkId = null;
+            setProgressVisible(false);
+            showLoadingState(false);
+
+            Data output = info.getOutputData();
+            if (info.getState() == WorkInfo.State.SUCCEEDED) {
+                decryptedFileUri = Uri.parse(output.getString(ChunkedCryptoWorker.KEY_OUTPUT_URI));
+                tempDecryptedFile = new File(decryptedFileUri.getPath());
+                String extension = output.getString(ChunkedCryptoWorker.KEY_EXTENSION);
+                originalExtension = extension == null || extension.isEmpty() ? ".bin" : extension;
+                isLargeFile = true;
+                isVerified = true;
+
+                showDecryptionSuccess();
+                updateVerificationStatus();
+                animateActionsCard();
+            } else {
+                if (info.getState() == WorkInfo.State.CANCELLED) {
+                    // Cancelled before it ran - the worker never got to clean up
+                    CryptoCheckpoint.delete(this, workId.toString());
+                }
+                String error = output.getString(ChunkedCryptoWorker.KEY_ERROR);
+                showSnackbar("Decryption failed: " + (error != null ? error : "Cancelled"), true);
+                shakeView(cardEncryptedFile);
+            }
+        });
+    }
+
+    /**
+     * Reattaches to a background decryption still in flight
+     */
+    private void resumeBackgroundDecryption() {
+        LiveData<List<WorkInfo>> jobs = WorkManager.getInstance(this)
+                .getWorkInfosByTagLiveData(ChunkedCryptoWorker.TAG_DECRYPT);
+        jobs.observe(this, new Observer<List<WorkInfo>>() {
+            @Override
+            public void onChanged(List<WorkInfo> infos) {
+                jobs.removeObserver(this);
+                for (WorkInfo info : infos) {
+                    if (!info.getState().isFinished()) {
+                        showLoadingState(true);
+                        setProgressVisible(true);
+                        observeDecryptionWork(info.getId());
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    private void showWorkProgress(Data progress) {
+        int percentage = progress.getInt(ChunkedCryptoWorker.KEY_PERCENT, ChunkedEncryptionUtil.UNKNOWN_PROGRESS);
+        long bytesProcessed = progress.getLong(ChunkedCryptoWorker.KEY_BYTES, 0);
+        long totalBytes = progress.getLong(ChunkedCryptoWorker.KEY_TOTAL, ChunkedEncryptionUtil.UNKNOWN_PROGRESS);
+
+        if (percentage == ChunkedEncryptionUtil.UNKNOWN_PROGRESS) {
+            // Source size unknown - show bytes only
+            if (linearProgress != null) {
+                linearProgress.setIndeterminate(true);
+            }
+            if (txtProgress != null) {
+                txtProgress.setText("Processed: " + formatFileSize(bytesProcessed));
+            }
+            txtStatus.setText("Decrypting: " + formatFileSize(bytesProcessed));
+            return;
+        }
+        if (linearProgress != null) {
+            linearProgress.setIndeterminate(false);
+            linearProgress.setProgress(percentage);
+        }
+        if (txtProgress != null) {
+            txtProgress.setText("Progress: " + percentage + "%");
+        }
+        txtStatus.setText("Decrypting: " + formatFileSize(bytesProcessed) +
+                " / " + formatFileSize(totalBytes));
+    }
+
+    private void setProgressVisible(boolean visible) {
+        if (linearProgress != null) {
+            linearProgress.setVisibility(visible ? View.VISIBLE : View.GONE);
+            if (visible) {
+                linearProgress.setProgress(0);
+            }
+        }
+        if (txtProgress != null) {
+            txtProgress.setVisibility(visible ? View.VISIBLE : View.GONE);
+        }
+    }
+
     private String extractExtensionFromHeader(Uri uri) {
         try (InputStream in = getContentResolver().openInputStream(uri)) {
             if (in == null) return "";
 
             // Read version (3 bytes)
-            in.skip(3);
+            byte[] versionBytes = new byte[3];
+            in.read(versionBytes);
 
-            // Read and skip salt
-            byte[] saltLenBytes = new byte[4];
-            in.read(saltLenBytes);
-            int saltLen = ByteBuffer.wrap(saltLenBytes).getInt();
-            in.skip(saltLen);
+            if ("CL3".equals(new String(versionBytes, java.nio.charset.StandardCharsets.UTF_8))) {
+                // Skip flags and segment size
+                in.skip(8);
+            } else {
+                // Read and skip salt
+                byte[] saltLenBytes = new byte[4];
+                in.read(saltLenBytes);
+                int saltLen = ByteBuffer.wrap(saltLenBytes).getInt();
+                in.skip(saltLen);
+            }
 
-            // Read and skip IV
+            // Read and skip IV (nonce in CL3)
             byte[] ivLenBytes = new byte[4];
             in.read(ivLenBytes);
             int ivLen = ByteBuffer.wrap(ivLenBytes).getInt();
@@ -580,18 +764,9 @@ public class ModernDecryptionActivity extends AppCompatActivity {
     private void saveDecryptedFile(Uri uri) {
         try {
             if (isLargeFile && decryptedFileUri != null) {
-                try (InputStream in = new FileInputStream(new File(decryptedFileUri.getPath()));
-                     OutputStream out = getContentResolver().openOutputStream(uri)) {
-
-                    byte[] buffer = new byte[8192];
-                    int len;
-                    long totalWritten = 0;
-                    while ((len = in.read(buffer)) > 0) {
-                        out.write(buffer, 0, len);
-                        totalWritten += len;
-                    }
-                    showSnackbar("Saved (" + formatFileSize(totalWritten) + ") " + originalExtension, false);
-                }
+                long totalWritten = ChunkedEncryptionUtil.copyFile(
+                        this, new File(decryptedFileUri.getPath()), uri);
+                showSnackbar("Saved (" + formatFileSize(totalWritten) + ") " + originalExtension, false);
             } else {
                 try (OutputStream out = getContentResolver().openOutputStream(uri)) {
                     out.write(decryptedData);
@@ -605,19 +780,17 @@ public class ModernDecryptionActivity extends AppCompatActivity {
     }
 
     private void previewFile() {
+        if (isSegmentedFile && keyBytes != null) {
+            previewFromCiphertext();
+            return;
+        }
+
         try {
             File previewFile = new File(getCacheDir(), "preview" + originalExtension);
 
             if (isLargeFile && decryptedFileUri != null) {
-                try (InputStream in = new FileInputStream(new File(decryptedFileUri.getPath()));
-                     FileOutputStream fos = new FileOutputStream(previewFile)) {
-
-                    byte[] buffer = new byte[8192];
-                    int len;
-                    while ((len = in.read(buffer)) > 0) {
-                        fos.write(buffer, 0, len);
-                    }
-                }
+                ChunkedEncryptionUtil.copyFile(
+                        this, new File(decryptedFileUri.getPath()), Uri.fromFile(previewFile));
             } else {
                 try (FileOutputStream fos = new FileOutputStream(previewFile)) {
                     fos.write(decryptedData);
@@ -639,6 +812,23 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         }
     }
 
+    private void previewFromCiphertext() {
+        // CL3 segments decrypt on demand, so the viewer can seek without a plaintext copy
+        Uri streamUri = EncryptedMediaProvider.register(this, encryptedFileUri, keyBytes,
+                "preview" + originalExtension);
+        mediaSessions.add(streamUri);
+
+        Intent viewIntent = new Intent(Intent.ACTION_VIEW);
+        viewIntent.setDataAndType(streamUri, getMimeType(originalExtension));
+        viewIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        try {
+            startActivity(Intent.createChooser(viewIntent, "Preview with"));
+        } catch (Exception e) {
+            showSnackbar("Preview failed: " + e.getMessage(), true);
+        }
+    }
+
     private void scheduleSecureDeletion(File file) {
         new Thread(() -> {
             try {
@@ -719,30 +909,44 @@ public class ModernDecryptionActivity extends AppCompatActivity {
     }
 
     private long getFileSize(Uri uri) {
-        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                int idx = cursor.getColumnIndex(OpenableColumns.SIZE);
-                if (idx >= 0) return cursor.getLong(idx);
-            }
-        }
-        return 0;
+        // Metadata or fstat only - never reads the file
+        return FileSizeResolver.resolveWithoutReading(this, uri);
     }
 
     private String formatFileSize(long bytes) {
+        if (bytes == FileSizeResolver.UNKNOWN_SIZE) return "Unknown size";
         if (bytes < 1024) return bytes + " B";
         int exp = (int) (Math.log(bytes) / Math.log(1024));
         String pre = "KMGTPE".charAt(exp - 1) + "";
         return String.format("%.1f %sB", bytes / Math.pow(1024, exp), pre);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The whole app went to the background - drop derived password keys instead of waiting for their TTL
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            PasswordKeys.clearCache();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
+        // The plaintext goes to this activity's temp file - stop writing it once the user leaves
+        if (decryptionWorkId != null && isFinishing()) {
+            WorkManager.getInstance(this).cancelWorkById(decryptionWorkId);
+        }
+
         if (tempDecryptedFile != null && tempDecryptedFile.exists()) {
             tempDecryptedFile.delete();
         }
 
+        for (Uri session : mediaSessions) {
+            EncryptedMediaProvider.revoke(session);
+        }
+
         if (decryptedData != null) {
             java.util.Arrays.fill(decryptedData, (byte) 0);
         }
@@ -752,5 +956,8 @@ public class ModernDecryptionActivity extends AppCompatActivity {
         if (encryptedData != null) {
             java.util.Arrays.fill(encryptedData, (byte) 0);
         }
+        if (isFinishing()) {
+            PasswordKeys.clearCache();
+        }
     }
 }
\ No newline at end of file
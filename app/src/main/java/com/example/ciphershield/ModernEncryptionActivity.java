@@ -1,10 +1,14 @@
 package com.example.ciphershield;
 
+import android.Manifest;
 import android.animation.*;
 import android.content.*;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.view.View;
 import android.view.animation.*;
@@ -13,8 +17,20 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.work.Data;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import com.example.ciphershield.security.BatchEncryptionQueue;
+import com.example.ciphershield.security.ChunkedCryptoWorker;
 import com.example.ciphershield.security.ChunkedEncryptionUtil;
+import com.example.ciphershield.security.CryptoCheckpoint;
+import com.example.ciphershield.security.DeviceKey;
+import com.example.ciphershield.security.FileSizeResolver;
+import com.example.ciphershield.security.PasswordKeys;
+import com.example.ciphershield.security.RsaKeyPool;
 import com.example.ciphershield.security.SecureEncryptionUtil;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
@@ -25,13 +41,18 @@ import com.google.android.material.snackbar.Snackbar;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 import java.io.*;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 public class ModernEncryptionActivity extends AppCompatActivity {
 
     private MaterialCardView cardFileSelection, cardEncryptionMethod, cardActions;
     private TextView txtSelectedFile, txtFileSize, txtStatus, txtProgress;
-    private MaterialButton btnSelectFile, btnEncrypt, btnSaveKey, btnSaveFile, btnUsePassword, btnHome, btnExit;
-    private Chip chipKeyMode, chipPasswordMode;
+    private MaterialButton btnSelectFile, btnSelectFolder, btnEncrypt, btnSaveKey, btnSaveFile, btnUsePassword, btnHome, btnExit;
+    private Chip chipKeyMode, chipPasswordMode, chipDeviceMode;
     private CircularProgressIndicator progressBar;
     private LinearProgressIndicator linearProgress;
     private ImageView imgFileIcon, imgLockAnimation;
@@ -40,17 +61,45 @@ public class ModernEncryptionActivity extends AppCompatActivity {
     private Uri selectedFileUri = null;
     private byte[] encryptedData = null;
     private Uri encryptedFileUri = null;
-    private File tempEncryptedFile = null;
     private byte[] encryptionKey = null;
     private String originalFileName = "";
     private String fileExtension = "";
     private boolean usePasswordMode = false;
+    private boolean useDeviceKey = false; // Key mode wrapped to the AndroidKeyStore key, no .key file
     private String encryptionPassword = null;
+    private List<Uri> batchSources = null;
+    private BatchEncryptionQueue.BatchJob batchJob = null;
 
     private final ActivityResultLauncher<Intent> filePickerLauncher =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
                 if (result.getResultCode() == RESULT_OK && result.getData() != null) {
-                    handleFileSelected(result.getData().getData());
+                    ClipData clipData = result.getData().getClipData();
+                    if (clipData != null && clipData.getItemCount() > 1) {
+                        List<Uri> uris = new ArrayList<>();
+                        for (int i = 0; i < clipData.getItemCount(); i++) {
+                            uris.add(clipData.getItemAt(i).getUri());
+                        }
+                        handleBatchSelected(uris, clipData.getItemCount() + " files");
+                    } else if (clipData != null && clipData.getItemCount() == 1) {
+                        handleFileSelected(clipData.getItemAt(0).getUri());
+                    } else {
+                        handleFileSelected(result.getData().getData());
+                    }
+                }
+            });
+
+    private final ActivityResultLauncher<Intent> folderPickerLauncher =
+            registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+                if (result.getResultCode() == RESULT_OK && result.getData() != null) {
+                    handleFolderSelected(result.getData().getData());
+                }
+            });
+
+    // Batch: encrypted files are written into a folder chosen up front
+    private final ActivityResultLauncher<Intent> batchDestinationLauncher =
+            registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+                if (result.getResultCode() == RESULT_OK && result.getData() != null) {
+                    runBatchEncryption(result.getData().getData());
                 }
             });
 
@@ -68,6 +117,14 @@ public class ModernEncryptionActivity extends AppCompatActivity {
                 }
             });
 
+    // Large files: destination is chosen before encrypting and written to directly
+    private final ActivityResultLauncher<Intent> encryptDestinationLauncher =
+            registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+                if (result.getResultCode() == RESULT_OK && result.getData() != null) {
+                    runEncryption(result.getData().getData());
+                }
+            });
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -76,6 +133,7 @@ public class ModernEncryptionActivity extends AppCompatActivity {
         initializeViews();
         setupClickListeners();
         animateInitialEntry();
+        resumeBackgroundEncryption();
     }
 
     private void initializeViews() {
@@ -89,6 +147,7 @@ public class ModernEncryptionActivity extends AppCompatActivity {
         txtProgress = findViewById(R.id.txtProgress);
 
         btnSelectFile = findViewById(R.id.btnSelectFile);
+        btnSelectFolder = findViewById(R.id.btnSelectFolder);
         btnEncrypt = findViewById(R.id.btnEncrypt);
         btnSaveKey = findViewById(R.id.btnSaveKey);
         btnSaveFile = findViewById(R.id.btnSaveFile);
@@ -98,6 +157,7 @@ public class ModernEncryptionActivity extends AppCompatActivity {
 
         chipKeyMode = findViewById(R.id.chipKeyMode);
         chipPasswordMode = findViewById(R.id.chipPasswordMode);
+        chipDeviceMode = findViewById(R.id.chipDeviceMode);
 
         progressBar = findViewById(R.id.progressBar);
         linearProgress = findViewById(R.id.linearProgress);
@@ -118,15 +178,30 @@ public class ModernEncryptionActivity extends AppCompatActivity {
             openFilePicker();
         });
 
+        btnSelectFolder.setOnClickListener(v -> {
+            animateButtonClick(v);
+            folderPickerLauncher.launch(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE));
+        });
+
         chipKeyMode.setOnClickListener(v -> {
             usePasswordMode = false;
-            animateChipSelection(chipKeyMode, chipPasswordMode);
+            useDeviceKey = false;
+            animateChipSelection(chipKeyMode, chipPasswordMode, chipDeviceMode);
             updateEncryptionModeUI();
+            prefillKeys();
         });
 
         chipPasswordMode.setOnClickListener(v -> {
             usePasswordMode = true;
-            animateChipSelection(chipPasswordMode, chipKeyMode);
+            useDeviceKey = false;
+            animateChipSelection(chipPasswordMode, chipKeyMode, chipDeviceMode);
+            updateEncryptionModeUI();
+        });
+
+        chipDeviceMode.setOnClickListener(v -> {
+            usePasswordMode = false;
+            useDeviceKey = true;
+            animateChipSelection(chipDeviceMode, chipKeyMode, chipPasswordMode);
             updateEncryptionModeUI();
         });
 
@@ -186,16 +261,18 @@ public class ModernEncryptionActivity extends AppCompatActivity {
                 .start();
     }
 
-    private void animateChipSelection(Chip selected, Chip unselected) {
+    private void animateChipSelection(Chip selected, Chip... unselected) {
         selected.setChecked(true);
-        unselected.setChecked(false);
+        for (Chip chip : unselected) {
+            chip.setChecked(false);
+        }
         ObjectAnimator scaleUp = ObjectAnimator.ofFloat(selected, "scaleX", 1f, 1.1f, 1f);
         scaleUp.setDuration(200);
         scaleUp.start();
     }
 
     private void updateEncryptionModeUI() {
-        if (usePasswordMode) {
+        if (usePasswordMode || useDeviceKey) {
             btnSaveKey.setVisibility(View.GONE);
         } else {
             btnSaveKey.setVisibility(View.VISIBLE);
@@ -206,10 +283,49 @@ public class ModernEncryptionActivity extends AppCompatActivity {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.setType("*/*");
         intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         filePickerLauncher.launch(intent);
     }
 
+    private void handleFolderSelected(Uri treeUri) {
+        txtStatus.setText("Scanning folder...");
+        new Thread(() -> {
+            try {
+                List<Uri> documents = BatchEncryptionQueue.listDocumentTree(this, treeUri);
+                runOnUiThread(() -> {
+                    if (documents.isEmpty()) {
+                        showSnackbar("Folder contains no files", true);
+                        txtStatus.setText("");
+                        return;
+                    }
+                    handleBatchSelected(documents, documents.size() + " files in folder");
+                });
+            } catch (Exception e) {
+                runOnUiThread(() -> showSnackbar("Cannot read folder: " + e.getMessage(), true));
+            }
+        }).start();
+    }
+
+    private void handleBatchSelected(List<Uri> uris, String description) {
+        batchSources = uris;
+        selectedFileUri = null;
+        isLargeFile = false;
+        encryptedData = null;
+        encryptedFileUri = null;
+
+        txtSelectedFile.setText(description);
+        txtFileSize.setText("Batch encryption");
+        txtStatus.setText("📦 Files are encrypted in parallel into a folder you choose");
+        txtStatus.setTextColor(getColor(android.R.color.holo_blue_dark));
+        prefillKeys();
+
+        animateFileIcon();
+        btnEncrypt.setEnabled(true);
+        animateButtonAppearance(btnEncrypt);
+    }
+
     private void handleFileSelected(Uri uri) {
+        batchSources = null;
         selectedFileUri = uri;
         originalFileName = getFileName(uri);
         long fileSize = getFileSize(uri);
@@ -220,7 +336,14 @@ public class ModernEncryptionActivity extends AppCompatActivity {
             fileExtension = originalFileName.substring(originalFileName.lastIndexOf('.'));
         }
 
-        isLargeFile = fileSize > (10 * 1024 * 1024); // 10MB
+        // Unknown size goes through chunked mode rather than loading into memory
+        isLargeFile = fileSize == FileSizeResolver.UNKNOWN_SIZE
+                || fileSize > (10 * 1024 * 1024); // 10MB
+
+        // Drop results of a previous encryption
+        encryptedData = null;
+        encryptedFileUri = null;
+        btnSaveFile.setVisibility(View.VISIBLE);
 
         txtSelectedFile.setText(originalFileName != null ? originalFileName : "Unknown File");
         txtFileSize.setText(formatFileSize(fileSize));
@@ -231,6 +354,7 @@ public class ModernEncryptionActivity extends AppCompatActivity {
             txtStatus.setTextColor(getColor(android.R.color.holo_blue_dark));
         }
 
+        prefillKeys();
         animateFileIcon();
         btnEncrypt.setEnabled(true);
         animateButtonAppearance(btnEncrypt);
@@ -238,6 +362,15 @@ public class ModernEncryptionActivity extends AppCompatActivity {
         showSnackbar("Selected: " + originalFileName + " (" + fileExtension + ")", false);
     }
 
+    /**
+     * Key mode needs an RSA key pair per file; start generating it while the user reads the screen
+     */
+    private void prefillKeys() {
+        if (!usePasswordMode && !useDeviceKey && (selectedFileUri != null || batchSources != null)) {
+            RsaKeyPool.prefill();
+        }
+    }
+
     private void animateFileIcon() {
         imgFileIcon.setScaleX(0f);
         imgFileIcon.setScaleY(0f);
@@ -310,18 +443,38 @@ public class ModernEncryptionActivity extends AppCompatActivity {
     }
 
     private void startEncryption() {
+        if (batchSources != null) {
+            batchDestinationLauncher.launch(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE));
+            return;
+        }
+
         if (selectedFileUri == null) {
             showSnackbar("Please select a file first", true);
             return;
         }
 
+        if (isLargeFile) {
+            requestNotificationPermission();
+
+            // Pick the output first so ciphertext is written once, straight to it
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.setType("application/octet-stream");
+            intent.putExtra(Intent.EXTRA_TITLE, getEncryptedFileName());
+            encryptDestinationLauncher.launch(intent);
+            return;
+        }
+
+        runEncryption(null);
+    }
+
+    private void runEncryption(Uri destinationUri) {
         showLoadingState(true);
         animateLockIcon();
 
         new Thread(() -> {
             try {
                 if (isLargeFile) {
-                    encryptLargeFile();
+                    encryptLargeFile(destinationUri);
                 } else {
                     encryptStandardFile();
                 }
@@ -344,6 +497,8 @@ public class ModernEncryptionActivity extends AppCompatActivity {
             result = SecureEncryptionUtil.encryptWithPassword(
                     inputBytes, encryptionPassword, fileExtension
             );
+        } else if (useDeviceKey) {
+            result = SecureEncryptionUtil.encrypt(inputBytes, fileExtension, DeviceKey.publicKey());
         } else {
             result = SecureEncryptionUtil.encrypt(inputBytes, fileExtension);
         }
@@ -358,71 +513,283 @@ public class ModernEncryptionActivity extends AppCompatActivity {
         });
     }
 
-    private void encryptLargeFile() throws Exception {
-        runOnUiThread(() -> {
-            if (linearProgress != null) {
-                linearProgress.setVisibility(View.VISIBLE);
-                linearProgress.setProgress(0);
-            }
-            if (txtProgress != null) {
-                txtProgress.setVisibility(View.VISIBLE);
+    private void encryptLargeFile(Uri outputUri) throws Exception {
+        runOnUiThread(() -> setProgressVisible(true));
+
+        // Runs as a foreground job that outlives this activity and resumes after a restart
+        UUID workId;
+        try {
+            workId = useDeviceKey
+                    ? ChunkedCryptoWorker.enqueueEncryption(this, selectedFileUri, outputUri, fileExtension,
+                            DeviceKey.publicKey())
+                    : ChunkedCryptoWorker.enqueueEncryption(this, selectedFileUri, outputUri, fileExtension,
+                            usePasswordMode ? encryptionPassword : null);
+        } catch (Exception e) {
+            deletePartialOutput(outputUri);
+            runOnUiThread(() -> setProgressVisible(false));
+            throw e;
+        }
+
+        runOnUiThread(() -> observeEncryptionWork(workId, outputUri));
+    }
+
+    private void observeEncryptionWork(UUID workId, Uri outputUri) {
+        LiveData<WorkInfo> work = WorkManager.getInstance(this).getWorkInfoByIdLiveData(workId);
+        work.observe(this, info -> {
+            if (info == null) return;
+
+            if (!info.getState().isFinished()) {
+                showWorkProgress(info.getProgress());
+                return;
             }
-        });
 
-        File outputFile = File.createTempFile("encrypted_", ".csk", getCacheDir());
-        Uri outputUri = Uri.fromFile(outputFile);
+            work.removeObservers(this);
+            setProgressVisible(false);
 
-        ChunkedEncryptionUtil.ProgressCallback callback = new ChunkedEncryptionUtil.ProgressCallback() {
-            @Override
-            public void onProgress(int percentage, long bytesProcessed, long totalBytes) {
-                runOnUiThread(() -> {
-                    if (linearProgress != null) {
-                        linearProgress.setProgress(percentage);
-                    }
-                    if (txtProgress != null) {
-                        txtProgress.setText("Progress: " + percentage + "%");
+            Data output = info.getOutputData();
+            if (info.getState() == WorkInfo.State.SUCCEEDED) {
+                encryptedFileUri = Uri.parse(output.getString(ChunkedCryptoWorker.KEY_OUTPUT_URI));
+                claimEncryptionKey(workId.toString(), output.getString(ChunkedCryptoWorker.KEY_CHECKSUM));
+            } else {
+                if (info.getState() == WorkInfo.State.CANCELLED) {
+                    // Cancelled before it ran - the worker never got to clean up
+                    CryptoCheckpoint.delete(this, workId.toString());
+                    if (outputUri != null) {
+                        deletePartialOutput(outputUri);
                     }
-                    txtStatus.setText("Encrypting: " + formatFileSize(bytesProcessed) +
-                            " / " + formatFileSize(totalBytes));
-                });
+                }
+                String error = output.getString(ChunkedCryptoWorker.KEY_ERROR);
+                showLoadingState(false);
+                showSnackbar("Encryption failed: " + (error != null ? error : "Cancelled"), true);
             }
+        });
+    }
 
-            @Override
-            public void onComplete() {
+    private void claimEncryptionKey(String jobId, String checksum) {
+        new Thread(() -> {
+            try {
+                // Null in password mode - there is no key file to save
+                byte[] privateKey = CryptoCheckpoint.claimPrivateKey(this, jobId);
                 runOnUiThread(() -> {
+                    if (privateKey != null) {
+                        encryptionKey = privateKey;
+                    }
                     showLoadingState(false);
-                    showEncryptionSuccess("Large file");
+                    showEncryptionSuccess(checksum != null ? checksum : "Large file");
+                    // Already written to the chosen document
+                    btnSaveFile.setVisibility(View.GONE);
+                    showSnackbar(encryptedFileUri != null
+                            ? "Encrypted file saved (" + formatFileSize(getFileSize(encryptedFileUri)) + ")"
+                            : "Recovered the key of a background encryption - save it now", false);
                     animateActionsCard();
-                    if (linearProgress != null) {
-                        linearProgress.setVisibility(View.GONE);
-                    }
-                    if (txtProgress != null) {
-                        txtProgress.setVisibility(View.GONE);
-                    }
+                });
+            } catch (Exception e) {
+                runOnUiThread(() -> {
+                    showLoadingState(false);
+                    showSnackbar("Cannot recover encryption key: " + e.getMessage(), true);
                 });
             }
+        }).start();
+    }
 
+    /**
+     * Reattaches to a background encryption still in flight and picks up
+     * keys of jobs that finished while no activity was around
+     */
+    private void resumeBackgroundEncryption() {
+        LiveData<List<WorkInfo>> jobs = WorkManager.getInstance(this)
+                .getWorkInfosByTagLiveData(ChunkedCryptoWorker.TAG_ENCRYPT);
+        jobs.observe(this, new Observer<List<WorkInfo>>() {
             @Override
-            public void onError(Exception e) {
+            public void onChanged(List<WorkInfo> infos) {
+                jobs.removeObserver(this);
+                for (WorkInfo info : infos) {
+                    if (!info.getState().isFinished()) {
+                        showLoadingState(true);
+                        setProgressVisible(true);
+                        observeEncryptionWork(info.getId(), null);
+                        return;
+                    }
+                }
+            }
+        });
+
+        new Thread(() -> {
+            List<String> unclaimed = CryptoCheckpoint.unclaimedKeys(this);
+            if (!unclaimed.isEmpty()) {
+                claimEncryptionKey(unclaimed.get(0), null);
+            }
+        }).start();
+    }
+
+    private void showWorkProgress(Data progress) {
+        int percentage = progress.getInt(ChunkedCryptoWorker.KEY_PERCENT, ChunkedEncryptionUtil.UNKNOWN_PROGRESS);
+        long bytesProcessed = progress.getLong(ChunkedCryptoWorker.KEY_BYTES, 0);
+        long totalBytes = progress.getLong(ChunkedCryptoWorker.KEY_TOTAL, ChunkedEncryptionUtil.UNKNOWN_PROGRESS);
+
+        if (percentage == ChunkedEncryptionUtil.UNKNOWN_PROGRESS) {
+            // Source size unknown - show bytes only
+            if (linearProgress != null) {
+                linearProgress.setIndeterminate(true);
+            }
+            if (txtProgress != null) {
+                txtProgress.setText("Processed: " + formatFileSize(bytesProcessed));
+            }
+            txtStatus.setText("Encrypting: " + formatFileSize(bytesProcessed));
+            return;
+        }
+        if (linearProgress != null) {
+            linearProgress.setIndeterminate(false);
+            linearProgress.setProgress(percentage);
+        }
+        if (txtProgress != null) {
+            txtProgress.setText("Progress: " + percentage + "%");
+        }
+        txtStatus.setText("Encrypting: " + formatFileSize(bytesProcessed) +
+                " / " + formatFileSize(totalBytes));
+    }
+
+    private void setProgressVisible(boolean visible) {
+        if (linearProgress != null) {
+            linearProgress.setVisibility(visible ? View.VISIBLE : View.GONE);
+            if (visible) {
+                linearProgress.setProgress(0);
+            }
+        }
+        if (txtProgress != null) {
+            txtProgress.setVisibility(visible ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    private void requestNotificationPermission() {
+        // Lets the background job show its progress notification
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU &&
+                checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{Manifest.permission.POST_NOTIFICATIONS}, 0);
+        }
+    }
+
+    private void deletePartialOutput(Uri uri) {
+        try {
+            DocumentsContract.deleteDocument(getContentResolver(), uri);
+        } catch (Exception e) {
+            // Provider does not support deletion - leave the truncated document
+        }
+    }
+
+    private void runBatchEncryption(Uri destinationTree) {
+        showLoadingState(true);
+        animateLockIcon();
+        if (linearProgress != null) {
+            linearProgress.setVisibility(View.VISIBLE);
+            linearProgress.setProgress(0);
+        }
+        if (txtProgress != null) {
+            txtProgress.setVisibility(View.VISIBLE);
+        }
+
+        if (usePasswordMode) {
+            startBatch(destinationTree, null);
+            return;
+        }
+
+        // Key modes wrap every file to one public key: the device key, or a fresh
+        // pair whose .key is saved before any file is written
+        new Thread(() -> {
+            try {
+                PublicKey recipient;
+                if (useDeviceKey) {
+                    recipient = DeviceKey.publicKey();
+                } else {
+                    KeyPair batchKeys = RsaKeyPool.take();
+                    saveBatchKey(destinationTree, batchKeys.getPrivate().getEncoded());
+                    recipient = batchKeys.getPublic();
+                }
+                runOnUiThread(() -> startBatch(destinationTree, recipient));
+            } catch (Exception e) {
                 runOnUiThread(() -> {
                     showLoadingState(false);
-                    showSnackbar("Encryption failed: " + e.getMessage(), true);
-                    if (linearProgress != null) {
-                        linearProgress.setVisibility(View.GONE);
-                    }
+                    setProgressVisible(false);
+                    showSnackbar("Failed to prepare batch key: " + e.getMessage(), true);
                 });
             }
-        };
+        }).start();
+    }
+
+    private void startBatch(Uri destinationTree, PublicKey recipient) {
+        String password = usePasswordMode ? encryptionPassword : null;
+        String extension = usePasswordMode ? ".csp" : ".csk";
 
-        // Pass the extension to chunked encryption
-        ChunkedEncryptionUtil.EncryptionResult result =
-                ChunkedEncryptionUtil.encryptLargeFile(
-                        this, selectedFileUri, outputUri, fileExtension, callback
-                );
+        batchJob = BatchEncryptionQueue.start(this, batchSources,
+                BatchEncryptionQueue.intoTree(this, destinationTree, extension), password, recipient,
+                new BatchEncryptionQueue.BatchCallback() {
+                    @Override
+                    public void onProgress(int filesDone, int filesTotal, long bytesDone, long bytesTotal) {
+                        runOnUiThread(() -> {
+                            if (linearProgress != null) {
+                                linearProgress.setIndeterminate(bytesTotal <= 0);
+                                if (bytesTotal > 0) {
+                                    linearProgress.setProgress((int) (bytesDone * 100 / bytesTotal));
+                                }
+                            }
+                            if (txtProgress != null) {
+                                txtProgress.setText("Files: " + filesDone + " / " + filesTotal);
+                            }
+                            txtStatus.setText("Encrypting: " + formatFileSize(bytesDone) +
+                                    (bytesTotal > 0 ? " / " + formatFileSize(bytesTotal) : ""));
+                        });
+                    }
 
-        encryptedFileUri = result.encryptedFileUri;
-        encryptionKey = result.privateKey;
-        tempEncryptedFile = outputFile;
+                    @Override
+                    public void onFileComplete(BatchEncryptionQueue.FileResult result) {
+                    }
+
+                    @Override
+                    public void onBatchComplete(List<BatchEncryptionQueue.FileResult> results) {
+                        int failed = 0;
+                        for (BatchEncryptionQueue.FileResult result : results) {
+                            if (!result.isSuccess()) {
+                                failed++;
+                            }
+                        }
+
+                        int succeeded = results.size() - failed;
+                        int failures = failed;
+                        runOnUiThread(() -> {
+                            batchJob = null;
+                            showLoadingState(false);
+                            if (linearProgress != null) {
+                                linearProgress.setVisibility(View.GONE);
+                            }
+                            if (txtProgress != null) {
+                                txtProgress.setVisibility(View.GONE);
+                            }
+                            txtStatus.setText("✓ Encrypted " + succeeded + " of " + results.size() + " files");
+                            txtStatus.setTextColor(getColor(failures == 0 ?
+                                    android.R.color.holo_green_dark : android.R.color.holo_orange_dark));
+                            showSnackbar(failures == 0
+                                    ? (usePasswordMode || useDeviceKey ? "Batch complete"
+                                            : "Batch complete - move the .key file somewhere safe")
+                                    : failures + " files failed", failures > 0);
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Saves the one private key that opens every file of the batch
+     */
+    private void saveBatchKey(Uri destinationTree, byte[] privateKey) throws Exception {
+        try {
+            Uri keyUri = BatchEncryptionQueue.intoTree(this, destinationTree, ".key")
+                    .createOutput(null, "batch_" + System.currentTimeMillis());
+            try (OutputStream out = getContentResolver().openOutputStream(keyUri)) {
+                if (out == null) throw new Exception("Cannot open key file");
+                out.write(privateKey);
+            }
+        } finally {
+            java.util.Arrays.fill(privateKey, (byte) 0);
+        }
     }
 
     private void animateLockIcon() {
@@ -505,34 +872,26 @@ public class ModernEncryptionActivity extends AppCompatActivity {
             return;
         }
 
+        if (encryptedData == null) {
+            showSnackbar("Encrypted file already saved", false);
+            return;
+        }
+
         Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
         intent.setType("application/octet-stream");
-        String extension = usePasswordMode ? ".csp" : ".csk";
-        intent.putExtra(Intent.EXTRA_TITLE, "encrypted_" + System.currentTimeMillis() + extension);
+        intent.putExtra(Intent.EXTRA_TITLE, getEncryptedFileName());
         saveEncryptedLauncher.launch(intent);
     }
 
+    private String getEncryptedFileName() {
+        String extension = usePasswordMode ? ".csp" : ".csk";
+        return "encrypted_" + System.currentTimeMillis() + extension;
+    }
+
     private void saveEncryptedToUri(Uri uri) {
-        try {
-            if (isLargeFile && encryptedFileUri != null) {
-                try (InputStream in = new FileInputStream(new File(encryptedFileUri.getPath()));
-                     OutputStream out = getContentResolver().openOutputStream(uri)) {
-
-                    byte[] buffer = new byte[8192];
-                    int len;
-                    long totalWritten = 0;
-                    while ((len = in.read(buffer)) > 0) {
-                        out.write(buffer, 0, len);
-                        totalWritten += len;
-                    }
-                    showSnackbar("Encrypted file saved (" + formatFileSize(totalWritten) + ")", false);
-                }
-            } else {
-                try (OutputStream out = getContentResolver().openOutputStream(uri)) {
-                    out.write(encryptedData);
-                    showSnackbar("Encrypted file saved (" + formatFileSize(encryptedData.length) + ")", false);
-                }
-            }
+        try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+            out.write(encryptedData);
+            showSnackbar("Encrypted file saved (" + formatFileSize(encryptedData.length) + ")", false);
         } catch (IOException e) {
             showSnackbar("Failed to save: " + e.getMessage(), true);
         }
@@ -577,28 +936,33 @@ public class ModernEncryptionActivity extends AppCompatActivity {
     }
 
     private long getFileSize(Uri uri) {
-        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                int idx = cursor.getColumnIndex(OpenableColumns.SIZE);
-                if (idx >= 0) return cursor.getLong(idx);
-            }
-        }
-        return 0;
+        // Metadata or fstat only - never reads the file
+        return FileSizeResolver.resolveWithoutReading(this, uri);
     }
 
     private String formatFileSize(long bytes) {
+        if (bytes == FileSizeResolver.UNKNOWN_SIZE) return "Unknown size";
         if (bytes < 1024) return bytes + " B";
         int exp = (int) (Math.log(bytes) / Math.log(1024));
         String pre = "KMGTPE".charAt(exp - 1) + "";
         return String.format("%.1f %sB", bytes / Math.pow(1024, exp), pre);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The whole app went to the background - drop derived password keys instead of waiting for their TTL
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            PasswordKeys.clearCache();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
-        if (tempEncryptedFile != null && tempEncryptedFile.exists()) {
-            tempEncryptedFile.delete();
+        if (batchJob != null) {
+            batchJob.cancel();
         }
 
         if (encryptionKey != null) {
@@ -607,5 +971,8 @@ public class ModernEncryptionActivity extends AppCompatActivity {
         if (encryptionPassword != null) {
             encryptionPassword = null;
         }
+        if (isFinishing()) {
+            PasswordKeys.clearCache();
+        }
     }
 }
\ No newline at end of file
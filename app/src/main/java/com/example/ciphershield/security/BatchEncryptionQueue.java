@@ -0,0 +1,343 @@
+package com.example.ciphershield.security;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts many documents in one job
+ * Small files run concurrently on a pool sized to the core count; large
+ * files go through ChunkedEncryptionUtil one at a time, since its segment
+ * engine already uses every core. Dispatch blocks while MAX_IN_FLIGHT files
+ * are pending, so a 2,000 file folder never queues 2,000 tasks at once
+ */
+public class BatchEncryptionQueue {
+
+    private static final String TAG = "BatchEncryption";
+    private static final long LARGE_FILE_THRESHOLD = 10 * 1024 * 1024; // Same cut-off as the activities
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_IN_FLIGHT = THREADS * 2;
+
+    /**
+     * Creates the document that receives the encrypted form of a source
+     */
+    public interface OutputFactory {
+        Uri createOutput(Uri sourceUri, String displayName) throws Exception;
+    }
+
+    /**
+     * Called on worker threads; bytesTotal is ChunkedEncryptionUtil.UNKNOWN_PROGRESS
+     * when any source size cannot be resolved
+     */
+    public interface BatchCallback {
+        void onProgress(int filesDone, int filesTotal, long bytesDone, long bytesTotal);
+        void onFileComplete(FileResult result);
+        void onBatchComplete(List<FileResult> results);
+    }
+
+    public static class FileResult {
+        public final Uri sourceUri;
+        public final Uri encryptedUri;
+        public final String displayName;
+        public final byte[] privateKey;
+        public final String checksum;
+        public final Exception error;
+
+        FileResult(Uri sourceUri, Uri encryptedUri, String displayName,
+                   byte[] privateKey, String checksum, Exception error) {
+            this.sourceUri = sourceUri;
+            this.encryptedUri = encryptedUri;
+            this.displayName = displayName;
+            this.privateKey = privateKey;
+            this.checksum = checksum;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Handle to a running batch
+     */
+    public static class BatchJob {
+        private volatile boolean cancelled;
+
+        /**
+         * Files already started finish; the rest are reported as cancelled
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Starts encrypting sources in the background and returns immediately
+     * A null password selects RSA key mode, with one key pair per file
+     */
+    public static BatchJob start(Context context, List<Uri> sources, OutputFactory outputs,
+                                 String password, BatchCallback callback) {
+        return start(context, sources, outputs, password, null, callback);
+    }
+
+    /**
+     * In key mode a recipient wraps every file to the same public key, so no
+     * key pairs are generated and FileResult.privateKey stays null
+     */
+    public static BatchJob start(Context context, List<Uri> sources, OutputFactory outputs,
+                                 String password, PublicKey recipient, BatchCallback callback) {
+        BatchJob job = new BatchJob();
+        Context appContext = context.getApplicationContext();
+
+        Thread dispatcher = new Thread(() -> run(appContext, sources, outputs, password, recipient, callback, job),
+                "batch-encryption");
+        dispatcher.start();
+        return job;
+    }
+
+    /**
+     * Lists every file below a tree picked with ACTION_OPEN_DOCUMENT_TREE
+     */
+    public static List<Uri> listDocumentTree(Context context, Uri treeUri) {
+        List<Uri> documents = new ArrayList<>();
+        collectDocuments(context.getContentResolver(), treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri), documents);
+        return documents;
+    }
+
+    /**
+     * Writes each encrypted file to the top level of a document tree
+     */
+    public static OutputFactory intoTree(Context context, Uri treeUri, String encryptedExtension) {
+        ContentResolver resolver = context.getContentResolver();
+        Uri parent = DocumentsContract.buildDocumentUriUsingTree(
+                treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+
+        return (sourceUri, displayName) -> {
+            Uri output = DocumentsContract.createDocument(
+                    resolver, parent, "application/octet-stream", displayName + encryptedExtension);
+            if (output == null) {
+                throw new Exception("Cannot create output for " + displayName);
+            }
+            return output;
+        };
+    }
+
+    private static void run(Context context, List<Uri> sources, OutputFactory outputs,
+                            String password, PublicKey recipient, BatchCallback callback, BatchJob job) {
+        int total = sources.size();
+        FileResult[] results = new FileResult[total];
+
+        // Metadata or fstat only - never reads the files
+        long[] sizes = new long[total];
+        long bytesTotal = 0;
+        for (int i = 0; i < total; i++) {
+            sizes[i] = FileSizeResolver.resolveWithoutReading(context, sources.get(i));
+            if (sizes[i] < 0 || bytesTotal < 0) {
+                bytesTotal = ChunkedEncryptionUtil.UNKNOWN_PROGRESS;
+            } else {
+                bytesTotal += sizes[i];
+            }
+        }
+
+        ExecutorService smallFiles = Executors.newFixedThreadPool(THREADS);
+        ExecutorService largeFiles = Executors.newSingleThreadExecutor();
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        AtomicInteger filesDone = new AtomicInteger();
+        AtomicLong bytesDone = new AtomicLong();
+        final long batchBytes = bytesTotal;
+
+        try {
+            for (int i = 0; i < total; i++) {
+                // Backpressure: wait for a slot before reading the next source
+                inFlight.acquireUninterruptibly();
+
+                final int index = i;
+                final Uri source = sources.get(i);
+
+                Runnable task = () -> {
+                    try {
+                        if (job.isCancelled()) {
+                            results[index] = new FileResult(source, null, null, null, null,
+                                    new CancellationException("Batch cancelled"));
+                        } else {
+                            results[index] = encryptOne(context, source, sizes[index], outputs, password,
+                                    recipient, batchBytes, filesDone, bytesDone, total, callback);
+                        }
+
+                        int done = filesDone.incrementAndGet();
+                        if (callback != null) {
+                            callback.onFileComplete(results[index]);
+                            callback.onProgress(done, total, bytesDone.get(), batchBytes);
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                };
+
+                (isLarge(sizes[i]) ? largeFiles : smallFiles).execute(task);
+            }
+
+            // All permits back means every task has finished
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+        } finally {
+            smallFiles.shutdown();
+            largeFiles.shutdown();
+        }
+
+        if (callback != null) {
+            callback.onBatchComplete(Arrays.asList(results));
+        }
+    }
+
+    private static FileResult encryptOne(Context context, Uri source, long size, OutputFactory outputs,
+                                         String password, PublicKey recipient, long batchBytes, AtomicInteger filesDone,
+                                         AtomicLong bytesDone, int total, BatchCallback callback) {
+        String displayName = displayNameOf(context, source);
+        String extension = displayName.contains(".")
+                ? displayName.substring(displayName.lastIndexOf('.')) : "";
+        Uri output = null;
+
+        try {
+            output = outputs.createOutput(source, displayName);
+
+            if (isLarge(size)) {
+                // Per-segment progress folded into the batch total
+                AtomicLong fileBytes = new AtomicLong();
+                ChunkedEncryptionUtil.ProgressCallback progress = new ChunkedEncryptionUtil.ProgressCallback() {
+                    @Override
+                    public void onProgress(int percentage, long bytesProcessed, long totalBytes) {
+                        long delta = bytesProcessed - fileBytes.getAndSet(bytesProcessed);
+                        long done = bytesDone.addAndGet(delta);
+                        if (callback != null) {
+                            callback.onProgress(filesDone.get(), total, done, batchBytes);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete() {
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                    }
+                };
+
+                ChunkedEncryptionUtil.EncryptionResult result;
+                if (password != null) {
+                    result = ChunkedEncryptionUtil.encryptLargeFileWithPassword(
+                            context, source, output, extension, password, progress);
+                } else if (recipient != null) {
+                    result = ChunkedEncryptionUtil.encryptLargeFile(
+                            context, source, output, extension, recipient, progress);
+                } else {
+                    result = ChunkedEncryptionUtil.encryptLargeFile(context, source, output, extension, progress);
+                }
+                return new FileResult(source, output, displayName, result.privateKey, result.checksum, null);
+            }
+
+            SecureEncryptionUtil.EncryptionResult result;
+            try (InputStream in = context.getContentResolver().openInputStream(source);
+                 ParcelFileDescriptor out = context.getContentResolver().openFileDescriptor(output, "rw")) {
+                if (in == null || out == null) {
+                    throw new Exception("Cannot open " + displayName);
+                }
+                if (password != null) {
+                    result = SecureEncryptionUtil.encryptWithPassword(in, out.getFileDescriptor(), password, extension);
+                } else if (recipient != null) {
+                    result = SecureEncryptionUtil.encrypt(in, out.getFileDescriptor(), extension, recipient);
+                } else {
+                    result = SecureEncryptionUtil.encrypt(in, out.getFileDescriptor(), extension);
+                }
+                bytesDone.addAndGet(size);
+            }
+            return new FileResult(source, output, displayName, result.privateKey, result.checksum, null);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to encrypt " + displayName + ": " + e.getMessage());
+            if (output != null) {
+                deleteQuietly(context, output);
+            }
+            return new FileResult(source, null, displayName, null, null, e);
+        }
+    }
+
+    private static boolean isLarge(long size) {
+        // Unknown sizes take the chunked path rather than risk a large in-memory file
+        return size < 0 || size > LARGE_FILE_THRESHOLD;
+    }
+
+    private static void collectDocuments(ContentResolver resolver, Uri treeUri, String parentId, List<Uri> out) {
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, parentId);
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_MIME_TYPE
+        };
+
+        List<String> directories = new ArrayList<>();
+        try (Cursor cursor = resolver.query(children, projection, null, null, null)) {
+            if (cursor == null) return;
+            while (cursor.moveToNext()) {
+                String documentId = cursor.getString(0);
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(1))) {
+                    directories.add(documentId);
+                } else {
+                    out.add(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId));
+                }
+            }
+        }
+
+        // Recurse after the cursor is closed to keep one cursor open at a time
+        for (String directory : directories) {
+            collectDocuments(resolver, treeUri, directory, out);
+        }
+    }
+
+    private static String displayNameOf(Context context, Uri uri) {
+        if ("content".equals(uri.getScheme())) {
+            try (Cursor cursor = context.getContentResolver().query(
+                    uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getString(0);
+                }
+            } catch (Exception e) {
+                // Fall back to the path
+            }
+        }
+        String path = uri.getPath();
+        return path != null ? path.substring(path.lastIndexOf('/') + 1) : "file";
+    }
+
+    private static void deleteQuietly(Context context, Uri uri) {
+        try {
+            if ("file".equals(uri.getScheme())) {
+                new java.io.File(uri.getPath()).delete();
+            } else {
+                DocumentsContract.deleteDocument(context.getContentResolver(), uri);
+            }
+        } catch (Exception e) {
+            // Provider does not support deletion - leave the partial document
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.example.ciphershield.security;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
+import androidx.work.Data;
+import androidx.work.ForegroundInfo;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.example.ciphershield.R;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.function.LongConsumer;
+import javax.crypto.SecretKey;
+
+/**
+ * Runs CL3 encryption and decryption as foreground WorkManager jobs
+ * Progress is checkpointed every CHECKPOINT_INTERVAL segments, after the
+ * output has been forced to disk; if the process dies, WorkManager reruns the
+ * job and it resumes from the last durable segment instead of starting over.
+ * Segment nonces and AAD depend only on the segment index, so a resumed file
+ * is byte-identical to one written in a single pass
+ */
+public class ChunkedCryptoWorker extends Worker {
+
+    public static final String TAG_ENCRYPT = "chunked-encrypt";
+    public static final String TAG_DECRYPT = "chunked-decrypt";
+
+    // Progress and output data keys
+    public static final String KEY_PERCENT = "percent";
+    public static final String KEY_BYTES = "bytes";
+    public static final String KEY_TOTAL = "total";
+    public static final String KEY_OUTPUT_URI = "output_uri";
+    public static final String KEY_EXTENSION = "extension";
+    public static final String KEY_CHECKSUM = "checksum";
+    public static final String KEY_ERROR = "error";
+
+    private static final String TAG = "ChunkedCryptoWorker";
+    private static final String CHANNEL_ID = "chunked_crypto";
+    private static final int CHECKPOINT_INTERVAL = 32; // Segments between durable checkpoints (32MB)
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    private static final int ACCESS_FLAGS =
+            Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION;
+
+    private int lastPercent = Integer.MIN_VALUE;
+    private long lastPublished;
+
+    public ChunkedCryptoWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Generates the file keys and queues the encryption; blocks, so call off the UI thread
+     * A null password selects RSA key mode - the private key is claimed from
+     * CryptoCheckpoint once the job has succeeded
+     */
+    public static UUID enqueueEncryption(Context context, Uri inputUri, Uri outputUri,
+                                         String originalExtension, String password) throws Exception {
+        return enqueueEncryption(context, inputUri, outputUri,
+                ChunkedFileCipher.newSealingKeys(originalExtension, password));
+    }
+
+    /**
+     * Queues an encryption wrapped to a recipient key, such as the DeviceKey
+     * Only one OAEP wrap happens here; there is no private key to claim afterwards
+     */
+    public static UUID enqueueEncryption(Context context, Uri inputUri, Uri outputUri,
+                                         String originalExtension, PublicKey recipient) throws Exception {
+        return enqueueEncryption(context, inputUri, outputUri,
+                ChunkedFileCipher.newSealingKeys(originalExtension, recipient));
+    }
+
+    private static UUID enqueueEncryption(Context context, Uri inputUri, Uri outputUri,
+                                          ChunkedFileCipher.SealingKeys keys) throws Exception {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(ChunkedCryptoWorker.class)
+                .addTag(TAG_ENCRYPT)
+                .build();
+        CryptoCheckpoint.create(context, request.getId().toString(), CryptoCheckpoint.MODE_ENCRYPT,
+                inputUri, outputUri, keys.header, keys.dataKey, keys.privateKey);
+        return enqueue(context, request, inputUri, outputUri);
+    }
+
+    /**
+     * Unwraps the data key of a CL3 file and queues its decryption; blocks, so call off the UI thread
+     * Exactly one of privateKey and password is used
+     */
+    public static UUID enqueueDecryption(Context context, Uri encryptedUri, Uri outputUri,
+                                         byte[] privateKey, String password) throws Exception {
+        ChunkedFileHeader header = readHeader(context, encryptedUri);
+
+        // Key unwrapping happens here, so the job itself never sees the password or private key
+        SecretKey dataKey;
+        if (password != null) {
+            char[] passwordChars = password.toCharArray();
+            try {
+                dataKey = header.unwrapKey(passwordChars);
+            } finally {
+                Arrays.fill(passwordChars, '\0');
+            }
+        } else {
+            dataKey = header.unwrapKey(privateKey);
+        }
+        return enqueueDecryption(context, encryptedUri, outputUri, header, dataKey);
+    }
+
+    /**
+     * Same with a private key handle, e.g. DeviceKey.privateKey()
+     */
+    public static UUID enqueueDecryption(Context context, Uri encryptedUri, Uri outputUri,
+                                         PrivateKey privateKey) throws Exception {
+        ChunkedFileHeader header = readHeader(context, encryptedUri);
+        return enqueueDecryption(context, encryptedUri, outputUri, header, header.unwrapKey(privateKey));
+    }
+
+    private static UUID enqueueDecryption(Context context, Uri encryptedUri, Uri outputUri,
+                                          ChunkedFileHeader header, SecretKey dataKey) throws Exception {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(ChunkedCryptoWorker.class)
+                .addTag(TAG_DECRYPT)
+                .build();
+        CryptoCheckpoint.create(context, request.getId().toString(), CryptoCheckpoint.MODE_DECRYPT,
+                encryptedUri, outputUri, header, dataKey, null);
+        return enqueue(context, request, encryptedUri, outputUri);
+    }
+
+    private static ChunkedFileHeader readHeader(Context context, Uri encryptedUri) throws Exception {
+        // A rotation torn by a crash leaves a key field that would not unwrap
+        ChunkedEncryptionUtil.recoverInterrupted(context, encryptedUri);
+        try (InputStream in = context.getContentResolver().openInputStream(encryptedUri)) {
+            if (in == null) {
+                throw new IOException("Cannot open encrypted file");
+            }
+            return ChunkedFileHeader.read(new BufferedInputStream(in));
+        }
+    }
+
+    private static UUID enqueue(Context context, OneTimeWorkRequest request, Uri inputUri, Uri outputUri) {
+        // SAF grants end with the process; a resumed job needs them persisted
+        retainAccess(context, inputUri);
+        retainAccess(context, outputUri);
+        WorkManager.getInstance(context).enqueue(request);
+        return request.getId();
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        String jobId = getId().toString();
+
+        CryptoCheckpoint checkpoint;
+        try {
+            checkpoint = CryptoCheckpoint.load(context, jobId);
+        } catch (IOException e) {
+            return Result.failure(error("Cannot read job state: " + e.getMessage()));
+        }
+        if (checkpoint == null) {
+            return Result.failure(error("Job state missing"));
+        }
+
+        boolean encrypt = checkpoint.mode == CryptoCheckpoint.MODE_ENCRYPT;
+        String extension = "";
+        try {
+            ChunkedFileHeader header = checkpoint.header();
+            extension = header.getOriginalExtension();
+
+            if (!checkpoint.finished) {
+                promoteToForeground(encrypt, ChunkedEncryptionUtil.UNKNOWN_PROGRESS);
+                run(context, checkpoint, header, encrypt);
+            }
+        } catch (Exception e) {
+            if (isStopped() && getStopReason() != WorkInfo.STOP_REASON_CANCELLED_BY_APP) {
+                // Stopped by the system - the rerun picks up from the checkpoint
+                return Result.retry();
+            }
+            Log.w(TAG, "Job " + jobId + " failed: " + e.getMessage());
+            deleteQuietly(context, checkpoint.outputUri);
+            CryptoCheckpoint.delete(context, jobId);
+            releaseAccess(context, checkpoint.inputUri);
+            releaseAccess(context, checkpoint.outputUri);
+            return Result.failure(error(e instanceof CancellationException ? "Cancelled" : e.getMessage()));
+        }
+
+        releaseAccess(context, checkpoint.inputUri);
+        releaseAccess(context, checkpoint.outputUri);
+
+        Data.Builder output = new Data.Builder()
+                .putString(KEY_OUTPUT_URI, checkpoint.outputUri.toString())
+                .putString(KEY_EXTENSION, extension);
+        if (checkpoint.checksum != null) {
+            output.putString(KEY_CHECKSUM, checkpoint.checksum);
+        }
+
+        // An RSA private key stays in the checkpoint until the activity claims it
+        if (!checkpoint.holdsPrivateKey()) {
+            CryptoCheckpoint.delete(context, jobId);
+        }
+        return Result.success(output.build());
+    }
+
+    private void run(Context context, CryptoCheckpoint checkpoint, ChunkedFileHeader header, boolean encrypt)
+            throws Exception {
+        SecretKey dataKey = checkpoint.dataKey();
+        long headerLength = header.length();
+        long plainSegment = header.segmentSize;
+        long sealedSegment = plainSegment + ParallelSegmentCipher.GCM_TAG_BYTES;
+
+        if (!encrypt) {
+            // The process may have died in an update of the container since the job was queued
+            ChunkedEncryptionUtil.recoverInterrupted(context, checkpoint.inputUri);
+        }
+        long inputSize = FileSizeResolver.resolveWithoutReading(context, checkpoint.inputUri);
+        long totalSize = encrypt || inputSize < 0 ? inputSize : plaintextSize(inputSize - headerLength, sealedSegment);
+
+        try (ParcelFileDescriptor inFd = open(context, checkpoint.inputUri, "r");
+             ParcelFileDescriptor outFd = open(context, checkpoint.outputUri, "rw");
+             FileChannel in = new FileInputStream(inFd.getFileDescriptor()).getChannel();
+             FileChannel out = new FileOutputStream(outFd.getFileDescriptor()).getChannel();
+             // The output channel is write-only; framed segments are found by reading their prefixes
+             FileChannel outReader = new FileInputStream(outFd.getFileDescriptor()).getChannel()) {
+
+            long firstSegment = checkpoint.completedSegments;
+            long outputOffset = encrypt ? sealedOffset(outReader, header, firstSegment) : firstSegment * plainSegment;
+            if (outputOffset < 0 || out.size() < outputOffset) {
+                // Output is shorter than the checkpoint claims - start over
+                firstSegment = 0;
+                outputOffset = encrypt ? headerLength : 0;
+            }
+
+            // Drop whatever was written after the last durable segment
+            out.truncate(outputOffset);
+            if (encrypt && firstSegment == 0) {
+                out.position(0);
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header.toBytes());
+                while (headerBuffer.hasRemaining()) {
+                    out.write(headerBuffer);
+                }
+            }
+            out.position(outputOffset);
+
+            SegmentIndex index = null;
+            if (encrypt && header.isIndexed() && firstSegment > 0) {
+                // The trailer lists every segment, so re-hash the ones already written
+                index = SegmentIndex.rebuild(outReader, headerLength, firstSegment,
+                        ParallelSegmentCipher.maxSealedLength(header.segmentSize, header.flags));
+            }
+
+            long inputOffset = encrypt ? firstSegment * plainSegment : sealedOffset(in, header, firstSegment);
+            if (inputOffset < 0) {
+                throw new IOException("Truncated chunked file");
+            }
+            in.position(inputOffset);
+            // Framed segments vary in size; count them from their length prefixes instead
+            final long plaintextTotal = !encrypt && header.isFramed()
+                    ? ParallelSegmentCipher.framedSegments(in, headerLength) * plainSegment
+                    : totalSize;
+
+            final long resumedSegments = firstSegment;
+            final long resumedBytes = firstSegment * plainSegment;
+            final long[] nextCheckpoint = {firstSegment + CHECKPOINT_INTERVAL};
+
+            LongConsumer progress = written -> {
+                if (isStopped()) {
+                    throw new CancellationException("Stopped");
+                }
+
+                // Progress counts plaintext in both directions
+                long segments = resumedSegments + written / plainSegment;
+                if (segments >= nextCheckpoint[0]) {
+                    try {
+                        out.force(false);
+                        checkpoint.completedSegments = segments;
+                        checkpoint.save(context);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    nextCheckpoint[0] = segments + CHECKPOINT_INTERVAL;
+                }
+
+                publishProgress(encrypt, resumedBytes + written, plaintextTotal);
+            };
+
+            // A decryption interrupted after its last segment has nothing left to read
+            if (encrypt || in.position() < in.size()) {
+                if (encrypt) {
+                    ParallelSegmentCipher.encrypt(in, out, dataKey, header.nonce, header.digest,
+                            header.segmentSize, header.flags, index, firstSegment, progress);
+                } else {
+                    ParallelSegmentCipher.decrypt(in, out, dataKey, header.nonce, header.digest,
+                            header.segmentSize, header.flags, firstSegment, progress);
+                }
+            }
+            out.force(false);
+        }
+
+        checkpoint.finished = true;
+        checkpoint.checksum = encrypt ? ChunkedFileCipher.checksumOf(dataKey) : null;
+        checkpoint.save(context);
+    }
+
+    private void publishProgress(boolean encrypt, long bytesProcessed, long totalSize) {
+        int percent = totalSize > 0
+                ? (int) Math.min(100, bytesProcessed * 100 / totalSize)
+                : ChunkedEncryptionUtil.UNKNOWN_PROGRESS;
+
+        // Progress lands in the WorkManager database; throttle it to visible changes
+        long now = System.currentTimeMillis();
+        if (percent == lastPercent && now - lastPublished < PROGRESS_INTERVAL_MS) return;
+        if (percent != lastPercent) {
+            promoteToForeground(encrypt, percent);
+        }
+        lastPercent = percent;
+        lastPublished = now;
+
+        setProgressAsync(new Data.Builder()
+                .putInt(KEY_PERCENT, percent)
+                .putLong(KEY_BYTES, bytesProcessed)
+                .putLong(KEY_TOTAL, totalSize)
+                .build());
+    }
+
+    private void promoteToForeground(boolean encrypt, int percent) {
+        Context context = getApplicationContext();
+        NotificationManager manager = context.getSystemService(NotificationManager.class);
+        if (manager.getNotificationChannel(CHANNEL_ID) == null) {
+            manager.createNotificationChannel(new NotificationChannel(
+                    CHANNEL_ID, "File encryption", NotificationManager.IMPORTANCE_LOW));
+        }
+
+        boolean unknown = percent == ChunkedEncryptionUtil.UNKNOWN_PROGRESS;
+        Notification notification = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_shield_lock)
+                .setContentTitle(encrypt ? "Encrypting file" : "Decrypting file")
+                .setContentText(unknown ? "Working..." : percent + "%")
+                .setProgress(100, unknown ? 0 : percent, unknown)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .addAction(0, "Cancel", WorkManager.getInstance(context).createCancelPendingIntent(getId()))
+                .build();
+
+        int notificationId = getId().hashCode();
+        ForegroundInfo info = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? new ForegroundInfo(notificationId, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC)
+                : new ForegroundInfo(notificationId, notification);
+
+        // If the system refuses a foreground start, the job keeps running in the background
+        setForegroundAsync(info);
+    }
+
+    /**
+     * Plaintext bytes in the given amount of CL3 segment data
+     */
+    private static long plaintextSize(long sealedBytes, long sealedSegment) {
+        long segments = (sealedBytes + sealedSegment - 1) / sealedSegment;
+        return Math.max(0, sealedBytes - segments * ParallelSegmentCipher.GCM_TAG_BYTES);
+    }
+
+    /**
+     * File offset of segment index; framed segments vary in size, so their
+     * length prefixes are walked. -1 if the file ends first
+     */
+    private static long sealedOffset(FileChannel channel, ChunkedFileHeader header, long index) throws IOException {
+        if (header.isFramed()) {
+            return ParallelSegmentCipher.framedOffset(channel, header.length(), index);
+        }
+        return header.length() + index * (header.segmentSize + (long) ParallelSegmentCipher.GCM_TAG_BYTES);
+    }
+
+    private static ParcelFileDescriptor open(Context context, Uri uri, String mode) throws IOException {
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, mode);
+        if (pfd == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        if (pfd.getStatSize() < 0) {
+            // Resuming needs random access; pipes and sockets cannot provide it
+            pfd.close();
+            throw new IOException("Background jobs need a seekable file");
+        }
+        return pfd;
+    }
+
+    private static Data error(String message) {
+        return new Data.Builder().putString(KEY_ERROR, message).build();
+    }
+
+    private static void retainAccess(Context context, Uri uri) {
+        if (!"content".equals(uri.getScheme())) return;
+        try {
+            context.getContentResolver().takePersistableUriPermission(uri, ACCESS_FLAGS);
+        } catch (SecurityException e) {
+            // Read-only grants or non-persistable providers: retry without write
+            try {
+                context.getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException ignored) {
+                // Job still runs while the process lives
+            }
+        }
+    }
+
+    private static void releaseAccess(Context context, Uri uri) {
+        if (!"content".equals(uri.getScheme())) return;
+        try {
+            context.getContentResolver().releasePersistableUriPermission(uri, ACCESS_FLAGS);
+        } catch (SecurityException e) {
+            // Not held with write access - drop the read grant instead
+            try {
+                context.getContentResolver().releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException ignored) {
+                // Nothing was persisted
+            }
+        }
+    }
+
+    private static void deleteQuietly(Context context, Uri uri) {
+        try {
+            if ("file".equals(uri.getScheme())) {
+                new File(uri.getPath()).delete();
+            } else {
+                DocumentsContract.deleteDocument(context.getContentResolver(), uri);
+            }
+        } catch (Exception e) {
+            // Provider does not support deletion - leave the partial document
+        }
+    }
+}
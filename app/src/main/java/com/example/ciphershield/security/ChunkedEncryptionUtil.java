@@ -2,34 +2,38 @@ package com.example.ciphershield.security;
 
 import android.net.Uri;
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.*;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
-import javax.crypto.*;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Chunked Encryption for Large Files
  * Supports files up to 10GB with progress tracking
  * Memory efficient - processes 1MB chunks at a time
+ * The CL3 engine itself is ChunkedFileCipher; this class binds it to Uris
  */
 public class ChunkedEncryptionUtil {
 
-    private static final int CHUNK_SIZE = 1024 * 1024; // 1MB chunks
-    private static final int AES_KEY_SIZE = 256;
-    private static final int RSA_KEY_SIZE = 2048;
-    private static final int CBC_IV_LENGTH = 16;  // CBC needs 16 bytes
-    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
-    private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
-
-    public interface ProgressCallback {
-        void onProgress(int percentage, long bytesProcessed, long totalBytes);
-        void onComplete();
-        void onError(Exception e);
+    public static final int UNKNOWN_PROGRESS = ChunkedFileCipher.UNKNOWN_PROGRESS;
+    private static final String JOURNAL_DIRECTORY = "journals";
+    // Journals of updates and rotations in progress; recovery must not roll those back
+    private static final Set<File> activeJournals = ConcurrentHashMap.newKeySet();
+
+    /**
+     * When the size cannot be resolved without an extra read, progress is
+     * reported in bytes only: percentage and totalBytes are then UNKNOWN_PROGRESS
+     */
+    public interface ProgressCallback extends ChunkedFileCipher.ProgressCallback {
     }
 
     public static class EncryptionResult {
@@ -46,7 +50,9 @@ public class ChunkedEncryptionUtil {
 
     /**
      * Encrypts large file in chunks with progress tracking
-     * Uses streaming encryption to avoid memory issues
+     * Writes the CL3 format: 1MB AES-GCM segments sealed in parallel
+     * Output is a single sequential pass with no trailer to back-patch, so
+     * outputUri can be the user's final SAF document rather than a temp file
      */
     public static EncryptionResult encryptLargeFile(
             Context context,
@@ -55,154 +61,142 @@ public class ChunkedEncryptionUtil {
             String originalExtension,
             ProgressCallback callback) throws Exception {
 
-        SecureRandom random = new SecureRandom();
-
-        // Generate AES key
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(AES_KEY_SIZE, random);
-        SecretKey aesKey = keyGen.generateKey();
-
-        // Generate RSA key pair
-        KeyPairGenerator rsaGen = KeyPairGenerator.getInstance("RSA");
-        rsaGen.initialize(RSA_KEY_SIZE, random);
-        KeyPair rsaKeyPair = rsaGen.generateKeyPair();
-
-        // Encrypt AES key with RSA
-        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
-        rsaCipher.init(Cipher.ENCRYPT_MODE, rsaKeyPair.getPublic());
-        byte[] encryptedAESKey = rsaCipher.doFinal(aesKey.getEncoded());
-
-        // Generate salt and IV
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-        byte[] iv = new byte[CBC_IV_LENGTH];  // 16 bytes for CBC
-        random.nextBytes(iv);
-
-        // Build header
-        byte[] extBytes = originalExtension.getBytes(StandardCharsets.UTF_8);
-        ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
-
-        headerStream.write("CL2".getBytes(StandardCharsets.UTF_8));
-        headerStream.write(ByteBuffer.allocate(4).putInt(salt.length).array());
-        headerStream.write(salt);
-        headerStream.write(ByteBuffer.allocate(4).putInt(iv.length).array());
-        headerStream.write(iv);
-        headerStream.write(ByteBuffer.allocate(4).putInt(extBytes.length).array());
-        headerStream.write(extBytes);
-        headerStream.write(ByteBuffer.allocate(4).putInt(encryptedAESKey.length).array());
-        headerStream.write(encryptedAESKey);
-
-        byte[] header = headerStream.toByteArray();
-
-        // Get file size for progress tracking
-        long totalSize = getFileSize(context, inputUri);
-        long bytesProcessed = 0;
-
-        // Initialize cipher - Use CBC mode for streaming instead of GCM
-        Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        javax.crypto.spec.IvParameterSpec ivSpec = new javax.crypto.spec.IvParameterSpec(iv);
-        aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, ivSpec);
-
-        // Initialize HMAC
-        Mac hmac = Mac.getInstance("HmacSHA256");
-        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
-
-        try (InputStream rawInputStream = context.getContentResolver().openInputStream(inputUri);
-             BufferedInputStream inputStream = new BufferedInputStream(rawInputStream, 8192);
-             OutputStream rawOutputStream = context.getContentResolver().openOutputStream(outputUri);
-             BufferedOutputStream outputStream = new BufferedOutputStream(rawOutputStream, 8192)) {
-
-            // Write header
-            outputStream.write(header);
-
-            // Reserve space for HMAC
-            byte[] hmacPlaceholder = new byte[36];
-            long hmacPosition = header.length;
-            outputStream.write(hmacPlaceholder);
-
-            // Process file in small chunks to avoid memory issues
-            byte[] buffer = new byte[8192]; // Smaller chunks for streaming
-            int bytesRead;
-            long chunksProcessed = 0;
-
-            while ((bytesRead = inputStream.read(buffer)) > 0) {
-                byte[] chunk = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-
-                // Encrypt chunk using update (streaming)
-                byte[] encryptedChunk = aesCipher.update(chunk);
-
-                if (encryptedChunk != null && encryptedChunk.length > 0) {
-                    // Update HMAC
-                    hmac.update(encryptedChunk);
-
-                    // Write encrypted chunk with length
-                    outputStream.write(ByteBuffer.allocate(4).putInt(encryptedChunk.length).array());
-                    outputStream.write(encryptedChunk);
-                }
+        ChunkedFileCipher.EncryptionResult result = ChunkedFileCipher.encrypt(
+                UriIO.source(context, inputUri), UriIO.sink(context, outputUri), originalExtension, callback);
 
-                bytesProcessed += bytesRead;
-                chunksProcessed++;
+        return new EncryptionResult(outputUri, result.privateKey, result.checksum);
+    }
 
-                // Update progress every 128 chunks (1MB)
-                if (chunksProcessed % 128 == 0 && callback != null) {
-                    int progress = (int) ((bytesProcessed * 100) / totalSize);
-                    callback.onProgress(progress, bytesProcessed, totalSize);
-                }
+    /**
+     * Encrypts large file in chunks for a recipient key shared by many files
+     * No key pair is generated; privateKey in the result is null
+     */
+    public static EncryptionResult encryptLargeFile(
+            Context context,
+            Uri inputUri,
+            Uri outputUri,
+            String originalExtension,
+            PublicKey recipient,
+            ProgressCallback callback) throws Exception {
 
-                // Help garbage collector
-                chunk = null;
-                encryptedChunk = null;
+        ChunkedFileCipher.EncryptionResult result = ChunkedFileCipher.encrypt(
+                UriIO.source(context, inputUri), UriIO.sink(context, outputUri), originalExtension, recipient,
+                callback);
 
-                // Force GC every 256MB
-                if (bytesProcessed % (256 * 1024 * 1024) == 0) {
-                    System.gc();
-                }
-            }
+        return new EncryptionResult(outputUri, null, result.checksum);
+    }
 
-            // Finalize encryption (this handles padding)
-            byte[] finalChunk = aesCipher.doFinal();
-            if (finalChunk != null && finalChunk.length > 0) {
-                hmac.update(finalChunk);
-                outputStream.write(ByteBuffer.allocate(4).putInt(finalChunk.length).array());
-                outputStream.write(finalChunk);
-            }
+    /**
+     * Encrypts large file in chunks once for several recipient keys
+     * Each recipient adds one wrapped key to the header; any of their private keys decrypts it
+     */
+    public static EncryptionResult encryptLargeFile(
+            Context context,
+            Uri inputUri,
+            Uri outputUri,
+            String originalExtension,
+            List<PublicKey> recipients,
+            ProgressCallback callback) throws Exception {
 
-            outputStream.flush();
-        }
+        ChunkedFileCipher.EncryptionResult result = ChunkedFileCipher.encrypt(
+                UriIO.source(context, inputUri), UriIO.sink(context, outputUri), originalExtension, recipients,
+                callback);
 
-        // Calculate final HMAC
-        byte[] hmacValue = hmac.doFinal();
+        return new EncryptionResult(outputUri, null, result.checksum);
+    }
 
-        // Write HMAC using ParcelFileDescriptor
-        try {
-            android.os.ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(outputUri, "rw");
-            if (pfd != null) {
-                FileOutputStream fos = new FileOutputStream(pfd.getFileDescriptor());
-                fos.getChannel().position(header.length);
-                fos.write(ByteBuffer.allocate(4).putInt(hmacValue.length).array());
-                fos.write(hmacValue);
-                fos.close();
-                pfd.close();
-            }
-        } catch (Exception e) {
-            android.util.Log.w("ChunkedEncryption", "HMAC write failed: " + e.getMessage());
-        }
+    /**
+     * Encrypts large file in chunks under a password
+     * Same CL3 pipeline with FLAG_PASSWORD: PBKDF2 runs at most once per file to wrap a
+     * random data key, so memory use stays constant whatever the file size
+     */
+    public static EncryptionResult encryptLargeFileWithPassword(
+            Context context,
+            Uri inputUri,
+            Uri outputUri,
+            String originalExtension,
+            String password,
+            ProgressCallback callback) throws Exception {
 
-        // Calculate checksum
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        String checksum = bytesToHex(digest.digest(aesKey.getEncoded()));
+        ChunkedFileCipher.EncryptionResult result = ChunkedFileCipher.encryptWithPassword(
+                UriIO.source(context, inputUri), UriIO.sink(context, outputUri), originalExtension, password,
+                callback);
 
-        if (callback != null) {
-            callback.onProgress(100, totalSize, totalSize);
-            callback.onComplete();
+        return new EncryptionResult(outputUri, null, result.checksum);
+    }
+
+    /**
+     * Packs many documents into one archive under a single data key
+     * names[i] becomes the entry name of inputUris[i]; one key pair covers them all,
+     * so this is the way to encrypt thousands of small files
+     */
+    public static EncryptionResult packFiles(
+            Context context,
+            List<Uri> inputUris,
+            List<String> names,
+            Uri outputUri,
+            ProgressCallback callback) throws Exception {
+
+        ChunkedFileCipher.EncryptionResult result = ArchiveCipher.pack(
+                archiveEntries(context, inputUris, names), UriIO.sink(context, outputUri), callback);
+
+        return new EncryptionResult(outputUri, result.privateKey, result.checksum);
+    }
+
+    public static EncryptionResult packFilesWithPassword(
+            Context context,
+            List<Uri> inputUris,
+            List<String> names,
+            Uri outputUri,
+            String password,
+            ProgressCallback callback) throws Exception {
+
+        ChunkedFileCipher.EncryptionResult result = ArchiveCipher.packWithPassword(
+                archiveEntries(context, inputUris, names), UriIO.sink(context, outputUri), password, callback);
+
+        return new EncryptionResult(outputUri, null, result.checksum);
+    }
+
+    private static List<ArchiveCipher.Entry> archiveEntries(Context context, List<Uri> inputUris, List<String> names) {
+        if (inputUris.size() != names.size()) {
+            throw new IllegalArgumentException("Every document needs an entry name");
+        }
+        // Documents expose no reliable modification time, so entries carry the packing time
+        long now = System.currentTimeMillis();
+        List<ArchiveCipher.Entry> entries = new ArrayList<>(inputUris.size());
+        for (int i = 0; i < inputUris.size(); i++) {
+            entries.add(new ArchiveCipher.Entry(names.get(i), UriIO.source(context, inputUris.get(i)), now));
         }
+        return entries;
+    }
+
+    /**
+     * Stores a document in a vault under path, e.g. one opened in getFilesDir()
+     * The entry is visible once the vault is committed or closed
+     */
+    public static Vault.Entry addToVault(
+            Context context,
+            Vault vault,
+            Uri inputUri,
+            String path,
+            ProgressCallback callback) throws Exception {
 
-        return new EncryptionResult(outputUri, rsaKeyPair.getPrivate().getEncoded(), checksum);
+        return vault.add(path, UriIO.source(context, inputUri), System.currentTimeMillis(), callback);
+    }
+
+    public static void extractFromVault(
+            Context context,
+            Vault vault,
+            Vault.Entry entry,
+            Uri outputUri,
+            ProgressCallback callback) throws Exception {
+
+        vault.extract(entry, UriIO.sink(context, outputUri), callback);
     }
 
     /**
      * Decrypts large file in chunks with progress tracking
+     * Accepts both the parallel CL3 format and legacy CL2 files
      */
     public static void decryptLargeFile(
             Context context,
@@ -211,141 +205,236 @@ public class ChunkedEncryptionUtil {
             byte[] privateKeyBytes,
             ProgressCallback callback) throws Exception {
 
-        try (InputStream rawInputStream = context.getContentResolver().openInputStream(encryptedUri);
-             BufferedInputStream inputStream = new BufferedInputStream(rawInputStream, 8192);
-             OutputStream rawOutputStream = context.getContentResolver().openOutputStream(outputUri);
-             BufferedOutputStream outputStream = new BufferedOutputStream(rawOutputStream, 8192)) {
+        recoverInterrupted(context, encryptedUri);
+        ChunkedFileCipher.decrypt(UriIO.source(context, encryptedUri), UriIO.sink(context, outputUri),
+                privateKeyBytes, callback);
+    }
 
-            // Read header
-            byte[] versionBytes = new byte[3];
-            inputStream.read(versionBytes);
-            String version = new String(versionBytes, StandardCharsets.UTF_8);
+    /**
+     * Same with a private key handle, e.g. DeviceKey.privateKey()
+     */
+    public static void decryptLargeFile(
+            Context context,
+            Uri encryptedUri,
+            Uri outputUri,
+            PrivateKey privateKey,
+            ProgressCallback callback) throws Exception {
 
-            if (!"CL2".equals(version)) {
-                throw new Exception("Invalid chunked file format");
-            }
+        recoverInterrupted(context, encryptedUri);
+        ChunkedFileCipher.decrypt(UriIO.source(context, encryptedUri), UriIO.sink(context, outputUri),
+                privateKey, callback);
+    }
 
-            // Read salt
-            byte[] saltLenBytes = new byte[4];
-            inputStream.read(saltLenBytes);
-            int saltLen = ByteBuffer.wrap(saltLenBytes).getInt();
-            byte[] salt = new byte[saltLen];
-            inputStream.read(salt);
-
-            // Read IV
-            byte[] ivLenBytes = new byte[4];
-            inputStream.read(ivLenBytes);
-            int ivLen = ByteBuffer.wrap(ivLenBytes).getInt();
-            byte[] iv = new byte[ivLen];
-            inputStream.read(iv);
-
-            // Read extension
-            byte[] extLenBytes = new byte[4];
-            inputStream.read(extLenBytes);
-            int extLen = ByteBuffer.wrap(extLenBytes).getInt();
-            byte[] extBytes = new byte[extLen];
-            inputStream.read(extBytes);
-
-            // Read encrypted AES key
-            byte[] aesKeyLenBytes = new byte[4];
-            inputStream.read(aesKeyLenBytes);
-            int aesKeyLen = ByteBuffer.wrap(aesKeyLenBytes).getInt();
-            byte[] encryptedAESKey = new byte[aesKeyLen];
-            inputStream.read(encryptedAESKey);
-
-            // Read HMAC
-            byte[] hmacLenBytes = new byte[4];
-            inputStream.read(hmacLenBytes);
-            int hmacLen = ByteBuffer.wrap(hmacLenBytes).getInt();
-            byte[] storedHmac = new byte[hmacLen];
-            inputStream.read(storedHmac);
-
-            // Decrypt AES key
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PrivateKey rsaPrivateKey = keyFactory.generatePrivate(
-                    new java.security.spec.PKCS8EncodedKeySpec(privateKeyBytes)
-            );
-
-            Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
-            rsaCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
-            byte[] aesKeyBytes = rsaCipher.doFinal(encryptedAESKey);
-            SecretKey aesKey = new SecretKeySpec(aesKeyBytes, "AES");
-
-            // Initialize cipher for decryption (CBC mode)
-            Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            javax.crypto.spec.IvParameterSpec ivSpec = new javax.crypto.spec.IvParameterSpec(iv);
-            aesCipher.init(Cipher.DECRYPT_MODE, aesKey, ivSpec);
-
-            // Initialize HMAC for verification
-            Mac hmac = Mac.getInstance("HmacSHA256");
-            hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
-
-            long totalSize = getFileSize(context, encryptedUri);
-            long bytesProcessed = 0;
-            long chunksProcessed = 0;
-
-            // Process chunks
-            byte[] chunkLenBytes = new byte[4];
-
-            while (inputStream.read(chunkLenBytes) == 4) {
-                int chunkLen = ByteBuffer.wrap(chunkLenBytes).getInt();
-                byte[] encryptedChunk = new byte[chunkLen];
-
-                int totalRead = 0;
-                while (totalRead < chunkLen) {
-                    int read = inputStream.read(encryptedChunk, totalRead, chunkLen - totalRead);
-                    if (read == -1) break;
-                    totalRead += read;
-                }
+    /**
+     * Decrypts a password-protected CL3 file in chunks with progress tracking
+     */
+    public static void decryptLargeFileWithPassword(
+            Context context,
+            Uri encryptedUri,
+            Uri outputUri,
+            String password,
+            ProgressCallback callback) throws Exception {
 
-                if (totalRead != chunkLen) {
-                    throw new Exception("Incomplete chunk read");
-                }
+        recoverInterrupted(context, encryptedUri);
+        ChunkedFileCipher.decryptWithPassword(UriIO.source(context, encryptedUri), UriIO.sink(context, outputUri),
+                password, callback);
+    }
 
-                // Update HMAC
-                hmac.update(encryptedChunk);
+    /**
+     * Re-seals only the segments of an encrypted large file whose plaintext
+     * changed; store the returned manifest and pass it to the next update
+     */
+    public static ChunkedFileCipher.UpdateResult updateLargeFile(
+            Context context,
+            Uri plaintextUri,
+            Uri encryptedUri,
+            byte[] manifest,
+            PrivateKey privateKey,
+            ProgressCallback callback) throws Exception {
 
-                // Decrypt chunk using update (streaming)
-                byte[] decryptedChunk = aesCipher.update(encryptedChunk);
+        recoverInterrupted(context, encryptedUri);
+        File journalFile = journalFor(context, encryptedUri, RollbackJournal.UPDATE_SUFFIX);
+        activeJournals.add(journalFile);
+        try (ParcelFileDescriptor fd = openReadWrite(context, encryptedUri);
+             FileChannel reader = new FileInputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel writer = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel journal = new RandomAccessFile(journalFile, "rw").getChannel()) {
+            return ChunkedFileCipher.update(UriIO.source(context, plaintextUri), reader, writer, journal,
+                    manifest, privateKey, callback);
+        } finally {
+            activeJournals.remove(journalFile);
+            deleteIfEmpty(journalFile);
+        }
+    }
 
-                if (decryptedChunk != null && decryptedChunk.length > 0) {
-                    outputStream.write(decryptedChunk);
-                }
+    public static ChunkedFileCipher.UpdateResult updateLargeFileWithPassword(
+            Context context,
+            Uri plaintextUri,
+            Uri encryptedUri,
+            byte[] manifest,
+            String password,
+            ProgressCallback callback) throws Exception {
 
-                bytesProcessed += chunkLen;
-                chunksProcessed++;
+        recoverInterrupted(context, encryptedUri);
+        File journalFile = journalFor(context, encryptedUri, RollbackJournal.UPDATE_SUFFIX);
+        activeJournals.add(journalFile);
+        try (ParcelFileDescriptor fd = openReadWrite(context, encryptedUri);
+             FileChannel reader = new FileInputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel writer = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel journal = new RandomAccessFile(journalFile, "rw").getChannel()) {
+            return ChunkedFileCipher.updateWithPassword(UriIO.source(context, plaintextUri), reader, writer,
+                    journal, manifest, password, callback);
+        } finally {
+            activeJournals.remove(journalFile);
+            deleteIfEmpty(journalFile);
+        }
+    }
 
-                // Update progress every 128 chunks
-                if (chunksProcessed % 128 == 0 && callback != null) {
-                    int progress = Math.min(95, (int) ((bytesProcessed * 100) / totalSize));
-                    callback.onProgress(progress, bytesProcessed, totalSize);
-                }
+    /**
+     * Changes the password of any encrypted document by rewriting only its key field
+     * Works for CL3 and CP5 files whatever their size; see KeyRotation
+     */
+    public static KeyRotation.Result changePassword(
+            Context context,
+            Uri encryptedUri,
+            String oldPassword,
+            String newPassword) throws Exception {
+
+        recoverInterrupted(context, encryptedUri);
+        File journalFile = journalFor(context, encryptedUri, RollbackJournal.ROTATION_SUFFIX);
+        activeJournals.add(journalFile);
+        try (ParcelFileDescriptor fd = openReadWrite(context, encryptedUri);
+             FileChannel reader = new FileInputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel writer = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel journal = new RandomAccessFile(journalFile, "rw").getChannel()) {
+            return KeyRotation.changePassword(reader, writer, journal, oldPassword, newPassword);
+        } finally {
+            activeJournals.remove(journalFile);
+            deleteIfEmpty(journalFile);
+        }
+    }
 
-                // Help GC
-                encryptedChunk = null;
-                decryptedChunk = null;
+    /**
+     * Re-wraps an RSA-mode document (CS2, CS3, CL2 or CL3) from oldKey to recipient
+     * In a multi-recipient file only oldKey's entry changes
+     */
+    public static KeyRotation.Result rotateKey(
+            Context context,
+            Uri encryptedUri,
+            PrivateKey oldKey,
+            PublicKey recipient) throws Exception {
+
+        recoverInterrupted(context, encryptedUri);
+        File journalFile = journalFor(context, encryptedUri, RollbackJournal.ROTATION_SUFFIX);
+        activeJournals.add(journalFile);
+        try (ParcelFileDescriptor fd = openReadWrite(context, encryptedUri);
+             FileChannel reader = new FileInputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel writer = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+             FileChannel journal = new RandomAccessFile(journalFile, "rw").getChannel()) {
+            return KeyRotation.rotateKey(reader, writer, journal, oldKey, recipient);
+        } finally {
+            activeJournals.remove(journalFile);
+            deleteIfEmpty(journalFile);
+        }
+    }
+
+    /**
+     * Rolls back an update or key rotation of uri that was cut short, e.g. by
+     * the process being killed, from the journal it left behind
+     * Call before anything reads an existing container; journals of updates
+     * still running in this process are left alone
+     */
+    public static synchronized void recoverInterrupted(Context context, Uri uri) throws IOException {
+        for (String suffix : new String[]{RollbackJournal.UPDATE_SUFFIX, RollbackJournal.ROTATION_SUFFIX}) {
+            File journalFile = journalFor(context, uri, suffix);
+            if (!journalFile.exists() || activeJournals.contains(journalFile)) {
+                continue;
+            }
+            try (ParcelFileDescriptor fd = openReadWrite(context, uri);
+                 FileChannel reader = new FileInputStream(fd.getFileDescriptor()).getChannel();
+                 FileChannel writer = new FileOutputStream(fd.getFileDescriptor()).getChannel();
+                 FileChannel journal = new RandomAccessFile(journalFile, "rw").getChannel()) {
+                RollbackJournal.rollBack(journal, reader, writer);
             }
+            journalFile.delete();
+        }
+    }
 
-            // Finalize decryption (handles padding removal)
-            byte[] finalChunk = aesCipher.doFinal();
-            if (finalChunk != null && finalChunk.length > 0) {
-                outputStream.write(finalChunk);
+    private static File journalFor(Context context, Uri uri, String suffix) throws IOException {
+        // No-backup storage, named by a hash of the Uri: documents have no sibling we could write to
+        File directory = new File(context.getNoBackupFilesDir(), JOURNAL_DIRECTORY);
+        directory.mkdirs();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
             }
+            return new File(directory, name + suffix);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
 
-            outputStream.flush();
+    private static void deleteIfEmpty(File journalFile) {
+        // A journal that still holds records is what recovers the document; keep it
+        if (journalFile.length() == 0) {
+            journalFile.delete();
+        }
+    }
 
-            // Verify HMAC
-            byte[] calculatedHmac = hmac.doFinal();
-            boolean verified = MessageDigest.isEqual(storedHmac, calculatedHmac);
+    private static ParcelFileDescriptor openReadWrite(Context context, Uri uri) throws IOException {
+        // Updates and key rotation write in place, so the provider must hand out a seekable file
+        ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(uri, "rw");
+        if (fd == null) throw new IOException("Cannot open " + uri + " for update");
+        return fd;
+    }
 
-            if (!verified) {
-                android.util.Log.w("ChunkedEncryption", "HMAC verification failed");
-            }
+    /**
+     * Checks a large file's tags without writing plaintext anywhere
+     * sample below 1 spot-checks that share of segments in indexed CL3 files
+     */
+    public static IntegrityReport verifyLargeFile(
+            Context context,
+            Uri encryptedUri,
+            PrivateKey privateKey,
+            double sample) throws Exception {
 
-            if (callback != null) {
-                callback.onProgress(100, totalSize, totalSize);
-                callback.onComplete();
+        recoverInterrupted(context, encryptedUri);
+        return ChunkedFileCipher.verify(UriIO.source(context, encryptedUri), privateKey, sample);
+    }
+
+    public static IntegrityReport verifyLargeFileWithPassword(
+            Context context,
+            Uri encryptedUri,
+            String password,
+            double sample) throws Exception {
+
+        recoverInterrupted(context, encryptedUri);
+        return ChunkedFileCipher.verifyWithPassword(UriIO.source(context, encryptedUri), password, sample);
+    }
+
+    /**
+     * Copies a local file to a document, using FileChannel transfers when the
+     * destination resolves to a regular file
+     */
+    public static long copyFile(Context context, File source, Uri destination) throws IOException {
+        CryptoSink sink = UriIO.sink(context, destination);
+
+        try (FileChannel in = new FileInputStream(source).getChannel()) {
+            long size = in.size();
+            FileChannel outputChannel = sink.openChannel();
+
+            if (outputChannel != null) {
+                try (FileChannel out = outputChannel) {
+                    transfer(in, size, out);
+                }
+            } else {
+                try (OutputStream out = sink.openStream()) {
+                    transfer(in, size, Channels.newChannel(out));
+                }
             }
+            return size;
         }
     }
 
@@ -353,29 +442,14 @@ public class ChunkedEncryptionUtil {
      * Determines if file should use chunked encryption
      */
     public static boolean shouldUseChunkedEncryption(Context context, Uri fileUri) {
-        long fileSize = getFileSize(context, fileUri);
+        long fileSize = FileSizeResolver.resolve(context, fileUri);
         return fileSize > (10 * 1024 * 1024); // 10MB threshold
     }
 
-    private static long getFileSize(Context context, Uri uri) {
-        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
-            long size = 0;
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = in.read(buffer)) > 0) {
-                size += read;
-            }
-            return size;
-        } catch (IOException e) {
-            return 0;
-        }
-    }
-
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-        for (byte b : bytes) {
-            result.append(String.format("%02x", b));
+    private static void transfer(FileChannel in, long size, WritableByteChannel out) throws IOException {
+        long position = 0;
+        while (position < size) {
+            position += in.transferTo(position, size - position, out);
         }
-        return result.toString();
     }
-}
\ No newline at end of file
+}
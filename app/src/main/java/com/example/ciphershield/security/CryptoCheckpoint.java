@@ -0,0 +1,256 @@
+package com.example.ciphershield.security;
+
+import android.content.Context;
+import android.net.Uri;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Durable state of a background CL3 job
+ * Records how many segments are known to be on disk so the worker can resume
+ * from the last durable one after the process is killed. The data key and any
+ * RSA private key are stored wrapped by an AndroidKeyStore key, so the file
+ * alone never reveals them
+ */
+public class CryptoCheckpoint {
+
+    public static final int MODE_ENCRYPT = 0;
+    public static final int MODE_DECRYPT = 1;
+
+    private static final String DIRECTORY = "checkpoints";
+    private static final int FORMAT_VERSION = 1;
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "ciphershield_checkpoint";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 128;
+    private static final int MAX_FIELD_LENGTH = 64 * 1024;
+
+    public final String jobId;
+    public final int mode;
+    public final Uri inputUri;
+    public final Uri outputUri;
+    private final byte[] header;
+    private final byte[] wrappedDataKey;
+    private final byte[] wrappedPrivateKey;
+
+    // Segments already on disk in the output; only advanced after a force()
+    long completedSegments;
+    boolean finished;
+    String checksum;
+
+    private CryptoCheckpoint(String jobId, int mode, Uri inputUri, Uri outputUri, byte[] header,
+                             byte[] wrappedDataKey, byte[] wrappedPrivateKey) {
+        this.jobId = jobId;
+        this.mode = mode;
+        this.inputUri = inputUri;
+        this.outputUri = outputUri;
+        this.header = header;
+        this.wrappedDataKey = wrappedDataKey;
+        this.wrappedPrivateKey = wrappedPrivateKey;
+    }
+
+    /**
+     * Creates and persists a checkpoint at segment 0
+     * privateKey is the RSA key to hand back once encryption finishes, or null
+     */
+    static CryptoCheckpoint create(Context context, String jobId, int mode, Uri inputUri, Uri outputUri,
+                                   ChunkedFileHeader header, SecretKey dataKey, byte[] privateKey)
+            throws Exception {
+        SecretKey wrappingKey = wrappingKey();
+        CryptoCheckpoint checkpoint = new CryptoCheckpoint(jobId, mode, inputUri, outputUri,
+                header.toBytes(), wrap(wrappingKey, dataKey.getEncoded()),
+                privateKey != null ? wrap(wrappingKey, privateKey) : null);
+        checkpoint.save(context);
+        return checkpoint;
+    }
+
+    /**
+     * Loads a checkpoint, or returns null if the job has none
+     */
+    static CryptoCheckpoint load(Context context, String jobId) throws IOException {
+        File file = fileFor(context, jobId);
+        if (!file.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported checkpoint version");
+            }
+            int mode = in.readInt();
+            Uri inputUri = Uri.parse(in.readUTF());
+            Uri outputUri = Uri.parse(in.readUTF());
+            byte[] header = readField(in);
+            byte[] wrappedDataKey = readField(in);
+            byte[] wrappedPrivateKey = in.readBoolean() ? readField(in) : null;
+
+            CryptoCheckpoint checkpoint = new CryptoCheckpoint(jobId, mode, inputUri, outputUri,
+                    header, wrappedDataKey, wrappedPrivateKey);
+            checkpoint.completedSegments = in.readLong();
+            checkpoint.finished = in.readBoolean();
+            checkpoint.checksum = in.readBoolean() ? in.readUTF() : null;
+            return checkpoint;
+        }
+    }
+
+    /**
+     * Encryption jobs that finished but whose private key was never claimed
+     */
+    public static List<String> unclaimedKeys(Context context) {
+        List<String> jobIds = new ArrayList<>();
+        File[] files = directory(context).listFiles();
+        if (files == null) return jobIds;
+
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) continue;
+            try {
+                CryptoCheckpoint checkpoint = load(context, file.getName());
+                if (checkpoint != null && checkpoint.finished && checkpoint.wrappedPrivateKey != null) {
+                    jobIds.add(checkpoint.jobId);
+                }
+            } catch (IOException e) {
+                // Unreadable checkpoint - nothing to recover from it
+            }
+        }
+        return jobIds;
+    }
+
+    /**
+     * Returns the private key of a finished encryption job and forgets the job
+     */
+    public static byte[] claimPrivateKey(Context context, String jobId) throws Exception {
+        CryptoCheckpoint checkpoint = load(context, jobId);
+        if (checkpoint == null || !checkpoint.finished || checkpoint.wrappedPrivateKey == null) {
+            return null;
+        }
+        byte[] privateKey = unwrap(wrappingKey(), checkpoint.wrappedPrivateKey);
+        delete(context, jobId);
+        return privateKey;
+    }
+
+    public static void delete(Context context, String jobId) {
+        fileFor(context, jobId).delete();
+    }
+
+    /**
+     * Writes to a temp file and renames it over the old one, so a crash
+     * leaves either the previous or the new checkpoint, never a torn one
+     */
+    void save(Context context) throws IOException {
+        File file = fileFor(context, jobId);
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(fileOut)) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mode);
+            out.writeUTF(inputUri.toString());
+            out.writeUTF(outputUri.toString());
+            writeField(out, header);
+            writeField(out, wrappedDataKey);
+            out.writeBoolean(wrappedPrivateKey != null);
+            if (wrappedPrivateKey != null) writeField(out, wrappedPrivateKey);
+            out.writeLong(completedSegments);
+            out.writeBoolean(finished);
+            out.writeBoolean(checksum != null);
+            if (checksum != null) out.writeUTF(checksum);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot update checkpoint");
+        }
+    }
+
+    boolean holdsPrivateKey() {
+        return wrappedPrivateKey != null;
+    }
+
+    ChunkedFileHeader header() throws Exception {
+        return ChunkedFileHeader.read(new ByteArrayInputStream(header));
+    }
+
+    SecretKey dataKey() throws Exception {
+        return new SecretKeySpec(unwrap(wrappingKey(), wrappedDataKey), "AES");
+    }
+
+    private static File directory(Context context) {
+        // No-backup storage: checkpoints are device-bound and useless elsewhere
+        File directory = new File(context.getNoBackupFilesDir(), DIRECTORY);
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static File fileFor(Context context, String jobId) {
+        return new File(directory(context), jobId);
+    }
+
+    private static SecretKey wrappingKey() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        if (keyStore.containsAlias(KEY_ALIAS)) {
+            return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        }
+
+        KeyGenerator keyGen = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        keyGen.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return keyGen.generateKey();
+    }
+
+    // [ivLen][iv][ciphertext] - the keystore picks the IV
+    private static byte[] wrap(SecretKey wrappingKey, byte[] secret) throws Exception {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+        byte[] iv = cipher.getIV();
+        byte[] sealed = cipher.doFinal(secret);
+
+        byte[] wrapped = new byte[1 + iv.length + sealed.length];
+        wrapped[0] = (byte) iv.length;
+        System.arraycopy(iv, 0, wrapped, 1, iv.length);
+        System.arraycopy(sealed, 0, wrapped, 1 + iv.length, sealed.length);
+        return wrapped;
+    }
+
+    private static byte[] unwrap(SecretKey wrappingKey, byte[] wrapped) throws Exception {
+        int ivLength = wrapped[0] & 0xff;
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, wrappingKey, new GCMParameterSpec(TAG_LENGTH, wrapped, 1, ivLength));
+        return cipher.doFinal(wrapped, 1 + ivLength, wrapped.length - 1 - ivLength);
+    }
+
+    private static void writeField(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IOException("Corrupted checkpoint");
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.ciphershield.security;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * RSA key pair that lives in the AndroidKeyStore, hardware-backed where the device allows
+ * Files wrapped to it keep the normal CS2/CL3 layout but have no .key file:
+ * the private key never leaves the keystore, so they only open on this
+ * device and only while the app is installed. Handles are loaded once per
+ * process, so repeated decrypts skip both the keystore lookup and PKCS#8 parsing
+ */
+public class DeviceKey {
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "ciphershield_device";
+    private static final int RSA_KEY_SIZE = 2048;
+
+    private static volatile PublicKey publicKey;
+    private static volatile PrivateKey privateKey;
+
+    /**
+     * Whether files may have been wrapped to a device key; never creates one
+     */
+    public static boolean exists() {
+        if (privateKey != null) return true;
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+            keyStore.load(null);
+            return keyStore.containsAlias(KEY_ALIAS);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Key to encrypt to; created on first use
+     * The keystore's own public key object keeps OAEP parameters consistent
+     * with what its private key accepts when decrypting
+     */
+    public static PublicKey publicKey() throws Exception {
+        if (publicKey == null) load(true);
+        return publicKey;
+    }
+
+    /**
+     * Handle for decryption; throws if no device key was ever created
+     */
+    public static PrivateKey privateKey() throws Exception {
+        if (privateKey == null) load(false);
+        return privateKey;
+    }
+
+    private static synchronized void load(boolean create) throws Exception {
+        if (privateKey != null) return;
+
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+
+        if (!keyStore.containsAlias(KEY_ALIAS)) {
+            if (!create) {
+                throw new Exception("No device key on this device");
+            }
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, KEYSTORE);
+            generator.initialize(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setKeySize(RSA_KEY_SIZE)
+                    .setDigests(KeyProperties.DIGEST_SHA256)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_RSA_OAEP)
+                    .build());
+            generator.generateKeyPair();
+        }
+
+        KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(KEY_ALIAS, null);
+        publicKey = entry.getCertificate().getPublicKey();
+        privateKey = entry.getPrivateKey();
+    }
+}
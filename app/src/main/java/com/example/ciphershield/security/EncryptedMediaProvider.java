@@ -0,0 +1,208 @@
+package com.example.ciphershield.security;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams plaintext of CL3 files straight from the ciphertext
+ * Each opened Uri is backed by a ProxyFileDescriptorCallback over a
+ * SeekableDecryptor, so media players can seek without a decrypted copy
+ */
+public class EncryptedMediaProvider extends ContentProvider {
+
+    private static final String TAG = "EncryptedMedia";
+    private static final String AUTHORITY_SUFFIX = ".media";
+
+    private static class Session {
+        final Uri encryptedUri;
+        final byte[] privateKey;
+        final String displayName;
+
+        Session(Uri encryptedUri, byte[] privateKey, String displayName) {
+            this.encryptedUri = encryptedUri;
+            this.privateKey = privateKey;
+            this.displayName = displayName;
+        }
+    }
+
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private HandlerThread callbackThread;
+    private Handler callbackHandler;
+
+    /**
+     * Makes an encrypted file readable through this provider until revoked
+     */
+    public static Uri register(Context context, Uri encryptedUri, byte[] privateKey, String displayName) {
+        String token = UUID.randomUUID().toString();
+        sessions.put(token, new Session(encryptedUri, privateKey.clone(), displayName));
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(token)
+                .appendPath(displayName)
+                .build();
+    }
+
+    public static void revoke(Uri uri) {
+        Session session = sessions.remove(tokenOf(uri));
+        if (session != null) {
+            java.util.Arrays.fill(session.privateKey, (byte) 0);
+        }
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Encrypted media is read-only");
+        }
+
+        Session session = sessions.get(tokenOf(uri));
+        if (session == null) {
+            throw new FileNotFoundException("Unknown or revoked media session");
+        }
+
+        try {
+            ChunkedEncryptionUtil.recoverInterrupted(getContext(), session.encryptedUri);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot recover interrupted update: " + e.getMessage());
+        }
+        ParcelFileDescriptor source = getContext().getContentResolver()
+                .openFileDescriptor(session.encryptedUri, "r");
+        if (source == null) {
+            throw new FileNotFoundException("Cannot open encrypted source");
+        }
+
+        try {
+            SeekableDecryptor decryptor = SeekableDecryptor.open(
+                    new FileInputStream(source.getFileDescriptor()).getChannel(), session.privateKey);
+
+            StorageManager storageManager = getContext().getSystemService(StorageManager.class);
+            return storageManager.openProxyFileDescriptor(
+                    ParcelFileDescriptor.MODE_READ_ONLY, new DecryptingCallback(decryptor, source), handler());
+        } catch (Exception e) {
+            closeQuietly(source);
+            Log.w(TAG, "Cannot open encrypted media: " + e.getMessage());
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        Session session = sessions.get(tokenOf(uri));
+        if (session == null) return null;
+
+        MatrixCursor cursor = new MatrixCursor(new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE});
+        cursor.addRow(new Object[]{session.displayName, null});
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        Session session = sessions.get(tokenOf(uri));
+        if (session == null) return null;
+
+        String name = session.displayName;
+        String extension = name.contains(".") ? name.substring(name.lastIndexOf('.') + 1) : "";
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase());
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    private synchronized Handler handler() {
+        if (callbackHandler == null) {
+            callbackThread = new HandlerThread("encrypted-media");
+            callbackThread.start();
+            callbackHandler = new Handler(callbackThread.getLooper());
+        }
+        return callbackHandler;
+    }
+
+    private static String tokenOf(Uri uri) {
+        return uri.getPathSegments().isEmpty() ? "" : uri.getPathSegments().get(0);
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static class DecryptingCallback extends ProxyFileDescriptorCallback {
+        private final SeekableDecryptor decryptor;
+        private final ParcelFileDescriptor source;
+
+        DecryptingCallback(SeekableDecryptor decryptor, ParcelFileDescriptor source) {
+            this.decryptor = decryptor;
+            this.source = source;
+        }
+
+        @Override
+        public long onGetSize() {
+            return decryptor.size();
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            try {
+                return Math.max(0, decryptor.read(offset, data, 0, size));
+            } catch (Exception e) {
+                // Authentication failures surface as I/O errors to the reader
+                Log.w(TAG, "Segment read failed at " + offset + ": " + e.getMessage());
+                throw new ErrnoException("onRead", OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public void onRelease() {
+            try {
+                decryptor.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            closeQuietly(source);
+        }
+    }
+}
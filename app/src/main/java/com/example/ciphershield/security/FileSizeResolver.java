@@ -0,0 +1,80 @@
+package com.example.ciphershield.security;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Resolves the size of a document without reading it where possible
+ * Order: provider metadata (OpenableColumns.SIZE), fstat on the file
+ * descriptor, and only as a last resort a full streaming count
+ */
+public class FileSizeResolver {
+
+    public static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * Size from metadata or fstat; UNKNOWN_SIZE if neither is available
+     * Never reads the content, so it is cheap enough for progress reporting
+     */
+    public static long resolveWithoutReading(Context context, Uri uri) {
+        long size = querySize(context, uri);
+        if (size >= 0) return size;
+        return statSize(context, uri);
+    }
+
+    /**
+     * Size from metadata or fstat, falling back to counting the stream
+     * Only use this where an exact size is required before processing
+     */
+    public static long resolve(Context context, Uri uri) {
+        long size = resolveWithoutReading(context, uri);
+        if (size >= 0) return size;
+        return countBytes(context, uri);
+    }
+
+    private static long querySize(Context context, Uri uri) {
+        if (!"content".equals(uri.getScheme())) return UNKNOWN_SIZE;
+
+        try (Cursor cursor = context.getContentResolver().query(
+                uri, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int idx = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (idx >= 0 && !cursor.isNull(idx)) return cursor.getLong(idx);
+            }
+        } catch (Exception e) {
+            // Provider does not support size queries
+        }
+        return UNKNOWN_SIZE;
+    }
+
+    private static long statSize(Context context, Uri uri) {
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r")) {
+            // -1 for pipes and sockets
+            if (pfd != null) return pfd.getStatSize();
+        } catch (Exception e) {
+            // Provider cannot hand out a file descriptor
+        }
+        return UNKNOWN_SIZE;
+    }
+
+    private static long countBytes(Context context, Uri uri) {
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            if (in == null) return UNKNOWN_SIZE;
+            long size = 0;
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                size += read;
+            }
+            return size;
+        } catch (IOException e) {
+            return UNKNOWN_SIZE;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.ciphershield.security;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * CryptoSource and CryptoSink over content and file Uris
+ * A channel is only handed out when the provider gives a descriptor for a
+ * regular file; pipes and sockets report a stat size of -1 and are streamed
+ */
+public class UriIO {
+
+    public static CryptoSource source(Context context, Uri uri) {
+        return new CryptoSource() {
+            @Override
+            public long sizeHint() {
+                // Metadata or fstat only - never an extra read
+                return FileSizeResolver.resolveWithoutReading(context, uri);
+            }
+
+            @Override
+            public FileChannel openChannel() {
+                ParcelFileDescriptor pfd = openSeekable(context, uri, "r");
+                return pfd != null ? new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel() : null;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                InputStream in = context.getContentResolver().openInputStream(uri);
+                if (in == null) throw new IOException("Cannot open input");
+                return in;
+            }
+        };
+    }
+
+    public static CryptoSink sink(Context context, Uri uri) {
+        return new CryptoSink() {
+            @Override
+            public FileChannel openChannel() {
+                ParcelFileDescriptor pfd = openSeekable(context, uri, "wt");
+                return pfd != null ? new ParcelFileDescriptor.AutoCloseOutputStream(pfd).getChannel() : null;
+            }
+
+            @Override
+            public OutputStream openStream() throws IOException {
+                OutputStream out = context.getContentResolver().openOutputStream(uri);
+                if (out == null) throw new IOException("Cannot open output");
+                return out;
+            }
+        };
+    }
+
+    /**
+     * Opens a file descriptor only if it refers to a regular file
+     */
+    private static ParcelFileDescriptor openSeekable(Context context, Uri uri, String mode) {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, mode);
+            if (pfd != null && pfd.getStatSize() >= 0) return pfd;
+        } catch (Exception e) {
+            // Provider cannot hand out a file descriptor in this mode
+        }
+        if (pfd != null) {
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    jmh(project(":crypto"))
+}
+
+// ./gradlew :benchmark:jmh
+// Narrow a run with -Pjmh.includes=SecureEncryption or edit includes below
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    // 100MB byte[] cases hold input, output and the cipher's buffer at once
+    jvmArgs.set(listOf("-Xms2g", "-Xmx2g"))
+    resultFormat.set("JSON")
+    (project.findProperty("jmh.includes") as String?)?.let { includes.set(listOf(it)) }
+}
@@ -0,0 +1,119 @@
+package com.example.ciphershield.benchmark;
+
+import com.example.ciphershield.security.ArchiveCipher;
+import com.example.ciphershield.security.ChunkedFileCipher;
+import com.example.ciphershield.security.CryptoSink;
+import com.example.ciphershield.security.CryptoSource;
+import com.example.ciphershield.security.RecipientKey;
+import com.example.ciphershield.security.SecureEncryptionUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many small files: one CS2 container each against one packed archive
+ * perFile pays an RSA-2048 key pair per file, perFileForRecipient one OAEP
+ * wrap per file; pack pays a single key pair for the whole set
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+
+    private static final String EXTENSION = ".txt";
+
+    @Param({"1000"})
+    public int files;
+
+    @Param({"4096"})
+    public int size;
+
+    private List<byte[]> contents;
+    private List<ArchiveCipher.Entry> entries;
+    private PublicKey recipient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        contents = new ArrayList<>(files);
+        entries = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            contents.add(content);
+            entries.add(new ArchiveCipher.Entry("file" + i + EXTENSION, memorySource(content), 0));
+        }
+        recipient = RecipientKey.parse(SecureEncryptionUtil.encrypt(contents.get(0), EXTENSION).privateKey);
+    }
+
+    @Benchmark
+    public int perFile() throws Exception {
+        int total = 0;
+        for (byte[] content : contents) {
+            total += SecureEncryptionUtil.encrypt(content, EXTENSION).encryptedData.length;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int perFileForRecipient() throws Exception {
+        int total = 0;
+        for (byte[] content : contents) {
+            total += SecureEncryptionUtil.encrypt(content, EXTENSION, recipient).encryptedData.length;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public ChunkedFileCipher.EncryptionResult pack() throws Exception {
+        return ArchiveCipher.pack(entries, NULL_SINK, null);
+    }
+
+    private static CryptoSource memorySource(byte[] content) {
+        return new CryptoSource() {
+            @Override
+            public long sizeHint() {
+                return content.length;
+            }
+
+            @Override
+            public FileChannel openChannel() {
+                return null;
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(content);
+            }
+        };
+    }
+
+    private static final CryptoSink NULL_SINK = new CryptoSink() {
+        @Override
+        public FileChannel openChannel() {
+            return null;
+        }
+
+        @Override
+        public OutputStream openStream() {
+            return OutputStream.nullOutputStream();
+        }
+    };
+}
@@ -0,0 +1,65 @@
+package com.example.ciphershield.benchmark;
+
+import com.example.ciphershield.security.KdfParams;
+import com.example.ciphershield.security.PasswordKeys;
+import com.example.ciphershield.security.Scrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+
+/**
+ * Password KDF cost, uncached
+ * ScryptCost sweeps the memory cost at r=8, p=1 (16MB to 128MB); tune measures
+ * what picking parameters costs the first password-mode file in a process
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KdfBenchmark {
+
+    private static final String PASSWORD = "benchmark-password";
+    private static final byte[] SALT = new byte[16];
+
+    // Separate states so the two sweeps do not multiply into each other
+    @State(Scope.Benchmark)
+    public static class ScryptCost {
+        @Param({"16384", "32768", "65536", "131072"})
+        public int n;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pbkdf2Cost {
+        @Param({"100000", "600000"})
+        public int iterations;
+
+        @Setup(Level.Invocation)
+        public void clearCache() {
+            // Otherwise every call after the first is a cache hit
+            PasswordKeys.clearCache();
+        }
+    }
+
+    @Benchmark
+    public byte[] scrypt(ScryptCost cost) throws Exception {
+        return Scrypt.derive(PASSWORD.getBytes(), SALT, KdfParams.scrypt(cost.n, 8, 1), 32);
+    }
+
+    @Benchmark
+    public SecretKey pbkdf2(Pbkdf2Cost cost) throws Exception {
+        return PasswordKeys.derive(PASSWORD.toCharArray(), SALT, cost.iterations);
+    }
+
+    @Benchmark
+    public KdfParams tune() throws Exception {
+        return Scrypt.tune(250, 64L * 1024 * 1024);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.ciphershield.benchmark;
+
+import com.example.ciphershield.security.SecureEncryptionUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One file shared with several key holders: a CS2 copy per recipient against
+ * one CS3 container whose header wraps the data key for each of them
+ * perRecipient seals the payload once per holder, shared only once
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class MultiRecipientBenchmark {
+
+    private static final String EXTENSION = ".pdf";
+
+    @Param({"5", "20"})
+    public int recipients;
+
+    @Param({"1048576"})
+    public int size;
+
+    private byte[] plaintext;
+    private List<PublicKey> keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        plaintext = new byte[size];
+        new Random(42).nextBytes(plaintext);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keys = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            keys.add(generator.generateKeyPair().getPublic());
+        }
+    }
+
+    @Benchmark
+    public int perRecipient() throws Exception {
+        int total = 0;
+        for (PublicKey key : keys) {
+            total += SecureEncryptionUtil.encrypt(plaintext, EXTENSION, key).encryptedData.length;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int shared() throws Exception {
+        return SecureEncryptionUtil.encrypt(plaintext, EXTENSION, keys).encryptedData.length;
+    }
+}
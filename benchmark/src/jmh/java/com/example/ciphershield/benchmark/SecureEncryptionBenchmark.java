@@ -0,0 +1,89 @@
+package com.example.ciphershield.benchmark;
+
+import com.example.ciphershield.security.PasswordKeys;
+import com.example.ciphershield.security.RecipientKey;
+import com.example.ciphershield.security.SecureEncryptionUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.PublicKey;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory CS2/CP5 containers, 1KB to 100MB
+ * Key mode includes RSA-2048 key generation per call (drawn from the pool,
+ * which cannot keep up back to back) and recipient mode a single OAEP wrap.
+ * Password mode hits the derived-key cache after the first call;
+ * decryptWithPasswordUncached pays the calibrated PBKDF2 every time. Small
+ * sizes measure key setup, large ones AES-GCM
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SecureEncryptionBenchmark {
+
+    private static final String PASSWORD = "benchmark-password";
+    private static final String EXTENSION = ".bin";
+
+    @Param({"1024", "65536", "1048576", "10485760", "104857600"})
+    public int size;
+
+    private byte[] plaintext;
+    private byte[] keyModeContainer;
+    private byte[] keyModePrivateKey;
+    private byte[] passwordContainer;
+    private PublicKey recipient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        plaintext = new byte[size];
+        new Random(42).nextBytes(plaintext);
+
+        SecureEncryptionUtil.EncryptionResult keyMode = SecureEncryptionUtil.encrypt(plaintext, EXTENSION);
+        keyModeContainer = keyMode.encryptedData;
+        keyModePrivateKey = keyMode.privateKey;
+        recipient = RecipientKey.parse(keyModePrivateKey);
+
+        passwordContainer = SecureEncryptionUtil.encryptWithPassword(plaintext, PASSWORD, EXTENSION).encryptedData;
+    }
+
+    @Benchmark
+    public SecureEncryptionUtil.EncryptionResult encrypt() throws Exception {
+        return SecureEncryptionUtil.encrypt(plaintext, EXTENSION);
+    }
+
+    @Benchmark
+    public SecureEncryptionUtil.EncryptionResult encryptForRecipient() throws Exception {
+        return SecureEncryptionUtil.encrypt(plaintext, EXTENSION, recipient);
+    }
+
+    @Benchmark
+    public SecureEncryptionUtil.DecryptionResult decrypt() throws Exception {
+        return SecureEncryptionUtil.decrypt(keyModeContainer, keyModePrivateKey);
+    }
+
+    @Benchmark
+    public SecureEncryptionUtil.EncryptionResult encryptWithPassword() throws Exception {
+        return SecureEncryptionUtil.encryptWithPassword(plaintext, PASSWORD, EXTENSION);
+    }
+
+    @Benchmark
+    public SecureEncryptionUtil.DecryptionResult decryptWithPassword() throws Exception {
+        return SecureEncryptionUtil.decryptWithPassword(passwordContainer, PASSWORD);
+    }
+
+    @Benchmark
+    public SecureEncryptionUtil.DecryptionResult decryptWithPasswordUncached() throws Exception {
+        PasswordKeys.clearCache();
+        return SecureEncryptionUtil.decryptWithPassword(passwordContainer, PASSWORD);
+    }
+}
@@ -0,0 +1,20 @@
+plugins {
+    application
+}
+
+// Headless encrypt/decrypt for servers: same CS2/CP2/CL2/CL3 containers as the app
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    implementation(project(":crypto"))
+    testImplementation(libs.junit)
+}
+
+// ./gradlew :cli:installDist, then cli/build/install/ciphershield/bin/ciphershield --help
+application {
+    mainClass.set("com.example.ciphershield.cli.CipherShieldCli")
+    applicationName = "ciphershield"
+}
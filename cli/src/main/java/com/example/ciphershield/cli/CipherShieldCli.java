@@ -0,0 +1,1173 @@
+package com.example.ciphershield.cli;
+
+import com.example.ciphershield.security.ArchiveCipher;
+import com.example.ciphershield.security.ChunkedFileCipher;
+import com.example.ciphershield.security.ChunkedFileHeader;
+import com.example.ciphershield.security.IntegrityReport;
+import com.example.ciphershield.security.KdfParams;
+import com.example.ciphershield.security.KeyRotation;
+import com.example.ciphershield.security.PasswordKeys;
+import com.example.ciphershield.security.PathIO;
+import com.example.ciphershield.security.RecipientKey;
+import com.example.ciphershield.security.RollbackJournal;
+import com.example.ciphershield.security.RsaKeyPool;
+import com.example.ciphershield.security.SecureEncryptionUtil;
+import com.example.ciphershield.security.SegmentCompression;
+import com.example.ciphershield.security.Vault;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command-line front end to the security package
+ * Reads and writes the app's containers byte for byte: CS2/CS3/CP5 for small files,
+ * CL3 for large ones and .csa archives, and CL2/CP2-CP4 for decryption only. Directories are walked
+ * recursively and their layout is mirrored under the output directory.
+ * Every file is streamed, so memory use does not grow with file size
+ */
+public class CipherShieldCli {
+
+    private static final long LARGE_FILE_THRESHOLD = 10 * 1024 * 1024; // Same cut-off as the app
+    private static final String RSA_SUFFIX = ".csk";
+    private static final String PASSWORD_SUFFIX = ".csp";
+    private static final String KEY_SUFFIX = ".key";
+    private static final String MANIFEST_SUFFIX = ".csm";
+    private static final String ARCHIVE_SUFFIX = ArchiveCipher.EXTENSION;
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int MAX_EXTENSION_LENGTH = 20;
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILURES = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: ciphershield <encrypt|decrypt|verify> [options] <file-or-directory>...",
+            "       ciphershield update [options] <plaintext-file> <name.csk|name.csp>",
+            "       ciphershield pack [options] <directory>...",
+            "       ciphershield vault init|add|list|get|rm [options] <vault-dir> [file-or-path...]",
+            "       ciphershield rekey [options] <file-directory-or-vault>...",
+            "",
+            "Options:",
+            "  -o, --output DIR        Output directory (default: next to each input)",
+            "  -t, --threads N         Files processed concurrently (default: core count)",
+            "  --password-env VAR      Password mode; read the password from an environment variable",
+            "  --password-file FILE    Password mode; read the password from the first line of FILE",
+            "  --new-password-env VAR  rekey: read the new password from an environment variable",
+            "  --new-password-file F   rekey: read the new password from the first line of F",
+            "  --kdf scrypt            encrypt: memory-hard scrypt instead of PBKDF2 for files up to 10MB",
+            "  --no-compress           encrypt, pack: store CL3 segments as-is instead of compressing them",
+            "  -r, --recipient FILE    encrypt, pack, vault init, rekey: wrap every file to one public key (or an existing .key);",
+            "                          encrypt takes it repeatedly to wrap each file once for several keys",
+            "  -k, --key FILE          decrypt, verify, update, vault, rekey: RSA private key for every input",
+            "  --key-dir DIR           decrypt, verify, update, rekey: look up <name>.key in DIR (default: next to each input)",
+            "  --sample F              verify: hash only this fraction (0-1] of CL3 segments against their index",
+            "  --entry NAME            decrypt: extract only this archive entry (repeatable)",
+            "",
+            "encrypt writes <name>.csk plus <name>.key, <name>.csk alone with --recipient,",
+            "or <name>.csp in password mode. Any listed recipient's key decrypts a shared file.",
+            "Files over 10MB use the segmented CL3 format, like the app.",
+            "verify checks every tag and MAC without writing any output and reports throughput.",
+            "Legacy CL2 files have no authenticated MAC and are reported UNAUTHENTICATED, not ok.",
+            "update re-seals only the changed segments of a large file in place and keeps",
+            "their encrypted digests in <name>.csm next to it.",
+            "pack encrypts every file under a directory into one <directory>.csa archive",
+            "(plus <directory>.key in RSA mode); decrypt unpacks it into <directory>/.",
+            "vault keeps files under their original paths with an encrypted, paged name index:",
+            "init creates one (plus <vault-dir>.key in RSA mode), add stores files and directories,",
+            "list [PREFIX] lists entries, get extracts paths (a trailing / takes a whole folder)",
+            "into --output, rm removes them.",
+            "rekey re-wraps each file's data key for --recipient, or under the new password,",
+            "rewriting only the key field of the header; CP2-CP4 files must be encrypted again.");
+
+    static class Options {
+        boolean encrypt;
+        boolean verify;
+        boolean update;
+        boolean pack;
+        boolean vault;
+        boolean rekey;
+        double sample = 1; // verify: share of CL3 segments to hash
+        Path outputDir;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String password;
+        String newPassword; // rekey: replaces password
+        KdfParams kdf; // null keeps the calibrated PBKDF2
+        boolean compress = true;
+        PublicKey recipient; // First of recipients
+        final List<PublicKey> recipients = new ArrayList<>();
+        PrivateKey privateKey; // --key, parsed once for every file
+        Path keyDir;
+        final List<String> entries = new ArrayList<>(); // decrypt: archive entries to extract, empty for all
+        final List<Path> inputs = new ArrayList<>();
+        final List<String> arguments = new ArrayList<>(); // vault: action, vault directory, then its arguments
+    }
+
+    /**
+     * One file to process and where its output goes
+     */
+    private static class Job {
+        final Path input;
+        final Path outputDir;
+
+        Job(Path input, Path outputDir) {
+            this.input = input;
+            this.outputDir = outputDir;
+        }
+    }
+
+    public static void main(String[] args) {
+        Options options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(EXIT_USAGE);
+            return;
+        }
+        System.exit(run(options));
+    }
+
+    static int run(Options options) {
+        if (!options.compress) {
+            SegmentCompression.setCodec(null);
+        }
+        if (options.update) {
+            return update(options);
+        }
+        if (options.pack) {
+            return pack(options);
+        }
+        if (options.vault) {
+            return vault(options);
+        }
+        if (options.rekey) {
+            return rekey(options);
+        }
+
+        List<Job> jobs;
+        try {
+            jobs = collectJobs(options);
+        } catch (IOException e) {
+            System.err.println("Cannot list inputs: " + e.getMessage());
+            return EXIT_FAILURES;
+        }
+
+        // Small files share a pool; large files run one at a time since the
+        // segment engine already spreads each of them over every core
+        ExecutorService smallFiles = Executors.newFixedThreadPool(options.threads);
+        ExecutorService largeFiles = Executors.newSingleThreadExecutor();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger unauthenticated = new AtomicInteger(); // verify: intact CL2 files
+        AtomicLong bytesChecked = new AtomicLong();
+        List<Future<?>> pending = new ArrayList<>();
+        long started = System.nanoTime();
+
+        try {
+            for (Job job : jobs) {
+                Runnable task = () -> {
+                    try {
+                        if (options.verify) {
+                            IntegrityReport report = verifyOne(job, options);
+                            bytesChecked.addAndGet(report.bytesChecked);
+                            if (!report.intact) failures.incrementAndGet();
+                            if (report.intact && !report.authenticated) unauthenticated.incrementAndGet();
+                            printReport(job.input, report);
+                            return;
+                        }
+                        Path output = options.encrypt ? encryptOne(job, options) : decryptOne(job, options);
+                        System.out.println(job.input + " -> " + output);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        System.err.println(job.input + ": " + describe(e));
+                    }
+                };
+                pending.add((isLarge(job.input) ? largeFiles : smallFiles).submit(task));
+            }
+
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    // Task bodies catch their own errors
+                }
+            }
+        } finally {
+            smallFiles.shutdown();
+            largeFiles.shutdown();
+        }
+
+        int failed = failures.get();
+        if (options.verify) {
+            double seconds = (System.nanoTime() - started) / 1e9;
+            double megabytes = bytesChecked.get() / (1024.0 * 1024.0);
+            String legacy = unauthenticated.get() == 0 ? ""
+                    : String.format(" (%d unauthenticated CL2)", unauthenticated.get());
+            System.err.println(String.format("%d of %d files intact%s, %.1f MB checked at %.1f MB/s",
+                    jobs.size() - failed, jobs.size(), legacy, megabytes, seconds > 0 ? megabytes / seconds : 0));
+            return failed == 0 ? EXIT_OK : EXIT_FAILURES;
+        }
+        System.err.println((jobs.size() - failed) + " of " + jobs.size() + " files "
+                + (options.encrypt ? "encrypted" : "decrypted"));
+        return failed == 0 ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    private static Path encryptOne(Job job, Options options) throws Exception {
+        String name = job.input.getFileName().toString();
+        String extension = name.contains(".") ? name.substring(name.lastIndexOf('.')) : "";
+        boolean passwordMode = options.password != null;
+        Path output = job.outputDir.resolve(name + (passwordMode ? PASSWORD_SUFFIX : RSA_SUFFIX));
+        Path keyFile = job.outputDir.resolve(name + KEY_SUFFIX);
+        refuseOverwrite(output);
+        if (!passwordMode && options.recipient == null) refuseOverwrite(keyFile);
+        Path partial = partialOf(output);
+
+        byte[] privateKey;
+        try {
+            if (isLarge(job.input)) {
+                ChunkedFileCipher.EncryptionResult result;
+                if (passwordMode) {
+                    result = ChunkedFileCipher.encryptWithPassword(PathIO.source(job.input), PathIO.sink(partial),
+                            extension, options.password, null);
+                } else if (options.recipients.size() > 1) {
+                    result = ChunkedFileCipher.encrypt(PathIO.source(job.input), PathIO.sink(partial),
+                            extension, options.recipients, null);
+                } else if (options.recipient != null) {
+                    result = ChunkedFileCipher.encrypt(PathIO.source(job.input), PathIO.sink(partial),
+                            extension, options.recipient, null);
+                } else {
+                    result = ChunkedFileCipher.encrypt(PathIO.source(job.input), PathIO.sink(partial),
+                            extension, null);
+                }
+                privateKey = result.privateKey;
+            } else {
+                // CS2/CS3/CP5 back-patch the HMAC, so the output channel must be readable too
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(job.input));
+                     FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                             StandardOpenOption.WRITE)) {
+                    SecureEncryptionUtil.EncryptionResult result;
+                    if (passwordMode) {
+                        result = SecureEncryptionUtil.encryptWithPassword(in, out, options.password, extension,
+                                options.kdf);
+                    } else if (options.recipients.size() > 1) {
+                        result = SecureEncryptionUtil.encrypt(in, out, extension, options.recipients);
+                    } else if (options.recipient != null) {
+                        result = SecureEncryptionUtil.encrypt(in, out, extension, options.recipient);
+                    } else {
+                        result = SecureEncryptionUtil.encrypt(in, out, extension);
+                    }
+                    privateKey = result.privateKey;
+                }
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        if (privateKey != null) {
+            try {
+                Files.write(keyFile, privateKey, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } finally {
+                Arrays.fill(privateKey, (byte) 0);
+            }
+        }
+        Files.move(partial, output, StandardCopyOption.ATOMIC_MOVE);
+        return output;
+    }
+
+    private static Path decryptOne(Job job, Options options) throws Exception {
+        recoverInterrupted(job.input);
+        String version = versionOf(job.input);
+        if (!Arrays.asList("CS2", "CS3", "CP2", "CP3", "CP4", "CP5", "CL2", "CL3").contains(version)) {
+            throw new Exception("Not a Cipher Shield file");
+        }
+        int flags = "CL3".equals(version) ? readFlags(job.input) : 0;
+        boolean passwordFile = SecureEncryptionUtil.isPasswordVersion(version)
+                || (flags & ChunkedFileHeader.FLAG_PASSWORD) != 0;
+        if (passwordFile && options.password == null) {
+            throw new Exception("File is password-protected; pass --password-env or --password-file");
+        }
+        if ((flags & ChunkedFileHeader.FLAG_ARCHIVE) != 0) {
+            return unpackOne(job, options, passwordFile ? null : keyFor(job, options));
+        }
+        if (!options.entries.isEmpty()) {
+            throw new Exception("--entry only applies to archives");
+        }
+
+        Path output = job.outputDir.resolve(decryptedName(job.input.getFileName().toString(),
+                extensionOf(job.input)));
+        refuseOverwrite(output);
+        Path partial = partialOf(output);
+        PrivateKey privateKey = passwordFile ? null : keyFor(job, options);
+
+        try {
+            if ("CL2".equals(version) || "CL3".equals(version)) {
+                if (passwordFile) {
+                    ChunkedFileCipher.decryptWithPassword(PathIO.source(job.input), PathIO.sink(partial),
+                            options.password, null);
+                } else {
+                    ChunkedFileCipher.decrypt(PathIO.source(job.input), PathIO.sink(partial), privateKey, null);
+                }
+            } else {
+                SecureEncryptionUtil.DecryptionResult result;
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(job.input));
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial))) {
+                    result = passwordFile
+                            ? SecureEncryptionUtil.decryptWithPassword(in, out, options.password)
+                            : SecureEncryptionUtil.decrypt(in, out, privateKey);
+                }
+                if (!result.verified) {
+                    System.err.println(job.input + ": warning: HMAC verification failed");
+                }
+            }
+        } catch (Exception e) {
+            // GCM only fails at the end, so whatever was written is untrusted
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        Files.move(partial, output, StandardCopyOption.ATOMIC_MOVE);
+        return output;
+    }
+
+    /**
+     * Packs each input directory into <name>.csa; entries are named by their
+     * path below the directory, with / as separator
+     */
+    private static int pack(Options options) {
+        int failed = 0;
+        for (Path input : options.inputs) {
+            try {
+                System.out.println(input + " -> " + packOne(input, options));
+            } catch (Exception e) {
+                failed++;
+                System.err.println(input + ": " + describe(e));
+            }
+        }
+        System.err.println((options.inputs.size() - failed) + " of " + options.inputs.size() + " directories packed");
+        return failed == 0 ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    private static Path packOne(Path directory, Options options) throws Exception {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Not a directory");
+        }
+        Path root = directory.toAbsolutePath().normalize();
+        if (root.getFileName() == null) {
+            throw new IOException("Cannot pack a file system root");
+        }
+        String name = root.getFileName().toString();
+        Path outputDir = options.outputDir != null ? options.outputDir : root.getParent();
+        Files.createDirectories(outputDir);
+        Path output = outputDir.resolve(name + ARCHIVE_SUFFIX);
+        Path keyFile = outputDir.resolve(name + KEY_SUFFIX);
+        boolean passwordMode = options.password != null;
+        refuseOverwrite(output);
+        if (!passwordMode && options.recipient == null) refuseOverwrite(keyFile);
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        List<ArchiveCipher.Entry> entries = new ArrayList<>(files.size());
+        for (Path file : files) {
+            String entryName = root.relativize(file).toString().replace(File.separatorChar, '/');
+            entries.add(new ArchiveCipher.Entry(entryName, PathIO.source(file),
+                    Files.getLastModifiedTime(file).toMillis()));
+        }
+
+        Path partial = partialOf(output);
+        byte[] privateKey;
+        try {
+            ChunkedFileCipher.EncryptionResult result;
+            if (passwordMode) {
+                result = ArchiveCipher.packWithPassword(entries, PathIO.sink(partial), options.password, null);
+            } else if (options.recipient != null) {
+                result = ArchiveCipher.pack(entries, PathIO.sink(partial), options.recipient, null);
+            } else {
+                result = ArchiveCipher.pack(entries, PathIO.sink(partial), null);
+            }
+            privateKey = result.privateKey;
+        } catch (Exception e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        if (privateKey != null) {
+            try {
+                Files.write(keyFile, privateKey, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } finally {
+                Arrays.fill(privateKey, (byte) 0);
+            }
+        }
+        Files.move(partial, output, StandardCopyOption.ATOMIC_MOVE);
+        return output;
+    }
+
+    /**
+     * Extracts an archive, or only the --entry names, into a directory named after it
+     * Only the segments holding the requested entries are decrypted
+     */
+    private static Path unpackOne(Job job, Options options, PrivateKey privateKey) throws Exception {
+        Path output = job.outputDir.resolve(stripSuffix(job.input.getFileName().toString()));
+        refuseOverwrite(output);
+        // Normalized like the entry targets below, so ./ and .. in the output path compare equal
+        Path partial = partialOf(output).toAbsolutePath().normalize();
+
+        FileChannel channel = FileChannel.open(job.input, StandardOpenOption.READ);
+        try (ArchiveCipher.Reader reader = privateKey != null
+                ? ArchiveCipher.Reader.open(channel, privateKey)
+                : ArchiveCipher.Reader.openWithPassword(channel, options.password)) {
+            List<ArchiveCipher.EntryInfo> entries = new ArrayList<>();
+            if (options.entries.isEmpty()) {
+                entries.addAll(reader.entries());
+            }
+            for (String name : options.entries) {
+                ArchiveCipher.EntryInfo entry = reader.find(name);
+                if (entry == null) throw new IOException("No entry " + name + " in archive");
+                entries.add(entry);
+            }
+
+            Files.createDirectories(partial);
+            for (ArchiveCipher.EntryInfo entry : entries) {
+                // Entry names come from the archive, so none may leave the output directory
+                Path target = partial.resolve(entry.name).normalize();
+                if (!target.startsWith(partial) || target.equals(partial)) {
+                    throw new IOException("Unsafe entry name: " + entry.name);
+                }
+                Files.createDirectories(target.getParent());
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+                    reader.extract(entry, out);
+                }
+                Files.setLastModifiedTime(target, FileTime.fromMillis(entry.modified));
+            }
+        } catch (Exception e) {
+            channel.close();
+            deleteTree(partial);
+            throw e;
+        }
+
+        Files.move(partial, output, StandardCopyOption.ATOMIC_MOVE);
+        return output;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Runs one vault action; entry paths use / whatever the platform
+     */
+    private static int vault(Options options) {
+        String action = options.arguments.get(0);
+        Path root = Paths.get(options.arguments.get(1));
+        List<String> arguments = options.arguments.subList(2, options.arguments.size());
+        try {
+            if (action.equals("init")) {
+                vaultInit(root, options).close();
+                System.out.println("Created vault " + root);
+                return EXIT_OK;
+            }
+            try (Vault vault = openVault(root, options)) {
+                switch (action) {
+                    case "add":
+                        return vaultAdd(vault, arguments);
+                    case "list":
+                        vaultList(vault, arguments.isEmpty() ? "" : arguments.get(0));
+                        return EXIT_OK;
+                    case "get":
+                        return vaultGet(vault, arguments, options.outputDir != null ? options.outputDir : Paths.get(""));
+                    default:
+                        return vaultRemove(vault, arguments);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(root + ": " + describe(e));
+            return EXIT_FAILURES;
+        }
+    }
+
+    private static Vault vaultInit(Path root, Options options) throws Exception {
+        if (options.password != null) {
+            return Vault.createWithPassword(root, options.password);
+        }
+        if (options.recipient != null) {
+            return Vault.create(root, options.recipient);
+        }
+        Path keyFile = root.toAbsolutePath().resolveSibling(root.getFileName() + KEY_SUFFIX);
+        refuseOverwrite(keyFile);
+        KeyPair keyPair = RsaKeyPool.take();
+        Vault vault = Vault.create(root, keyPair.getPublic());
+        Files.write(keyFile, keyPair.getPrivate().getEncoded(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        return vault;
+    }
+
+    private static Vault openVault(Path root, Options options) throws Exception {
+        if (!Vault.isVault(root)) {
+            throw new IOException("No vault here; create one with vault init");
+        }
+        recoverInterrupted(root.resolve(Vault.HEADER_FILE));
+        if (Vault.isPasswordProtected(root)) {
+            if (options.password == null) {
+                throw new Exception("Vault is password-protected; pass --password-env or --password-file");
+            }
+            return Vault.openWithPassword(root, options.password);
+        }
+        // <vault-dir>.key next to the vault, like <name>.key next to a container
+        return Vault.open(root, keyFor(new Job(root, root.toAbsolutePath().getParent()), options));
+    }
+
+    private static int vaultAdd(Vault vault, List<String> arguments) throws IOException {
+        int added = 0;
+        int failed = 0;
+        for (String argument : arguments) {
+            Path input = Paths.get(argument).toAbsolutePath().normalize();
+            List<Path> files;
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> walk = Files.walk(input)) {
+                    files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+            } else {
+                files = Arrays.asList(input);
+            }
+            // A directory keeps its own name as the first path element
+            Path base = input.getParent() != null ? input.getParent() : input;
+            for (Path file : files) {
+                String path = base.relativize(file).toString().replace(File.separatorChar, '/');
+                try {
+                    vault.add(path, PathIO.source(file), Files.getLastModifiedTime(file).toMillis(), null);
+                    added++;
+                } catch (Exception e) {
+                    failed++;
+                    System.err.println(file + ": " + describe(e));
+                }
+            }
+        }
+        System.err.println(added + " files added, " + vault.size() + " in vault");
+        return failed == 0 ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    private static void vaultList(Vault vault, String prefix) throws Exception {
+        for (Iterator<Vault.Entry> entries = vault.list(prefix); entries.hasNext(); ) {
+            Vault.Entry entry = entries.next();
+            System.out.println(String.format("%12d  %s  %s", entry.size, Instant.ofEpochMilli(entry.modified),
+                    entry.path));
+        }
+    }
+
+    private static int vaultGet(Vault vault, List<String> arguments, Path outputDir) throws Exception {
+        Path base = outputDir.toAbsolutePath().normalize();
+        List<Vault.Entry> entries = new ArrayList<>();
+        for (String argument : arguments) {
+            if (argument.endsWith("/")) {
+                vault.list(argument).forEachRemaining(entries::add);
+                continue;
+            }
+            Vault.Entry entry = vault.find(argument);
+            if (entry == null) throw new IOException("No entry " + argument + " in vault");
+            entries.add(entry);
+        }
+
+        int failed = 0;
+        for (Vault.Entry entry : entries) {
+            // Paths come from the index, so none may leave the output directory
+            Path target = base.resolve(entry.path).normalize();
+            try {
+                if (!target.startsWith(base) || target.equals(base)) {
+                    throw new IOException("Unsafe entry name");
+                }
+                refuseOverwrite(target);
+                Files.createDirectories(target.getParent());
+                Path partial = partialOf(target);
+                try {
+                    vault.extract(entry, PathIO.sink(partial), null);
+                } catch (Exception e) {
+                    Files.deleteIfExists(partial);
+                    throw e;
+                }
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+                Files.setLastModifiedTime(target, FileTime.fromMillis(entry.modified));
+                System.out.println(entry.path + " -> " + target);
+            } catch (Exception e) {
+                failed++;
+                System.err.println(entry.path + ": " + describe(e));
+            }
+        }
+        return failed == 0 ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    private static int vaultRemove(Vault vault, List<String> arguments) throws Exception {
+        int failed = 0;
+        for (String path : arguments) {
+            if (vault.remove(path) == null) {
+                failed++;
+                System.err.println(path + ": no such entry");
+            }
+        }
+        return failed == 0 ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    /**
+     * Re-wraps the data key of each container, or of a vault's header, in place
+     */
+    private static int rekey(Options options) {
+        List<Job> jobs = new ArrayList<>();
+        try {
+            for (Path input : options.inputs) {
+                if (Vault.isVault(input)) {
+                    // vault.hdr holds the only wrapped key of the vault
+                    jobs.add(new Job(input, input.toAbsolutePath().getParent()));
+                }
+            }
+            options.inputs.removeIf(Vault::isVault);
+            jobs.addAll(collectJobs(options));
+        } catch (IOException e) {
+            System.err.println("Cannot list inputs: " + e.getMessage());
+            return EXIT_FAILURES;
+        }
+
+        int failed = 0;
+        for (Job job : jobs) {
+            boolean vault = Vault.isVault(job.input);
+            Path file = vault ? job.input.resolve(Vault.HEADER_FILE) : job.input;
+            try {
+                recoverInterrupted(file);
+            } catch (IOException e) {
+                failed++;
+                System.err.println(job.input + ": " + describe(e));
+                continue;
+            }
+            Path journalFile = sidecarOf(file, RollbackJournal.ROTATION_SUFFIX);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                KeyRotation.Result result = options.newPassword != null
+                        ? KeyRotation.changePassword(channel, channel, journal, options.password, options.newPassword)
+                        : KeyRotation.rotateKey(channel, channel, journal, keyFor(job, options), options.recipient);
+                System.out.println(job.input + ": " + result.format + " key field rewritten, "
+                        + result.length + " bytes at offset " + result.position);
+            } catch (Exception e) {
+                failed++;
+                System.err.println(job.input + ": " + describe(e));
+            }
+            try {
+                deleteIfEmpty(journalFile);
+            } catch (IOException e) {
+                System.err.println(journalFile + ": " + describe(e));
+            }
+        }
+        System.err.println((jobs.size() - failed) + " of " + jobs.size() + " files re-keyed");
+        return failed == 0 ? EXIT_OK : EXIT_FAILURES;
+    }
+
+    /**
+     * Updates one CL3 container from its new plaintext; the manifest from the
+     * last update is read from, and replaced in, <name>.csm
+     */
+    private static int update(Options options) {
+        Path plaintext = options.inputs.get(0);
+        Path container = options.inputs.get(1);
+        Path manifestFile = container.resolveSibling(stripSuffix(container.getFileName().toString()) + MANIFEST_SUFFIX);
+        try {
+            recoverInterrupted(container);
+            if (!"CL3".equals(versionOf(container))) {
+                throw new Exception("Only large-file (CL3) containers can be updated in place");
+            }
+            int flags = readFlags(container);
+            if ((flags & ChunkedFileHeader.FLAG_ARCHIVE) != 0) {
+                throw new Exception("Archives cannot be updated in place");
+            }
+            boolean passwordFile = (flags & ChunkedFileHeader.FLAG_PASSWORD) != 0;
+            if (passwordFile && options.password == null) {
+                throw new Exception("File is password-protected; pass --password-env or --password-file");
+            }
+            PrivateKey privateKey = passwordFile ? null
+                    : keyFor(new Job(container, container.toAbsolutePath().getParent()), options);
+            byte[] manifest = Files.isRegularFile(manifestFile) ? Files.readAllBytes(manifestFile) : null;
+
+            // The journal is left behind only if the update was interrupted; the next open rolls it back
+            Path journalFile = sidecarOf(container, RollbackJournal.UPDATE_SUFFIX);
+            ChunkedFileCipher.UpdateResult result;
+            try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                result = passwordFile
+                        ? ChunkedFileCipher.updateWithPassword(PathIO.source(plaintext), channel, channel, journal,
+                                manifest, options.password, null)
+                        : ChunkedFileCipher.update(PathIO.source(plaintext), channel, channel, journal, manifest,
+                                privateKey, null);
+            } finally {
+                deleteIfEmpty(journalFile);
+            }
+
+            Path partial = partialOf(manifestFile);
+            Files.write(partial, result.manifest);
+            Files.move(partial, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println(container + ": " + result.resealed + " of " + result.segments + " segments re-sealed, "
+                    + result.moved + " moved" + (result.manifestRebuilt ? " (manifest rebuilt)" : ""));
+            return EXIT_OK;
+        } catch (Exception e) {
+            System.err.println(container + ": " + describe(e));
+            return EXIT_FAILURES;
+        }
+    }
+
+    /**
+     * Rolls back an update or key rotation of file that was cut short, from
+     * the journal it left next to the file, and removes the journal
+     */
+    private static void recoverInterrupted(Path file) throws IOException {
+        for (String suffix : new String[]{RollbackJournal.UPDATE_SUFFIX, RollbackJournal.ROTATION_SUFFIX}) {
+            Path journalFile = sidecarOf(file, suffix);
+            if (!Files.exists(journalFile)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.READ,
+                         StandardOpenOption.WRITE)) {
+                if (RollbackJournal.rollBack(journal, channel, channel)) {
+                    System.err.println(file + ": rolled back an interrupted "
+                            + (RollbackJournal.UPDATE_SUFFIX.equals(suffix) ? "update" : "key rotation"));
+                }
+            }
+            Files.delete(journalFile);
+        }
+    }
+
+    private static Path sidecarOf(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    private static void deleteIfEmpty(Path file) throws IOException {
+        // A journal that still holds records is what recovers the file; keep it
+        if (Files.exists(file) && Files.size(file) == 0) {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Reads the file once, checking tags and MACs; nothing is written
+     */
+    private static IntegrityReport verifyOne(Job job, Options options) throws Exception {
+        recoverInterrupted(job.input);
+        String version = versionOf(job.input);
+        if (!Arrays.asList("CS2", "CS3", "CP2", "CP3", "CP4", "CP5", "CL2", "CL3").contains(version)) {
+            throw new Exception("Not a Cipher Shield file");
+        }
+        boolean passwordFile = SecureEncryptionUtil.isPasswordVersion(version)
+                || ("CL3".equals(version) && (readFlags(job.input) & ChunkedFileHeader.FLAG_PASSWORD) != 0);
+        if (passwordFile && options.password == null) {
+            throw new Exception("File is password-protected; pass --password-env or --password-file");
+        }
+        PrivateKey privateKey = passwordFile ? null : keyFor(job, options);
+
+        if ("CL2".equals(version) || "CL3".equals(version)) {
+            return passwordFile
+                    ? ChunkedFileCipher.verifyWithPassword(PathIO.source(job.input), options.password, options.sample)
+                    : ChunkedFileCipher.verify(PathIO.source(job.input), privateKey, options.sample);
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(job.input))) {
+            return passwordFile
+                    ? SecureEncryptionUtil.verifyWithPassword(in, options.password)
+                    : SecureEncryptionUtil.verify(in, privateKey);
+        }
+    }
+
+    private static void printReport(Path input, IntegrityReport report) {
+        String stats = String.format("%s, %.1f MB at %.1f MB/s%s", report.format,
+                report.bytesChecked / (1024.0 * 1024.0), report.megabytesPerSecond(),
+                report.sampled ? ", sampled" : "");
+        if (report.intact && !report.authenticated) {
+            // Undamaged, but anyone can recompute a CL2 HMAC; encrypting again gives an authenticated CL3 file
+            System.out.println(input + ": UNAUTHENTICATED, tampering cannot be detected (" + stats + ")");
+            return;
+        }
+        if (report.intact) {
+            System.out.println(input + ": ok (" + stats + ")");
+            return;
+        }
+        String segments = report.damagedSegments.isEmpty() ? "" : " in segments " + report.damagedSegments;
+        System.err.println(input + ": DAMAGED" + segments + ": " + report.problem + " (" + stats + ")");
+    }
+
+    /**
+     * Expands directories recursively, mirroring their layout under --output
+     */
+    private static List<Job> collectJobs(Options options) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        for (Path input : options.inputs) {
+            if (!Files.isDirectory(input)) {
+                Path parent = input.toAbsolutePath().getParent();
+                jobs.add(new Job(input, options.outputDir != null ? options.outputDir : parent));
+                continue;
+            }
+
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(input)) {
+                files = walk.filter(Files::isRegularFile)
+                        .filter(path -> options.encrypt != isContainer(path) && !isKey(path) && !isManifest(path))
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                Path parent = file.toAbsolutePath().getParent();
+                Path outputDir = options.outputDir != null
+                        ? options.outputDir.resolve(input.toAbsolutePath().relativize(parent))
+                        : parent;
+                Files.createDirectories(outputDir);
+                jobs.add(new Job(file, outputDir));
+            }
+        }
+        if (options.outputDir != null) {
+            Files.createDirectories(options.outputDir);
+        }
+        return jobs;
+    }
+
+    private static PrivateKey keyFor(Job job, Options options) throws Exception {
+        if (options.privateKey != null) {
+            return options.privateKey;
+        }
+        // The app saves photo.jpg.csk next to photo.jpg.key
+        Path keyDir = options.keyDir != null ? options.keyDir : job.input.toAbsolutePath().getParent();
+        Path keyFile = keyDir.resolve(stripSuffix(job.input.getFileName().toString()) + KEY_SUFFIX);
+        if (!Files.isRegularFile(keyFile)) {
+            throw new IOException("No key found at " + keyFile);
+        }
+        byte[] encoded = Files.readAllBytes(keyFile);
+        try {
+            return RecipientKey.privateKey(encoded);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    private static String versionOf(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            byte[] versionBytes = new byte[3];
+            in.readFully(versionBytes);
+            return new String(versionBytes, StandardCharsets.UTF_8);
+        } catch (java.io.EOFException e) {
+            return "";
+        }
+    }
+
+    private static int readFlags(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            in.skipBytes(3);
+            return in.readInt();
+        }
+    }
+
+    /**
+     * Original extension stored in any of the container headers
+     * CL3 puts flags and segment size where the others keep the salt,
+     * and CP3/CP4 add their KDF field after the salt; CP5 is laid out like CS2
+     */
+    private static String extensionOf(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] versionBytes = new byte[3];
+            in.readFully(versionBytes);
+
+            String version = new String(versionBytes, StandardCharsets.UTF_8);
+            if ("CL3".equals(version)) {
+                in.skipBytes(8);
+            } else {
+                skipField(in);
+                if (SecureEncryptionUtil.PASSWORD_VERSION.equals(version)) {
+                    in.skipBytes(4);
+                } else if (SecureEncryptionUtil.KDF_PASSWORD_VERSION.equals(version)) {
+                    skipField(in);
+                }
+            }
+            skipField(in); // IV, or the nonce in CL3
+
+            int extLen = in.readInt();
+            if (extLen <= 0 || extLen >= MAX_EXTENSION_LENGTH) return "";
+            byte[] extBytes = new byte[extLen];
+            in.readFully(extBytes);
+            return new String(extBytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void skipField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || in.skipBytes(length) != length) {
+            throw new IOException("Corrupted header");
+        }
+    }
+
+    private static String decryptedName(String encryptedName, String extension) {
+        String name = stripSuffix(encryptedName);
+        if (extension.isEmpty() || name.endsWith(extension)) return name;
+        return name + extension;
+    }
+
+    private static String stripSuffix(String name) {
+        if (name.endsWith(RSA_SUFFIX) || name.endsWith(PASSWORD_SUFFIX) || name.endsWith(ARCHIVE_SUFFIX)) {
+            return name.substring(0, name.length() - RSA_SUFFIX.length());
+        }
+        return name;
+    }
+
+    private static boolean isContainer(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(RSA_SUFFIX) || name.endsWith(PASSWORD_SUFFIX) || name.endsWith(ARCHIVE_SUFFIX);
+    }
+
+    private static boolean isKey(Path file) {
+        return file.getFileName().toString().endsWith(KEY_SUFFIX);
+    }
+
+    private static boolean isManifest(Path file) {
+        return file.getFileName().toString().endsWith(MANIFEST_SUFFIX);
+    }
+
+    private static boolean isLarge(Path file) {
+        try {
+            return Files.size(file) > LARGE_FILE_THRESHOLD;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Decrypting next to the inputs would otherwise replace the originals
+     */
+    private static void refuseOverwrite(Path output) throws IOException {
+        if (Files.exists(output)) {
+            throw new IOException(output.getFileName() + " already exists");
+        }
+    }
+
+    private static Path partialOf(Path output) {
+        return output.resolveSibling(output.getFileName() + PARTIAL_SUFFIX);
+    }
+
+    private static String describe(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    static Options parse(String[] args) {
+        if (args.length == 0 || args[0].equals("-h") || args[0].equals("--help")) {
+            throw new IllegalArgumentException("Missing command");
+        }
+        Options options = new Options();
+        String kdfName = null;
+        if (args[0].equals("encrypt")) {
+            options.encrypt = true;
+        } else if (args[0].equals("verify")) {
+            options.verify = true;
+        } else if (args[0].equals("update")) {
+            options.update = true;
+        } else if (args[0].equals("pack")) {
+            options.pack = true;
+        } else if (args[0].equals("vault")) {
+            options.vault = true;
+        } else if (args[0].equals("rekey")) {
+            options.rekey = true;
+        } else if (!args[0].equals("decrypt")) {
+            throw new IllegalArgumentException("Unknown command: " + args[0]);
+        }
+
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-o":
+                case "--output":
+                    options.outputDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "-t":
+                case "--threads":
+                    try {
+                        options.threads = Integer.parseInt(value(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("--threads needs a number");
+                    }
+                    if (options.threads < 1) throw new IllegalArgumentException("--threads must be at least 1");
+                    break;
+                case "--password-env":
+                    options.password = System.getenv(value(args, ++i, arg));
+                    if (options.password == null) {
+                        throw new IllegalArgumentException("Environment variable " + args[i] + " is not set");
+                    }
+                    break;
+                case "--password-file":
+                    options.password = readPassword(Paths.get(value(args, ++i, arg)));
+                    break;
+                case "--new-password-env":
+                    options.newPassword = System.getenv(value(args, ++i, arg));
+                    if (options.newPassword == null) {
+                        throw new IllegalArgumentException("Environment variable " + args[i] + " is not set");
+                    }
+                    break;
+                case "--new-password-file":
+                    options.newPassword = readPassword(Paths.get(value(args, ++i, arg)));
+                    break;
+                case "--kdf":
+                    kdfName = value(args, ++i, arg);
+                    if (!kdfName.equals("scrypt") && !kdfName.equals("pbkdf2")) {
+                        throw new IllegalArgumentException("--kdf must be scrypt or pbkdf2");
+                    }
+                    break;
+                case "--no-compress":
+                    options.compress = false;
+                    break;
+                case "-r":
+                case "--recipient":
+                    Path recipientPath = Paths.get(value(args, ++i, arg));
+                    try {
+                        options.recipients.add(RecipientKey.parse(Files.readAllBytes(recipientPath)));
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("Cannot read recipient key: " + describe(e));
+                    }
+                    options.recipient = options.recipients.get(0);
+                    break;
+                case "-k":
+                case "--key":
+                    Path keyPath = Paths.get(value(args, ++i, arg));
+                    try {
+                        options.privateKey = RecipientKey.privateKey(Files.readAllBytes(keyPath));
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("Cannot read key: " + describe(e));
+                    }
+                    break;
+                case "--sample":
+                    try {
+                        options.sample = Double.parseDouble(value(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("--sample needs a number");
+                    }
+                    if (!(options.sample > 0 && options.sample <= 1)) {
+                        throw new IllegalArgumentException("--sample must be above 0 and at most 1");
+                    }
+                    break;
+                case "--entry":
+                    options.entries.add(value(args, ++i, arg));
+                    break;
+                case "--key-dir":
+                    options.keyDir = Paths.get(value(args, ++i, arg));
+                    break;
+                default:
+                    if (arg.startsWith("-")) throw new IllegalArgumentException("Unknown option: " + arg);
+                    if (options.vault) {
+                        // Entry paths are kept verbatim, trailing / included
+                        options.arguments.add(arg);
+                    } else {
+                        options.inputs.add(Paths.get(arg));
+                    }
+            }
+        }
+
+        if (options.vault) {
+            if (options.arguments.size() < 2) {
+                throw new IllegalArgumentException("vault needs an action and the vault directory");
+            }
+            if (!Arrays.asList("init", "add", "list", "get", "rm").contains(options.arguments.get(0))) {
+                throw new IllegalArgumentException("Unknown vault action: " + options.arguments.get(0));
+            }
+        } else if (options.inputs.isEmpty()) {
+            throw new IllegalArgumentException("No input files");
+        }
+        if (options.password != null && options.recipient != null) {
+            throw new IllegalArgumentException("--recipient cannot be combined with a password");
+        }
+        if (options.recipients.size() > 1 && !options.encrypt) {
+            // Archives, vaults and rekey keep a single wrapped key
+            throw new IllegalArgumentException("Several --recipient keys only apply to encrypt");
+        }
+        if ((options.encrypt || options.pack || options.vault) && options.password != null
+                && options.password.length() < 8) {
+            throw new IllegalArgumentException("Password must be at least 8 characters");
+        }
+        if (options.rekey) {
+            if (options.newPassword == null && options.recipient == null) {
+                throw new IllegalArgumentException("rekey needs a new password or --recipient");
+            }
+            if (options.newPassword != null && options.password == null) {
+                throw new IllegalArgumentException("rekey needs the current password as well as the new one");
+            }
+            if (options.newPassword != null && options.newPassword.length() < 8) {
+                throw new IllegalArgumentException("Password must be at least 8 characters");
+            }
+        } else if (options.newPassword != null) {
+            throw new IllegalArgumentException("--new-password-env and --new-password-file only apply to rekey");
+        }
+        if (options.update && options.inputs.size() != 2) {
+            throw new IllegalArgumentException("update needs the new plaintext file and the container");
+        }
+        if (!options.entries.isEmpty()
+                && (options.encrypt || options.verify || options.update || options.pack || options.vault
+                || options.rekey)) {
+            throw new IllegalArgumentException("--entry only applies to decrypt");
+        }
+        if (options.sample < 1 && !options.verify) {
+            throw new IllegalArgumentException("--sample only applies to verify");
+        }
+        if ("scrypt".equals(kdfName)) {
+            if (!options.encrypt || options.password == null) {
+                throw new IllegalArgumentException("--kdf only applies to password-mode encryption");
+            }
+            try {
+                // Tuned once here rather than per file
+                options.kdf = PasswordKeys.scryptParams();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Cannot tune scrypt: " + e.getMessage());
+            }
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) throw new IllegalArgumentException(option + " needs a value");
+        return args[index];
+    }
+
+    private static String readPassword(Path file) {
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty()) throw new IllegalArgumentException("Password file is empty");
+            return lines.get(0);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read password file: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.ciphershield.cli;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unpacking archives through output paths that are relative or not
+ * normalized, as typed on a command line
+ */
+public class CipherShieldCliTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+
+    @Before
+    public void packPhotos() throws Exception {
+        root = folder.getRoot().toPath();
+        Path photos = root.resolve("photos");
+        Files.createDirectories(photos.resolve("2024"));
+        Files.write(photos.resolve("a.jpg"), "first".getBytes(StandardCharsets.UTF_8));
+        Files.write(photos.resolve("2024/b.jpg"), "second".getBytes(StandardCharsets.UTF_8));
+        assertEquals(0, CipherShieldCli.run(CipherShieldCli.parse(new String[]{"pack", photos.toString()})));
+        deletePhotos(photos);
+    }
+
+    @Test
+    public void unpacksIntoRelativeOutput() throws Exception {
+        Path out = Files.createDirectory(root.resolve("out"));
+        // Relative and starting with ./, as "-o ." is
+        Path relative = Paths.get(".").resolve(Paths.get("").toAbsolutePath().relativize(out));
+
+        assertEquals(0, CipherShieldCli.run(CipherShieldCli.parse(new String[]{"decrypt", "-o",
+                relative.toString(), root.resolve("photos.csa").toString()})));
+        assertUnpacked(out.resolve("photos"));
+    }
+
+    @Test
+    public void unpacksNextToUnnormalizedInput() throws Exception {
+        Files.createDirectory(root.resolve("dir"));
+        Path input = root.resolve("dir/../photos.csa");
+
+        assertEquals(0, CipherShieldCli.run(CipherShieldCli.parse(new String[]{"decrypt", input.toString()})));
+        assertUnpacked(root.resolve("photos"));
+    }
+
+    private static void assertUnpacked(Path photos) throws Exception {
+        assertEquals("first", new String(Files.readAllBytes(photos.resolve("a.jpg")), StandardCharsets.UTF_8));
+        assertEquals("second", new String(Files.readAllBytes(photos.resolve("2024/b.jpg")), StandardCharsets.UTF_8));
+    }
+
+    private static void deletePhotos(Path photos) throws Exception {
+        Files.delete(photos.resolve("2024/b.jpg"));
+        Files.delete(photos.resolve("2024"));
+        Files.delete(photos.resolve("a.jpg"));
+        Files.delete(photos);
+    }
+}
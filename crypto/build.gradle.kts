@@ -0,0 +1,15 @@
+plugins {
+    `java-library`
+}
+
+// Android-free core of the security package: container formats and cipher engines.
+// Plain JVM so it can be benchmarked and reused off-device; the app adds the
+// Context/Uri plumbing on top in the same package
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
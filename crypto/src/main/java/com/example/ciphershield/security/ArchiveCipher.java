@@ -0,0 +1,424 @@
+package com.example.ciphershield.security;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.crypto.SecretKey;
+
+/**
+ * Packs many small files into one CL3 container under a single data key
+ * Plaintext layout: [DATA...][DIRECTORY][DIRECTORY_LENGTH:8], where
+ * DIRECTORY is [COUNT:4] then [NAME_LENGTH:2][NAME][OFFSET:8][SIZE:8][MODIFIED:8]
+ * for every entry, in packing order
+ *
+ * Entries run back to back through the segment cipher, so the key wrap and
+ * the header are paid once per archive instead of once per file, and small
+ * files share segments. The header carries FLAG_ARCHIVE; the directory sits
+ * in the last segments and, like any entry, is read through SeekableDecryptor,
+ * so opening one entry only decrypts the segments it spans
+ */
+public class ArchiveCipher {
+
+    public static final String EXTENSION = ".csa";
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+    private static final int DIRECTORY_FIXED_SIZE = 2 + 8 + 8 + 8;
+
+    /**
+     * One file to pack; modified is carried through as-is, in epoch millis
+     */
+    public static class Entry {
+        public final String name;
+        public final CryptoSource source;
+        public final long modified;
+
+        public Entry(String name, CryptoSource source, long modified) {
+            this.name = name;
+            this.source = source;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Directory entry of a packed file
+     */
+    public static class EntryInfo {
+        public final String name;
+        public final long size;
+        public final long modified;
+        final long offset;
+
+        EntryInfo(String name, long offset, long size, long modified) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Packs entries in RSA key mode, with one fresh key pair for the archive
+     */
+    public static ChunkedFileCipher.EncryptionResult pack(
+            List<Entry> entries,
+            CryptoSink sink,
+            ChunkedFileCipher.ProgressCallback callback) throws Exception {
+        return pack(entries, sink, null, null, callback);
+    }
+
+    /**
+     * Packs entries for a recipient key shared by many files
+     */
+    public static ChunkedFileCipher.EncryptionResult pack(
+            List<Entry> entries,
+            CryptoSink sink,
+            PublicKey recipient,
+            ChunkedFileCipher.ProgressCallback callback) throws Exception {
+        if (recipient == null) {
+            throw new IllegalArgumentException("Recipient key is required");
+        }
+        return pack(entries, sink, null, recipient, callback);
+    }
+
+    /**
+     * Packs entries under a password; the KDF runs once for the whole archive
+     */
+    public static ChunkedFileCipher.EncryptionResult packWithPassword(
+            List<Entry> entries,
+            CryptoSink sink,
+            String password,
+            ChunkedFileCipher.ProgressCallback callback) throws Exception {
+        if (password == null || password.length() < 8) {
+            throw new IllegalArgumentException("Password must be at least 8 characters");
+        }
+        return pack(entries, sink, password, null, callback);
+    }
+
+    private static ChunkedFileCipher.EncryptionResult pack(
+            List<Entry> entries,
+            CryptoSink sink,
+            String password,
+            PublicKey recipient,
+            ChunkedFileCipher.ProgressCallback callback) throws Exception {
+
+        Set<String> names = new HashSet<>();
+        for (Entry entry : entries) {
+            if (entry.name.isEmpty() || entry.name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Invalid entry name: " + entry.name);
+            }
+            if (!names.add(entry.name)) {
+                throw new IllegalArgumentException("Duplicate entry name: " + entry.name);
+            }
+        }
+
+        // The payload has no extension of its own; compression is left to the entropy check
+        ChunkedFileCipher.SealingKeys keys = ChunkedFileCipher.newSealingKeys(
+                "", password, recipient, ChunkedFileHeader.FLAG_ARCHIVE);
+
+        String checksum = ChunkedFileCipher.encryptSegments(new PackedSource(entries), sink,
+                keys.header, keys.dataKey, callback);
+
+        return new ChunkedFileCipher.EncryptionResult(keys.privateKey, checksum);
+    }
+
+    /**
+     * Entries concatenated, then the directory built from the sizes actually read
+     * Always a stream: entries are opened one at a time, only when reached
+     */
+    private static class PackedSource implements CryptoSource {
+        private final List<Entry> entries;
+
+        PackedSource(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public long sizeHint() {
+            long total = 0;
+            for (Entry entry : entries) {
+                long size = entry.source.sizeHint();
+                if (size == UNKNOWN_SIZE) return UNKNOWN_SIZE;
+                total += size;
+            }
+            return total;
+        }
+
+        @Override
+        public FileChannel openChannel() {
+            return null;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new PackingStream(entries);
+        }
+    }
+
+    private static class PackingStream extends InputStream {
+        private final List<Entry> entries;
+        private final List<EntryInfo> packed = new ArrayList<>();
+        private int next;
+        private InputStream current;
+        private long entryStart;
+        private long position;
+        private ByteArrayInputStream directory;
+
+        PackingStream(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (directory == null) {
+                if (current == null) {
+                    if (next == entries.size()) {
+                        directory = new ByteArrayInputStream(encodeDirectory(packed));
+                        break;
+                    }
+                    current = entries.get(next).source.openStream();
+                    entryStart = position;
+                }
+                int n = current.read(b, off, len);
+                if (n > 0) {
+                    position += n;
+                    return n;
+                }
+                if (n < 0) {
+                    Entry entry = entries.get(next++);
+                    packed.add(new EntryInfo(entry.name, entryStart, position - entryStart, entry.modified));
+                    current.close();
+                    current = null;
+                }
+            }
+            return directory.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) current.close();
+        }
+    }
+
+    static byte[] encodeDirectory(List<EntryInfo> entries) {
+        List<byte[]> names = new ArrayList<>(entries.size());
+        int length = 4;
+        for (EntryInfo entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += DIRECTORY_FIXED_SIZE + name.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length + 8);
+        buffer.putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            EntryInfo entry = entries.get(i);
+            byte[] name = names.get(i);
+            buffer.putShort((short) name.length).put(name)
+                    .putLong(entry.offset).putLong(entry.size).putLong(entry.modified);
+        }
+        buffer.putLong(length);
+        return buffer.array();
+    }
+
+    /**
+     * Random access to the entries of an archive
+     * Opening decrypts the directory only; entries are decrypted when read.
+     * The channel is closed with this reader
+     */
+    public static class Reader implements Closeable {
+        private final SeekableDecryptor decryptor;
+        private final Map<String, EntryInfo> entries;
+
+        private Reader(SeekableDecryptor decryptor) throws Exception {
+            this.decryptor = decryptor;
+            this.entries = readDirectory(decryptor);
+        }
+
+        public static Reader open(FileChannel channel, byte[] privateKeyBytes) throws Exception {
+            ChunkedFileHeader header = readHeader(channel);
+            return open(channel, header, header.unwrapKey(privateKeyBytes));
+        }
+
+        public static Reader open(FileChannel channel, PrivateKey privateKey) throws Exception {
+            ChunkedFileHeader header = readHeader(channel);
+            return open(channel, header, header.unwrapKey(privateKey));
+        }
+
+        public static Reader openWithPassword(FileChannel channel, String password) throws Exception {
+            ChunkedFileHeader header = readHeader(channel);
+            char[] passwordChars = password.toCharArray();
+            try {
+                return open(channel, header, header.unwrapKey(passwordChars));
+            } finally {
+                Arrays.fill(passwordChars, '\0');
+            }
+        }
+
+        private static Reader open(FileChannel channel, ChunkedFileHeader header, SecretKey key) throws Exception {
+            if (!header.isArchive()) {
+                throw new IOException("Not an archive");
+            }
+            return new Reader(SeekableDecryptor.open(channel, header, key));
+        }
+
+        /**
+         * Entries in packing order
+         */
+        public List<EntryInfo> entries() {
+            return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+        }
+
+        /**
+         * The entry with exactly this name, or null
+         */
+        public EntryInfo find(String name) {
+            return entries.get(name);
+        }
+
+        /**
+         * Plaintext of one entry; every segment it touches is authenticated as it is read
+         */
+        public InputStream openEntry(EntryInfo entry) {
+            return new EntryStream(entry.offset, entry.offset + entry.size);
+        }
+
+        /**
+         * Copies one entry to output; returns the bytes written
+         */
+        public long extract(EntryInfo entry, OutputStream output) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            try (InputStream in = openEntry(entry)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    output.write(buffer, 0, n);
+                    total += n;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public void close() throws IOException {
+            decryptor.close();
+        }
+
+        private static ChunkedFileHeader readHeader(FileChannel channel) throws Exception {
+            channel.position(0);
+            return ChunkedFileHeader.read(new BufferedInputStream(Channels.newInputStream(channel), 1024));
+        }
+
+        private static Map<String, EntryInfo> readDirectory(SeekableDecryptor decryptor) throws Exception {
+            long size = decryptor.size();
+            if (size < 8 + 4) throw new IOException("Corrupted archive directory");
+
+            byte[] tail = new byte[8];
+            readFully(decryptor, size - 8, tail);
+            long length = ByteBuffer.wrap(tail).getLong();
+            if (length < 4 || length > size - 8 || length > Integer.MAX_VALUE) {
+                throw new IOException("Corrupted archive directory");
+            }
+            long dataEnd = size - 8 - length;
+
+            byte[] encoded = new byte[(int) length];
+            readFully(decryptor, dataEnd, encoded);
+            ByteBuffer directory = ByteBuffer.wrap(encoded);
+
+            int count = directory.getInt();
+            if (count < 0 || count > (length - 4) / DIRECTORY_FIXED_SIZE) {
+                throw new IOException("Corrupted archive directory");
+            }
+            Map<String, EntryInfo> entries = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                if (directory.remaining() < DIRECTORY_FIXED_SIZE) throw new IOException("Corrupted archive directory");
+                int nameLength = directory.getShort() & 0xFFFF;
+                if (directory.remaining() < nameLength + 24) throw new IOException("Corrupted archive directory");
+                byte[] name = new byte[nameLength];
+                directory.get(name);
+                long offset = directory.getLong();
+                long entrySize = directory.getLong();
+                long modified = directory.getLong();
+                if (offset < 0 || entrySize < 0 || offset > dataEnd - entrySize) {
+                    throw new IOException("Corrupted archive directory");
+                }
+                EntryInfo entry = new EntryInfo(new String(name, StandardCharsets.UTF_8), offset, entrySize, modified);
+                entries.put(entry.name, entry);
+            }
+            if (directory.hasRemaining()) throw new IOException("Corrupted archive directory");
+            return entries;
+        }
+
+        private static void readFully(SeekableDecryptor decryptor, long position, byte[] buffer) throws Exception {
+            int total = 0;
+            while (total < buffer.length) {
+                int n = decryptor.read(position + total, buffer, total, buffer.length - total);
+                if (n < 0) throw new IOException("Truncated archive");
+                total += n;
+            }
+        }
+
+        private class EntryStream extends InputStream {
+            private long position;
+            private final long end;
+
+            EntryStream(long position, long end) {
+                this.position = position;
+                this.end = end;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) return -1;
+                int want = (int) Math.min(len, end - position);
+                try {
+                    int n = decryptor.read(position, b, off, want);
+                    if (n < 0) throw new IOException("Truncated archive");
+                    position += n;
+                    return n;
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, end - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, end - position);
+            }
+        }
+    }
+}
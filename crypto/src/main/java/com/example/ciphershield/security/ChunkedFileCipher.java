@@ -0,0 +1,982 @@
+package com.example.ciphershield.security;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+import javax.crypto.*;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CL3 engine over CryptoSource and CryptoSink
+ * Platform-free: the app reaches it through ChunkedEncryptionUtil and UriIO,
+ * servers through PathIO. Seekable endpoints get the FileChannel pipeline with
+ * mapped reads; anything else is streamed through the same segment cipher
+ */
+public class ChunkedFileCipher {
+
+    private static final Logger LOG = Logger.getLogger("ChunkedEncryption");
+    private static final String VERSION_CL2 = "CL2";
+    private static final String VERSION_CL3 = ChunkedFileHeader.VERSION;
+    private static final int CHUNK_SIZE = 1024 * 1024; // 1MB chunks
+    public static final int UNKNOWN_PROGRESS = -1;
+    private static final int MAX_SEGMENT_SIZE = ChunkedFileHeader.MAX_SEGMENT_SIZE;
+    private static final int HEADER_PROBE_SIZE = 4096;
+    private static final int FRAME_BUFFER_SIZE = 8192 + 16; // CL2 frame: 8KB read plus one CBC block
+    private static final int AES_KEY_SIZE = 256;
+    private static final int CBC_IV_LENGTH = 16;  // CBC needs 16 bytes
+    private static final int MAX_FIELD_LENGTH = 1024; // CL2 header fields, same bound as SecureEncryptionUtil
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    /**
+     * When the size cannot be resolved without an extra read, progress is
+     * reported in bytes only: percentage and totalBytes are then UNKNOWN_PROGRESS
+     */
+    public interface ProgressCallback {
+        void onProgress(int percentage, long bytesProcessed, long totalBytes);
+        void onComplete();
+        void onError(Exception e);
+    }
+
+    /**
+     * Either an RSA private key or a password, whichever the file was sealed with,
+     * or the vault key and blob id of a vault blob
+     */
+    private static class KeyMaterial {
+        final byte[] encodedKey;
+        final PrivateKey privateKey;
+        final char[] password;
+        final SecretKey vaultKey;
+        final byte[] blobId;
+
+        KeyMaterial(byte[] encodedKey, PrivateKey privateKey, char[] password) {
+            this.encodedKey = encodedKey;
+            this.privateKey = privateKey;
+            this.password = password;
+            this.vaultKey = null;
+            this.blobId = null;
+        }
+
+        KeyMaterial(SecretKey vaultKey, byte[] blobId) {
+            this.encodedKey = null;
+            this.privateKey = null;
+            this.password = null;
+            this.vaultKey = vaultKey;
+            this.blobId = blobId;
+        }
+
+        SecretKey unwrap(ChunkedFileHeader header) throws Exception {
+            if (vaultKey != null) return Vault.blobKey(vaultKey, header, blobId);
+            if (password != null) return header.unwrapKey(password);
+            // Parsed only once the header says a private key is needed
+            return privateKey != null ? header.unwrapKey(privateKey) : header.unwrapKey(encodedKey);
+        }
+
+        PrivateKey legacyKey() throws Exception {
+            // CL2 only ever had RSA key mode
+            if (password != null) {
+                throw new Exception("File is not password-protected");
+            }
+            if (vaultKey != null) {
+                throw new Exception("Blob does not belong to this vault entry");
+            }
+            return privateKey != null ? privateKey : RecipientKey.privateKey(encodedKey);
+        }
+    }
+
+    /**
+     * Data key and CL3 header for one file, before any byte is written
+     */
+    public static class SealingKeys {
+        public final SecretKey dataKey;
+        public final ChunkedFileHeader header;
+        public final byte[] privateKey;
+
+        SealingKeys(SecretKey dataKey, ChunkedFileHeader header, byte[] privateKey) {
+            this.dataKey = dataKey;
+            this.header = header;
+            this.privateKey = privateKey;
+        }
+    }
+
+    public static class EncryptionResult {
+        public final byte[] privateKey;
+        public final String checksum;
+
+        EncryptionResult(byte[] privateKey, String checksum) {
+            this.privateKey = privateKey;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * What an in-place update did; manifest is the new encrypted segment
+     * manifest, to be stored next to the file in place of the old one
+     */
+    public static class UpdateResult {
+        public final long segments;
+        public final long resealed;
+        public final long moved; // Unchanged, but copied to a new offset
+        public final long plaintextBytes;
+        public final boolean manifestRebuilt; // The old manifest was missing or stale, so the file was decrypted once
+        public final byte[] manifest;
+
+        UpdateResult(long segments, long resealed, long moved, long plaintextBytes, boolean manifestRebuilt,
+                     byte[] manifest) {
+            this.segments = segments;
+            this.resealed = resealed;
+            this.moved = moved;
+            this.plaintextBytes = plaintextBytes;
+            this.manifestRebuilt = manifestRebuilt;
+            this.manifest = manifest;
+        }
+    }
+
+    /**
+     * Encrypts to CL3 in RSA key mode
+     * Output is a single sequential pass with no trailer to back-patch
+     */
+    public static EncryptionResult encrypt(
+            CryptoSource source,
+            CryptoSink sink,
+            String originalExtension,
+            ProgressCallback callback) throws Exception {
+
+        SealingKeys keys = newSealingKeys(originalExtension, null, null);
+
+        String checksum = encryptSegments(source, sink, keys.header, keys.dataKey, callback);
+
+        return new EncryptionResult(keys.privateKey, checksum);
+    }
+
+    /**
+     * Encrypts to CL3 for a recipient key shared by many files
+     */
+    public static EncryptionResult encrypt(
+            CryptoSource source,
+            CryptoSink sink,
+            String originalExtension,
+            PublicKey recipient,
+            ProgressCallback callback) throws Exception {
+
+        SealingKeys keys = newSealingKeys(originalExtension, recipient);
+
+        String checksum = encryptSegments(source, sink, keys.header, keys.dataKey, callback);
+
+        return new EncryptionResult(null, checksum);
+    }
+
+    /**
+     * Encrypts to CL3 once for several recipient keys
+     * The payload is sealed once; each recipient adds a fingerprint and one OAEP wrap
+     */
+    public static EncryptionResult encrypt(
+            CryptoSource source,
+            CryptoSink sink,
+            String originalExtension,
+            List<PublicKey> recipients,
+            ProgressCallback callback) throws Exception {
+
+        SealingKeys keys = newSealingKeys(originalExtension, recipients);
+
+        String checksum = encryptSegments(source, sink, keys.header, keys.dataKey, callback);
+
+        return new EncryptionResult(null, checksum);
+    }
+
+    /**
+     * Encrypts to CL3 under a password
+     * PBKDF2 runs at most once per file to wrap a random data key, so memory use stays
+     * constant whatever the file size
+     */
+    public static EncryptionResult encryptWithPassword(
+            CryptoSource source,
+            CryptoSink sink,
+            String originalExtension,
+            String password,
+            ProgressCallback callback) throws Exception {
+
+        if (password == null || password.length() < 8) {
+            throw new IllegalArgumentException("Password must be at least 8 characters");
+        }
+
+        SealingKeys keys = newSealingKeys(originalExtension, password);
+
+        String checksum = encryptSegments(source, sink, keys.header, keys.dataKey, callback);
+
+        return new EncryptionResult(null, checksum);
+    }
+
+    /**
+     * Fresh data key and CL3 header for one file
+     * A null password selects RSA key mode; privateKey is null in password mode
+     */
+    public static SealingKeys newSealingKeys(String originalExtension, String password) throws Exception {
+        return newSealingKeys(originalExtension, password, null);
+    }
+
+    /**
+     * Fresh data key and CL3 header wrapped to an existing recipient key
+     * Costs one OAEP wrap; privateKey is null since the caller already holds it
+     */
+    public static SealingKeys newSealingKeys(String originalExtension, PublicKey recipient) throws Exception {
+        if (recipient == null) {
+            throw new IllegalArgumentException("Recipient key is required");
+        }
+        return newSealingKeys(originalExtension, null, recipient);
+    }
+
+    /**
+     * Fresh data key and CL3 header wrapped to every one of recipients, see RecipientList
+     */
+    public static SealingKeys newSealingKeys(String originalExtension, List<PublicKey> recipients)
+            throws Exception {
+        SecureRandom random = new SecureRandom();
+        SecretKey aesKey = newDataKey(random);
+        byte[] keyBlock = RecipientList.wrap(aesKey, recipients);
+        int flags = ChunkedFileHeader.FLAG_INDEXED | ChunkedFileHeader.FLAG_UPDATABLE
+                | ChunkedFileHeader.FLAG_RECIPIENTS;
+        return sealingKeys(originalExtension, aesKey, keyBlock, flags, null, random);
+    }
+
+    private static SealingKeys newSealingKeys(String originalExtension, String password, PublicKey recipient)
+            throws Exception {
+        return newSealingKeys(originalExtension, password, recipient, 0);
+    }
+
+    /**
+     * extraFlags are added to the header, e.g. FLAG_ARCHIVE
+     */
+    static SealingKeys newSealingKeys(String originalExtension, String password, PublicKey recipient,
+                                      int extraFlags) throws Exception {
+        SecureRandom random = new SecureRandom();
+        SecretKey aesKey = newDataKey(random);
+
+        byte[] keyBlock;
+        byte[] privateKey = null;
+        int flags = ChunkedFileHeader.FLAG_INDEXED | ChunkedFileHeader.FLAG_UPDATABLE | extraFlags;
+
+        if (password == null) {
+            KeyPair rsaKeyPair = null;
+            if (recipient == null) {
+                // One key pair per file, usually already generated by the pool
+                rsaKeyPair = RsaKeyPool.take();
+                recipient = rsaKeyPair.getPublic();
+            }
+
+            // Encrypt AES key with RSA
+            Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+            rsaCipher.init(Cipher.ENCRYPT_MODE, recipient);
+            keyBlock = rsaCipher.doFinal(aesKey.getEncoded());
+            privateKey = rsaKeyPair != null ? rsaKeyPair.getPrivate().getEncoded() : null;
+        } else {
+            // Wrap AES key with the password-derived key
+            char[] passwordChars = password.toCharArray();
+            try {
+                keyBlock = ChunkedFileHeader.wrapKeyWithPassword(aesKey, passwordChars, random);
+            } finally {
+                Arrays.fill(passwordChars, '\0');
+            }
+            flags |= ChunkedFileHeader.FLAG_PASSWORD;
+        }
+        return sealingKeys(originalExtension, aesKey, keyBlock, flags, privateKey, random);
+    }
+
+    private static SecretKey newDataKey(SecureRandom random) throws GeneralSecurityException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(AES_KEY_SIZE, random);
+        return keyGen.generateKey();
+    }
+
+    private static SealingKeys sealingKeys(String originalExtension, SecretKey aesKey, byte[] keyBlock, int flags,
+                                           byte[] privateKey, SecureRandom random) throws Exception {
+        if (SegmentCompression.appliesTo(originalExtension)) {
+            flags |= ChunkedFileHeader.FLAG_COMPRESSED;
+        }
+
+        // File nonce - each segment XORs its index into it
+        byte[] nonce = new byte[ParallelSegmentCipher.GCM_IV_LENGTH];
+        random.nextBytes(nonce);
+
+        // Build header - the key block stays outside the digest bound to every segment
+        ChunkedFileHeader header = ChunkedFileHeader.create(flags, CHUNK_SIZE, nonce, originalExtension, keyBlock);
+        return new SealingKeys(aesKey, header, privateKey);
+    }
+
+    /**
+     * Writes the header and the sealed segments; returns the checksum
+     */
+    static String encryptSegments(
+            CryptoSource source,
+            CryptoSink sink,
+            ChunkedFileHeader fileHeader,
+            SecretKey aesKey,
+            ProgressCallback callback) throws Exception {
+
+        byte[] header = fileHeader.toBytes();
+
+        // Size for progress tracking - never an extra read
+        long totalSize = source.sizeHint();
+        long[] plaintextBytes = new long[1];
+
+        LongConsumer progress = plaintext -> {
+            plaintextBytes[0] = plaintext;
+            reportProgress(callback, plaintext, totalSize, 100);
+        };
+
+        // Regular files go through FileChannel with mapped reads; pipes fall back to streams
+        FileChannel inputChannel = source.openChannel();
+        FileChannel outputChannel = inputChannel != null ? sink.openChannel() : null;
+
+        if (inputChannel != null && outputChannel != null) {
+            try (FileChannel in = inputChannel;
+                 FileChannel out = outputChannel) {
+
+                // Write header
+                writeFully(out, ByteBuffer.wrap(header));
+
+                // Encrypt segments on all cores, written back in order
+                ParallelSegmentCipher.encrypt(in, out, aesKey, fileHeader.nonce, fileHeader.digest,
+                        fileHeader.segmentSize, fileHeader.flags, null, 0, progress);
+            }
+        } else {
+            closeQuietly(inputChannel);
+
+            try (InputStream rawInputStream = source.openStream();
+                 BufferedInputStream inputStream = new BufferedInputStream(rawInputStream, 8192);
+                 OutputStream rawOutputStream = sink.openStream();
+                 BufferedOutputStream outputStream = new BufferedOutputStream(rawOutputStream, 8192)) {
+
+                // Write header
+                outputStream.write(header);
+
+                // Encrypt segments on all cores, written back in order
+                ParallelSegmentCipher.encrypt(inputStream, outputStream, aesKey, fileHeader.nonce, fileHeader.digest,
+                        fileHeader.segmentSize, fileHeader.flags, progress);
+            }
+        }
+
+        // Calculate checksum
+        String checksum = checksumOf(aesKey);
+
+        if (callback != null) {
+            long processed = plaintextBytes[0];
+            callback.onProgress(100, processed, processed);
+            callback.onComplete();
+        }
+
+        return checksum;
+    }
+
+    /**
+     * Decrypts a CL3 file, or a legacy CL2 file, in RSA key mode
+     */
+    public static void decrypt(
+            CryptoSource source,
+            CryptoSink sink,
+            byte[] privateKeyBytes,
+            ProgressCallback callback) throws Exception {
+
+        decrypt(source, sink, new KeyMaterial(privateKeyBytes, null, null), callback);
+    }
+
+    /**
+     * Same with an already parsed key, e.g. a handle held by a keystore
+     */
+    public static void decrypt(
+            CryptoSource source,
+            CryptoSink sink,
+            PrivateKey privateKey,
+            ProgressCallback callback) throws Exception {
+
+        decrypt(source, sink, new KeyMaterial(null, privateKey, null), callback);
+    }
+
+    /**
+     * Decrypts a password-protected CL3 file
+     */
+    public static void decryptWithPassword(
+            CryptoSource source,
+            CryptoSink sink,
+            String password,
+            ProgressCallback callback) throws Exception {
+
+        char[] passwordChars = password.toCharArray();
+        try {
+            decrypt(source, sink, new KeyMaterial(null, null, passwordChars), callback);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    /**
+     * Decrypts a blob of a Vault; blobId is the one its entry names
+     */
+    static void decryptVaultBlob(
+            CryptoSource source,
+            CryptoSink sink,
+            SecretKey vaultKey,
+            byte[] blobId,
+            ProgressCallback callback) throws Exception {
+
+        decrypt(source, sink, new KeyMaterial(vaultKey, blobId), callback);
+    }
+
+    /**
+     * Brings an updatable CL3 file in line with new plaintext, re-sealing only
+     * the segments whose plaintext changed; see SegmentUpdater
+     * reader and writer are the same file, e.g. one channel opened for both.
+     * journal is a sidecar for the RollbackJournal, e.g. <name>.csj; a journal
+     * left by an interrupted update is rolled back first. manifest is the one
+     * returned by the previous update, or null; without a current one the file
+     * is decrypted once to take the segment digests
+     */
+    public static UpdateResult update(
+            CryptoSource plaintext,
+            FileChannel reader,
+            FileChannel writer,
+            FileChannel journal,
+            byte[] manifest,
+            byte[] privateKeyBytes,
+            ProgressCallback callback) throws Exception {
+
+        return update(plaintext, reader, writer, journal, manifest, new KeyMaterial(privateKeyBytes, null, null),
+                callback);
+    }
+
+    public static UpdateResult update(
+            CryptoSource plaintext,
+            FileChannel reader,
+            FileChannel writer,
+            FileChannel journal,
+            byte[] manifest,
+            PrivateKey privateKey,
+            ProgressCallback callback) throws Exception {
+
+        return update(plaintext, reader, writer, journal, manifest, new KeyMaterial(null, privateKey, null),
+                callback);
+    }
+
+    public static UpdateResult updateWithPassword(
+            CryptoSource plaintext,
+            FileChannel reader,
+            FileChannel writer,
+            FileChannel journal,
+            byte[] manifest,
+            String password,
+            ProgressCallback callback) throws Exception {
+
+        char[] passwordChars = password.toCharArray();
+        try {
+            return update(plaintext, reader, writer, journal, manifest, new KeyMaterial(null, null, passwordChars),
+                    callback);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    private static UpdateResult update(
+            CryptoSource plaintext,
+            FileChannel reader,
+            FileChannel writer,
+            FileChannel journal,
+            byte[] encodedManifest,
+            KeyMaterial keys,
+            ProgressCallback callback) throws Exception {
+
+        RollbackJournal.rollBack(journal, reader, writer);
+        InputStream headerStream = probeHeader(reader);
+        if (!VERSION_CL3.equals(readVersion(headerStream))) {
+            throw new Exception("Only CL3 files can be updated in place");
+        }
+        ChunkedFileHeader header = ChunkedFileHeader.readAfterVersion(headerStream);
+        if (!header.isUpdatable() || !header.isIndexed()) {
+            throw new Exception("File was written before in-place updates; encrypt it again");
+        }
+        SecretKey aesKey = keys.unwrap(header);
+
+        SegmentIndex index = SegmentIndex.read(reader, aesKey, header.digest);
+        long segmentsEnd = index.offsets(header.length())[(int) index.size()];
+        if (segmentsEnd + 4 + index.size() * SegmentIndex.ENTRY_SIZE + SegmentIndex.FOOTER_SIZE != reader.size()) {
+            throw new IOException("Segment index does not match the file layout");
+        }
+
+        SegmentManifest manifest = null;
+        if (encodedManifest != null) {
+            try {
+                manifest = SegmentManifest.parse(encodedManifest, aesKey, header.digest);
+            } catch (Exception e) {
+                LOG.warning("Ignoring unreadable segment manifest: " + e.getMessage());
+            }
+        }
+        boolean rebuilt = manifest == null || !manifest.describes(index, header.segmentSize);
+        if (rebuilt) {
+            manifest = SegmentManifest.build(reader, header, aesKey);
+        }
+
+        long totalSize = plaintext.sizeHint();
+        UpdateResult result;
+        try (InputStream in = plaintext.openStream()) {
+            result = new SegmentUpdater(reader, writer, RollbackJournal.begin(journal, reader), header, aesKey,
+                    index, manifest).run(in, rebuilt,
+                    plaintextBytes -> reportProgress(callback, plaintextBytes, totalSize, 95));
+        } catch (Exception e) {
+            // Undo what was written so far; a crash instead leaves the journal for the next open
+            try {
+                RollbackJournal.rollBack(journal, reader, writer);
+            } catch (IOException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        }
+
+        if (callback != null) {
+            callback.onProgress(100, result.plaintextBytes, result.plaintextBytes);
+            callback.onComplete();
+        }
+        return result;
+    }
+
+    /**
+     * Checks a CL3 or CL2 file in RSA key mode without writing any plaintext
+     * A sample below 1 hashes that share of the segments against the segment
+     * index instead of opening every one; files without an index are always
+     * checked in full. Damage is reported in the result; an exception means the
+     * file could not be checked at all, e.g. a wrong key or an unreadable header
+     */
+    public static IntegrityReport verify(
+            CryptoSource source,
+            byte[] privateKeyBytes,
+            double sample) throws Exception {
+
+        return verify(source, new KeyMaterial(privateKeyBytes, null, null), sample);
+    }
+
+    /**
+     * Same with an already parsed key
+     */
+    public static IntegrityReport verify(
+            CryptoSource source,
+            PrivateKey privateKey,
+            double sample) throws Exception {
+
+        return verify(source, new KeyMaterial(null, privateKey, null), sample);
+    }
+
+    /**
+     * Checks a password-protected CL3 file; the KDF runs once, as for decrypt
+     */
+    public static IntegrityReport verifyWithPassword(
+            CryptoSource source,
+            String password,
+            double sample) throws Exception {
+
+        char[] passwordChars = password.toCharArray();
+        try {
+            return verify(source, new KeyMaterial(null, null, passwordChars), sample);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    private static IntegrityReport verify(
+            CryptoSource source,
+            KeyMaterial keys,
+            double sample) throws Exception {
+
+        long started = System.nanoTime();
+        FileChannel channel = source.openChannel();
+        if (channel != null) {
+            try (FileChannel in = channel) {
+                return verifyChannel(in, keys, sample, started);
+            }
+        }
+
+        // Streams get the full check: the index sits at the end and cannot be read first
+        try (InputStream rawInputStream = source.openStream()) {
+            IntegrityReport.CountingInputStream counted = new IntegrityReport.CountingInputStream(rawInputStream);
+            InputStream inputStream = new BufferedInputStream(counted, 8192);
+            String version = readVersion(inputStream);
+            String problem = null;
+
+            if (VERSION_CL3.equals(version)) {
+                ChunkedFileHeader header = ChunkedFileHeader.readAfterVersion(inputStream);
+                SecretKey aesKey = keys.unwrap(header);
+                try {
+                    ParallelSegmentCipher.decrypt(inputStream, IntegrityReport.DISCARD, aesKey, header.nonce,
+                            header.digest, header.segmentSize, header.flags, null);
+                } catch (Exception e) {
+                    problem = IntegrityReport.describe(e);
+                }
+            } else if (VERSION_CL2.equals(version)) {
+                problem = verifyLegacyFile(inputStream, keys.legacyKey());
+            } else {
+                throw new Exception("Invalid chunked file format");
+            }
+            return new IntegrityReport(version, problem == null, !VERSION_CL2.equals(version), false, counted.count,
+                    System.nanoTime() - started, null, problem);
+        }
+    }
+
+    private static IntegrityReport verifyChannel(
+            FileChannel in,
+            KeyMaterial keys,
+            double sample,
+            long started) throws Exception {
+
+        InputStream headerStream = probeHeader(in);
+        String version = readVersion(headerStream);
+        long fileSize = in.size();
+
+        if (VERSION_CL2.equals(version)) {
+            in.position(VERSION_CL2.length());
+            String problem = verifyLegacyFile(
+                    new BufferedInputStream(Channels.newInputStream(in), 8192), keys.legacyKey());
+            return new IntegrityReport(version, problem == null, false, false, fileSize,
+                    System.nanoTime() - started, null, problem);
+        } else if (!VERSION_CL3.equals(version)) {
+            throw new Exception("Invalid chunked file format");
+        }
+
+        ChunkedFileHeader header = ChunkedFileHeader.readAfterVersion(headerStream);
+        SecretKey aesKey = keys.unwrap(header);
+
+        if (header.isIndexed() && sample < 1) {
+            // Hashing a sample against the authenticated index; no segment is opened
+            try {
+                SegmentIndex.Report report = SegmentIndex.verify(in, header, aesKey, sample);
+                return new IntegrityReport(version, report.isIntact(), true, report.checked < report.segments,
+                        header.length() + report.bytesChecked, System.nanoTime() - started, report.damaged,
+                        report.isIntact() ? null : "Segment hash mismatch");
+            } catch (Exception e) {
+                return new IntegrityReport(version, false, true, true, header.length(),
+                        System.nanoTime() - started, null, IntegrityReport.describe(e));
+            }
+        }
+
+        // Every GCM tag on all cores, plus the index trailer; the plaintext goes nowhere
+        in.position(header.length());
+        try {
+            ParallelSegmentCipher.decrypt(in, Channels.newChannel(IntegrityReport.DISCARD), aesKey, header.nonce,
+                    header.digest, header.segmentSize, header.flags, 0, null);
+            return new IntegrityReport(version, true, true, false, fileSize, System.nanoTime() - started, null,
+                    null);
+        } catch (Exception e) {
+            long elapsed = System.nanoTime() - started;
+            // The pipeline stops at the first bad tag; the index can still say which segments are hit
+            List<Long> damaged = null;
+            if (header.isIndexed()) {
+                try {
+                    damaged = SegmentIndex.verify(in, header, aesKey, 1).damaged;
+                } catch (Exception indexProblem) {
+                    // The index is damaged too, so only the first failure is known
+                }
+            }
+            return new IntegrityReport(version, false, true, false, fileSize, elapsed, damaged,
+                    IntegrityReport.describe(e));
+        }
+    }
+
+    /**
+     * Returns the first failure, or null; a CL2 key block that does not open
+     * under the key shows up here too, since the format cannot tell the two apart
+     */
+    private static String verifyLegacyFile(InputStream inputStream, PrivateKey rsaPrivateKey) {
+        try {
+            decryptLegacyFile(inputStream, IntegrityReport.DISCARD, rsaPrivateKey, -1, null, true);
+            return null;
+        } catch (Exception e) {
+            return IntegrityReport.describe(e);
+        }
+    }
+
+    private static void decrypt(
+            CryptoSource source,
+            CryptoSink sink,
+            KeyMaterial keys,
+            ProgressCallback callback) throws Exception {
+
+        long totalSize = source.sizeHint();
+        long processed;
+
+        // Regular files go through FileChannel with mapped reads; pipes fall back to streams
+        FileChannel inputChannel = source.openChannel();
+        FileChannel outputChannel = inputChannel != null ? sink.openChannel() : null;
+
+        if (inputChannel != null && outputChannel != null) {
+            try (FileChannel in = inputChannel;
+                 FileChannel out = outputChannel) {
+
+                processed = decryptChannel(in, out, keys, totalSize, callback);
+            }
+        } else {
+            closeQuietly(inputChannel);
+
+            try (InputStream rawInputStream = source.openStream();
+                 BufferedInputStream inputStream = new BufferedInputStream(rawInputStream, 8192);
+                 OutputStream rawOutputStream = sink.openStream();
+                 BufferedOutputStream outputStream = new BufferedOutputStream(rawOutputStream, 8192)) {
+
+                // Read header
+                String version = readVersion(inputStream);
+
+                if (VERSION_CL3.equals(version)) {
+                    processed = decryptSegmentedFile(inputStream, outputStream, keys, totalSize, callback);
+                } else if (VERSION_CL2.equals(version)) {
+                    processed = decryptLegacyFile(inputStream, outputStream, keys.legacyKey(), totalSize, callback,
+                            false);
+                } else {
+                    throw new Exception("Invalid chunked file format");
+                }
+            }
+        }
+
+        if (callback != null) {
+            callback.onProgress(100, processed, processed);
+            callback.onComplete();
+        }
+    }
+
+    private static long decryptChannel(
+            FileChannel in,
+            FileChannel out,
+            KeyMaterial keys,
+            long totalSize,
+            ProgressCallback callback) throws Exception {
+
+        InputStream headerStream = probeHeader(in);
+        String version = readVersion(headerStream);
+
+        if (VERSION_CL3.equals(version)) {
+            ChunkedFileHeader header = ChunkedFileHeader.readAfterVersion(headerStream);
+            in.position(header.length());
+            // The ciphertext size says little about the plaintext size of a framed file
+            long plaintextSize = header.isFramed()
+                    ? ParallelSegmentCipher.framedSegments(in, header.length()) * header.segmentSize
+                    : totalSize;
+            return ParallelSegmentCipher.decrypt(in, out, keys.unwrap(header), header.nonce,
+                    header.digest, header.segmentSize, header.flags, 0,
+                    plaintextBytes -> reportProgress(callback, plaintextBytes, plaintextSize, 95));
+        } else if (VERSION_CL2.equals(version)) {
+            in.position(VERSION_CL2.length());
+            OutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(out), 8192);
+            long processed = decryptLegacyFile(new BufferedInputStream(Channels.newInputStream(in), 8192),
+                    outputStream, keys.legacyKey(), totalSize, callback, false);
+            outputStream.flush();
+            return processed;
+        } else {
+            throw new Exception("Invalid chunked file format");
+        }
+    }
+
+    /**
+     * Header bytes from one positional read; the channel position is left at 0
+     * A header with a long recipient list reads on past the probe, still positionally
+     */
+    private static InputStream probeHeader(FileChannel in) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(HEADER_PROBE_SIZE);
+        while (probe.hasRemaining() && in.read(probe, probe.position()) > 0) {
+            // Keep reading until the probe is full or the file ends
+        }
+        long probed = probe.position();
+        InputStream rest = new InputStream() {
+            private long position = probed;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == 1 ? one[0] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(ByteBuffer.wrap(b, off, len), position);
+                if (n > 0) position += n;
+                return n;
+            }
+        };
+        return new SequenceInputStream(new ByteArrayInputStream(probe.array(), 0, probe.position()), rest);
+    }
+
+    private static long decryptSegmentedFile(
+            InputStream inputStream,
+            OutputStream outputStream,
+            KeyMaterial keys,
+            long totalSize,
+            ProgressCallback callback) throws Exception {
+
+        ChunkedFileHeader header = ChunkedFileHeader.readAfterVersion(inputStream);
+
+        // Decrypt AES key
+        SecretKey aesKey = keys.unwrap(header);
+
+        long plaintextSize = header.isFramed() ? -1 : totalSize;
+        return ParallelSegmentCipher.decrypt(inputStream, outputStream, aesKey, header.nonce, header.digest,
+                header.segmentSize, header.flags,
+                plaintextBytes -> reportProgress(callback, plaintextBytes, plaintextSize, 95));
+    }
+
+    /**
+     * Legacy CL2 reader: single AES/CBC stream with a whole-file HMAC
+     * A mismatch was only ever logged on decrypt; requireHmac makes it throw
+     */
+    private static long decryptLegacyFile(
+            InputStream inputStream,
+            OutputStream outputStream,
+            PrivateKey rsaPrivateKey,
+            long totalSize,
+            ProgressCallback callback,
+            boolean requireHmac) throws Exception {
+
+        // Every field is length-prefixed and bounded, so a corrupt length fails here instead of allocating it
+        DataInputStream header = new DataInputStream(inputStream);
+        byte[] salt = readField(header);
+        byte[] iv = readField(header);
+        readField(header); // Extension
+        byte[] encryptedAESKey = readField(header);
+        byte[] storedHmac = readField(header);
+
+        // Decrypt AES key
+        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsaCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
+        byte[] aesKeyBytes = rsaCipher.doFinal(encryptedAESKey);
+        SecretKey aesKey = new SecretKeySpec(aesKeyBytes, "AES");
+
+        // Initialize cipher for decryption (CBC mode)
+        Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        javax.crypto.spec.IvParameterSpec ivSpec = new javax.crypto.spec.IvParameterSpec(iv);
+        aesCipher.init(Cipher.DECRYPT_MODE, aesKey, ivSpec);
+
+        // Initialize HMAC for verification
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+
+        long bytesProcessed = 0;
+        long chunksProcessed = 0;
+
+        // Process chunks with reusable frame and output buffers
+        byte[] chunkLenBytes = new byte[4];
+        ByteBuffer chunkLenBuffer = ByteBuffer.wrap(chunkLenBytes);
+        byte[] encryptedChunk = new byte[FRAME_BUFFER_SIZE];
+        byte[] decryptedChunk = new byte[FRAME_BUFFER_SIZE + CBC_IV_LENGTH];
+
+        while (ParallelSegmentCipher.readFully(inputStream, chunkLenBytes, 4) == 4) {
+            int chunkLen = chunkLenBuffer.getInt(0);
+            if (chunkLen < 0 || chunkLen > MAX_SEGMENT_SIZE) {
+                throw new Exception("Corrupted chunk length: " + chunkLen);
+            }
+
+            // Frames are normally 8KB; grow once if a writer used larger ones
+            if (chunkLen > encryptedChunk.length) {
+                encryptedChunk = new byte[chunkLen];
+                decryptedChunk = new byte[chunkLen + CBC_IV_LENGTH];
+            }
+
+            if (ParallelSegmentCipher.readFully(inputStream, encryptedChunk, chunkLen) != chunkLen) {
+                throw new Exception("Incomplete chunk read");
+            }
+
+            // Update HMAC
+            hmac.update(encryptedChunk, 0, chunkLen);
+
+            // Decrypt chunk using update (streaming)
+            int decryptedLen = aesCipher.update(encryptedChunk, 0, chunkLen, decryptedChunk, 0);
+
+            if (decryptedLen > 0) {
+                outputStream.write(decryptedChunk, 0, decryptedLen);
+            }
+
+            bytesProcessed += chunkLen;
+            chunksProcessed++;
+
+            // Update progress every 128 chunks
+            if (chunksProcessed % 128 == 0) {
+                reportProgress(callback, bytesProcessed, totalSize, 95);
+            }
+        }
+
+        // Finalize decryption (handles padding removal)
+        int finalLen = aesCipher.doFinal(decryptedChunk, 0);
+        if (finalLen > 0) {
+            outputStream.write(decryptedChunk, 0, finalLen);
+        }
+
+        outputStream.flush();
+
+        // Verify HMAC
+        byte[] calculatedHmac = hmac.doFinal();
+        boolean verified = MessageDigest.isEqual(storedHmac, calculatedHmac);
+
+        if (!verified) {
+            if (requireHmac) throw new Exception("HMAC verification failed");
+            LOG.warning("HMAC verification failed");
+        }
+        return bytesProcessed;
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IOException("Corrupted header field length: " + length);
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return field;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static String readVersion(InputStream in) throws IOException {
+        byte[] versionBytes = new byte[3];
+        if (ParallelSegmentCipher.readFully(in, versionBytes, 3) != 3) {
+            throw new EOFException("File too short");
+        }
+        return new String(versionBytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Checksum reported for a chunked file: SHA-256 of its data key
+     */
+    public static String checksumOf(SecretKey aesKey) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return bytesToHex(digest.digest(aesKey.getEncoded()));
+    }
+
+    private static void reportProgress(ProgressCallback callback, long bytesProcessed, long totalSize, int cap) {
+        if (callback == null) return;
+        if (totalSize <= 0) {
+            callback.onProgress(UNKNOWN_PROGRESS, bytesProcessed, UNKNOWN_PROGRESS);
+            return;
+        }
+        int progress = Math.min(cap, (int) ((bytesProcessed * 100) / totalSize));
+        callback.onProgress(progress, bytesProcessed, totalSize);
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
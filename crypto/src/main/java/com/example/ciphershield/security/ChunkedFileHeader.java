@@ -0,0 +1,303 @@
+package com.example.ciphershield.security;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CL3 chunked file header
+ * Layout: [VERSION][FLAGS][SEGMENT_SIZE][NONCE][EXT][KEY_BLOCK]
+ * Everything before the key block is hashed into the digest bound to every
+ * segment, so the key block can be re-wrapped without touching the payload
+ *
+ * Key block depends on FLAGS:
+ * - default: RSA-OAEP wrapped data key
+ * - FLAG_PASSWORD: [SALT][ITERATIONS][IV][GCM wrapped data key], where the
+ *   wrapping key comes from PasswordKeys with the iteration count it calibrated
+ * - FLAG_RECIPIENTS: the data key wrapped once per recipient, see RecipientList
+ *
+ * FLAG_COMPRESSED changes the payload, not the key block: every sealed segment
+ * is length-prefixed and starts with a codec id, see SegmentCompression.
+ * FLAG_INDEXED uses the same framing and appends a SegmentIndex trailer.
+ * FLAG_UPDATABLE puts an 8-byte key epoch in front of each sealed segment, so
+ * single segments can be re-sealed in place under a fresh key.
+ * FLAG_ARCHIVE marks a plaintext of packed entries and their directory, see
+ * ArchiveCipher.
+ * FLAG_VAULT makes the key block a blob id; the data key is derived from the
+ * key of the Vault the file belongs to
+ */
+public class ChunkedFileHeader {
+
+    public static final String VERSION = "CL3";
+    public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int FLAG_PASSWORD = 1;
+    public static final int FLAG_COMPRESSED = 2;
+    public static final int FLAG_INDEXED = 4;
+    public static final int FLAG_UPDATABLE = 8;
+    public static final int FLAG_ARCHIVE = 16;
+    public static final int FLAG_VAULT = 32;
+    public static final int FLAG_RECIPIENTS = 64;
+    private static final int KNOWN_FLAGS = FLAG_PASSWORD | FLAG_COMPRESSED | FLAG_INDEXED | FLAG_UPDATABLE
+            | FLAG_ARCHIVE | FLAG_VAULT | FLAG_RECIPIENTS;
+    private static final int MAX_EXTENSION_LENGTH = 255;
+    private static final int MAX_KEY_BLOCK_LENGTH = 1024;
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final String KEY_WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_WRAP_TAG_LENGTH = 128;
+
+    public final int flags;
+    public final int segmentSize;
+    public final byte[] nonce;
+    public final byte[] extension;
+    public final byte[] keyBlock;
+    public final byte[] digest;
+
+    private ChunkedFileHeader(int flags, int segmentSize, byte[] nonce, byte[] extension,
+                              byte[] keyBlock, byte[] digest) {
+        this.flags = flags;
+        this.segmentSize = segmentSize;
+        this.nonce = nonce;
+        this.extension = extension;
+        this.keyBlock = keyBlock;
+        this.digest = digest;
+    }
+
+    public static ChunkedFileHeader create(int flags, int segmentSize, byte[] nonce,
+                                           String originalExtension, byte[] keyBlock) throws Exception {
+        byte[] extBytes = originalExtension.getBytes(StandardCharsets.UTF_8);
+        return new ChunkedFileHeader(flags, segmentSize, nonce, extBytes, keyBlock,
+                digestOf(flags, segmentSize, nonce, extBytes));
+    }
+
+    /**
+     * Reads a header including its version tag
+     */
+    public static ChunkedFileHeader read(InputStream inputStream) throws Exception {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] versionBytes = new byte[3];
+        in.readFully(versionBytes);
+        if (!VERSION.equals(new String(versionBytes, StandardCharsets.UTF_8))) {
+            throw new Exception("Invalid chunked file format");
+        }
+        return readAfterVersion(in);
+    }
+
+    /**
+     * Reads the rest of a header whose version tag was already consumed
+     */
+    public static ChunkedFileHeader readAfterVersion(InputStream inputStream) throws Exception {
+        DataInputStream in = new DataInputStream(inputStream);
+
+        int flags = in.readInt();
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new Exception("Unsupported chunked file options: " + flags);
+        }
+
+        int segmentSize = in.readInt();
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new Exception("Invalid segment size: " + segmentSize);
+        }
+
+        byte[] nonce = readField(in, ParallelSegmentCipher.GCM_IV_LENGTH);
+        if (nonce.length != ParallelSegmentCipher.GCM_IV_LENGTH) {
+            throw new Exception("Invalid segment nonce length: " + nonce.length);
+        }
+
+        byte[] extBytes = readField(in, MAX_EXTENSION_LENGTH);
+        int maxKeyBlock = (flags & FLAG_RECIPIENTS) != 0 ? RecipientList.MAX_LENGTH : MAX_KEY_BLOCK_LENGTH;
+        byte[] keyBlock = readField(in, maxKeyBlock);
+
+        return new ChunkedFileHeader(flags, segmentSize, nonce, extBytes, keyBlock,
+                digestOf(flags, segmentSize, nonce, extBytes));
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(headerStream);
+        writeBound(out, flags, segmentSize, nonce, extension);
+        out.writeInt(keyBlock.length);
+        out.write(keyBlock);
+        return headerStream.toByteArray();
+    }
+
+    /**
+     * Encoded size in bytes, i.e. the file offset of segment 0
+     */
+    public long length() {
+        return 3 + 4 + 4 + 4 + nonce.length + 4 + extension.length + 4 + keyBlock.length;
+    }
+
+    public boolean isPasswordProtected() {
+        return (flags & FLAG_PASSWORD) != 0;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    public boolean isIndexed() {
+        return (flags & FLAG_INDEXED) != 0;
+    }
+
+    public boolean isUpdatable() {
+        return (flags & FLAG_UPDATABLE) != 0;
+    }
+
+    public boolean isArchive() {
+        return (flags & FLAG_ARCHIVE) != 0;
+    }
+
+    public boolean isVaultBlob() {
+        return (flags & FLAG_VAULT) != 0;
+    }
+
+    public boolean hasRecipientList() {
+        return (flags & FLAG_RECIPIENTS) != 0;
+    }
+
+    /**
+     * Whether segments are length-prefixed rather than of fixed ciphertext size
+     */
+    public boolean isFramed() {
+        return (flags & (FLAG_COMPRESSED | FLAG_INDEXED | FLAG_UPDATABLE)) != 0;
+    }
+
+    /**
+     * Recovers the AES data key from the RSA-wrapped key block
+     */
+    public SecretKey unwrapKey(byte[] privateKeyBytes) throws Exception {
+        if (isPasswordProtected()) {
+            throw new Exception("File is password-protected");
+        }
+        return unwrapKey(RecipientKey.privateKey(privateKeyBytes));
+    }
+
+    /**
+     * Same with an already parsed key, e.g. a handle held by a keystore
+     */
+    public SecretKey unwrapKey(PrivateKey rsaPrivateKey) throws Exception {
+        if (isPasswordProtected()) {
+            throw new Exception("File is password-protected");
+        }
+        if (isVaultBlob()) {
+            throw new Exception("File belongs to a vault");
+        }
+        if (hasRecipientList()) {
+            return RecipientList.unwrap(keyBlock, rsaPrivateKey);
+        }
+
+        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsaCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
+        byte[] aesKeyBytes = rsaCipher.doFinal(keyBlock);
+        try {
+            return new SecretKeySpec(aesKeyBytes, "AES");
+        } finally {
+            Arrays.fill(aesKeyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Builds a password key block: the data key wrapped under a PBKDF2-derived key
+     */
+    public static byte[] wrapKeyWithPassword(SecretKey dataKey, char[] password, SecureRandom random)
+            throws Exception {
+        PasswordKeys.SealingKey sealing = PasswordKeys.forSealing(password);
+        byte[] salt = sealing.salt;
+        byte[] iv = new byte[ParallelSegmentCipher.GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher wrapCipher = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+        wrapCipher.init(Cipher.ENCRYPT_MODE, sealing.key, new GCMParameterSpec(KEY_WRAP_TAG_LENGTH, iv));
+        byte[] wrapped = wrapCipher.doFinal(dataKey.getEncoded());
+
+        ByteBuffer block = ByteBuffer.allocate(4 + salt.length + 4 + 4 + iv.length + wrapped.length);
+        block.putInt(salt.length).put(salt);
+        block.putInt(sealing.kdf.iterations);
+        block.putInt(iv.length).put(iv);
+        block.put(wrapped);
+        return block.array();
+    }
+
+    /**
+     * Recovers the AES data key from a password key block
+     * PBKDF2 runs at most once here, and not at all when PasswordKeys still
+     * holds the key; segments are then decrypted with the data key
+     */
+    public SecretKey unwrapKey(char[] password) throws Exception {
+        if (isVaultBlob()) {
+            throw new Exception("File belongs to a vault");
+        }
+        if (!isPasswordProtected()) {
+            throw new Exception("File is not password-protected");
+        }
+
+        ByteBuffer block = ByteBuffer.wrap(keyBlock);
+        try {
+            byte[] salt = new byte[block.getInt()];
+            block.get(salt);
+            int iterations = block.getInt();
+            if (iterations <= 0 || iterations > PasswordKeys.MAX_ITERATIONS) {
+                throw new IOException("Invalid key derivation parameters");
+            }
+            byte[] iv = new byte[block.getInt()];
+            block.get(iv);
+            byte[] wrapped = new byte[block.remaining()];
+            block.get(wrapped);
+
+            Cipher wrapCipher = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+            wrapCipher.init(Cipher.DECRYPT_MODE, PasswordKeys.derive(password, salt, iterations),
+                    new GCMParameterSpec(KEY_WRAP_TAG_LENGTH, iv));
+            byte[] aesKeyBytes = wrapCipher.doFinal(wrapped);
+            try {
+                return new SecretKeySpec(aesKeyBytes, "AES");
+            } finally {
+                Arrays.fill(aesKeyBytes, (byte) 0);
+            }
+        } catch (AEADBadTagException e) {
+            throw new Exception("Wrong password or corrupted file");
+        } catch (RuntimeException e) {
+            // Negative or oversized field lengths
+            throw new IOException("Corrupted password key block");
+        }
+    }
+
+    public String getOriginalExtension() {
+        return new String(extension, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] digestOf(int flags, int segmentSize, byte[] nonce, byte[] extBytes) throws Exception {
+        ByteArrayOutputStream bound = new ByteArrayOutputStream();
+        writeBound(new DataOutputStream(bound), flags, segmentSize, nonce, extBytes);
+        return MessageDigest.getInstance("SHA-256").digest(bound.toByteArray());
+    }
+
+    private static void writeBound(DataOutputStream out, int flags, int segmentSize,
+                                   byte[] nonce, byte[] extBytes) throws IOException {
+        out.write(VERSION.getBytes(StandardCharsets.UTF_8));
+        out.writeInt(flags);
+        out.writeInt(segmentSize);
+        out.writeInt(nonce.length);
+        out.write(nonce);
+        out.writeInt(extBytes.length);
+        out.write(extBytes);
+    }
+
+    private static byte[] readField(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Corrupted header field length: " + length);
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return field;
+    }
+}
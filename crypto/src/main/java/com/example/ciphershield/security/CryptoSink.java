@@ -0,0 +1,19 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where an engine writes its output to
+ * Both methods truncate; an engine opens exactly one of them
+ */
+public interface CryptoSink {
+
+    /**
+     * A truncated, writable channel positioned at 0, or null if the sink is not seekable
+     */
+    FileChannel openChannel() throws IOException;
+
+    OutputStream openStream() throws IOException;
+}
@@ -0,0 +1,28 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where an engine reads its input from
+ * Engines prefer openChannel, which allows memory-mapped reads and
+ * positioning; openStream is the fallback for pipes and sockets
+ */
+public interface CryptoSource {
+
+    long UNKNOWN_SIZE = -1;
+
+    /**
+     * Size in bytes if it is known without reading, otherwise UNKNOWN_SIZE
+     * Only used for progress; engines never rely on it for correctness
+     */
+    long sizeHint();
+
+    /**
+     * A read-only channel positioned at 0, or null if the source is not seekable
+     */
+    FileChannel openChannel() throws IOException;
+
+    InputStream openStream() throws IOException;
+}
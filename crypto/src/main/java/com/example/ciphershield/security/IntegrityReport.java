@@ -0,0 +1,94 @@
+package com.example.ciphershield.security;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a verify-only pass over one container
+ * Every tag and MAC the format carries is checked, but the plaintext is
+ * dropped as soon as it is authenticated, so nothing is written anywhere
+ */
+public class IntegrityReport {
+
+    public final String format;
+    public final boolean intact;
+    // False for CL2: its HMAC is keyed by the salt stored in the clear, so intact only rules out accidental damage
+    public final boolean authenticated;
+    public final boolean sampled; // Only part of the segments were hashed; see ChunkedFileCipher.verify
+    public final long bytesChecked; // Container bytes read, header included
+    public final long elapsedNanos;
+    public final List<Long> damagedSegments; // CL3 files with a segment index only, ascending
+    public final String problem; // First failure, null when intact
+
+    IntegrityReport(String format, boolean intact, boolean authenticated, boolean sampled, long bytesChecked,
+                    long elapsedNanos, List<Long> damagedSegments, String problem) {
+        this.format = format;
+        this.intact = intact;
+        this.authenticated = authenticated;
+        this.sampled = sampled;
+        this.bytesChecked = bytesChecked;
+        this.elapsedNanos = elapsedNanos;
+        this.damagedSegments = damagedSegments != null
+                ? Collections.unmodifiableList(damagedSegments)
+                : Collections.<Long>emptyList();
+        this.problem = problem;
+    }
+
+    public double megabytesPerSecond() {
+        if (elapsedNanos <= 0) return 0;
+        return bytesChecked / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+    }
+
+    static String describe(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    /**
+     * Swallows the authenticated plaintext
+     */
+    static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Counts what the verifier actually read, for sources with no size hint
+     */
+    static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.ciphershield.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Password KDF choice and cost, as recorded in CP4 headers and CP5 key fields
+ * Encoded form: [KDF_ID:1] then PBKDF2 [ITERATIONS:4] or scrypt [N:4][R:4][P:4]
+ * Decoding enforces the same bounds as construction, so a crafted header
+ * cannot ask for an unbounded amount of time or memory
+ */
+public class KdfParams {
+
+    public static final int PBKDF2_SHA256 = 1;
+    public static final int SCRYPT = 2;
+
+    public static final int MAX_SCRYPT_N = 1 << 22;
+    public static final int MAX_SCRYPT_R = 32;
+    public static final int MAX_SCRYPT_P = 16;
+    public static final long MAX_SCRYPT_MEMORY = 256L * 1024 * 1024; // 128 * r * N
+
+    public final int id;
+    public final int iterations; // PBKDF2 only
+    public final int n;          // scrypt CPU/memory cost, a power of two
+    public final int r;          // scrypt block size
+    public final int p;          // scrypt parallelism; costs time, not memory
+
+    private KdfParams(int id, int iterations, int n, int r, int p) {
+        this.id = id;
+        this.iterations = iterations;
+        this.n = n;
+        this.r = r;
+        this.p = p;
+    }
+
+    public static KdfParams pbkdf2(int iterations) throws GeneralSecurityException {
+        if (iterations <= 0 || iterations > PasswordKeys.MAX_ITERATIONS) {
+            throw new GeneralSecurityException("Invalid key derivation parameters");
+        }
+        return new KdfParams(PBKDF2_SHA256, iterations, 0, 0, 0);
+    }
+
+    public static KdfParams scrypt(int n, int r, int p) throws GeneralSecurityException {
+        if (n < 2 || n > MAX_SCRYPT_N || (n & (n - 1)) != 0
+                || r < 1 || r > MAX_SCRYPT_R || p < 1 || p > MAX_SCRYPT_P
+                || 128L * r * n > MAX_SCRYPT_MEMORY) {
+            throw new GeneralSecurityException("Invalid key derivation parameters");
+        }
+        return new KdfParams(SCRYPT, 0, n, r, p);
+    }
+
+    /**
+     * Peak memory of one derivation in bytes
+     */
+    public long memoryBytes() {
+        return id == SCRYPT ? 128L * r * n : 0;
+    }
+
+    public byte[] encode() {
+        if (id == SCRYPT) {
+            return ByteBuffer.allocate(13).put((byte) id).putInt(n).putInt(r).putInt(p).array();
+        }
+        return ByteBuffer.allocate(5).put((byte) id).putInt(iterations).array();
+    }
+
+    public static KdfParams decode(byte[] encoded) throws GeneralSecurityException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            int id = buffer.get();
+            KdfParams params;
+            if (id == PBKDF2_SHA256) {
+                params = pbkdf2(buffer.getInt());
+            } else if (id == SCRYPT) {
+                params = scrypt(buffer.getInt(), buffer.getInt(), buffer.getInt());
+            } else {
+                throw new GeneralSecurityException("Unsupported key derivation function " + id);
+            }
+            if (buffer.hasRemaining()) {
+                throw new GeneralSecurityException("Invalid key derivation parameters");
+            }
+            return params;
+        } catch (RuntimeException e) {
+            // Truncated field
+            throw new GeneralSecurityException("Invalid key derivation parameters");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return id == SCRYPT
+                ? "scrypt(N=" + n + ", r=" + r + ", p=" + p + ")"
+                : "PBKDF2-SHA256(" + iterations + ")";
+    }
+}
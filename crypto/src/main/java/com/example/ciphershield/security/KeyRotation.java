@@ -0,0 +1,243 @@
+package com.example.ciphershield.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Changes the password or recipient key of a container by re-wrapping its
+ * data key in the header; the payload is never read or written
+ * - CS2, CL2: the RSA-OAEP wrapped key; the new key must have the same modulus size
+ * - CS3 and CL3 with FLAG_RECIPIENTS: only oldKey's entry of the RecipientList,
+ *   the other recipients keep theirs
+ * - CL3: the key block, staying in the mode the file was written in; for a
+ *   Vault, rotate its vault.hdr, since blob keys derive from the vault key
+ * - CP5: the PasswordEnvelope field; the KDF must stay the same kind
+ * CP2, CP3 and CP4 encrypt the payload with the password key itself and have
+ * nothing to re-wrap; decrypting and encrypting them once moves them to CP5
+ * The data key itself stays the same, so whoever unwrapped it before can
+ * still read the payload; rotation only stops the old key or password
+ *
+ * reader and writer are the same file, e.g. one channel opened for both.
+ * The new field is exactly as long as the old one and goes over it in one
+ * positional write. The old field is saved to journal, a RollbackJournal
+ * sidecar such as <name>.rot, and forced first, so a crash that tears the
+ * write is rolled back the next time the file is rotated or the caller
+ * calls RollbackJournal.rollBack on opening it
+ */
+public class KeyRotation {
+
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    // Every header field is bounded; this covers all of them plus the longest recipient list
+    private static final int MAX_HEADER_LENGTH = 8192 + RecipientList.MAX_LENGTH;
+    private static final int MAX_FIELD_LENGTH = 1024;
+
+    /**
+     * Where the key field sits and how many bytes were rewritten
+     */
+    public static class Result {
+        public final String format;
+        public final long position;
+        public final int length;
+
+        Result(String format, long position, int length) {
+            this.format = format;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The key field of a container; header is set for CL3 only, field is null
+     * for the password versions without one
+     */
+    private static class KeyField {
+        final String version;
+        final ChunkedFileHeader header;
+        final long position;
+        final byte[] field;
+
+        KeyField(String version, ChunkedFileHeader header, long position, byte[] field) {
+            this.version = version;
+            this.header = header;
+            this.position = position;
+            this.field = field;
+        }
+    }
+
+    public static Result changePassword(FileChannel reader, FileChannel writer, FileChannel journal,
+                                        String oldPassword, String newPassword) throws Exception {
+        return changePassword(reader, writer, journal, oldPassword, newPassword, null);
+    }
+
+    /**
+     * Same with an explicit KDF for CP5 files; a null kdf keeps the kind the
+     * file used at the cost calibrated for new files. CL3 always takes the
+     * calibrated PBKDF2, its key block has no room for anything else
+     */
+    public static Result changePassword(FileChannel reader, FileChannel writer, FileChannel journal,
+                                        String oldPassword, String newPassword, KdfParams kdf) throws Exception {
+        if (newPassword == null || newPassword.length() < 8) {
+            throw new IllegalArgumentException("Password must be at least 8 characters");
+        }
+        RollbackJournal.rollBack(journal, reader, writer);
+        KeyField key = locate(reader);
+        SecureRandom random = new SecureRandom();
+        char[] oldChars = oldPassword.toCharArray();
+        char[] newChars = newPassword.toCharArray();
+        try {
+            byte[] replacement;
+            if (key.header != null) {
+                if (kdf != null) {
+                    throw new IllegalArgumentException("Large files keep the calibrated PBKDF2");
+                }
+                // Throws for RSA-mode files and vault blobs
+                SecretKey dataKey = key.header.unwrapKey(oldChars);
+                replacement = ChunkedFileHeader.wrapKeyWithPassword(dataKey, newChars, random);
+            } else if (SecureEncryptionUtil.ENVELOPE_PASSWORD_VERSION.equals(key.version)) {
+                SecretKey dataKey = PasswordEnvelope.unwrap(key.field, oldChars);
+                if (kdf == null) {
+                    kdf = PasswordEnvelope.kdfOf(key.field).id == KdfParams.SCRYPT
+                            ? PasswordKeys.scryptParams()
+                            : KdfParams.pbkdf2(PasswordKeys.iterations());
+                }
+                replacement = PasswordEnvelope.wrap(dataKey, PasswordKeys.forSealing(newChars, kdf), random);
+            } else if (SecureEncryptionUtil.isPasswordVersion(key.version)) {
+                throw new Exception(key.version + " files are sealed with the password key itself; decrypt and "
+                        + "encrypt again to move to " + SecureEncryptionUtil.ENVELOPE_PASSWORD_VERSION);
+            } else {
+                throw new Exception("File is not password-protected");
+            }
+            return rewrite(reader, writer, journal, key, replacement);
+        } finally {
+            Arrays.fill(oldChars, '\0');
+            Arrays.fill(newChars, '\0');
+        }
+    }
+
+    public static Result rotateKey(FileChannel reader, FileChannel writer, FileChannel journal,
+                                   byte[] oldPrivateKeyBytes, PublicKey recipient) throws Exception {
+        return rotateKey(reader, writer, journal, RecipientKey.privateKey(oldPrivateKeyBytes), recipient);
+    }
+
+    /**
+     * Re-wraps an RSA-mode container from oldKey to recipient
+     */
+    public static Result rotateKey(FileChannel reader, FileChannel writer, FileChannel journal, PrivateKey oldKey,
+                                   PublicKey recipient) throws Exception {
+        if (recipient == null) {
+            throw new IllegalArgumentException("Recipient key is required");
+        }
+        RollbackJournal.rollBack(journal, reader, writer);
+        KeyField key = locate(reader);
+        if (SecureEncryptionUtil.MULTI_RECIPIENT_VERSION.equals(key.version)
+                || (key.header != null && key.header.hasRecipientList())) {
+            return rewrite(reader, writer, journal, key, RecipientList.replace(key.field, oldKey, recipient));
+        }
+        SecretKey dataKey;
+        if (key.header != null) {
+            // Throws for password-mode files and vault blobs
+            dataKey = key.header.unwrapKey(oldKey);
+        } else if ("CS2".equals(key.version) || "CL2".equals(key.version)) {
+            Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+            rsaCipher.init(Cipher.DECRYPT_MODE, oldKey);
+            byte[] aesKeyBytes = rsaCipher.doFinal(key.field);
+            try {
+                dataKey = new SecretKeySpec(aesKeyBytes, "AES");
+            } finally {
+                Arrays.fill(aesKeyBytes, (byte) 0);
+            }
+        } else {
+            throw new Exception("File is password-protected");
+        }
+
+        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsaCipher.init(Cipher.ENCRYPT_MODE, recipient);
+        return rewrite(reader, writer, journal, key, rsaCipher.doFinal(dataKey.getEncoded()));
+    }
+
+    /**
+     * Reads the header from the start of file and finds its key field
+     */
+    private static KeyField locate(FileChannel file) throws Exception {
+        byte[] head = new byte[(int) Math.min(file.size(), MAX_HEADER_LENGTH)];
+        ByteBuffer buffer = ByteBuffer.wrap(head);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, buffer.position()) < 0) break;
+        }
+        ByteArrayInputStream bytes = new ByteArrayInputStream(head, 0, buffer.position());
+        DataInputStream in = new DataInputStream(bytes);
+
+        byte[] versionBytes = new byte[3];
+        in.readFully(versionBytes);
+        String version = new String(versionBytes, StandardCharsets.UTF_8);
+
+        if (ChunkedFileHeader.VERSION.equals(version)) {
+            // The key block comes last and is not part of the digest
+            ChunkedFileHeader header = ChunkedFileHeader.readAfterVersion(in);
+            return new KeyField(version, header, header.length() - header.keyBlock.length, header.keyBlock);
+        }
+        if (SecureEncryptionUtil.isRecipientVersion(version) || "CL2".equals(version)
+                || SecureEncryptionUtil.ENVELOPE_PASSWORD_VERSION.equals(version)) {
+            // [SALT][IV][EXT] and then the key; the HMAC after it covers the payload only
+            for (int i = 0; i < 3; i++) {
+                readField(in);
+            }
+            byte[] field = SecureEncryptionUtil.readKeyField(in, version);
+            long position = buffer.position() - bytes.available() - field.length;
+            return new KeyField(version, null, position, field);
+        }
+        if (SecureEncryptionUtil.isPasswordVersion(version)) {
+            return new KeyField(version, null, -1, null);
+        }
+        throw new Exception("Not a Cipher Shield file");
+    }
+
+    private static Result rewrite(FileChannel reader, FileChannel writer, FileChannel journal, KeyField key,
+                                  byte[] replacement) throws Exception {
+        if (replacement.length != key.field.length) {
+            throw new Exception("New key field is " + replacement.length + " bytes where the file has "
+                    + key.field.length + "; use a key of the same size or encrypt the file again");
+        }
+        RollbackJournal undo = RollbackJournal.begin(journal, reader);
+        undo.save(key.position, replacement.length);
+        undo.force();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(replacement);
+            long position = key.position;
+            while (buffer.hasRemaining()) {
+                position += writer.write(buffer, position);
+            }
+            undo.commit(writer);
+        } catch (IOException e) {
+            // Put the old field back now; a crash instead leaves the journal for the next open
+            try {
+                RollbackJournal.rollBack(journal, reader, writer);
+            } catch (IOException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        }
+        return new Result(key.version, key.position, replacement.length);
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IOException("Corrupted header field length: " + length);
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return field;
+    }
+}
@@ -0,0 +1,995 @@
+package com.example.ciphershield.security;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Parallel AES-GCM segment engine used by the CL3 chunked format
+ * Every segment is sealed on its own with a nonce derived from the file nonce
+ * and the segment index, so all cores can work on the file at once while the
+ * output is still written strictly in order
+ *
+ * Framed files (FLAG_COMPRESSED or FLAG_INDEXED) still split the plaintext
+ * into fixed segments, but each sealed segment is [LEN][GCM([CODEC][body])],
+ * so only the ciphertext offsets vary; see SegmentCompression. Indexed files
+ * end with a zero length and the SegmentIndex trailer. Updatable files put a
+ * key epoch in front: [LEN][EPOCH][GCM(...)], where epoch 0 is the data key
+ * and any other epoch a key derived from it, so a segment re-sealed in place
+ * never reuses a nonce under the same key
+ */
+public class ParallelSegmentCipher {
+
+    public static final int GCM_IV_LENGTH = 12;
+    public static final int GCM_TAG_BYTES = 16;
+    private static final int GCM_TAG_LENGTH = GCM_TAG_BYTES * 8;
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    static final int EPOCH_BYTES = 8;
+    private static final byte[] EPOCH_LABEL = "CL3 segment epoch".getBytes(StandardCharsets.US_ASCII);
+
+    static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // Segments allowed in flight before the reader waits for the writer;
+    // also bounds the pooled buffers to WINDOW + 2 slots per file
+    private static final int WINDOW = THREADS + 1;
+
+    // Mapped region per map() call; segments are slices of the current window
+    private static final long MAP_WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private static volatile ExecutorService executor;
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(CIPHER_TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<byte[]> NONCES = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[GCM_IV_LENGTH];
+        }
+    };
+
+    // Plaintext frames of compressed segments, and copies of mapped input for the codec
+    private static final ThreadLocal<byte[]> FRAMES = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> STAGING = new ThreadLocal<>();
+
+    private static final ThreadLocal<ByteBuffer> AADS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(64);
+        }
+    };
+
+    /**
+     * Reusable input/output buffer pair, recycled once its segment is written
+     * Channel reads leave input null and point source at a mapped slice instead
+     */
+    private static class Slot {
+        final byte[] input;
+        final ByteBuffer inputBuffer;
+        final byte[] output;
+        final ByteBuffer outputBuffer;
+        ByteBuffer source;
+        long index;
+        boolean last;
+        int outputLength;
+        int plainLength;
+        int sealedLength; // Without the length prefix; indexed files only
+        byte[] hash;
+
+        Slot(int readSize, int outputSize) {
+            this.input = readSize > 0 ? new byte[readSize] : null;
+            this.inputBuffer = input != null ? ByteBuffer.wrap(input) : null;
+            this.output = new byte[outputSize];
+            this.outputBuffer = ByteBuffer.wrap(output);
+        }
+    }
+
+    private interface SegmentReader {
+        /**
+         * Returns the next filled slot, or null once the last segment was handed out
+         */
+        Slot next(ArrayDeque<Slot> freeSlots) throws Exception;
+    }
+
+    private interface SegmentWriter {
+        void write(Slot slot) throws IOException;
+    }
+
+    /**
+     * Encrypts the stream into consecutive GCM segments of segmentSize plaintext bytes
+     * The final segment is flagged in its AAD so truncation is detected on decrypt
+     * Returns the number of ciphertext bytes written; progress always reports
+     * plaintext bytes, in both directions
+     */
+    public static long encrypt(
+            InputStream in,
+            OutputStream out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            LongConsumer progress) throws Exception {
+
+        return encrypt(in, out, key, baseNonce, headerDigest, segmentSize, 0, progress);
+    }
+
+    /**
+     * Same with the layout given by the header flags (FLAG_COMPRESSED, FLAG_INDEXED)
+     */
+    public static long encrypt(
+            InputStream in,
+            OutputStream out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            int flags,
+            LongConsumer progress) throws Exception {
+
+        SegmentIndex index = indexed(flags) ? new SegmentIndex() : null;
+        long written = runPipeline(new StreamReader(in, segmentSize, sealedCapacity(segmentSize, flags), true),
+                streamWriter(out), key, baseNonce, headerDigest, true, flags, segmentSize, index, progress);
+        if (index != null) {
+            byte[] trailer = index.toTrailer(key, headerDigest);
+            out.write(trailer);
+            written += trailer.length;
+        }
+        out.flush();
+        return written;
+    }
+
+    /**
+     * Decrypts a stream produced by {@link #encrypt}, verifying every segment tag
+     * Returns the number of plaintext bytes written
+     */
+    public static long decrypt(
+            InputStream in,
+            OutputStream out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            LongConsumer progress) throws Exception {
+
+        return decrypt(in, out, key, baseNonce, headerDigest, segmentSize, 0, progress);
+    }
+
+    /**
+     * Same for a stream written with the given header flags
+     * For an indexed file the trailer is checked against the segments read
+     */
+    public static long decrypt(
+            InputStream in,
+            OutputStream out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            int flags,
+            LongConsumer progress) throws Exception {
+
+        SegmentReader reader = framed(flags)
+                ? new FramedReader(in, segmentSize, 0, flags)
+                : new StreamReader(in, segmentSize + GCM_TAG_BYTES, segmentSize + GCM_TAG_BYTES, false);
+        SegmentIndex index = indexed(flags) ? new SegmentIndex() : null;
+        long written = runPipeline(reader, streamWriter(out), key, baseNonce, headerDigest, false, flags,
+                segmentSize, index, progress);
+        if (index != null) {
+            checkTrailer(in, index, 0, key, headerDigest);
+        }
+        out.flush();
+        return written;
+    }
+
+    /**
+     * Encrypts from the channel position to its end, reading through memory-mapped windows
+     * so segments are sealed straight from the page cache
+     */
+    public static long encrypt(
+            FileChannel in,
+            WritableByteChannel out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            LongConsumer progress) throws Exception {
+
+        return encrypt(in, out, key, baseNonce, headerDigest, segmentSize, 0, null, 0, progress);
+    }
+
+    /**
+     * Resumes encryption at segment firstSegment: in must be positioned at that
+     * segment's plaintext offset and out at its ciphertext offset
+     */
+    public static long encrypt(
+            FileChannel in,
+            WritableByteChannel out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            long firstSegment,
+            LongConsumer progress) throws Exception {
+
+        return encrypt(in, out, key, baseNonce, headerDigest, segmentSize, 0, null, firstSegment, progress);
+    }
+
+    /**
+     * Same with the layout given by the header flags
+     * For a framed file, framedOffset finds the ciphertext offset to resume at;
+     * an indexed one also needs the entries of the segments already written,
+     * see SegmentIndex.rebuild, and null otherwise
+     */
+    public static long encrypt(
+            FileChannel in,
+            WritableByteChannel out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            int flags,
+            SegmentIndex index,
+            long firstSegment,
+            LongConsumer progress) throws Exception {
+
+        if (indexed(flags) && index == null) {
+            if (firstSegment != 0) throw new IllegalArgumentException("Resuming an indexed file needs its index");
+            index = new SegmentIndex();
+        } else if (index != null && index.size() != firstSegment) {
+            throw new IllegalArgumentException("Index does not end at segment " + firstSegment);
+        }
+
+        long written = runPipeline(
+                new MappedReader(in, segmentSize, sealedCapacity(segmentSize, flags), true, firstSegment),
+                channelWriter(out), key, baseNonce, headerDigest, true, flags, segmentSize, index, progress);
+        if (indexed(flags)) {
+            byte[] trailer = index.toTrailer(key, headerDigest);
+            ByteBuffer buffer = ByteBuffer.wrap(trailer);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            written += trailer.length;
+        }
+        return written;
+    }
+
+    /**
+     * Decrypts from the channel position (the first segment) to its end
+     */
+    public static long decrypt(
+            FileChannel in,
+            WritableByteChannel out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            LongConsumer progress) throws Exception {
+
+        return decrypt(in, out, key, baseNonce, headerDigest, segmentSize, 0, 0, progress);
+    }
+
+    /**
+     * Resumes decryption at segment firstSegment; in must be positioned at
+     * that segment's ciphertext offset
+     */
+    public static long decrypt(
+            FileChannel in,
+            WritableByteChannel out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            long firstSegment,
+            LongConsumer progress) throws Exception {
+
+        return decrypt(in, out, key, baseNonce, headerDigest, segmentSize, 0, firstSegment, progress);
+    }
+
+    /**
+     * Same for a file written with the given header flags
+     * Framed segments vary in size, so they are read through a buffered
+     * stream over the channel rather than mapped
+     */
+    public static long decrypt(
+            FileChannel in,
+            WritableByteChannel out,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            int segmentSize,
+            int flags,
+            long firstSegment,
+            LongConsumer progress) throws Exception {
+
+        if (!framed(flags)) {
+            return runPipeline(
+                    new MappedReader(in, segmentSize + GCM_TAG_BYTES, segmentSize + GCM_TAG_BYTES, false, firstSegment),
+                    channelWriter(out), key, baseNonce, headerDigest, false, flags, segmentSize, null, progress);
+        }
+
+        InputStream frames = new BufferedInputStream(Channels.newInputStream(in), 64 * 1024);
+        SegmentIndex index = indexed(flags) ? new SegmentIndex() : null;
+        long written = runPipeline(new FramedReader(frames, segmentSize, firstSegment, flags),
+                channelWriter(out), key, baseNonce, headerDigest, false, flags, segmentSize, index, progress);
+        if (index != null) {
+            checkTrailer(frames, index, firstSegment, key, headerDigest);
+        }
+        return written;
+    }
+
+    /**
+     * Reads the trailer after the terminator and checks that it lists exactly
+     * the segments that were just read, from firstSegment on
+     */
+    private static void checkTrailer(InputStream in, SegmentIndex read, long firstSegment,
+                                     SecretKey key, byte[] headerDigest) throws Exception {
+        SegmentIndex stored = SegmentIndex.readTrailer(in, key, headerDigest);
+        if (!stored.matches(read, firstSegment)) {
+            throw new IOException("Segment index does not match the segments");
+        }
+    }
+
+    private static boolean framed(int flags) {
+        return (flags & (ChunkedFileHeader.FLAG_COMPRESSED | ChunkedFileHeader.FLAG_INDEXED
+                | ChunkedFileHeader.FLAG_UPDATABLE)) != 0;
+    }
+
+    private static boolean indexed(int flags) {
+        return (flags & ChunkedFileHeader.FLAG_INDEXED) != 0;
+    }
+
+    private static boolean updatable(int flags) {
+        return (flags & ChunkedFileHeader.FLAG_UPDATABLE) != 0;
+    }
+
+    /**
+     * Largest sealed framed segment, without its length prefix: a stored
+     * segment plus codec id, tag and, in updatable files, the key epoch
+     */
+    public static int maxSealedLength(int segmentSize, int flags) {
+        return segmentSize + 1 + GCM_TAG_BYTES + (updatable(flags) ? EPOCH_BYTES : 0);
+    }
+
+    /**
+     * File offset of segment `segment` in a framed file whose segment 0
+     * starts at start, or -1 if the segments end first
+     * Walks the length prefixes, reading four bytes per segment
+     */
+    public static long framedOffset(FileChannel channel, long start, long segment) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        long position = start;
+        for (long i = 0; i < segment; i++) {
+            length.clear();
+            while (length.hasRemaining()) {
+                if (channel.read(length, position + length.position()) < 0) return -1;
+            }
+            int sealed = length.getInt(0);
+            if (sealed == 0) return -1; // Index terminator
+            if (sealed < GCM_TAG_BYTES) {
+                throw new IOException("Corrupted segment length at " + position);
+            }
+            position += 4 + sealed;
+        }
+        return position;
+    }
+
+    /**
+     * Number of complete segments in a framed file whose segment 0 starts
+     * at start; times segmentSize it bounds the plaintext size for progress
+     */
+    public static long framedSegments(FileChannel channel, long start) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        long size = channel.size();
+        long position = start;
+        long count = 0;
+        while (position + 4 <= size) {
+            length.clear();
+            while (length.hasRemaining()) {
+                if (channel.read(length, position + length.position()) < 0) return count;
+            }
+            int sealed = length.getInt(0);
+            if (sealed <= 0) break; // Index terminator
+            position += 4 + sealed;
+            if (position > size) break;
+            count++;
+        }
+        return count;
+    }
+
+    private static int sealedCapacity(int segmentSize, int flags) {
+        // Framed: length prefix on top of the largest sealed segment
+        return framed(flags) ? 4 + maxSealedLength(segmentSize, flags) : segmentSize + GCM_TAG_BYTES;
+    }
+
+    private static long runPipeline(
+            SegmentReader reader,
+            SegmentWriter writer,
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            boolean encrypt,
+            int flags,
+            int segmentSize,
+            SegmentIndex index,
+            LongConsumer progress) throws Exception {
+
+        ExecutorService pool = executor();
+        ArrayDeque<Future<Slot>> inFlight = new ArrayDeque<>();
+        // Only this thread touches the free list; workers get their slot handed over
+        ArrayDeque<Slot> freeSlots = new ArrayDeque<>();
+        long bytesProcessed = 0;
+        long plaintextProcessed = 0;
+
+        try {
+            Slot slot;
+            while ((slot = reader.next(freeSlots)) != null) {
+                final Slot segment = slot;
+                inFlight.add(pool.submit(() ->
+                        processSegment(key, baseNonce, headerDigest, encrypt, flags, segmentSize, segment)));
+
+                if (inFlight.size() >= WINDOW) {
+                    Slot done = writeSegment(inFlight.poll(), writer, freeSlots, index);
+                    bytesProcessed += done.outputLength;
+                    plaintextProcessed += done.plainLength;
+                    if (progress != null) progress.accept(plaintextProcessed);
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                Slot done = writeSegment(inFlight.poll(), writer, freeSlots, index);
+                bytesProcessed += done.outputLength;
+                plaintextProcessed += done.plainLength;
+                if (progress != null) progress.accept(plaintextProcessed);
+            }
+            return bytesProcessed;
+        } finally {
+            for (Future<Slot> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Reads segments from a stream, looking one segment ahead so the last one can be flagged
+     */
+    private static class StreamReader implements SegmentReader {
+        private final InputStream in;
+        private final int readSize;
+        private final int outputSize;
+        private final boolean encrypt;
+        private Slot pending;
+        private long index;
+        private boolean done;
+
+        StreamReader(InputStream in, int readSize, int outputSize, boolean encrypt) {
+            this.in = in;
+            this.readSize = readSize;
+            this.outputSize = outputSize;
+            this.encrypt = encrypt;
+        }
+
+        @Override
+        public Slot next(ArrayDeque<Slot> freeSlots) throws Exception {
+            if (done) return null;
+
+            Slot current = pending != null ? pending : fill(freeSlots);
+            pending = null;
+
+            boolean last = current.source.remaining() < readSize;
+            if (!last) {
+                Slot next = fill(freeSlots);
+                if (next.source.remaining() == 0) {
+                    freeSlots.push(next);
+                    last = true;
+                } else {
+                    pending = next;
+                }
+            }
+
+            if (!encrypt && current.source.remaining() < GCM_TAG_BYTES) {
+                throw new Exception("Truncated segment " + index);
+            }
+
+            current.index = index++;
+            current.last = last;
+            done = last;
+            return current;
+        }
+
+        private Slot fill(ArrayDeque<Slot> freeSlots) throws IOException {
+            Slot slot = freeSlots.poll();
+            if (slot == null) slot = new Slot(readSize, outputSize);
+            int length = readFully(in, slot.input, readSize);
+            slot.inputBuffer.clear();
+            slot.inputBuffer.limit(length);
+            slot.source = slot.inputBuffer;
+            return slot;
+        }
+    }
+
+    /**
+     * Reads length-prefixed segments, looking one segment ahead so the last
+     * one is known; in an indexed file they end at a zero length
+     */
+    private static class FramedReader implements SegmentReader {
+        private final InputStream in;
+        private final int minSealed;
+        private final int maxSealed;
+        private final int outputSize;
+        private final long firstSegment;
+        private final boolean indexed;
+        private final byte[] lengthBytes = new byte[4];
+        private Slot pending;
+        private long index;
+        private boolean done;
+
+        FramedReader(InputStream in, int segmentSize, long firstSegment, int flags) {
+            this.in = in;
+            this.minSealed = 1 + GCM_TAG_BYTES + (updatable(flags) ? EPOCH_BYTES : 0);
+            this.maxSealed = maxSealedLength(segmentSize, flags);
+            this.outputSize = segmentSize;
+            this.firstSegment = firstSegment;
+            this.indexed = indexed(flags);
+        }
+
+        @Override
+        public Slot next(ArrayDeque<Slot> freeSlots) throws Exception {
+            if (done) return null;
+
+            Slot current = pending != null ? pending : fill(freeSlots);
+            if (current == null) {
+                // Every file has at least one segment, and a resumed one stops only after its last
+                if (index == 0 && firstSegment == 0) throw new Exception("Truncated segment 0");
+                return null;
+            }
+            pending = fill(freeSlots);
+
+            current.index = firstSegment + index++;
+            current.last = pending == null;
+            done = current.last;
+            return current;
+        }
+
+        private Slot fill(ArrayDeque<Slot> freeSlots) throws Exception {
+            int read = readFully(in, lengthBytes, 4);
+            if (read == 0 && indexed) throw new Exception("Truncated chunked file: segment index missing");
+            if (read == 0) return null;
+            if (read < 4) throw new Exception("Truncated segment " + (firstSegment + index));
+
+            int length = ByteBuffer.wrap(lengthBytes).getInt();
+            if (length == 0 && indexed) return null;
+            if (length < minSealed || length > maxSealed) {
+                throw new Exception("Corrupted segment length: " + length);
+            }
+
+            Slot slot = freeSlots.poll();
+            if (slot == null) slot = new Slot(maxSealed, outputSize);
+            if (readFully(in, slot.input, length) != length) {
+                throw new Exception("Truncated segment " + (firstSegment + index));
+            }
+            slot.inputBuffer.clear();
+            slot.inputBuffer.limit(length);
+            slot.source = slot.inputBuffer;
+            return slot;
+        }
+    }
+
+    /**
+     * Reads segments as slices of memory-mapped windows; the size is known up front,
+     * so no look-ahead or staging copy is needed
+     */
+    private static class MappedReader implements SegmentReader {
+        private final FileChannel channel;
+        private final long start;
+        private final long length;
+        private final int readSize;
+        private final int outputSize;
+        private final long windowSegments;
+        private final long segmentCount;
+        private final long firstSegment;
+        private MappedByteBuffer window;
+        private long windowIndex = -1;
+        private long index;
+
+        MappedReader(FileChannel channel, int readSize, int outputSize, boolean encrypt, long firstSegment)
+                throws Exception {
+            this.channel = channel;
+            this.start = channel.position();
+            this.length = channel.size() - start;
+            this.readSize = readSize;
+            this.outputSize = outputSize;
+            this.windowSegments = Math.max(1, MAP_WINDOW_BYTES / readSize);
+            this.firstSegment = firstSegment;
+
+            if (encrypt) {
+                // An empty file still gets one (empty) final segment; a resumed one has nothing left
+                long minimum = firstSegment == 0 ? 1 : 0;
+                this.segmentCount = Math.max(minimum, (length + readSize - 1) / readSize);
+            } else {
+                this.segmentCount = (length + readSize - 1) / readSize;
+                long lastSegment = length - (segmentCount - 1) * readSize;
+                if (segmentCount == 0 || lastSegment < GCM_TAG_BYTES) {
+                    throw new Exception("Truncated segment " + Math.max(0, segmentCount - 1));
+                }
+            }
+        }
+
+        @Override
+        public Slot next(ArrayDeque<Slot> freeSlots) throws Exception {
+            if (index >= segmentCount) return null;
+
+            Slot slot = freeSlots.poll();
+            if (slot == null) slot = new Slot(0, outputSize);
+
+            long offset = index * readSize;
+            int size = (int) Math.min(readSize, length - offset);
+
+            // index counts from the channel position; slot.index is the segment number in the file
+            slot.index = firstSegment + index;
+            slot.last = index == segmentCount - 1;
+            long windowNumber = index / windowSegments;
+            index++;
+
+            if (size == 0) {
+                slot.source = ByteBuffer.allocate(0);
+                return slot;
+            }
+
+            if (windowNumber != windowIndex) {
+                long windowStart = windowNumber * windowSegments * readSize;
+                long windowLength = Math.min(windowSegments * readSize, length - windowStart);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start + windowStart, windowLength);
+                windowIndex = windowNumber;
+            }
+
+            ByteBuffer view = window.duplicate();
+            int windowOffset = (int) (offset - windowIndex * windowSegments * readSize);
+            view.position(windowOffset);
+            view.limit(windowOffset + size);
+
+            slot.source = view;
+            return slot;
+        }
+    }
+
+    private static SegmentWriter streamWriter(OutputStream out) {
+        return slot -> out.write(slot.output, 0, slot.outputLength);
+    }
+
+    private static SegmentWriter channelWriter(WritableByteChannel out) {
+        return slot -> {
+            ByteBuffer buffer = slot.outputBuffer;
+            buffer.clear();
+            buffer.limit(slot.outputLength);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        };
+    }
+
+    private static Slot processSegment(
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            boolean encrypt,
+            int flags,
+            int segmentSize,
+            Slot slot) throws Exception {
+
+        slot.outputBuffer.clear();
+        if (framed(flags) && encrypt) {
+            // A fresh file is sealed under the data key itself, i.e. epoch 0
+            slot.plainLength = slot.source.remaining();
+            slot.outputLength = sealFramed(key, baseNonce, headerDigest, slot.index, slot.last,
+                    slot.source, segmentSize, flags, 0, slot.output);
+            if (indexed(flags)) {
+                slot.sealedLength = slot.outputLength - 4;
+                slot.hash = SegmentIndex.hash(slot.index, slot.output, 4, slot.sealedLength);
+            }
+        } else if (framed(flags)) {
+            if (indexed(flags)) {
+                // Framed reads always land in the slot's own array
+                slot.sealedLength = slot.source.remaining();
+                slot.hash = SegmentIndex.hash(slot.index, slot.input, 0, slot.sealedLength);
+            }
+            slot.outputLength = openFramed(key, baseNonce, headerDigest, slot.index, slot.last,
+                    slot.source, segmentSize, flags, slot.output, 0);
+            slot.plainLength = slot.outputLength;
+        } else {
+            int inputLength = slot.source.remaining();
+            slot.outputLength = crypt(key, baseNonce, headerDigest, slot.index, slot.last, encrypt,
+                    slot.source, slot.outputBuffer);
+            slot.plainLength = encrypt ? inputLength : slot.outputLength;
+        }
+        return slot;
+    }
+
+    /**
+     * Compresses one segment unless that is off, it looks random or it would
+     * not shrink, then seals [CODEC][body] behind a length prefix and, in
+     * updatable files, the key epoch
+     */
+    private static int sealFramed(SecretKey key, byte[] baseNonce, byte[] headerDigest, long index, boolean last,
+                                  ByteBuffer source, int segmentSize, int flags, long epoch, byte[] output)
+            throws Exception {
+        boolean compress = (flags & ChunkedFileHeader.FLAG_COMPRESSED) != 0;
+        int length = source.remaining();
+        byte[] plain;
+        int plainOffset;
+        if (source.hasArray()) {
+            plain = source.array();
+            plainOffset = source.arrayOffset() + source.position();
+        } else {
+            // Mapped input: the codecs work on arrays
+            plain = buffer(STAGING, segmentSize);
+            source.duplicate().get(plain, 0, length);
+            plainOffset = 0;
+        }
+
+        byte[] frame = buffer(FRAMES, segmentSize + 1);
+        SegmentCompression.Codec codec = compress ? SegmentCompression.codec() : null;
+        int bodyLength = -1;
+        int budget = length - length / 32 - 1; // Must save at least 1/32 to be worth inflating later
+        if (codec != null && budget > 0 && SegmentCompression.looksCompressible(plain, plainOffset, length)) {
+            bodyLength = codec.compress(plain, plainOffset, length, frame, 1, budget);
+        }
+
+        if (bodyLength >= 0) {
+            frame[0] = (byte) codec.id();
+        } else {
+            frame[0] = (byte) SegmentCompression.STORED;
+            System.arraycopy(plain, plainOffset, frame, 1, length);
+            bodyLength = length;
+        }
+
+        int prefix = 4;
+        if (updatable(flags)) {
+            ByteBuffer.wrap(output, prefix, EPOCH_BYTES).putLong(epoch);
+            prefix += EPOCH_BYTES;
+            key = epochKey(key, epoch);
+        }
+        int sealed = crypt(key, baseNonce, headerDigest, index, last, true,
+                ByteBuffer.wrap(frame, 0, 1 + bodyLength), ByteBuffer.wrap(output, prefix, output.length - prefix));
+        ByteBuffer.wrap(output, 0, 4).putInt(prefix - 4 + sealed);
+        return prefix + sealed;
+    }
+
+    /**
+     * Re-seals one segment of an updatable file under epoch; output must hold
+     * 4 + maxSealedLength bytes and receives the length-prefixed segment
+     */
+    static int sealSegment(SecretKey key, byte[] baseNonce, byte[] headerDigest, long index, boolean last,
+                           int segmentSize, int flags, long epoch, byte[] plain, int length, byte[] output)
+            throws Exception {
+        if (!updatable(flags) || epoch == 0) {
+            throw new IllegalArgumentException("Re-sealing needs an updatable file and a fresh epoch");
+        }
+        return sealFramed(key, baseNonce, headerDigest, index, last,
+                ByteBuffer.wrap(plain, 0, length), segmentSize, flags, epoch, output);
+    }
+
+    /**
+     * Key for segments re-sealed under epoch; epoch 0 is the data key itself
+     */
+    static SecretKey epochKey(SecretKey key, long epoch) throws GeneralSecurityException {
+        if (epoch == 0) return key;
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        mac.update(EPOCH_LABEL);
+        byte[] derived = mac.doFinal(ByteBuffer.allocate(8).putLong(epoch).array());
+        try {
+            return new SecretKeySpec(derived, "AES");
+        } finally {
+            Arrays.fill(derived, (byte) 0);
+        }
+    }
+
+    /**
+     * Opens a sealed compressed segment (without its length prefix) into output
+     * Every segment but the last must come back to exactly segmentSize bytes
+     */
+    private static int openFramed(SecretKey key, byte[] baseNonce, byte[] headerDigest, long index, boolean last,
+                                  ByteBuffer sealed, int segmentSize, int flags, byte[] output, int outputOffset)
+            throws Exception {
+        if (updatable(flags)) {
+            if (sealed.remaining() < EPOCH_BYTES) {
+                throw new IOException("Corrupted segment " + index);
+            }
+            // A wrong epoch gives a wrong key, so the tag check covers it
+            key = epochKey(key, sealed.getLong());
+        }
+        byte[] frame = buffer(FRAMES, segmentSize + 1);
+        int frameLength = crypt(key, baseNonce, headerDigest, index, last, false, sealed, ByteBuffer.wrap(frame));
+        if (frameLength < 1) {
+            throw new IOException("Corrupted segment " + index);
+        }
+
+        int codecId = frame[0] & 0xff;
+        int plainLength;
+        if (codecId == SegmentCompression.STORED) {
+            plainLength = frameLength - 1;
+            if (plainLength > segmentSize) {
+                throw new IOException("Corrupted segment " + index);
+            }
+            System.arraycopy(frame, 1, output, outputOffset, plainLength);
+        } else {
+            plainLength = SegmentCompression.codecFor(codecId)
+                    .decompress(frame, 1, frameLength - 1, output, outputOffset, segmentSize);
+        }
+
+        if (!last && plainLength != segmentSize) {
+            throw new IOException("Corrupted segment " + index);
+        }
+        return plainLength;
+    }
+
+    private static byte[] buffer(ThreadLocal<byte[]> holder, int size) {
+        byte[] buffer = holder.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+            holder.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Opens a single sealed segment, e.g. for random access reads
+     * Returns the number of plaintext bytes written to output
+     */
+    public static int decryptSegment(
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            long index,
+            boolean last,
+            byte[] input,
+            int inputLen,
+            byte[] output) throws Exception {
+
+        return crypt(key, baseNonce, headerDigest, index, last, false,
+                ByteBuffer.wrap(input, 0, inputLen), ByteBuffer.wrap(output));
+    }
+
+    /**
+     * Same for a compressed file; input is the sealed segment without its
+     * length prefix and output must hold segmentSize bytes
+     */
+    public static int decryptSegment(
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            long index,
+            boolean last,
+            int segmentSize,
+            byte[] input,
+            int inputLen,
+            byte[] output) throws Exception {
+
+        return decryptSegment(key, baseNonce, headerDigest, index, last, segmentSize,
+                ChunkedFileHeader.FLAG_COMPRESSED, input, inputLen, output);
+    }
+
+    /**
+     * Same for any framed file with the given header flags
+     */
+    public static int decryptSegment(
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            long index,
+            boolean last,
+            int segmentSize,
+            int flags,
+            byte[] input,
+            int inputLen,
+            byte[] output) throws Exception {
+
+        return openFramed(key, baseNonce, headerDigest, index, last,
+                ByteBuffer.wrap(input, 0, inputLen), segmentSize, flags, output, 0);
+    }
+
+    private static int crypt(
+            SecretKey key,
+            byte[] baseNonce,
+            byte[] headerDigest,
+            long index,
+            boolean last,
+            boolean encrypt,
+            ByteBuffer input,
+            ByteBuffer output) throws Exception {
+
+        Cipher cipher = CIPHERS.get();
+        byte[] nonce = NONCES.get();
+        segmentNonce(baseNonce, index, nonce);
+        cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+
+        ByteBuffer aad = AADS.get();
+        aad.clear();
+        aad.put(headerDigest).putLong(index).put((byte) (last ? 1 : 0));
+        cipher.updateAAD(aad.array(), 0, aad.position());
+
+        return cipher.doFinal(input, output);
+    }
+
+    private static Slot writeSegment(Future<Slot> future, SegmentWriter writer, ArrayDeque<Slot> freeSlots,
+                                     SegmentIndex index) throws Exception {
+        Slot slot;
+        try {
+            slot = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+        writer.write(slot);
+        if (index != null) {
+            // Entries go in strictly in segment order, like the output
+            index.add(slot.sealedLength, slot.hash);
+        }
+        slot.source = null;
+        freeSlots.push(slot);
+        // Only this thread reuses the slot, and not before the caller has read its lengths
+        return slot;
+    }
+
+    /**
+     * Nonce for segment i: the file nonce with i XORed into its last 8 bytes
+     * AAD for segment i is the header digest, the index and a last-segment flag
+     */
+    static void segmentNonce(byte[] baseNonce, long index, byte[] nonce) {
+        System.arraycopy(baseNonce, 0, nonce, 0, GCM_IV_LENGTH);
+        for (int i = 0; i < 8; i++) {
+            nonce[GCM_IV_LENGTH - 1 - i] ^= (byte) (index >>> (8 * i));
+        }
+    }
+
+    /**
+     * Reads up to length bytes, stopping early only at end of stream
+     */
+    public static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    static ExecutorService executor() {
+        if (executor == null) {
+            synchronized (ParallelSegmentCipher.class) {
+                if (executor == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(THREADS, r -> {
+                        Thread t = new Thread(r, "segment-cipher-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key field of CP5 containers: the random data key wrapped under a password key
+ * Layout: [KDF_LEN][KDF_PARAMS][SALT_LEN][SALT][IV_LEN][IV][GCM wrapped data key]
+ * The wrap tag doubles as a password check. A new password only replaces this
+ * field, and keeps its length as long as the KDF stays the same kind
+ */
+class PasswordEnvelope {
+
+    private static final String KEY_WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_WRAP_TAG_LENGTH = 128;
+    private static final int MAX_PART_LENGTH = 64;
+
+    static byte[] wrap(SecretKey dataKey, PasswordKeys.SealingKey sealing, SecureRandom random)
+            throws GeneralSecurityException {
+        byte[] kdf = sealing.kdf.encode();
+        byte[] iv = new byte[ParallelSegmentCipher.GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher wrapCipher = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+        wrapCipher.init(Cipher.ENCRYPT_MODE, sealing.key, new GCMParameterSpec(KEY_WRAP_TAG_LENGTH, iv));
+        byte[] wrapped = wrapCipher.doFinal(dataKey.getEncoded());
+
+        ByteBuffer field = ByteBuffer.allocate(4 + kdf.length + 4 + sealing.salt.length + 4 + iv.length
+                + wrapped.length);
+        field.putInt(kdf.length).put(kdf);
+        field.putInt(sealing.salt.length).put(sealing.salt);
+        field.putInt(iv.length).put(iv);
+        field.put(wrapped);
+        return field.array();
+    }
+
+    /**
+     * Recovers the data key; the KDF runs at most once per PasswordKeys cache lifetime
+     */
+    static SecretKey unwrap(byte[] field, char[] password) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(field);
+        try {
+            KdfParams kdf = KdfParams.decode(part(buffer));
+            byte[] salt = part(buffer);
+            byte[] iv = part(buffer);
+            byte[] wrapped = new byte[buffer.remaining()];
+            buffer.get(wrapped);
+
+            Cipher wrapCipher = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+            wrapCipher.init(Cipher.DECRYPT_MODE, PasswordKeys.derive(password, salt, kdf),
+                    new GCMParameterSpec(KEY_WRAP_TAG_LENGTH, iv));
+            byte[] aesKeyBytes = wrapCipher.doFinal(wrapped);
+            try {
+                return new SecretKeySpec(aesKeyBytes, "AES");
+            } finally {
+                Arrays.fill(aesKeyBytes, (byte) 0);
+            }
+        } catch (AEADBadTagException e) {
+            throw new Exception("Wrong password or corrupted file");
+        } catch (RuntimeException e) {
+            // Negative or oversized part lengths
+            throw new IOException("Corrupted password key field");
+        }
+    }
+
+    /**
+     * The KDF a field was sealed with, without deriving anything
+     */
+    static KdfParams kdfOf(byte[] field) throws Exception {
+        try {
+            return KdfParams.decode(part(ByteBuffer.wrap(field)));
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted password key field");
+        }
+    }
+
+    private static byte[] part(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > MAX_PART_LENGTH) {
+            throw new IOException("Corrupted password key field");
+        }
+        byte[] part = new byte[length];
+        buffer.get(part);
+        return part;
+    }
+}
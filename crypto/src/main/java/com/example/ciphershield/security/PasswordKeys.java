@@ -0,0 +1,339 @@
+package com.example.ciphershield.security;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Password key derivation for the password containers (CP3-CP5 and CL3 password mode)
+ * The PBKDF2 iteration count is calibrated once per process against a target
+ * latency and stored in every header, so a fast phone and a slow one pay about
+ * the same wall time and each file opens with the count it was sealed with.
+ * CP4 and CP5 can name scrypt instead, see KdfParams and Scrypt.tune
+ *
+ * Derived keys are cached for CACHE_TTL_MILLIS, keyed by (salt, KDF parameters)
+ * plus a keyed hash of the password, and zeroed when they expire. Only opening
+ * goes through the cache, so verifying and then decrypting a file derives once;
+ * sealing always draws a fresh salt and derives, so no two new files share a
+ * salt or a wrapping key
+ */
+public class PasswordKeys {
+
+    private static final Logger LOG = Logger.getLogger("PasswordKeys");
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+    public static final int MIN_ITERATIONS = 100000; // The former fixed count; calibration never goes below it
+    public static final int MAX_ITERATIONS = 10000000; // Anything larger in a header is treated as corrupt
+    private static final int MAX_CALIBRATED_ITERATIONS = 2000000; // Keeps files openable on slower devices
+    private static final long TARGET_MILLIS = 250;
+    private static final long MAX_SCRYPT_MEMORY = 64L * 1024 * 1024;
+    private static final int CALIBRATION_ITERATIONS = 20000;
+    private static final int CALIBRATION_ROUNDS = 3;
+    private static final long CACHE_TTL_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_CACHED_KEYS = 32;
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_SIZE = 256;
+
+    private static final Map<CacheKey, CachedKey> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static final byte[] tagKey = new byte[32];
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile int calibrated;
+    private static volatile KdfParams tunedScrypt;
+    private static Timer sweeper;
+
+    static {
+        // Passwords are only ever held as HMACs under a per-process key
+        random.nextBytes(tagKey);
+    }
+
+    /**
+     * A key ready for sealing, with the header fields that reproduce it
+     */
+    public static class SealingKey {
+        public final byte[] salt;
+        public final KdfParams kdf;
+        public final SecretKey key;
+
+        SealingKey(byte[] salt, KdfParams kdf, SecretKey key) {
+            this.salt = salt;
+            this.kdf = kdf;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Iteration count for new files, calibrated on first use
+     */
+    public static int iterations() {
+        int count = calibrated;
+        if (count == 0) {
+            synchronized (PasswordKeys.class) {
+                if (calibrated == 0) {
+                    calibrated = calibrate(TARGET_MILLIS);
+                }
+                count = calibrated;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Measures PBKDF2 on this device and returns the count that takes about
+     * targetMillis, clamped to [MIN_ITERATIONS, MAX_CALIBRATED_ITERATIONS]
+     */
+    public static int calibrate(long targetMillis) {
+        try {
+            char[] probe = "calibration".toCharArray();
+            byte[] salt = new byte[SALT_LENGTH];
+            long best = Long.MAX_VALUE;
+
+            // Best of a few rounds; the first one also warms up the provider
+            for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+                long start = System.nanoTime();
+                pbkdf2(probe, salt, CALIBRATION_ITERATIONS);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+
+            long count = targetMillis * 1000000L * CALIBRATION_ITERATIONS / Math.max(best, 1);
+            count = Math.max(MIN_ITERATIONS, Math.min(MAX_CALIBRATED_ITERATIONS, count));
+            return (int) (count / 1000 * 1000);
+        } catch (GeneralSecurityException e) {
+            LOG.warning("PBKDF2 calibration failed: " + e.getMessage());
+            return MIN_ITERATIONS;
+        }
+    }
+
+    /**
+     * Key for a new file under a fresh salt; never taken from the cache
+     */
+    public static SealingKey forSealing(char[] password) throws GeneralSecurityException {
+        return forSealing(password, KdfParams.pbkdf2(iterations()));
+    }
+
+    /**
+     * Same, with an explicit KDF and cost
+     */
+    public static SealingKey forSealing(char[] password, KdfParams kdf) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] keyBytes = kdfBytes(password, salt, kdf);
+        try {
+            return new SealingKey(salt, kdf, new SecretKeySpec(keyBytes, "AES"));
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Key for (password, salt, iterations), derived at most once per cache lifetime
+     */
+    public static SecretKey derive(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        return derive(password, salt, KdfParams.pbkdf2(iterations), tagOf(password));
+    }
+
+    /**
+     * Key for (password, salt, kdf), derived at most once per cache lifetime
+     */
+    public static SecretKey derive(char[] password, byte[] salt, KdfParams kdf) throws GeneralSecurityException {
+        return derive(password, salt, kdf, tagOf(password));
+    }
+
+    /**
+     * Scrypt cost for new password files, tuned on first use to the same target
+     * latency as PBKDF2 and to at most a quarter of the heap (64MB at most)
+     */
+    public static KdfParams scryptParams() throws GeneralSecurityException {
+        KdfParams params = tunedScrypt;
+        if (params == null) {
+            synchronized (PasswordKeys.class) {
+                if (tunedScrypt == null) {
+                    long budget = Math.min(MAX_SCRYPT_MEMORY, Runtime.getRuntime().maxMemory() / 4);
+                    tunedScrypt = Scrypt.tune(TARGET_MILLIS, budget);
+                }
+                params = tunedScrypt;
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Zeroes and drops every cached key; the app's crypto activities call this
+     * from onTrimMemory once its UI is hidden, and when they finish
+     */
+    public static void clearCache() {
+        synchronized (cache) {
+            for (CachedKey cached : cache.values()) {
+                cached.destroy();
+            }
+            cache.clear();
+        }
+    }
+
+    private static SecretKey derive(char[] password, byte[] salt, KdfParams kdf, byte[] tag)
+            throws GeneralSecurityException {
+        CacheKey key = new CacheKey(salt, kdf.encode(), tag);
+        synchronized (cache) {
+            purgeExpired();
+            CachedKey cached = cache.get(key);
+            if (cached != null) {
+                return cached.toSecretKey();
+            }
+        }
+
+        // Derive outside the lock so unrelated files are not serialised behind it
+        byte[] keyBytes = kdfBytes(password, salt, kdf);
+        try {
+            synchronized (cache) {
+                CachedKey previous = cache.put(key, new CachedKey(keyBytes.clone()));
+                if (previous != null) {
+                    previous.destroy();
+                }
+                trimToSize();
+                scheduleSweep();
+            }
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    private static byte[] kdfBytes(char[] password, byte[] salt, KdfParams kdf) throws GeneralSecurityException {
+        return kdf.id == KdfParams.SCRYPT
+                ? scrypt(password, salt, kdf)
+                : pbkdf2(password, salt, kdf.iterations);
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_SIZE);
+        try {
+            return factory.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] scrypt(char[] password, byte[] salt, KdfParams kdf) throws GeneralSecurityException {
+        byte[] bytes = utf8(password);
+        try {
+            return Scrypt.derive(bytes, salt, kdf, KEY_SIZE / 8);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private static byte[] tagOf(char[] password) throws GeneralSecurityException {
+        byte[] bytes = utf8(password);
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(tagKey, "HmacSHA256"));
+            return mac.doFinal(bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private static byte[] utf8(char[] password) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        if (encoded.hasArray()) {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+        return bytes;
+    }
+
+    // Callers hold the cache lock
+    private static void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedKey> it = cache.values().iterator();
+        while (it.hasNext()) {
+            CachedKey cached = it.next();
+            if (cached.expiresAt <= now) {
+                cached.destroy();
+                it.remove();
+            }
+        }
+    }
+
+    private static void trimToSize() {
+        Iterator<CachedKey> it = cache.values().iterator();
+        while (cache.size() > MAX_CACHED_KEYS && it.hasNext()) {
+            it.next().destroy();
+            it.remove();
+        }
+    }
+
+    private static void scheduleSweep() {
+        // Expired keys are zeroed on time even if nothing touches the cache again
+        if (sweeper == null) {
+            sweeper = new Timer("password-key-cache", true);
+        }
+        sweeper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (cache) {
+                    purgeExpired();
+                }
+            }
+        }, CACHE_TTL_MILLIS + 1);
+    }
+
+    private static class CacheKey {
+        final byte[] salt;
+        final byte[] params;
+        final byte[] passwordTag;
+
+        CacheKey(byte[] salt, byte[] params, byte[] passwordTag) {
+            this.salt = salt.clone();
+            this.params = params;
+            this.passwordTag = passwordTag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return Arrays.equals(params, other.params)
+                    && Arrays.equals(salt, other.salt)
+                    && Arrays.equals(passwordTag, other.passwordTag);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(salt) + Arrays.hashCode(params)) + Arrays.hashCode(passwordTag);
+        }
+    }
+
+    private static class CachedKey {
+        final byte[] keyBytes;
+        final long expiresAt;
+
+        CachedKey(byte[] keyBytes) {
+            this.keyBytes = keyBytes;
+            this.expiresAt = System.currentTimeMillis() + CACHE_TTL_MILLIS;
+        }
+
+        SecretKey toSecretKey() {
+            // SecretKeySpec copies, so the cached bytes can be zeroed independently
+            return new SecretKeySpec(keyBytes, "AES");
+        }
+
+        void destroy() {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+}
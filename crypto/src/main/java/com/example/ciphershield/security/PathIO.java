@@ -0,0 +1,57 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * CryptoSource and CryptoSink over java.nio.file paths
+ * Regular files always take the channel path; anything else (named pipes,
+ * /dev/stdin) falls back to streams
+ */
+public class PathIO {
+
+    public static CryptoSource source(Path path) {
+        return new CryptoSource() {
+            @Override
+            public long sizeHint() {
+                try {
+                    return Files.isRegularFile(path) ? Files.size(path) : UNKNOWN_SIZE;
+                } catch (IOException e) {
+                    return UNKNOWN_SIZE;
+                }
+            }
+
+            @Override
+            public FileChannel openChannel() throws IOException {
+                if (!Files.isRegularFile(path)) return null;
+                return FileChannel.open(path, StandardOpenOption.READ);
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return Files.newInputStream(path);
+            }
+        };
+    }
+
+    public static CryptoSink sink(Path path) {
+        return new CryptoSink() {
+            @Override
+            public FileChannel openChannel() throws IOException {
+                if (Files.exists(path) && !Files.isRegularFile(path)) return null;
+                return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            @Override
+            public OutputStream openStream() throws IOException {
+                return Files.newOutputStream(path);
+            }
+        };
+    }
+}
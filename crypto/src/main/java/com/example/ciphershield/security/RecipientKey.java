@@ -0,0 +1,96 @@
+package com.example.ciphershield.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * RSA public key that many files are wrapped to
+ * With a recipient, encryption skips key generation entirely and no
+ * per-file .key is produced; the one matching private key opens them all
+ */
+public class RecipientKey {
+
+    private static final String PEM_PUBLIC = "PUBLIC KEY";
+    private static final String PEM_PRIVATE = "PRIVATE KEY";
+    public static final int FINGERPRINT_LENGTH = 32;
+
+    /**
+     * Accepts a public key (X.509 DER or PEM), or a private key in the .key
+     * format the app saves (PKCS#8, DER or PEM), whose public half is derived
+     */
+    public static PublicKey parse(byte[] encoded) throws Exception {
+        String text = new String(encoded, StandardCharsets.US_ASCII);
+        if (text.contains("-----BEGIN " + PEM_PUBLIC)) {
+            return fromPublic(pemBody(text, PEM_PUBLIC));
+        }
+        if (text.contains("-----BEGIN " + PEM_PRIVATE)) {
+            return fromPrivate(pemBody(text, PEM_PRIVATE));
+        }
+
+        try {
+            return fromPublic(encoded);
+        } catch (Exception e) {
+            return fromPrivate(encoded);
+        }
+    }
+
+    /**
+     * X.509 DER encoding, the form to hand to whoever encrypts for you
+     */
+    public static byte[] encode(PublicKey publicKey) {
+        return publicKey.getEncoded();
+    }
+
+    /**
+     * SHA-256 over the X.509 encoding; names a recipient in multi-recipient headers
+     */
+    public static byte[] fingerprint(PublicKey publicKey) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+    }
+
+    /**
+     * Public half of a private key, or null for a keystore handle that does not expose it
+     */
+    static PublicKey publicHalf(PrivateKey privateKey) throws Exception {
+        if (!(privateKey instanceof RSAPrivateCrtKey)) {
+            return null;
+        }
+        RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) privateKey;
+        return KeyFactory.getInstance("RSA")
+                .generatePublic(new RSAPublicKeySpec(crtKey.getModulus(), crtKey.getPublicExponent()));
+    }
+
+    /**
+     * Parses a PKCS#8 .key file into a handle that can be reused across files
+     */
+    public static PrivateKey privateKey(byte[] pkcs8) throws Exception {
+        return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+    }
+
+    private static PublicKey fromPublic(byte[] der) throws Exception {
+        return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(der));
+    }
+
+    private static PublicKey fromPrivate(byte[] der) throws Exception {
+        PublicKey publicKey = publicHalf(privateKey(der));
+        if (publicKey == null) {
+            throw new IllegalArgumentException("Private key does not carry its public exponent");
+        }
+        return publicKey;
+    }
+
+    private static byte[] pemBody(String pem, String label) {
+        int start = pem.indexOf("-----BEGIN " + label + "-----") + ("-----BEGIN " + label + "-----").length();
+        int end = pem.indexOf("-----END " + label + "-----", start);
+        if (end < 0) throw new IllegalArgumentException("Truncated PEM key");
+        return Base64.getMimeDecoder().decode(pem.substring(start, end));
+    }
+}
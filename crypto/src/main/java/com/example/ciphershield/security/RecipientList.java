@@ -0,0 +1,171 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key field shared by several RSA recipients: one data key, wrapped once for each
+ * Layout: [COUNT:2] then per recipient [FINGERPRINT:32][WRAPPED_LEN:2][OAEP wrapped data key]
+ * Fingerprints come from RecipientKey.fingerprint, so a private key goes
+ * straight to its own entry; only a keystore handle that hides its public
+ * half has to try the wraps one by one
+ */
+class RecipientList {
+
+    static final int MAX_RECIPIENTS = 64;
+    private static final int MAX_WRAPPED_LENGTH = 1024; // RSA-8192
+    static final int MAX_LENGTH = 2 + MAX_RECIPIENTS * (RecipientKey.FINGERPRINT_LENGTH + 2 + MAX_WRAPPED_LENGTH);
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    private static class Entry {
+        final byte[] fingerprint;
+        final byte[] wrapped;
+
+        Entry(byte[] fingerprint, byte[] wrapped) {
+            this.fingerprint = fingerprint;
+            this.wrapped = wrapped;
+        }
+    }
+
+    static byte[] wrap(SecretKey dataKey, List<PublicKey> recipients) throws Exception {
+        if (recipients == null || recipients.isEmpty()) {
+            throw new IllegalArgumentException("At least one recipient key is required");
+        }
+        if (recipients.size() > MAX_RECIPIENTS) {
+            throw new IllegalArgumentException("At most " + MAX_RECIPIENTS + " recipients per file");
+        }
+        List<Entry> entries = new ArrayList<>(recipients.size());
+        for (PublicKey recipient : recipients) {
+            Entry entry = entryFor(dataKey, recipient);
+            if (indexOf(entries, entry.fingerprint) >= 0) {
+                throw new IllegalArgumentException("Recipient key listed twice");
+            }
+            entries.add(entry);
+        }
+        return encode(entries);
+    }
+
+    static SecretKey unwrap(byte[] field, PrivateKey privateKey) throws Exception {
+        List<Entry> entries = decode(field);
+        return unwrap(entries.get(find(entries, privateKey)), privateKey);
+    }
+
+    /**
+     * The field with oldKey's entry re-wrapped for recipient, every other entry as it was
+     */
+    static byte[] replace(byte[] field, PrivateKey oldKey, PublicKey recipient) throws Exception {
+        List<Entry> entries = decode(field);
+        int index = find(entries, oldKey);
+        Entry replacement = entryFor(unwrap(entries.get(index), oldKey), recipient);
+        int existing = indexOf(entries, replacement.fingerprint);
+        if (existing >= 0 && existing != index) {
+            throw new IllegalArgumentException("Recipient key is already listed");
+        }
+        entries.set(index, replacement);
+        return encode(entries);
+    }
+
+    /**
+     * Index of the entry privateKey opens, by fingerprint when its public half is known
+     */
+    private static int find(List<Entry> entries, PrivateKey privateKey) throws Exception {
+        PublicKey publicKey = RecipientKey.publicHalf(privateKey);
+        if (publicKey != null) {
+            int index = indexOf(entries, RecipientKey.fingerprint(publicKey));
+            if (index < 0) {
+                throw new Exception("File is not encrypted for this key");
+            }
+            return index;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                unwrap(entries.get(i), privateKey);
+                return i;
+            } catch (Exception e) {
+                // OAEP rejects a wrap made for another key
+            }
+        }
+        throw new Exception("File is not encrypted for this key");
+    }
+
+    private static int indexOf(List<Entry> entries, byte[] fingerprint) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (MessageDigest.isEqual(entries.get(i).fingerprint, fingerprint)) return i;
+        }
+        return -1;
+    }
+
+    private static Entry entryFor(SecretKey dataKey, PublicKey recipient) throws Exception {
+        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsaCipher.init(Cipher.ENCRYPT_MODE, recipient);
+        byte[] wrapped = rsaCipher.doFinal(dataKey.getEncoded());
+        if (wrapped.length > MAX_WRAPPED_LENGTH) {
+            throw new IllegalArgumentException("Recipient keys above 8192 bits are not supported");
+        }
+        return new Entry(RecipientKey.fingerprint(recipient), wrapped);
+    }
+
+    private static SecretKey unwrap(Entry entry, PrivateKey privateKey) throws Exception {
+        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsaCipher.init(Cipher.DECRYPT_MODE, privateKey);
+        byte[] aesKeyBytes = rsaCipher.doFinal(entry.wrapped);
+        try {
+            return new SecretKeySpec(aesKeyBytes, "AES");
+        } finally {
+            Arrays.fill(aesKeyBytes, (byte) 0);
+        }
+    }
+
+    private static byte[] encode(List<Entry> entries) {
+        int length = 2;
+        for (Entry entry : entries) {
+            length += entry.fingerprint.length + 2 + entry.wrapped.length;
+        }
+        ByteBuffer field = ByteBuffer.allocate(length);
+        field.putShort((short) entries.size());
+        for (Entry entry : entries) {
+            field.put(entry.fingerprint);
+            field.putShort((short) entry.wrapped.length);
+            field.put(entry.wrapped);
+        }
+        return field.array();
+    }
+
+    private static List<Entry> decode(byte[] field) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(field);
+            int count = buffer.getShort() & 0xFFFF;
+            if (count == 0 || count > MAX_RECIPIENTS) {
+                throw new IOException("Corrupted recipient list");
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] fingerprint = new byte[RecipientKey.FINGERPRINT_LENGTH];
+                buffer.get(fingerprint);
+                int wrappedLength = buffer.getShort() & 0xFFFF;
+                if (wrappedLength > MAX_WRAPPED_LENGTH) {
+                    throw new IOException("Corrupted recipient list");
+                }
+                byte[] wrapped = new byte[wrappedLength];
+                buffer.get(wrapped);
+                entries.add(new Entry(fingerprint, wrapped));
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Corrupted recipient list");
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            // Truncated field
+            throw new IOException("Corrupted recipient list");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Undo log for rewriting a container in place, kept in a sidecar file
+ * The old bytes of every region are appended here and forced before the
+ * region is overwritten, so after a crash at any point rollBack puts the
+ * file back exactly as it was. Only overwritten regions are saved, so the
+ * journal grows with the size of the change, not of the file
+ * Layout: [MAGIC][OLD_LENGTH:8][CRC:4], then records
+ * [POSITION:8][LENGTH:4][OLD BYTES][CRC:4]. A record torn by a crash was
+ * never acted on, since nothing is written before its force
+ *
+ * The journal is emptied once the file is forced with its new content;
+ * callers that own the sidecar path delete it then. An empty or missing
+ * journal means there is nothing to recover
+ */
+public class RollbackJournal {
+
+    public static final String UPDATE_SUFFIX = ".csj"; // SegmentUpdater, next to the container
+    public static final String ROTATION_SUFFIX = ".rot"; // KeyRotation
+
+    private static final Logger LOG = Logger.getLogger("RollbackJournal");
+    private static final int MAGIC = 0x43534a31; // "CSJ1"
+    private static final int HEADER_LENGTH = 4 + 8 + 4;
+    private static final int RECORD_OVERHEAD = 8 + 4 + 4;
+
+    private final FileChannel journal;
+    private final FileChannel reader;
+    private final long oldLength;
+    private long end = HEADER_LENGTH;
+
+    private RollbackJournal(FileChannel journal, FileChannel reader, long oldLength) {
+        this.journal = journal;
+        this.reader = reader;
+        this.oldLength = oldLength;
+    }
+
+    /**
+     * Starts a journal for the file behind reader; journal must be empty
+     */
+    static RollbackJournal begin(FileChannel journal, FileChannel reader) throws IOException {
+        if (journal.size() != 0) {
+            throw new IOException("An earlier rewrite was not rolled back");
+        }
+        long oldLength = reader.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putLong(oldLength);
+        header.putInt(crc(header.array(), 0, 12)).flip();
+        writeFully(journal, header, 0);
+        journal.force(false);
+        return new RollbackJournal(journal, reader, oldLength);
+    }
+
+    /**
+     * Appends the current bytes of [position, position + length); only the part
+     * inside the original file is kept, rollBack truncates the rest
+     * Not durable until force
+     */
+    void save(long position, long length) throws IOException {
+        long saved = Math.max(0, Math.min(length, oldLength - position));
+        while (saved > 0) {
+            int part = (int) Math.min(saved, Integer.MAX_VALUE - RECORD_OVERHEAD);
+            byte[] record = new byte[RECORD_OVERHEAD + part];
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            buffer.putLong(position).putInt(part);
+            buffer.limit(12 + part);
+            while (buffer.hasRemaining()) {
+                int read = reader.read(buffer, position + buffer.position() - 12);
+                if (read < 0) throw new IOException("File ended before " + (position + part));
+            }
+            buffer.limit(record.length);
+            buffer.putInt(crc(record, 0, 12 + part));
+            buffer.flip();
+            writeFully(journal, buffer, end);
+            end += record.length;
+            position += part;
+            saved -= part;
+        }
+    }
+
+    void force() throws IOException {
+        journal.force(false);
+    }
+
+    /**
+     * Forces the rewritten file, then empties the journal
+     */
+    void commit(FileChannel writer) throws IOException {
+        writer.force(true);
+        journal.truncate(0);
+        journal.force(false);
+    }
+
+    /**
+     * Restores the file from a journal left by an interrupted rewrite, then
+     * empties the journal; returns false when there was nothing to undo
+     * reader and writer are the same file, as for the rewrite itself
+     */
+    public static boolean rollBack(FileChannel journal, FileChannel reader, FileChannel writer) throws IOException {
+        long size = journal.size();
+        if (size < HEADER_LENGTH) {
+            // Empty, or torn before the file was touched
+            clear(journal);
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(journal, header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(12) != crc(header.array(), 0, 12)) {
+            // The header is forced before the file is touched, so a torn one undoes nothing
+            clear(journal);
+            return false;
+        }
+        long oldLength = header.getLong(4);
+
+        // Collect the complete records; a torn last record was never acted on
+        List<long[]> records = new ArrayList<>();
+        long offset = HEADER_LENGTH;
+        while (offset + RECORD_OVERHEAD <= size) {
+            ByteBuffer prefix = ByteBuffer.allocate(12);
+            readFully(journal, prefix, offset);
+            long position = prefix.getLong(0);
+            int length = prefix.getInt(8);
+            if (length < 0 || position < 0 || offset + RECORD_OVERHEAD + length > size) break;
+            byte[] record = new byte[RECORD_OVERHEAD + length];
+            readFully(journal, ByteBuffer.wrap(record), offset);
+            if (ByteBuffer.wrap(record).getInt(12 + length) != crc(record, 0, 12 + length)) break;
+            records.add(new long[]{offset, position, length});
+            offset += record.length;
+        }
+
+        // Newest first, so a region saved twice ends with its oldest bytes
+        for (int i = records.size() - 1; i >= 0; i--) {
+            long[] record = records.get(i);
+            ByteBuffer old = ByteBuffer.allocate((int) record[2]);
+            readFully(journal, old, record[0] + 12);
+            old.flip();
+            writeFully(writer, old, record[1]);
+        }
+        if (reader.size() > oldLength) {
+            writer.truncate(oldLength);
+        }
+        writer.force(true);
+        clear(journal);
+        LOG.warning("Rolled back an interrupted rewrite: " + records.size() + " regions restored");
+        return true;
+    }
+
+    private static void clear(FileChannel journal) throws IOException {
+        if (journal.size() > 0) {
+            journal.truncate(0);
+            journal.force(false);
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Truncated rollback journal");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
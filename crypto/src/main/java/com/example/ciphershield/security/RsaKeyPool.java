@@ -0,0 +1,66 @@
+package com.example.ciphershield.security;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Background supply of fresh RSA-2048 key pairs for per-file key mode
+ * Generating a pair takes from a few hundred milliseconds to seconds on a
+ * phone; a low-priority thread keeps a couple ready so encryption only pays
+ * for the OAEP wrap. Each pair is handed out once and never reused
+ */
+public class RsaKeyPool {
+
+    private static final Logger LOG = Logger.getLogger("RsaKeyPool");
+    private static final int RSA_KEY_SIZE = 2048;
+    private static final int POOL_SIZE = 2;
+
+    private static final BlockingQueue<KeyPair> ready = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final AtomicBoolean refilling = new AtomicBoolean();
+
+    /**
+     * A key pair nobody else has seen; generated inline when the pool is empty
+     */
+    public static KeyPair take() throws NoSuchAlgorithmException {
+        KeyPair pair = ready.poll();
+        prefill();
+        return pair != null ? pair : generate();
+    }
+
+    /**
+     * Starts topping up the pool if it is not already full
+     * Call as early as an RSA-mode encryption becomes likely, e.g. once a file is picked
+     */
+    public static void prefill() {
+        if (ready.remainingCapacity() == 0 || !refilling.compareAndSet(false, true)) return;
+
+        Thread thread = new Thread(RsaKeyPool::refill, "rsa-key-pool");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static void refill() {
+        try {
+            while (ready.remainingCapacity() > 0) {
+                if (!ready.offer(generate())) break;
+            }
+        } catch (NoSuchAlgorithmException e) {
+            LOG.warning("Cannot pre-generate RSA keys: " + e.getMessage());
+        } finally {
+            refilling.set(false);
+        }
+    }
+
+    private static KeyPair generate() throws NoSuchAlgorithmException {
+        KeyPairGenerator rsaGen = KeyPairGenerator.getInstance("RSA");
+        rsaGen.initialize(RSA_KEY_SIZE, new SecureRandom());
+        return rsaGen.generateKeyPair();
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.ciphershield.security;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pure-Java scrypt (RFC 7914)
+ * Each derivation allocates its own 128 * r * N working buffer and zeroes it
+ * before returning, so nothing stays on the heap between calls and
+ * derivations on different threads run side by side. Parameters always come
+ * as KdfParams, whose bounds keep N a power of two and the buffer size in range
+ */
+public class Scrypt {
+
+    private static final int MIN_TUNED_N = 1 << 12;
+    private static final int PROBE_N = 1 << 14;
+    private static final int TUNED_R = 8;
+
+    private static final int MAX_KEY_LENGTH = 1024;
+
+    /**
+     * Derives dkLen bytes with the scrypt cost in kdf
+     */
+    public static byte[] derive(byte[] password, byte[] salt, KdfParams kdf, int dkLen)
+            throws GeneralSecurityException {
+        if (kdf.id != KdfParams.SCRYPT) {
+            throw new IllegalArgumentException("Not scrypt parameters: " + kdf);
+        }
+        if (dkLen < 1 || dkLen > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Invalid scrypt key length: " + dkLen);
+        }
+        int n = kdf.n;
+        int r = kdf.r;
+        if (kdf.memoryBytes() > Runtime.getRuntime().maxMemory() / 2) {
+            throw new GeneralSecurityException("Not enough memory for scrypt N=" + n + ", r=" + r);
+        }
+
+        // Both fit in an int: KdfParams caps 128 * r * N at 256MB and p * 128 * r at 64KB
+        int blockInts = 32 * r;
+        byte[] b = pbkdf2Sha256(password, salt, kdf.p * 128 * r);
+        int[] v = null;
+        int[] xy = null;
+        try {
+            v = new int[blockInts * n];
+            xy = new int[blockInts * 3];
+            for (int i = 0; i < kdf.p; i++) {
+                roMix(b, i * 128 * r, r, n, v, xy);
+            }
+            return pbkdf2Sha256(password, b, dkLen);
+        } finally {
+            Arrays.fill(b, (byte) 0);
+            if (v != null) Arrays.fill(v, 0);
+            if (xy != null) Arrays.fill(xy, 0);
+        }
+    }
+
+    /**
+     * Scrypt parameters for this device: the largest N within maxMemoryBytes
+     * whose derivation fits targetMillis, then p raised to spend any time left
+     * Runs a few small derivations; takes roughly targetMillis in total
+     */
+    public static KdfParams tune(long targetMillis, long maxMemoryBytes) throws GeneralSecurityException {
+        byte[] password = new byte[8];
+        byte[] salt = new byte[16];
+
+        int maxN = MIN_TUNED_N;
+        while (maxN < KdfParams.MAX_SCRYPT_N && 128L * TUNED_R * maxN * 2 <= maxMemoryBytes
+                && 128L * TUNED_R * maxN * 2 <= KdfParams.MAX_SCRYPT_MEMORY) {
+            maxN <<= 1;
+        }
+
+        // Warm up, then time one small derivation
+        int probeN = Math.min(PROBE_N, maxN);
+        derive(password, salt, KdfParams.scrypt(MIN_TUNED_N, TUNED_R, 1), 32);
+        long start = System.nanoTime();
+        derive(password, salt, KdfParams.scrypt(probeN, TUNED_R, 1), 32);
+        double nanosPerN = (double) (System.nanoTime() - start) / probeN;
+
+        long targetNanos = targetMillis * 1000000L;
+        int n = maxN;
+        while (n > MIN_TUNED_N && n * nanosPerN > targetNanos) {
+            n >>= 1;
+        }
+        int p = (int) Math.max(1, Math.min(KdfParams.MAX_SCRYPT_P, targetNanos / (n * nanosPerN)));
+        return KdfParams.scrypt(n, TUNED_R, p);
+    }
+
+    private static void roMix(byte[] b, int offset, int r, int n, int[] v, int[] xy) {
+        int blockInts = 32 * r;
+        int[] x = xy;
+        int[] y = xy;
+        int yOffset = blockInts;
+        int scratch = blockInts * 2;
+
+        for (int k = 0; k < blockInts; k++) {
+            int at = offset + k * 4;
+            x[k] = (b[at] & 0xff) | (b[at + 1] & 0xff) << 8 | (b[at + 2] & 0xff) << 16 | (b[at + 3] & 0xff) << 24;
+        }
+
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(x, 0, v, i * blockInts, blockInts);
+            blockMix(x, 0, y, yOffset, x, scratch, r);
+            System.arraycopy(y, yOffset, x, 0, blockInts);
+        }
+
+        for (int i = 0; i < n; i++) {
+            // Integerify: first word of the last 64-byte block, masked since N is a power of two
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            int from = j * blockInts;
+            for (int k = 0; k < blockInts; k++) {
+                x[k] ^= v[from + k];
+            }
+            blockMix(x, 0, y, yOffset, x, scratch, r);
+            System.arraycopy(y, yOffset, x, 0, blockInts);
+        }
+
+        for (int k = 0; k < blockInts; k++) {
+            int at = offset + k * 4;
+            int word = x[k];
+            b[at] = (byte) word;
+            b[at + 1] = (byte) (word >>> 8);
+            b[at + 2] = (byte) (word >>> 16);
+            b[at + 3] = (byte) (word >>> 24);
+        }
+    }
+
+    /**
+     * Writes BlockMix(in) to out; 16 ints of scratch are used for X
+     */
+    private static void blockMix(int[] in, int inOffset, int[] out, int outOffset,
+                                 int[] scratch, int scratchOffset, int r) {
+        System.arraycopy(in, inOffset + (2 * r - 1) * 16, scratch, scratchOffset, 16);
+
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) {
+                scratch[scratchOffset + k] ^= in[inOffset + i * 16 + k];
+            }
+            salsa20_8(scratch, scratchOffset);
+            // Even blocks fill the first half of the output, odd blocks the second
+            int to = outOffset + (i / 2 + (i % 2) * r) * 16;
+            System.arraycopy(scratch, scratchOffset, out, to, 16);
+        }
+    }
+
+    private static void salsa20_8(int[] b, int o) {
+        int x0 = b[o], x1 = b[o + 1], x2 = b[o + 2], x3 = b[o + 3];
+        int x4 = b[o + 4], x5 = b[o + 5], x6 = b[o + 6], x7 = b[o + 7];
+        int x8 = b[o + 8], x9 = b[o + 9], x10 = b[o + 10], x11 = b[o + 11];
+        int x12 = b[o + 12], x13 = b[o + 13], x14 = b[o + 14], x15 = b[o + 15];
+
+        for (int i = 0; i < 8; i += 2) {
+            // Columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // Rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[o] += x0; b[o + 1] += x1; b[o + 2] += x2; b[o + 3] += x3;
+        b[o + 4] += x4; b[o + 5] += x5; b[o + 6] += x6; b[o + 7] += x7;
+        b[o + 8] += x8; b[o + 9] += x9; b[o + 10] += x10; b[o + 11] += x11;
+        b[o + 12] += x12; b[o + 13] += x13; b[o + 14] += x14; b[o + 15] += x15;
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA256 with one iteration over raw bytes, as scrypt needs;
+     * the JCE factory only accepts char[] passwords
+     */
+    private static byte[] pbkdf2Sha256(byte[] password, byte[] salt, int dkLen) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        // SecretKeySpec refuses an empty key; HMAC zero-pads keys, so one zero byte is the same key
+        mac.init(new SecretKeySpec(password.length > 0 ? password : new byte[1], "HmacSHA256"));
+
+        byte[] out = new byte[dkLen];
+        byte[] counter = new byte[4];
+        for (int block = 1, done = 0; done < dkLen; block++) {
+            counter[0] = (byte) (block >>> 24);
+            counter[1] = (byte) (block >>> 16);
+            counter[2] = (byte) (block >>> 8);
+            counter[3] = (byte) block;
+            mac.update(salt);
+            byte[] u = mac.doFinal(counter);
+            int take = Math.min(u.length, dkLen - done);
+            System.arraycopy(u, 0, out, done, take);
+            Arrays.fill(u, (byte) 0);
+            done += take;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,946 @@
+package com.example.ciphershield.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Secure Encryption Utility using AES-256-GCM + RSA-2048
+ * Addresses all security vulnerabilities:
+ * - Uses GCM mode for authenticated encryption
+ * - Generates secure random IVs
+ * - Implements proper key management
+ * - Adds HMAC for integrity verification
+ */
+public class SecureEncryptionUtil {
+
+    // java.util.logging keeps this class free of Android APIs; on a device it ends up in logcat
+    private static final Logger LOG = Logger.getLogger("SecureEncryption");
+    private static final int AES_KEY_SIZE = 256;
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final int HMAC_LENGTH = 32;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FIELD_LENGTH = 1024;
+    // CP5 wraps a random data key under the password key, so the password can
+    // change without touching the payload, see KeyRotation. CP3 (PBKDF2 iteration
+    // count) and CP4 (KdfParams block) encrypt with the password key itself and
+    // are only read now, like CP2 with its old fixed count
+    public static final String ENVELOPE_PASSWORD_VERSION = "CP5";
+    // CS2 laid out around a RecipientList, so one payload serves several key holders
+    public static final String MULTI_RECIPIENT_VERSION = "CS3";
+    public static final String PASSWORD_VERSION = "CP3";
+    public static final String KDF_PASSWORD_VERSION = "CP4";
+    public static final String LEGACY_PASSWORD_VERSION = "CP2";
+    private static final int LEGACY_PASSWORD_ITERATIONS = 100000;
+
+    public static class EncryptionResult {
+        public byte[] encryptedData;
+        public byte[] privateKey;
+        public byte[] salt;
+        public String checksum;
+
+        public EncryptionResult(byte[] encryptedData, byte[] privateKey, byte[] salt, String checksum) {
+            this.encryptedData = encryptedData;
+            this.privateKey = privateKey;
+            this.salt = salt;
+            this.checksum = checksum;
+        }
+    }
+
+    public static class DecryptionResult {
+        public byte[] decryptedData;
+        public String originalExtension;
+        public boolean verified;
+
+        public DecryptionResult(byte[] decryptedData, String originalExtension, boolean verified) {
+            this.decryptedData = decryptedData;
+            this.originalExtension = originalExtension;
+            this.verified = verified;
+        }
+    }
+
+    /**
+     * Encrypts data using AES-256-GCM with RSA-2048 key wrapping
+     */
+    public static EncryptionResult encrypt(byte[] inputData, String originalExtension) throws Exception {
+        // One key pair per file, usually already generated by the pool
+        KeyPair rsaKeyPair = RsaKeyPool.take();
+        EncryptionResult result = encrypt(inputData, originalExtension, rsaKeyPair.getPublic());
+        result.privateKey = rsaKeyPair.getPrivate().getEncoded();
+        return result;
+    }
+
+    /**
+     * Encrypts data for a recipient key shared by many files
+     * Skips key generation; privateKey in the result is null
+     */
+    public static EncryptionResult encrypt(byte[] inputData, String originalExtension, PublicKey recipient)
+            throws Exception {
+        return encrypt(inputData, originalExtension, recipient, null);
+    }
+
+    /**
+     * Encrypts data once for several recipient keys, written as CS3
+     * Each recipient costs one OAEP wrap and 290 header bytes at RSA-2048;
+     * the payload and its HMAC are shared
+     */
+    public static EncryptionResult encrypt(byte[] inputData, String originalExtension, List<PublicKey> recipients)
+            throws Exception {
+        return encrypt(inputData, originalExtension, null, requireRecipients(recipients));
+    }
+
+    private static EncryptionResult encrypt(byte[] inputData, String originalExtension, PublicKey recipient,
+                                            List<PublicKey> recipients) throws Exception {
+        if (inputData == null || inputData.length == 0) {
+            throw new IllegalArgumentException("Input data cannot be empty");
+        }
+
+        // Generate secure random salt
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+
+        // Generate AES key
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(AES_KEY_SIZE, random);
+        SecretKey aesKey = keyGen.generateKey();
+
+        // Generate random IV for GCM
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        // Encrypt data with AES-GCM
+        Cipher aesCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
+        aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, gcmSpec);
+
+        // Add original extension as Additional Authenticated Data (AAD)
+        byte[] extBytes = originalExtension.getBytes(StandardCharsets.UTF_8);
+        aesCipher.updateAAD(extBytes);
+
+        byte[] encryptedData = aesCipher.doFinal(inputData);
+
+        // Encrypt AES key with RSA, once per recipient for CS3
+        byte[] encryptedAESKey = wrapKey(aesKey, recipient, recipients);
+
+        // Calculate HMAC for integrity
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] hmacValue = hmac.doFinal(encryptedData);
+
+        // Build secure file structure
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // Header: [VERSION][SALT][IV][EXT_LEN][EXTENSION]
+        output.write((recipients != null ? MULTI_RECIPIENT_VERSION : "CS2")
+                .getBytes(StandardCharsets.UTF_8));
+        output.write(ByteBuffer.allocate(4).putInt(salt.length).array());
+        output.write(salt);
+        output.write(ByteBuffer.allocate(4).putInt(iv.length).array());
+        output.write(iv);
+        output.write(ByteBuffer.allocate(4).putInt(extBytes.length).array());
+        output.write(extBytes);
+
+        // Encrypted AES key
+        output.write(ByteBuffer.allocate(4).putInt(encryptedAESKey.length).array());
+        output.write(encryptedAESKey);
+
+        // HMAC
+        output.write(ByteBuffer.allocate(4).putInt(hmacValue.length).array());
+        output.write(hmacValue);
+
+        // Encrypted data
+        output.write(encryptedData);
+
+        // Calculate checksum for verification
+        byte[] container = output.toByteArray();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String checksum = bytesToHex(digest.digest(container));
+
+        return new EncryptionResult(
+                container,
+                null,
+                salt,
+                checksum
+        );
+    }
+
+    /**
+     * Decrypts data with integrity verification
+     */
+    public static DecryptionResult decrypt(byte[] encryptedData, byte[] privateKeyBytes) throws Exception {
+        return decrypt(encryptedData, RecipientKey.privateKey(privateKeyBytes));
+    }
+
+    /**
+     * Decrypts with an already parsed key, e.g. a handle held by a keystore
+     */
+    public static DecryptionResult decrypt(byte[] encryptedData, PrivateKey rsaPrivateKey) throws Exception {
+        if (encryptedData == null || encryptedData.length < 50) {
+            throw new IllegalArgumentException("Invalid encrypted data");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(encryptedData);
+
+        // Read version
+        byte[] versionBytes = new byte[3];
+        buffer.get(versionBytes);
+        String version = new String(versionBytes, StandardCharsets.UTF_8);
+
+        if (!isRecipientVersion(version)) {
+            throw new Exception("Unsupported file version: " + version);
+        }
+
+        // Read salt
+        int saltLen = buffer.getInt();
+        byte[] salt = new byte[saltLen];
+        buffer.get(salt);
+
+        // Read IV
+        int ivLen = buffer.getInt();
+        byte[] iv = new byte[ivLen];
+        buffer.get(iv);
+
+        // Read extension
+        int extLen = buffer.getInt();
+        byte[] extBytes = new byte[extLen];
+        buffer.get(extBytes);
+        String originalExtension = new String(extBytes, StandardCharsets.UTF_8);
+
+        // Read encrypted AES key
+        int aesKeyLen = buffer.getInt();
+        byte[] encryptedAESKey = new byte[aesKeyLen];
+        buffer.get(encryptedAESKey);
+
+        // Read HMAC
+        int hmacLen = buffer.getInt();
+        byte[] storedHmac = new byte[hmacLen];
+        buffer.get(storedHmac);
+
+        // Encrypted data is the rest of the buffer - used in place
+        int ciphertextOffset = buffer.position();
+        int ciphertextLength = buffer.remaining();
+
+        // Verify HMAC
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        hmac.update(encryptedData, ciphertextOffset, ciphertextLength);
+        byte[] calculatedHmac = hmac.doFinal();
+
+        boolean verified = MessageDigest.isEqual(storedHmac, calculatedHmac);
+        if (!verified) {
+            LOG.warning("HMAC verification failed - file may be corrupted or tampered");
+        }
+
+        // Decrypt AES key with RSA
+        SecretKey aesKey = unwrapKey(version, encryptedAESKey, rsaPrivateKey);
+
+        // Decrypt data with AES-GCM
+        Cipher aesCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
+        aesCipher.init(Cipher.DECRYPT_MODE, aesKey, gcmSpec);
+        aesCipher.updateAAD(extBytes);
+
+        byte[] decryptedData = aesCipher.doFinal(encryptedData, ciphertextOffset, ciphertextLength);
+
+        // Secure cleanup
+        Arrays.fill(salt, (byte) 0);
+        Arrays.fill(iv, (byte) 0);
+
+        return new DecryptionResult(decryptedData, originalExtension, verified);
+    }
+
+    /**
+     * Streaming variant of encrypt: reads plaintext from input and writes the
+     * same CS2 container to output, starting at its current position
+     * The HMAC field precedes the payload, so it is back-patched in place;
+     * encryptedData in the result is null
+     * Input past the GCM limit of just under 64 GiB fails with an exception;
+     * use the segmented CL3 format for anything that large
+     */
+    public static EncryptionResult encrypt(InputStream input, FileChannel output, String originalExtension)
+            throws Exception {
+        return encryptStream(input, output, output, originalExtension, null, null);
+    }
+
+    /**
+     * Streaming encrypt for a recipient key shared by many files
+     */
+    public static EncryptionResult encrypt(InputStream input, FileChannel output, String originalExtension,
+                                           PublicKey recipient) throws Exception {
+        return encryptStream(input, output, output, originalExtension, requireRecipient(recipient), null);
+    }
+
+    /**
+     * Streaming encrypt for several recipient keys, written as CS3
+     */
+    public static EncryptionResult encrypt(InputStream input, FileChannel output, String originalExtension,
+                                           List<PublicKey> recipients) throws Exception {
+        return encryptStream(input, output, output, originalExtension, null, requireRecipients(recipients));
+    }
+
+    /**
+     * Streaming encrypt into a descriptor opened for reading and writing
+     * Streams over a descriptor only hand out one-way channels, so the
+     * checksum read-back goes through a second channel over the same file
+     */
+    public static EncryptionResult encrypt(InputStream input, FileDescriptor output, String originalExtension)
+            throws Exception {
+        FileChannel writeChannel = new FileOutputStream(output).getChannel();
+        FileChannel readChannel = new FileInputStream(output).getChannel();
+        return encryptStream(input, writeChannel, readChannel, originalExtension, null, null);
+    }
+
+    /**
+     * Streaming encrypt into a descriptor for a recipient key shared by many files
+     */
+    public static EncryptionResult encrypt(InputStream input, FileDescriptor output, String originalExtension,
+                                           PublicKey recipient) throws Exception {
+        FileChannel writeChannel = new FileOutputStream(output).getChannel();
+        FileChannel readChannel = new FileInputStream(output).getChannel();
+        return encryptStream(input, writeChannel, readChannel, originalExtension, requireRecipient(recipient),
+                null);
+    }
+
+    /**
+     * A null recipient and recipients means a fresh key pair whose private half is returned
+     */
+    private static EncryptionResult encryptStream(InputStream input, FileChannel output, FileChannel readBack,
+                                                  String originalExtension, PublicKey recipient,
+                                                  List<PublicKey> recipients) throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+
+        // Generate AES key
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(AES_KEY_SIZE, random);
+        SecretKey aesKey = keyGen.generateKey();
+
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        // Wrap the AES key, taking a fresh key pair unless there is a recipient
+        KeyPair rsaKeyPair = recipient == null && recipients == null ? RsaKeyPool.take() : null;
+        byte[] encryptedAESKey = wrapKey(aesKey, rsaKeyPair != null ? rsaKeyPair.getPublic() : recipient,
+                recipients);
+
+        byte[] extBytes = originalExtension.getBytes(StandardCharsets.UTF_8);
+        byte[] header = containerHeader(recipients != null ? MULTI_RECIPIENT_VERSION : "CS2",
+                salt, iv, extBytes, encryptedAESKey);
+
+        String checksum = sealStream(input, output, readBack, header,
+                new StreamingGcm(true, aesKey, iv, extBytes), salt);
+
+        return new EncryptionResult(null,
+                rsaKeyPair != null ? rsaKeyPair.getPrivate().getEncoded() : null, salt, checksum);
+    }
+
+    /**
+     * Streaming variant of decrypt: writes plaintext to output as it goes
+     * Throws AEADBadTagException after the last byte if the payload was
+     * tampered with, so the caller must discard output on failure;
+     * decryptedData in the result is null
+     */
+    public static DecryptionResult decrypt(InputStream input, OutputStream output, byte[] privateKeyBytes)
+            throws Exception {
+        return decrypt(input, output, RecipientKey.privateKey(privateKeyBytes));
+    }
+
+    /**
+     * Streaming decrypt with an already parsed key
+     */
+    public static DecryptionResult decrypt(InputStream input, OutputStream output, PrivateKey rsaPrivateKey)
+            throws Exception {
+        DataInputStream in = new DataInputStream(input);
+
+        byte[] versionBytes = new byte[3];
+        in.readFully(versionBytes);
+        String version = new String(versionBytes, StandardCharsets.UTF_8);
+
+        if (!isRecipientVersion(version)) {
+            throw new Exception("Unsupported file version: " + version);
+        }
+
+        byte[] salt = readField(in);
+        byte[] iv = readField(in);
+        byte[] extBytes = readField(in);
+        byte[] encryptedAESKey = readKeyField(in, version);
+        byte[] storedHmac = readField(in);
+
+        // Decrypt AES key with RSA
+        SecretKey aesKey = unwrapKey(version, encryptedAESKey, rsaPrivateKey);
+
+        boolean verified = openStream(in, output,
+                new StreamingGcm(false, aesKey, iv, extBytes), salt, storedHmac);
+
+        return new DecryptionResult(null, new String(extBytes, StandardCharsets.UTF_8), verified);
+    }
+
+    /**
+     * Password-based encryption using PBKDF2
+     */
+    public static EncryptionResult encryptWithPassword(byte[] inputData, String password, String originalExtension) throws Exception {
+        return encryptWithPassword(inputData, password, originalExtension, null);
+    }
+
+    /**
+     * Password-based encryption with an explicit KDF, written as CP5
+     * A null kdf keeps the calibrated PBKDF2
+     */
+    public static EncryptionResult encryptWithPassword(byte[] inputData, String password, String originalExtension,
+                                                       KdfParams kdf) throws Exception {
+        if (password == null || password.length() < 8) {
+            throw new IllegalArgumentException("Password must be at least 8 characters");
+        }
+
+        SecureRandom random = new SecureRandom();
+
+        // The salt keys the HMAC, as in CS2; the KDF salt lives in the key field
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+
+        // Wrap a fresh data key under the password key, or one derived moments ago
+        SecretKey aesKey = newDataKey(random);
+        byte[] keyField = PasswordEnvelope.wrap(aesKey, sealingKeyFor(password, kdf), random);
+
+        // Generate IV
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        // Encrypt with AES-GCM
+        Cipher aesCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
+        aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, gcmSpec);
+
+        byte[] extBytes = originalExtension.getBytes(StandardCharsets.UTF_8);
+        aesCipher.updateAAD(extBytes);
+
+        byte[] encryptedData = aesCipher.doFinal(inputData);
+
+        // Calculate HMAC
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] hmacValue = hmac.doFinal(encryptedData);
+
+        // Build file
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(ENVELOPE_PASSWORD_VERSION.getBytes(StandardCharsets.UTF_8));
+        output.write(ByteBuffer.allocate(4).putInt(salt.length).array());
+        output.write(salt);
+        output.write(ByteBuffer.allocate(4).putInt(iv.length).array());
+        output.write(iv);
+        output.write(ByteBuffer.allocate(4).putInt(extBytes.length).array());
+        output.write(extBytes);
+        output.write(ByteBuffer.allocate(4).putInt(keyField.length).array());
+        output.write(keyField);
+        output.write(ByteBuffer.allocate(4).putInt(hmacValue.length).array());
+        output.write(hmacValue);
+        output.write(encryptedData);
+
+        byte[] container = output.toByteArray();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String checksum = bytesToHex(digest.digest(container));
+
+        return new EncryptionResult(container, null, salt, checksum);
+    }
+
+    /**
+     * Decrypt password-protected file
+     */
+    public static DecryptionResult decryptWithPassword(byte[] encryptedData, String password) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(encryptedData);
+
+        byte[] versionBytes = new byte[3];
+        buffer.get(versionBytes);
+        String version = new String(versionBytes, StandardCharsets.UTF_8);
+
+        if (!isPasswordVersion(version)) {
+            throw new Exception("Not a password-protected file");
+        }
+
+        int saltLen = buffer.getInt();
+        byte[] salt = new byte[saltLen];
+        buffer.get(salt);
+        KdfParams kdf = null;
+        if (KDF_PASSWORD_VERSION.equals(version)) {
+            int kdfLen = buffer.getInt();
+            if (kdfLen < 0 || kdfLen > MAX_FIELD_LENGTH) {
+                throw new IOException("Corrupted header");
+            }
+            byte[] kdfBytes = new byte[kdfLen];
+            buffer.get(kdfBytes);
+            kdf = KdfParams.decode(kdfBytes);
+        } else if (!ENVELOPE_PASSWORD_VERSION.equals(version)) {
+            kdf = KdfParams.pbkdf2(PASSWORD_VERSION.equals(version) ? buffer.getInt() : LEGACY_PASSWORD_ITERATIONS);
+        }
+
+        int ivLen = buffer.getInt();
+        byte[] iv = new byte[ivLen];
+        buffer.get(iv);
+
+        int extLen = buffer.getInt();
+        byte[] extBytes = new byte[extLen];
+        buffer.get(extBytes);
+        String originalExtension = new String(extBytes, StandardCharsets.UTF_8);
+
+        byte[] keyField = null;
+        if (kdf == null) {
+            int keyLen = buffer.getInt();
+            if (keyLen < 0 || keyLen > MAX_FIELD_LENGTH) {
+                throw new IOException("Corrupted header");
+            }
+            keyField = new byte[keyLen];
+            buffer.get(keyField);
+        }
+
+        int hmacLen = buffer.getInt();
+        byte[] storedHmac = new byte[hmacLen];
+        buffer.get(storedHmac);
+
+        int ciphertextOffset = buffer.position();
+        int ciphertextLength = buffer.remaining();
+
+        // Verify HMAC
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        hmac.update(encryptedData, ciphertextOffset, ciphertextLength);
+        byte[] calculatedHmac = hmac.doFinal();
+        boolean verified = MessageDigest.isEqual(storedHmac, calculatedHmac);
+
+        // Unwrap the data key, or derive the key older versions sealed with
+        SecretKey aesKey = passwordKey(password, salt, kdf, keyField);
+
+        // Decrypt
+        Cipher aesCipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
+        aesCipher.init(Cipher.DECRYPT_MODE, aesKey, gcmSpec);
+        aesCipher.updateAAD(extBytes);
+
+        byte[] decryptedData = aesCipher.doFinal(encryptedData, ciphertextOffset, ciphertextLength);
+
+        return new DecryptionResult(decryptedData, originalExtension, verified);
+    }
+
+    /**
+     * Streaming variant of encryptWithPassword; see encrypt(InputStream, FileChannel, String)
+     */
+    public static EncryptionResult encryptWithPassword(InputStream input, FileChannel output,
+                                                       String password, String originalExtension)
+            throws Exception {
+        return encryptStreamWithPassword(input, output, output, password, originalExtension, null);
+    }
+
+    /**
+     * Streaming variant of encryptWithPassword(byte[], String, String, KdfParams)
+     */
+    public static EncryptionResult encryptWithPassword(InputStream input, FileChannel output,
+                                                       String password, String originalExtension, KdfParams kdf)
+            throws Exception {
+        return encryptStreamWithPassword(input, output, output, password, originalExtension, kdf);
+    }
+
+    /**
+     * Streaming variant of encryptWithPassword; see encrypt(InputStream, FileDescriptor, String)
+     */
+    public static EncryptionResult encryptWithPassword(InputStream input, FileDescriptor output,
+                                                       String password, String originalExtension)
+            throws Exception {
+        return encryptWithPassword(input, output, password, originalExtension, null);
+    }
+
+    /**
+     * Streaming variant of encryptWithPassword(byte[], String, String, KdfParams)
+     */
+    public static EncryptionResult encryptWithPassword(InputStream input, FileDescriptor output,
+                                                       String password, String originalExtension, KdfParams kdf)
+            throws Exception {
+        FileChannel writeChannel = new FileOutputStream(output).getChannel();
+        FileChannel readChannel = new FileInputStream(output).getChannel();
+        return encryptStreamWithPassword(input, writeChannel, readChannel, password, originalExtension, kdf);
+    }
+
+    private static EncryptionResult encryptStreamWithPassword(InputStream input, FileChannel output,
+                                                              FileChannel readBack, String password,
+                                                              String originalExtension, KdfParams kdf)
+            throws Exception {
+        if (password == null || password.length() < 8) {
+            throw new IllegalArgumentException("Password must be at least 8 characters");
+        }
+
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+
+        SecretKey aesKey = newDataKey(random);
+        byte[] keyField = PasswordEnvelope.wrap(aesKey, sealingKeyFor(password, kdf), random);
+
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        byte[] extBytes = originalExtension.getBytes(StandardCharsets.UTF_8);
+        byte[] header = containerHeader(ENVELOPE_PASSWORD_VERSION, salt, iv, extBytes, keyField);
+
+        String checksum = sealStream(input, output, readBack, header,
+                new StreamingGcm(true, aesKey, iv, extBytes), salt);
+
+        return new EncryptionResult(null, null, salt, checksum);
+    }
+
+    /**
+     * Streaming variant of decryptWithPassword; see decrypt(InputStream, OutputStream, byte[])
+     */
+    public static DecryptionResult decryptWithPassword(InputStream input, OutputStream output, String password)
+            throws Exception {
+        DataInputStream in = new DataInputStream(input);
+
+        byte[] versionBytes = new byte[3];
+        in.readFully(versionBytes);
+        String version = new String(versionBytes, StandardCharsets.UTF_8);
+
+        if (!isPasswordVersion(version)) {
+            throw new Exception("Not a password-protected file");
+        }
+
+        byte[] salt = readField(in);
+        KdfParams kdf = readKdfField(in, version);
+        byte[] iv = readField(in);
+        byte[] extBytes = readField(in);
+        byte[] keyField = kdf == null ? readField(in) : null;
+        byte[] storedHmac = readField(in);
+
+        boolean verified = openStream(in, output,
+                new StreamingGcm(false, passwordKey(password, salt, kdf, keyField), iv, extBytes), salt, storedHmac);
+
+        return new DecryptionResult(null, new String(extBytes, StandardCharsets.UTF_8), verified);
+    }
+
+    /**
+     * Checks a CS2 or CS3 container's HMAC and GCM tag without keeping any plaintext
+     * Damage is reported in the result; header and key failures are thrown
+     */
+    public static IntegrityReport verify(InputStream input, byte[] privateKeyBytes) throws Exception {
+        return verify(input, RecipientKey.privateKey(privateKeyBytes));
+    }
+
+    public static IntegrityReport verify(InputStream input, PrivateKey rsaPrivateKey) throws Exception {
+        return verify(input, null, rsaPrivateKey);
+    }
+
+    /**
+     * Same for the password containers; CP5 checks the password against its key
+     * field and throws, while CP2, CP3 and CP4 carry no key check, so a wrong
+     * password fails the GCM tag and is reported as damage
+     */
+    public static IntegrityReport verifyWithPassword(InputStream input, String password) throws Exception {
+        return verify(input, password, null);
+    }
+
+    private static IntegrityReport verify(InputStream input, String password, PrivateKey rsaPrivateKey)
+            throws Exception {
+        long started = System.nanoTime();
+        IntegrityReport.CountingInputStream counted = new IntegrityReport.CountingInputStream(input);
+        DataInputStream in = new DataInputStream(counted);
+
+        byte[] versionBytes = new byte[3];
+        in.readFully(versionBytes);
+        String version = new String(versionBytes, StandardCharsets.UTF_8);
+        if (password != null ? !isPasswordVersion(version) : !isRecipientVersion(version)) {
+            throw new Exception("Unsupported file version: " + version);
+        }
+
+        // Same header walk as the streaming decrypts
+        byte[] salt = readField(in);
+        StreamingGcm gcm;
+        byte[] storedHmac;
+        if (password != null) {
+            KdfParams kdf = readKdfField(in, version);
+            byte[] iv = readField(in);
+            byte[] extBytes = readField(in);
+            byte[] keyField = kdf == null ? readField(in) : null;
+            storedHmac = readField(in);
+            gcm = new StreamingGcm(false, passwordKey(password, salt, kdf, keyField), iv, extBytes);
+        } else {
+            byte[] iv = readField(in);
+            byte[] extBytes = readField(in);
+            byte[] encryptedAESKey = readKeyField(in, version);
+            storedHmac = readField(in);
+            gcm = new StreamingGcm(false, unwrapKey(version, encryptedAESKey, rsaPrivateKey), iv, extBytes);
+        }
+
+        String problem = null;
+        try {
+            if (!openStream(in, IntegrityReport.DISCARD, gcm, salt, storedHmac)) {
+                problem = "HMAC verification failed";
+            }
+        } catch (Exception e) {
+            problem = IntegrityReport.describe(e);
+        }
+        return new IntegrityReport(version, problem == null, true, false, counted.count,
+                System.nanoTime() - started, null, problem);
+    }
+
+    private static PublicKey requireRecipient(PublicKey recipient) {
+        if (recipient == null) {
+            throw new IllegalArgumentException("Recipient key is required");
+        }
+        return recipient;
+    }
+
+    private static List<PublicKey> requireRecipients(List<PublicKey> recipients) {
+        if (recipients == null || recipients.isEmpty()) {
+            throw new IllegalArgumentException("At least one recipient key is required");
+        }
+        return recipients;
+    }
+
+    /**
+     * CS2 or CS3, the versions opened with a private key
+     */
+    public static boolean isRecipientVersion(String version) {
+        return "CS2".equals(version) || MULTI_RECIPIENT_VERSION.equals(version);
+    }
+
+    /**
+     * CP2, CP3, CP4 or CP5; the first three share the layout apart from the KDF
+     * field after the salt, CP5 is laid out like CS2 with a password key field
+     */
+    public static boolean isPasswordVersion(String version) {
+        return ENVELOPE_PASSWORD_VERSION.equals(version) || PASSWORD_VERSION.equals(version)
+                || KDF_PASSWORD_VERSION.equals(version) || LEGACY_PASSWORD_VERSION.equals(version);
+    }
+
+    private static SecretKey newDataKey(SecureRandom random) throws GeneralSecurityException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(AES_KEY_SIZE, random);
+        return keyGen.generateKey();
+    }
+
+    /**
+     * CS3 key field for recipients when set, else the plain OAEP wrap for recipient
+     */
+    private static byte[] wrapKey(SecretKey aesKey, PublicKey recipient, List<PublicKey> recipients)
+            throws Exception {
+        if (recipients != null) {
+            return RecipientList.wrap(aesKey, recipients);
+        }
+        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsaCipher.init(Cipher.ENCRYPT_MODE, recipient);
+        return rsaCipher.doFinal(aesKey.getEncoded());
+    }
+
+    private static SecretKey unwrapKey(String version, byte[] keyField, PrivateKey rsaPrivateKey)
+            throws Exception {
+        if (MULTI_RECIPIENT_VERSION.equals(version)) {
+            return RecipientList.unwrap(keyField, rsaPrivateKey);
+        }
+        Cipher rsaCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        rsaCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
+        byte[] aesKeyBytes = rsaCipher.doFinal(keyField);
+        try {
+            return new SecretKeySpec(aesKeyBytes, "AES");
+        } finally {
+            Arrays.fill(aesKeyBytes, (byte) 0);
+        }
+    }
+
+    private static PasswordKeys.SealingKey sealingKeyFor(String password, KdfParams kdf) throws Exception {
+        char[] passwordChars = password.toCharArray();
+        try {
+            return kdf == null
+                    ? PasswordKeys.forSealing(passwordChars)
+                    : PasswordKeys.forSealing(passwordChars, kdf);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    /**
+     * KDF of the versions that seal with the password key: CP3 [ITERATIONS],
+     * CP4 [KDF_LEN][KDF_PARAMS], CP2 nothing; null for CP5
+     */
+    private static KdfParams readKdfField(DataInputStream in, String version) throws Exception {
+        if (ENVELOPE_PASSWORD_VERSION.equals(version)) {
+            return null;
+        }
+        return KDF_PASSWORD_VERSION.equals(version)
+                ? KdfParams.decode(readField(in))
+                : KdfParams.pbkdf2(PASSWORD_VERSION.equals(version) ? in.readInt() : LEGACY_PASSWORD_ITERATIONS);
+    }
+
+    /**
+     * Payload key of a password container: unwrapped from the CP5 key field,
+     * or for older versions the password key itself
+     */
+    private static SecretKey passwordKey(String password, byte[] salt, KdfParams kdf, byte[] keyField)
+            throws Exception {
+        if (keyField == null) {
+            return deriveKey(password, salt, kdf);
+        }
+        char[] passwordChars = password.toCharArray();
+        try {
+            return PasswordEnvelope.unwrap(keyField, passwordChars);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    private static SecretKey deriveKey(String password, byte[] salt, KdfParams kdf) throws Exception {
+        char[] passwordChars = password.toCharArray();
+        try {
+            return PasswordKeys.derive(passwordChars, salt, kdf);
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    /**
+     * Header: [VERSION][SALT][IV][EXT_LEN][EXTENSION][KEY][HMAC placeholder]
+     * KEY is the RSA-wrapped key in CS2, a RecipientList in CS3 and the
+     * PasswordEnvelope field in CP5
+     */
+    private static byte[] containerHeader(String version, byte[] salt, byte[] iv, byte[] extBytes,
+                                          byte[] keyField) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(version.getBytes(StandardCharsets.UTF_8));
+        header.write(ByteBuffer.allocate(4).putInt(salt.length).array());
+        header.write(salt);
+        header.write(ByteBuffer.allocate(4).putInt(iv.length).array());
+        header.write(iv);
+        header.write(ByteBuffer.allocate(4).putInt(extBytes.length).array());
+        header.write(extBytes);
+        header.write(ByteBuffer.allocate(4).putInt(keyField.length).array());
+        header.write(keyField);
+        header.write(ByteBuffer.allocate(4).putInt(HMAC_LENGTH).array());
+        header.write(new byte[HMAC_LENGTH]);
+        return header.toByteArray();
+    }
+
+    /**
+     * Writes header and payload through fixed buffers, back-patches the HMAC,
+     * then returns the checksum of the finished container
+     */
+    private static String sealStream(InputStream input, FileChannel output, FileChannel readBack,
+                                     byte[] header, StreamingGcm gcm, byte[] salt) throws Exception {
+        long start = output.position();
+        writeFully(output, ByteBuffer.wrap(header));
+
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+
+        byte[] plain = new byte[STREAM_BUFFER_SIZE];
+        byte[] sealed = new byte[STREAM_BUFFER_SIZE + StreamingGcm.TAG_LENGTH];
+        ByteBuffer sealedBuffer = ByteBuffer.wrap(sealed);
+
+        int read;
+        while ((read = input.read(plain)) > 0) {
+            int count = gcm.update(plain, 0, read, sealed, 0);
+            hmac.update(sealed, 0, count);
+            sealedBuffer.clear().limit(count);
+            writeFully(output, sealedBuffer);
+        }
+        int count = gcm.doFinal(sealed, 0);
+        hmac.update(sealed, 0, count);
+        sealedBuffer.clear().limit(count);
+        writeFully(output, sealedBuffer);
+        long end = output.position();
+
+        // HMAC sits right before the payload
+        ByteBuffer hmacValue = ByteBuffer.wrap(hmac.doFinal());
+        long hmacPosition = start + header.length - HMAC_LENGTH;
+        while (hmacValue.hasRemaining()) {
+            hmacPosition += output.write(hmacValue, hmacPosition);
+        }
+
+        // Checksum over the finished container, read back through the same buffer
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (long position = start; position < end; ) {
+            sealedBuffer.clear();
+            int n = readBack.read(sealedBuffer, position);
+            if (n <= 0) throw new IOException("Output truncated while computing checksum");
+            digest.update(sealed, 0, n);
+            position += n;
+        }
+        return bytesToHex(digest.digest());
+    }
+
+    /**
+     * Decrypts the payload through fixed buffers; returns whether the HMAC matched
+     */
+    private static boolean openStream(InputStream input, OutputStream output, StreamingGcm gcm,
+                                      byte[] salt, byte[] storedHmac) throws Exception {
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+
+        byte[] sealed = new byte[STREAM_BUFFER_SIZE];
+        byte[] plain = new byte[STREAM_BUFFER_SIZE + StreamingGcm.TAG_LENGTH];
+
+        int read;
+        while ((read = input.read(sealed)) > 0) {
+            hmac.update(sealed, 0, read);
+            int count = gcm.update(sealed, 0, read, plain, 0);
+            output.write(plain, 0, count);
+        }
+        gcm.doFinal(plain, 0);
+        output.flush();
+
+        boolean verified = MessageDigest.isEqual(storedHmac, hmac.doFinal());
+        if (!verified) {
+            LOG.warning("HMAC verification failed - file may be corrupted or tampered");
+        }
+        return verified;
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        return readField(in, MAX_FIELD_LENGTH);
+    }
+
+    /**
+     * The key field, which only CS3 lets grow past MAX_FIELD_LENGTH
+     */
+    static byte[] readKeyField(DataInputStream in, String version) throws IOException {
+        return readField(in, MULTI_RECIPIENT_VERSION.equals(version) ? RecipientList.MAX_LENGTH : MAX_FIELD_LENGTH);
+    }
+
+    private static byte[] readField(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Corrupted header field length: " + length);
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return field;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
\ No newline at end of file
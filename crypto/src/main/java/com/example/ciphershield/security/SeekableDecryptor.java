@@ -0,0 +1,199 @@
+package com.example.ciphershield.security;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+
+/**
+ * Random access reader for CL3 chunked files
+ * Segments have a fixed ciphertext size, so the segment table is implicit:
+ * segment i starts at headerLength + i * (segmentSize + tag). A read only
+ * decrypts the segments that cover the requested byte range
+ *
+ * Framed files keep the fixed plaintext segments but not the ciphertext
+ * size, so open takes the offset table from the segment index, or walks the
+ * length prefixes once for a compressed file without one
+ */
+public class SeekableDecryptor implements Closeable {
+
+    private final FileChannel channel;
+    private final ChunkedFileHeader header;
+    private final SecretKey key;
+    private final long segmentCiphertextSize;
+    private final long segmentCount;
+    private final long plaintextSize;
+    private final long[] segmentOffsets; // Framed files only: start of each length prefix, then the end
+
+    private final byte[] ciphertext;
+    private final byte[] plaintext;
+    private long cachedSegment = -1;
+    private int cachedLength;
+
+    private SeekableDecryptor(FileChannel channel, ChunkedFileHeader header, SecretKey key) throws Exception {
+        this.channel = channel;
+        this.header = header;
+        this.key = key;
+
+        if (header.isFramed()) {
+            this.segmentCiphertextSize = ParallelSegmentCipher.maxSealedLength(header.segmentSize, header.flags);
+            this.segmentOffsets = header.isIndexed()
+                    ? SegmentIndex.read(channel, key, header.digest).offsets(header.length())
+                    : scanSegments();
+            this.segmentCount = segmentOffsets.length - 1;
+            this.ciphertext = new byte[(int) segmentCiphertextSize];
+            this.plaintext = new byte[header.segmentSize];
+
+            // Only the last segment knows how long the plaintext is
+            loadSegment(segmentCount - 1);
+            this.plaintextSize = (segmentCount - 1) * header.segmentSize + cachedLength;
+            return;
+        }
+
+        this.segmentOffsets = null;
+        this.segmentCiphertextSize = header.segmentSize + (long) ParallelSegmentCipher.GCM_TAG_BYTES;
+
+        long ciphertextSize = channel.size() - header.length();
+        if (ciphertextSize < ParallelSegmentCipher.GCM_TAG_BYTES) {
+            throw new IOException("Truncated chunked file");
+        }
+        this.segmentCount = (ciphertextSize + segmentCiphertextSize - 1) / segmentCiphertextSize;
+        long lastSegmentSize = ciphertextSize - (segmentCount - 1) * segmentCiphertextSize;
+        if (lastSegmentSize < ParallelSegmentCipher.GCM_TAG_BYTES) {
+            throw new IOException("Truncated chunked file");
+        }
+        this.plaintextSize = ciphertextSize - segmentCount * ParallelSegmentCipher.GCM_TAG_BYTES;
+
+        this.ciphertext = new byte[(int) segmentCiphertextSize];
+        this.plaintext = new byte[(int) segmentCiphertextSize];
+    }
+
+    /**
+     * Opens a CL3 file for random access; the channel is closed with this reader
+     */
+    public static SeekableDecryptor open(FileChannel channel, byte[] privateKeyBytes) throws Exception {
+        channel.position(0);
+        ChunkedFileHeader header = ChunkedFileHeader.read(
+                new BufferedInputStream(Channels.newInputStream(channel), 1024));
+        return new SeekableDecryptor(channel, header, header.unwrapKey(privateKeyBytes));
+    }
+
+    /**
+     * Same for a header that was already read and a key already unwrapped
+     */
+    static SeekableDecryptor open(FileChannel channel, ChunkedFileHeader header, SecretKey key) throws Exception {
+        return new SeekableDecryptor(channel, header, key);
+    }
+
+    /**
+     * Plaintext size of the whole file
+     */
+    public long size() {
+        return plaintextSize;
+    }
+
+    public String getOriginalExtension() {
+        return header.getOriginalExtension();
+    }
+
+    /**
+     * Reads up to length plaintext bytes starting at position
+     * Returns -1 at end of file; every touched segment is authenticated
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int length) throws Exception {
+        if (position >= plaintextSize) return -1;
+
+        int total = 0;
+        while (total < length && position < plaintextSize) {
+            long index = position / header.segmentSize;
+            int segmentOffset = (int) (position % header.segmentSize);
+
+            loadSegment(index);
+
+            int count = Math.min(length - total, cachedLength - segmentOffset);
+            System.arraycopy(plaintext, segmentOffset, buffer, offset + total, count);
+            total += count;
+            position += count;
+        }
+        return total;
+    }
+
+    private void loadSegment(long index) throws Exception {
+        // Media players read sequentially in small blocks, so keep the last segment
+        if (index == cachedSegment) return;
+
+        boolean last = index == segmentCount - 1;
+        long start;
+        int size;
+        if (segmentOffsets != null) {
+            start = segmentOffsets[(int) index] + 4;
+            size = (int) (segmentOffsets[(int) index + 1] - start);
+            if (size > segmentCiphertextSize) throw new IOException("Corrupted chunked file");
+        } else {
+            start = header.length() + index * segmentCiphertextSize;
+            size = (int) Math.min(segmentCiphertextSize, channel.size() - start);
+        }
+
+        ByteBuffer target = ByteBuffer.wrap(ciphertext, 0, size);
+        long filePosition = start;
+        while (target.hasRemaining()) {
+            int read = channel.read(target, filePosition);
+            if (read < 0) throw new EOFException("Unexpected end of chunked file");
+            filePosition += read;
+        }
+
+        cachedSegment = -1;
+        cachedLength = segmentOffsets != null
+                ? ParallelSegmentCipher.decryptSegment(key, header.nonce, header.digest, index, last,
+                        header.segmentSize, header.flags, ciphertext, size, plaintext)
+                : ParallelSegmentCipher.decryptSegment(
+                        key, header.nonce, header.digest, index, last, ciphertext, size, plaintext);
+        cachedSegment = index;
+    }
+
+    /**
+     * Offsets of every length prefix plus the end of the file; the prefixes
+     * must tile the file exactly
+     */
+    private long[] scanSegments() throws IOException {
+        long fileSize = channel.size();
+        long[] offsets = new long[16];
+        int count = 0;
+        ByteBuffer length = ByteBuffer.allocate(4);
+
+        long position = header.length();
+        while (position < fileSize) {
+            length.clear();
+            while (length.hasRemaining()) {
+                if (channel.read(length, position + length.position()) < 0) {
+                    throw new IOException("Truncated chunked file");
+                }
+            }
+            int sealed = length.getInt(0);
+            if (sealed < ParallelSegmentCipher.GCM_TAG_BYTES + 1 || sealed > segmentCiphertextSize
+                    || position + 4 + sealed > fileSize) {
+                throw new IOException("Corrupted chunked file");
+            }
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += 4 + sealed;
+        }
+
+        if (count == 0) {
+            throw new IOException("Truncated chunked file");
+        }
+        offsets = Arrays.copyOf(offsets, count + 1);
+        offsets[count] = position;
+        return offsets;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
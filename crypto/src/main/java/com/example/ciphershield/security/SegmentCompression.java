@@ -0,0 +1,204 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage for CL3 segments
+ * A file carrying FLAG_COMPRESSED frames each segment and starts its sealed
+ * plaintext with a codec id, so every segment is compressed or stored on its
+ * own and a reader only needs the codecs that were actually used
+ *
+ * Files whose extension is a known compressed format are not flagged at all;
+ * in flagged files each segment is stored as-is when a byte sample looks
+ * random or when compressing it would not save at least 1/32 of its size
+ */
+public class SegmentCompression {
+
+    public static final int STORED = 0;
+    public static final int DEFLATE = 1;
+    // Reserved for codecs an embedder registers, e.g. LZ4 or Zstd bindings
+    public static final int LZ4 = 2;
+    public static final int ZSTD = 3;
+
+    private static final double MAX_SAMPLE_ENTROPY = 7.5; // Bits per byte; random data is close to 8
+    private static final int ENTROPY_SAMPLE_SIZE = 4096;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            ".jpg", ".jpeg", ".png", ".gif", ".webp", ".heic", ".heif", ".avif",
+            ".mp3", ".aac", ".m4a", ".ogg", ".opus", ".flac",
+            ".mp4", ".m4v", ".mkv", ".webm", ".mov", ".3gp", ".avi",
+            ".zip", ".gz", ".tgz", ".bz2", ".xz", ".7z", ".rar", ".zst", ".lz4",
+            ".apk", ".aab", ".jar", ".docx", ".xlsx", ".pptx", ".odt", ".epub"));
+
+    /**
+     * A block compressor; implementations must be thread-safe, since every
+     * segment worker calls the same instance
+     */
+    public interface Codec {
+        /**
+         * Id written in front of each segment; 0 is reserved for stored segments
+         */
+        int id();
+
+        /**
+         * Returns the compressed length, or -1 if the result does not fit in maxLength
+         */
+        int compress(byte[] input, int offset, int length, byte[] output, int outputOffset, int maxLength);
+
+        /**
+         * Returns the decompressed length; throws if the data is corrupt or
+         * expands past maxLength
+         */
+        int decompress(byte[] input, int offset, int length, byte[] output, int outputOffset, int maxLength)
+                throws IOException;
+    }
+
+    private static final Codec[] codecs = new Codec[256];
+    private static volatile Codec active;
+
+    static {
+        register(new DeflateCodec(Deflater.BEST_SPEED));
+        active = codecs[DEFLATE];
+    }
+
+    /**
+     * Makes a codec available for reading, e.g. an LZ4 binding under LZ4
+     */
+    public static synchronized void register(Codec codec) {
+        if (codec.id() <= STORED || codec.id() >= codecs.length) {
+            throw new IllegalArgumentException("Codec id out of range: " + codec.id());
+        }
+        codecs[codec.id()] = codec;
+    }
+
+    /**
+     * Codec for new files, registering it if needed; null turns compression off
+     */
+    public static void setCodec(Codec codec) {
+        if (codec != null) register(codec);
+        active = codec;
+    }
+
+    /**
+     * Codec for new segments, or null when compression is off
+     */
+    public static Codec codec() {
+        return active;
+    }
+
+    /**
+     * Whether a new file with this extension should carry FLAG_COMPRESSED
+     */
+    public static boolean appliesTo(String originalExtension) {
+        if (active == null) return false;
+        return originalExtension == null
+                || !COMPRESSED_EXTENSIONS.contains(originalExtension.toLowerCase(Locale.ROOT));
+    }
+
+    static Codec codecFor(int id) throws IOException {
+        Codec codec = id > STORED && id < codecs.length ? codecs[id] : null;
+        if (codec == null) {
+            throw new IOException("Segment uses unsupported compression " + id);
+        }
+        return codec;
+    }
+
+    /**
+     * Shannon entropy of an evenly spread sample, so the check costs the same
+     * for every segment size
+     */
+    static boolean looksCompressible(byte[] data, int offset, int length) {
+        if (length == 0) return false;
+        int stride = Math.max(1, length / ENTROPY_SAMPLE_SIZE);
+        int[] counts = new int[256];
+        int samples = 0;
+        for (int i = offset; i < offset + length; i += stride) {
+            counts[data[i] & 0xff]++;
+            samples++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / samples;
+            entropy -= p * Math.log(p);
+        }
+        return entropy / Math.log(2) < MAX_SAMPLE_ENTROPY;
+    }
+
+    /**
+     * Raw deflate without zlib framing; GCM already authenticates each segment
+     */
+    private static class DeflateCodec implements Codec {
+        private final ThreadLocal<Deflater> deflaters;
+        private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater(true);
+            }
+        };
+
+        DeflateCodec(int level) {
+            this.deflaters = new ThreadLocal<Deflater>() {
+                @Override
+                protected Deflater initialValue() {
+                    return new Deflater(level, true);
+                }
+            };
+        }
+
+        @Override
+        public int id() {
+            return DEFLATE;
+        }
+
+        @Override
+        public int compress(byte[] input, int offset, int length, byte[] output, int outputOffset, int maxLength) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+
+            int written = 0;
+            while (!deflater.finished()) {
+                if (written == maxLength) return -1;
+                written += deflater.deflate(output, outputOffset + written, maxLength - written);
+            }
+            return written;
+        }
+
+        @Override
+        public int decompress(byte[] input, int offset, int length, byte[] output, int outputOffset, int maxLength)
+                throws IOException {
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(input, offset, length);
+
+            try {
+                int written = 0;
+                while (!inflater.finished()) {
+                    int count = written < maxLength
+                            ? inflater.inflate(output, outputOffset + written, maxLength - written)
+                            : inflater.inflate(new byte[1]);
+                    if (written == maxLength && count > 0) {
+                        throw new IOException("Segment expands past its size");
+                    }
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated compressed segment");
+                    }
+                    written += count;
+                }
+                return written;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted compressed segment");
+            }
+        }
+    }
+}
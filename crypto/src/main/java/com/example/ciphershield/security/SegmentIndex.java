@@ -0,0 +1,369 @@
+package com.example.ciphershield.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated segment index of an indexed CL3 file (FLAG_INDEXED)
+ * The segments end with a zero length prefix, followed by the trailer:
+ * [ENTRY...][COUNT:8][MAC:32], one entry [SEALED_LEN:4][HASH:32] per segment
+ *
+ * HASH = SHA-256(0x00 || index || length prefix || sealed segment) needs no key,
+ * so any segment can be checked on its own and in any order. The entries
+ * form the leaves of a Merkle tree whose root is MACed, together with the
+ * header digest and the count, under a key derived from the data key; the
+ * lengths also give every segment's offset without walking the file
+ */
+public class SegmentIndex {
+
+    public static final int HASH_SIZE = 32;
+    public static final int ENTRY_SIZE = 4 + HASH_SIZE;
+    static final int FOOTER_SIZE = 8 + 32;
+    private static final byte[] MAC_LABEL = "CL3 segment index".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private byte[] entries;
+    private int count;
+
+    public SegmentIndex() {
+        this.entries = new byte[ENTRY_SIZE * 16];
+    }
+
+    private SegmentIndex(byte[] entries, int count) {
+        this.entries = entries;
+        this.count = count;
+    }
+
+    /**
+     * Outcome of {@link #verify}
+     */
+    public static class Report {
+        public final long segments;
+        public final long checked;
+        public final long bytesChecked;
+        public final List<Long> damaged; // Segment indices whose hash does not match, ascending
+
+        Report(long segments, long checked, long bytesChecked, List<Long> damaged) {
+            this.segments = segments;
+            this.checked = checked;
+            this.bytesChecked = bytesChecked;
+            this.damaged = damaged;
+        }
+
+        public boolean isIntact() {
+            return damaged.isEmpty();
+        }
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Sealed length of segment i, without its length prefix
+     */
+    public int sealedLength(long i) {
+        return ByteBuffer.wrap(entries, (int) i * ENTRY_SIZE, 4).getInt();
+    }
+
+    /**
+     * File offset of the length prefix of every segment, then of the terminator
+     */
+    public long[] offsets(long start) {
+        long[] offsets = new long[count + 1];
+        long position = start;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = position;
+            position += 4 + sealedLength(i);
+        }
+        offsets[count] = position;
+        return offsets;
+    }
+
+    void add(int sealedLength, byte[] hash) {
+        if ((count + 1) * ENTRY_SIZE > entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        ByteBuffer.wrap(entries, count * ENTRY_SIZE, ENTRY_SIZE).putInt(sealedLength).put(hash);
+        count++;
+    }
+
+    /**
+     * Appends segment i of other unchanged, e.g. one an update kept as it was
+     */
+    void addFrom(SegmentIndex other, long i) {
+        add(other.sealedLength(i), Arrays.copyOfRange(other.entries, (int) i * ENTRY_SIZE + 4,
+                (int) (i + 1) * ENTRY_SIZE));
+    }
+
+    /**
+     * Whether other holds exactly the entries from first on
+     */
+    boolean matches(SegmentIndex other, long first) {
+        if (first + other.count != count) return false;
+        int from = (int) first * ENTRY_SIZE;
+        return MessageDigest.isEqual(
+                Arrays.copyOfRange(entries, from, count * ENTRY_SIZE),
+                Arrays.copyOf(other.entries, other.count * ENTRY_SIZE));
+    }
+
+    /**
+     * Leaf hash of one segment; sealed is the segment without its length prefix
+     */
+    static byte[] hash(long index, byte[] sealed, int offset, int length) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update((byte) 0);
+        digest.update(ByteBuffer.allocate(12).putLong(index).putInt(length).array());
+        digest.update(sealed, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * Merkle root over the entries; an odd node is carried up unchanged
+     */
+    public byte[] root() {
+        if (count == 0) return new byte[HASH_SIZE];
+        MessageDigest digest = DIGESTS.get();
+
+        List<byte[]> level = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            digest.update((byte) 2);
+            digest.update(entries, i * ENTRY_SIZE, ENTRY_SIZE);
+            level.add(digest.digest());
+        }
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                digest.update((byte) 1);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                parents.add(digest.digest());
+            }
+            if (level.size() % 2 == 1) parents.add(level.get(level.size() - 1));
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Terminator and trailer, written after the last segment
+     */
+    byte[] toTrailer(SecretKey key, byte[] headerDigest) throws GeneralSecurityException {
+        ByteBuffer trailer = ByteBuffer.allocate(4 + count * ENTRY_SIZE + FOOTER_SIZE);
+        trailer.putInt(0);
+        trailer.put(entries, 0, count * ENTRY_SIZE);
+        trailer.putLong(count);
+        trailer.put(mac(key, headerDigest));
+        return trailer.array();
+    }
+
+    private byte[] mac(SecretKey key, byte[] headerDigest) throws GeneralSecurityException {
+        // Own subkey, so the data key is never used for two purposes
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        byte[] subkey = mac.doFinal(MAC_LABEL);
+        try {
+            mac.init(new SecretKeySpec(subkey, "HmacSHA256"));
+        } finally {
+            Arrays.fill(subkey, (byte) 0);
+        }
+        mac.update(headerDigest);
+        mac.update(ByteBuffer.allocate(8).putLong(count).array());
+        return mac.doFinal(root());
+    }
+
+    /**
+     * Reads the trailer that follows the terminator up to the end of the
+     * stream, checking its MAC
+     */
+    static SegmentIndex readTrailer(InputStream in, SecretKey key, byte[] headerDigest) throws Exception {
+        ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            trailer.write(buffer, 0, read);
+        }
+        return parse(trailer.toByteArray(), key, headerDigest);
+    }
+
+    /**
+     * Reads and authenticates the trailer at the end of an indexed file
+     */
+    public static SegmentIndex read(FileChannel channel, SecretKey key, byte[] headerDigest) throws Exception {
+        long size = channel.size();
+        if (size < FOOTER_SIZE) {
+            throw new IOException("Truncated segment index");
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        readFully(channel, footer, size - FOOTER_SIZE);
+        long count = footer.getLong(0);
+        if (count < 1 || count > (size - FOOTER_SIZE) / ENTRY_SIZE) {
+            throw new IOException("Corrupted segment index");
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate((int) count * ENTRY_SIZE + FOOTER_SIZE);
+        readFully(channel, trailer, size - trailer.capacity());
+        return parse(trailer.array(), key, headerDigest);
+    }
+
+    private static SegmentIndex parse(byte[] trailer, SecretKey key, byte[] headerDigest) throws Exception {
+        if (trailer.length < FOOTER_SIZE + ENTRY_SIZE || (trailer.length - FOOTER_SIZE) % ENTRY_SIZE != 0) {
+            throw new IOException("Corrupted segment index");
+        }
+        int count = (trailer.length - FOOTER_SIZE) / ENTRY_SIZE;
+        ByteBuffer footer = ByteBuffer.wrap(trailer, count * ENTRY_SIZE, FOOTER_SIZE);
+        if (footer.getLong() != count) {
+            throw new IOException("Corrupted segment index");
+        }
+        byte[] storedMac = new byte[32];
+        footer.get(storedMac);
+
+        SegmentIndex index = new SegmentIndex(Arrays.copyOf(trailer, count * ENTRY_SIZE), count);
+        if (!MessageDigest.isEqual(storedMac, index.mac(key, headerDigest))) {
+            throw new IOException("Segment index authentication failed");
+        }
+        return index;
+    }
+
+    /**
+     * Index entries of the first count segments already in a file, e.g. to
+     * resume writing it; -1 lengths or a short file mean it cannot be resumed
+     */
+    public static SegmentIndex rebuild(FileChannel channel, long start, long count, int maxSealed) throws IOException {
+        SegmentIndex index = new SegmentIndex();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        byte[] sealed = new byte[maxSealed];
+        long position = start;
+        for (long i = 0; i < count; i++) {
+            length.clear();
+            readFully(channel, length, position);
+            int sealedLength = length.getInt(0);
+            if (sealedLength < 1 || sealedLength > maxSealed) {
+                throw new IOException("Corrupted segment length at " + position);
+            }
+            readFully(channel, ByteBuffer.wrap(sealed, 0, sealedLength), position + 4);
+            index.add(sealedLength, hash(i, sealed, 0, sealedLength));
+            position += 4 + sealedLength;
+        }
+        return index;
+    }
+
+    /**
+     * Checks segment hashes against the authenticated index on all cores
+     * sample is the fraction of segments to check, from 0 to 1; the last
+     * segment and the layout of the whole file are always checked. The data
+     * key is only needed for the index MAC, nothing is decrypted
+     */
+    public static Report verify(FileChannel channel, ChunkedFileHeader header, SecretKey key, double sample)
+            throws Exception {
+        SegmentIndex index = read(channel, key, header.digest);
+        long[] offsets = index.offsets(header.length());
+        long trailerStart = offsets[index.count];
+        if (trailerStart + 4 + (long) index.count * ENTRY_SIZE + FOOTER_SIZE != channel.size()) {
+            throw new IOException("Segment index does not match the file layout");
+        }
+
+        BitSet chosen = choose(index.count, sample);
+        ExecutorService pool = ParallelSegmentCipher.executor();
+        int batches = Math.max(1, Math.min(ParallelSegmentCipher.THREADS, chosen.cardinality()));
+        List<Future<long[]>> results = new ArrayList<>(batches);
+        List<Long> damaged = Collections.synchronizedList(new ArrayList<>());
+
+        // Each worker takes every batches-th chosen segment, reading with positional reads
+        for (int b = 0; b < batches; b++) {
+            final int batch = b;
+            results.add(pool.submit(() -> {
+                byte[] buffer = new byte[0];
+                long checked = 0;
+                long bytes = 0;
+                int n = 0;
+                for (int i = chosen.nextSetBit(0); i >= 0; i = chosen.nextSetBit(i + 1), n++) {
+                    if (n % batches != batch) continue;
+                    int sealedLength = index.sealedLength(i);
+                    if (buffer.length < sealedLength) buffer = new byte[sealedLength];
+
+                    ByteBuffer prefix = ByteBuffer.allocate(4);
+                    readFully(channel, prefix, offsets[i]);
+                    readFully(channel, ByteBuffer.wrap(buffer, 0, sealedLength), offsets[i] + 4);
+                    byte[] expected = Arrays.copyOfRange(index.entries, i * ENTRY_SIZE + 4, (i + 1) * ENTRY_SIZE);
+                    if (prefix.getInt(0) != sealedLength
+                            || !MessageDigest.isEqual(expected, hash(i, buffer, 0, sealedLength))) {
+                        damaged.add((long) i);
+                    }
+                    checked++;
+                    bytes += 4 + sealedLength;
+                }
+                return new long[]{checked, bytes};
+            }));
+        }
+
+        long checked = 0;
+        long bytes = 0;
+        for (Future<long[]> result : results) {
+            long[] counts;
+            try {
+                counts = result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            }
+            checked += counts[0];
+            bytes += counts[1];
+        }
+
+        List<Long> sorted = new ArrayList<>(damaged);
+        Collections.sort(sorted);
+        return new Report(index.count, checked, bytes, sorted);
+    }
+
+    private static BitSet choose(int count, double sample) {
+        BitSet chosen = new BitSet(count);
+        if (sample >= 1) {
+            chosen.set(0, count);
+            return chosen;
+        }
+        int wanted = (int) Math.ceil(count * Math.max(0, sample));
+        Random random = new Random();
+        chosen.set(count - 1);
+        while (chosen.cardinality() < Math.min(count, Math.max(1, wanted))) {
+            chosen.set(random.nextInt(count));
+        }
+        return chosen;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Truncated chunked file");
+        }
+    }
+}
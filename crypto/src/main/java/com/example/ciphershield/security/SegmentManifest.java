@@ -0,0 +1,200 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Plaintext digests of an updatable CL3 file's segments, kept encrypted next
+ * to it (the CLI uses <name>.csm) so an update can tell which segments
+ * changed without decrypting
+ * Layout: [MAGIC][NONCE:12][GCM([SEGMENT_SIZE:4][COUNT:8][ROOT:32][HASH:32...])]
+ *
+ * The key is derived from the data key and the header digest is the AAD.
+ * ROOT is the root of the SegmentIndex the digests were taken against, so a
+ * manifest left over from an older state of the file is never trusted
+ */
+public class SegmentManifest {
+
+    public static final String MAGIC = "CLM";
+    public static final int HASH_SIZE = 32;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final byte[] KEY_LABEL = "CL3 plaintext manifest".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final int segmentSize;
+    private byte[] indexRoot;
+    private byte[] hashes;
+    private int count;
+
+    SegmentManifest(int segmentSize) {
+        this.segmentSize = segmentSize;
+        this.hashes = new byte[HASH_SIZE * 16];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    void add(byte[] hash) {
+        if ((count + 1) * HASH_SIZE > hashes.length) {
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        System.arraycopy(hash, 0, hashes, count * HASH_SIZE, HASH_SIZE);
+        count++;
+    }
+
+    /**
+     * Whether segment i had exactly this plaintext digest
+     */
+    boolean matches(long i, byte[] hash) {
+        if (i >= count) return false;
+        return MessageDigest.isEqual(hash, Arrays.copyOfRange(hashes, (int) i * HASH_SIZE, (int) (i + 1) * HASH_SIZE));
+    }
+
+    /**
+     * Whether the digests belong to the file as it is now
+     */
+    boolean describes(SegmentIndex index, int segmentSize) {
+        return this.segmentSize == segmentSize && index.size() == count && indexRoot != null
+                && MessageDigest.isEqual(indexRoot, index.root());
+    }
+
+    static byte[] hash(byte[] plain, int offset, int length) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(plain, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * Digests of every segment, taken by decrypting the whole file once
+     * The segment index is checked on the way, as on any decrypt
+     */
+    static SegmentManifest build(FileChannel container, ChunkedFileHeader header, SecretKey key) throws Exception {
+        SegmentManifest manifest = new SegmentManifest(header.segmentSize);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        long[] filled = new long[1];
+
+        // Segments come out whole and in order, but the split does not rely on it
+        WritableByteChannel hashing = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int written = src.remaining();
+                while (src.hasRemaining()) {
+                    int take = (int) Math.min(src.remaining(), header.segmentSize - filled[0]);
+                    ByteBuffer part = src.slice();
+                    part.limit(take);
+                    digest.update(part);
+                    src.position(src.position() + take);
+                    filled[0] += take;
+                    if (filled[0] == header.segmentSize) {
+                        manifest.add(digest.digest());
+                        filled[0] = 0;
+                    }
+                }
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        container.position(header.length());
+        ParallelSegmentCipher.decrypt(container, hashing, key, header.nonce, header.digest,
+                header.segmentSize, header.flags, 0, null);
+        if (filled[0] > 0 || manifest.count == 0) {
+            // Short last segment, or the single empty one of an empty file
+            manifest.add(digest.digest());
+        }
+        return manifest;
+    }
+
+    /**
+     * Authenticates and parses a manifest written by seal
+     */
+    public static SegmentManifest parse(byte[] encoded, SecretKey dataKey, byte[] headerDigest) throws Exception {
+        int nonceOffset = MAGIC.length();
+        int bodyOffset = nonceOffset + ParallelSegmentCipher.GCM_IV_LENGTH;
+        if (encoded.length < bodyOffset + GCM_TAG_LENGTH / 8 + 4 + 8 + HASH_SIZE
+                || !MAGIC.equals(new String(encoded, 0, MAGIC.length(), StandardCharsets.US_ASCII))) {
+            throw new IOException("Not a segment manifest");
+        }
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, manifestKey(dataKey),
+                new GCMParameterSpec(GCM_TAG_LENGTH, encoded, nonceOffset, ParallelSegmentCipher.GCM_IV_LENGTH));
+        cipher.updateAAD(headerDigest);
+        ByteBuffer body = ByteBuffer.wrap(cipher.doFinal(encoded, bodyOffset, encoded.length - bodyOffset));
+
+        SegmentManifest manifest = new SegmentManifest(body.getInt());
+        long count = body.getLong();
+        manifest.indexRoot = new byte[HASH_SIZE];
+        body.get(manifest.indexRoot);
+        if (count < 1 || count * HASH_SIZE != body.remaining()) {
+            throw new IOException("Corrupted segment manifest");
+        }
+        manifest.hashes = new byte[(int) count * HASH_SIZE];
+        body.get(manifest.hashes);
+        manifest.count = (int) count;
+        return manifest;
+    }
+
+    /**
+     * Encrypts the manifest under a fresh nonce, bound to index
+     */
+    public byte[] seal(SecretKey dataKey, byte[] headerDigest, SegmentIndex index) throws Exception {
+        byte[] nonce = new byte[ParallelSegmentCipher.GCM_IV_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+
+        ByteBuffer body = ByteBuffer.allocate(4 + 8 + HASH_SIZE + count * HASH_SIZE);
+        body.putInt(segmentSize).putLong(count).put(index.root()).put(hashes, 0, count * HASH_SIZE);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, manifestKey(dataKey), new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+        cipher.updateAAD(headerDigest);
+        byte[] sealed = cipher.doFinal(body.array());
+
+        ByteBuffer encoded = ByteBuffer.allocate(MAGIC.length() + nonce.length + sealed.length);
+        encoded.put(MAGIC.getBytes(StandardCharsets.US_ASCII)).put(nonce).put(sealed);
+        return encoded.array();
+    }
+
+    private static SecretKey manifestKey(SecretKey dataKey) throws GeneralSecurityException {
+        // Own subkey with random nonces, apart from the segment keys and their derived nonces
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(dataKey.getEncoded(), "HmacSHA256"));
+        byte[] derived = mac.doFinal(KEY_LABEL);
+        try {
+            return new SecretKeySpec(derived, "AES");
+        } finally {
+            Arrays.fill(derived, (byte) 0);
+        }
+    }
+}
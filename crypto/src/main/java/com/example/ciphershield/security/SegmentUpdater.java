@@ -0,0 +1,215 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import javax.crypto.SecretKey;
+
+/**
+ * Rewrites an updatable CL3 file in place from new plaintext
+ * Segments whose plaintext digest matches the manifest keep their sealed
+ * bytes; the others are re-sealed, all under one fresh random key epoch.
+ * A kept segment only moves when an earlier one changed its sealed length,
+ * which is a plain copy. Old segments that a longer write would overrun are
+ * read ahead first, so memory only grows with how far the layout shifts
+ *
+ * Writes go out in batches of up to JOURNAL_BATCH bytes. The bytes each batch
+ * overwrites are first saved to the RollbackJournal and forced, so an update
+ * interrupted at any point rolls back to the old file. The journal holds only
+ * what is rewritten, so its size and fsync count follow the change, not the file
+ */
+class SegmentUpdater {
+
+    private static final int JOURNAL_BATCH = 8 * 1024 * 1024;
+
+    private final FileChannel reader;
+    private final FileChannel writer;
+    private final RollbackJournal journal;
+    private final ChunkedFileHeader header;
+    private final SecretKey key;
+    private final SegmentIndex oldIndex;
+    private final long[] oldOffsets;
+    private final SegmentManifest oldManifest;
+    private final Map<Long, byte[]> readAhead = new HashMap<>();
+    private final List<PendingWrite> pending = new ArrayList<>();
+    private long pendingBytes;
+    private long nextUnread;
+
+    private static class PendingWrite {
+        final byte[] bytes;
+        final long position;
+
+        PendingWrite(byte[] bytes, long position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+    }
+
+    SegmentUpdater(FileChannel reader, FileChannel writer, RollbackJournal journal, ChunkedFileHeader header,
+                   SecretKey key, SegmentIndex oldIndex, SegmentManifest oldManifest) {
+        this.reader = reader;
+        this.writer = writer;
+        this.journal = journal;
+        this.header = header;
+        this.key = key;
+        this.oldIndex = oldIndex;
+        this.oldOffsets = oldIndex.offsets(header.length());
+        this.oldManifest = oldManifest;
+    }
+
+    ChunkedFileCipher.UpdateResult run(InputStream plaintext, boolean manifestRebuilt, LongConsumer progress)
+            throws Exception {
+        int segmentSize = header.segmentSize;
+        long oldCount = oldIndex.size();
+        long epoch = newEpoch();
+
+        SegmentIndex index = new SegmentIndex();
+        SegmentManifest manifest = new SegmentManifest(segmentSize);
+        byte[] current = new byte[segmentSize];
+        byte[] next = new byte[segmentSize];
+        byte[] sealed = new byte[4 + ParallelSegmentCipher.maxSealedLength(segmentSize, header.flags)];
+
+        long position = header.length();
+        long resealed = 0;
+        long moved = 0;
+        long plaintextBytes = 0;
+        int currentLength = ParallelSegmentCipher.readFully(plaintext, current, segmentSize);
+
+        for (long i = 0; ; i++) {
+            // Same split as encrypt: a full segment followed by nothing is the last one
+            int nextLength = currentLength == segmentSize
+                    ? ParallelSegmentCipher.readFully(plaintext, next, segmentSize) : 0;
+            boolean last = nextLength == 0;
+            byte[] hash = SegmentManifest.hash(current, 0, currentLength);
+            manifest.add(hash);
+
+            // The last-segment flag is in the AAD, so a segment that gains or loses it is re-sealed
+            boolean keep = i < oldCount && last == (i == oldCount - 1) && oldManifest.matches(i, hash);
+            if (keep && oldOffsets[(int) i] == position) {
+                index.addFrom(oldIndex, i);
+                position += 4 + oldIndex.sealedLength(i);
+            } else {
+                byte[] bytes;
+                int length;
+                if (keep) {
+                    bytes = takeOld(i);
+                    length = bytes.length;
+                    index.addFrom(oldIndex, i);
+                    moved++;
+                } else {
+                    length = ParallelSegmentCipher.sealSegment(key, header.nonce, header.digest, i, last,
+                            segmentSize, header.flags, epoch, current, currentLength, sealed);
+                    bytes = sealed;
+                    index.add(length - 4, SegmentIndex.hash(i, sealed, 4, length - 4));
+                    resealed++;
+                }
+                readAheadUntil(i, position + length);
+                writeAt(bytes, length, position);
+                position += length;
+            }
+
+            plaintextBytes += currentLength;
+            if (progress != null) progress.accept(plaintextBytes);
+            if (last) break;
+
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+        }
+        readAhead.clear();
+
+        byte[] trailer = index.toTrailer(key, header.digest);
+        writeAt(trailer, trailer.length, position);
+        flush();
+        long end = position + trailer.length;
+        if (end < reader.size()) {
+            // The cut-off tail is restored on rollback too
+            journal.save(end, reader.size() - end);
+            journal.force();
+            writer.truncate(end);
+        }
+        journal.commit(writer);
+
+        return new ChunkedFileCipher.UpdateResult(index.size(), resealed, moved, plaintextBytes,
+                manifestRebuilt, manifest.seal(key, header.digest, index));
+    }
+
+    /**
+     * Old sealed segment i with its length prefix, read ahead earlier or now
+     */
+    private byte[] takeOld(long i) throws IOException {
+        byte[] bytes = readAhead.remove(i);
+        return bytes != null ? bytes : readOld(i);
+    }
+
+    /**
+     * Reads every old segment after i that starts before end and is still on disk
+     */
+    private void readAheadUntil(long i, long end) throws IOException {
+        nextUnread = Math.max(nextUnread, i + 1);
+        while (nextUnread < oldIndex.size() && oldOffsets[(int) nextUnread] < end) {
+            readAhead.put(nextUnread, readOld(nextUnread));
+            nextUnread++;
+        }
+    }
+
+    private byte[] readOld(long i) throws IOException {
+        byte[] bytes = new byte[4 + oldIndex.sealedLength(i)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = oldOffsets[(int) i];
+        while (buffer.hasRemaining()) {
+            int read = reader.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Truncated chunked file");
+        }
+        return bytes;
+    }
+
+    /**
+     * Queues a write; bytes is copied, since the seal buffer is reused
+     */
+    private void writeAt(byte[] bytes, int length, long position) throws IOException {
+        pending.add(new PendingWrite(Arrays.copyOf(bytes, length), position));
+        pendingBytes += length;
+        if (pendingBytes >= JOURNAL_BATCH) {
+            flush();
+        }
+    }
+
+    /**
+     * Journals what the queued writes cover, forces the journal, then writes
+     */
+    private void flush() throws IOException {
+        if (pending.isEmpty()) return;
+        for (PendingWrite write : pending) {
+            journal.save(write.position, write.bytes.length);
+        }
+        journal.force();
+        for (PendingWrite write : pending) {
+            ByteBuffer buffer = ByteBuffer.wrap(write.bytes);
+            long position = write.position;
+            while (buffer.hasRemaining()) {
+                position += writer.write(buffer, position);
+            }
+        }
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    private static long newEpoch() {
+        SecureRandom random = new SecureRandom();
+        long epoch;
+        do {
+            epoch = random.nextLong();
+        } while (epoch == 0);
+        return epoch;
+    }
+}
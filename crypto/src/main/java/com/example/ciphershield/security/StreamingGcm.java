@@ -0,0 +1,294 @@
+package com.example.ciphershield.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * AES-GCM with a 96-bit IV and 128-bit tag, processed incrementally
+ * Output is byte-for-byte what "AES/GCM/NoPadding" produces, but the
+ * platform providers buffer the whole message until doFinal; this runs
+ * AES/CTR for the keystream and computes GHASH itself, so memory stays
+ * constant regardless of the payload size
+ * GHASH multiplies without tables or secret-dependent branches: integer
+ * multiplies on bit-masked operands give a carry-less product (BearSSL's
+ * ctmul64), so timing and cache use do not depend on H or the data
+ *
+ * Decryption releases plaintext before the tag is checked: callers must
+ * discard the output when doFinal throws
+ *
+ * A message is capped at MAX_MESSAGE_LENGTH, the GCM limit of 2^39 - 256
+ * bits. Past 2^32 blocks JCE's CTR would also carry into the IV bytes where
+ * GCM's inc32 wraps, so the output would no longer be GCM
+ */
+class StreamingGcm {
+
+    static final int TAG_LENGTH = 16;
+    static final long MAX_MESSAGE_LENGTH = (1L << 36) - 32;
+    private static final int BLOCK = 16;
+
+    private final boolean encrypt;
+    private final Cipher ctr;
+    private final byte[] tagMask;
+    // H split in halves, their bit reversals and the Karatsuba middle terms
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h0r;
+    private final long h1r;
+    private final long h2r;
+
+    // GHASH state
+    private long yh;
+    private long yl;
+    private final byte[] partial = new byte[BLOCK];
+    private int partialLength;
+    private final long aadLength;
+    long ciphertextLength; // Package-private so tests can start next to the limit
+
+    // Decryption holds back the trailing bytes that may be the tag
+    private final byte[] tail = new byte[TAG_LENGTH];
+    private int tailLength;
+
+    StreamingGcm(boolean encrypt, SecretKey key, byte[] iv, byte[] aad) throws GeneralSecurityException {
+        if (iv.length != ParallelSegmentCipher.GCM_IV_LENGTH) {
+            throw new GeneralSecurityException("Unsupported GCM IV length: " + iv.length);
+        }
+        this.encrypt = encrypt;
+
+        Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+        ecb.init(Cipher.ENCRYPT_MODE, key);
+
+        // H = E(K, 0^128), J0 = IV || 0^31 || 1
+        byte[] h = ecb.doFinal(new byte[BLOCK]);
+        byte[] counter = Arrays.copyOf(iv, BLOCK);
+        counter[BLOCK - 1] = 1;
+        tagMask = ecb.doFinal(counter);
+        h1 = getLong(h, 0);
+        h0 = getLong(h, 8);
+        h2 = h0 ^ h1;
+        h0r = rev64(h0);
+        h1r = rev64(h1);
+        h2r = h0r ^ h1r;
+        Arrays.fill(h, (byte) 0);
+
+        // Payload keystream starts at inc32(J0)
+        counter[BLOCK - 1] = 2;
+        ctr = Cipher.getInstance("AES/CTR/NoPadding");
+        ctr.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+
+        aadLength = aad.length;
+        ghash(aad, 0, aad.length);
+        flushPartial();
+    }
+
+    /**
+     * Processes len input bytes; output needs room for len + TAG_LENGTH bytes
+     * Returns the number of bytes written
+     */
+    int update(byte[] input, int offset, int length, byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+        if (encrypt) {
+            checkLength(length);
+            int written = ctr.update(input, offset, length, output, outputOffset);
+            ghash(output, outputOffset, written);
+            ciphertextLength += written;
+            return written;
+        }
+
+        // Everything but the last TAG_LENGTH bytes seen so far is ciphertext
+        int available = tailLength + length;
+        if (available <= TAG_LENGTH) {
+            System.arraycopy(input, offset, tail, tailLength, length);
+            tailLength = available;
+            return 0;
+        }
+
+        int ready = available - TAG_LENGTH;
+        checkLength(ready);
+        int fromTail = Math.min(ready, tailLength);
+        int fromInput = ready - fromTail;
+
+        int written = 0;
+        if (fromTail > 0) {
+            ghash(tail, 0, fromTail);
+            written += ctr.update(tail, 0, fromTail, output, outputOffset);
+        }
+        if (fromInput > 0) {
+            ghash(input, offset, fromInput);
+            written += ctr.update(input, offset, fromInput, output, outputOffset + written);
+        }
+        ciphertextLength += ready;
+
+        // Keep the unconsumed bytes as the new tail
+        int keepFromTail = tailLength - fromTail;
+        System.arraycopy(tail, fromTail, tail, 0, keepFromTail);
+        System.arraycopy(input, offset + fromInput, tail, keepFromTail, length - fromInput);
+        tailLength = TAG_LENGTH;
+        return written;
+    }
+
+    private void checkLength(int more) throws GeneralSecurityException {
+        if (more > MAX_MESSAGE_LENGTH - ciphertextLength) {
+            throw new GeneralSecurityException("Message exceeds the GCM limit of " + MAX_MESSAGE_LENGTH + " bytes");
+        }
+    }
+
+    /**
+     * Encryption: writes the tag and returns TAG_LENGTH
+     * Decryption: verifies the held-back tag and returns 0
+     */
+    int doFinal(byte[] output, int outputOffset) throws GeneralSecurityException {
+        flushPartial();
+
+        // Length block: bit lengths of AAD and ciphertext
+        yh ^= aadLength * 8;
+        yl ^= ciphertextLength * 8;
+        multiplyH();
+
+        byte[] tag = new byte[TAG_LENGTH];
+        putLong(tag, 0, yh);
+        putLong(tag, 8, yl);
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            tag[i] ^= tagMask[i];
+        }
+
+        if (encrypt) {
+            System.arraycopy(tag, 0, output, outputOffset, TAG_LENGTH);
+            return TAG_LENGTH;
+        }
+
+        if (tailLength < TAG_LENGTH || !MessageDigest.isEqual(tag, tail)) {
+            throw new AEADBadTagException("Tag mismatch");
+        }
+        return 0;
+    }
+
+    private void ghash(byte[] data, int offset, int length) {
+        int end = offset + length;
+
+        if (partialLength > 0) {
+            int count = Math.min(BLOCK - partialLength, length);
+            System.arraycopy(data, offset, partial, partialLength, count);
+            partialLength += count;
+            offset += count;
+            if (partialLength < BLOCK) return;
+            absorb(partial, 0);
+            partialLength = 0;
+        }
+
+        while (end - offset >= BLOCK) {
+            absorb(data, offset);
+            offset += BLOCK;
+        }
+
+        partialLength = end - offset;
+        System.arraycopy(data, offset, partial, 0, partialLength);
+    }
+
+    private void flushPartial() {
+        if (partialLength == 0) return;
+        Arrays.fill(partial, partialLength, BLOCK, (byte) 0);
+        absorb(partial, 0);
+        partialLength = 0;
+    }
+
+    private void absorb(byte[] block, int offset) {
+        yh ^= getLong(block, offset);
+        yl ^= getLong(block, offset + 8);
+        multiplyH();
+    }
+
+    // Y = Y * H in GF(2^128): Karatsuba over 64-bit halves, the high half of
+    // each product taken from the bit-reversed operands, then reduced
+    private void multiplyH() {
+        long y1 = yh;
+        long y0 = yl;
+        long y2 = y0 ^ y1;
+        long y0r = rev64(y0);
+        long y1r = rev64(y1);
+        long y2r = y0r ^ y1r;
+
+        long z0 = bmul64(y0, h0);
+        long z1 = bmul64(y1, h1);
+        long z2 = bmul64(y2, h2);
+        long z0h = bmul64(y0r, h0r);
+        long z1h = bmul64(y1r, h1r);
+        long z2h = bmul64(y2r, h2r);
+        z2 ^= z0 ^ z1;
+        z2h ^= z0h ^ z1h;
+        z0h = rev64(z0h) >>> 1;
+        z1h = rev64(z1h) >>> 1;
+        z2h = rev64(z2h) >>> 1;
+
+        long v0 = z0;
+        long v1 = z0h ^ z2;
+        long v2 = z1 ^ z2h;
+        long v3 = z1h;
+
+        // GCM's reflected bit order: shift the 256-bit product left by one
+        v3 = (v3 << 1) | (v2 >>> 63);
+        v2 = (v2 << 1) | (v1 >>> 63);
+        v1 = (v1 << 1) | (v0 >>> 63);
+        v0 = v0 << 1;
+
+        // Reduce modulo x^128 + x^7 + x^2 + x + 1
+        v2 ^= v0 ^ (v0 >>> 1) ^ (v0 >>> 2) ^ (v0 >>> 7);
+        v1 ^= (v0 << 63) ^ (v0 << 62) ^ (v0 << 57);
+        v3 ^= v1 ^ (v1 >>> 1) ^ (v1 >>> 2) ^ (v1 >>> 7);
+        v2 ^= (v1 << 63) ^ (v1 << 62) ^ (v1 << 57);
+
+        yh = v3;
+        yl = v2;
+    }
+
+    /**
+     * Low 64 bits of the carry-less product of x and y
+     * Operands are split into every fourth bit, so the carries of each integer
+     * multiply land in bits that are masked off afterwards
+     */
+    private static long bmul64(long x, long y) {
+        long x0 = x & 0x1111111111111111L;
+        long x1 = x & 0x2222222222222222L;
+        long x2 = x & 0x4444444444444444L;
+        long x3 = x & 0x8888888888888888L;
+        long y0 = y & 0x1111111111111111L;
+        long y1 = y & 0x2222222222222222L;
+        long y2 = y & 0x4444444444444444L;
+        long y3 = y & 0x8888888888888888L;
+        long z0 = (x0 * y0) ^ (x1 * y3) ^ (x2 * y2) ^ (x3 * y1);
+        long z1 = (x0 * y1) ^ (x1 * y0) ^ (x2 * y3) ^ (x3 * y2);
+        long z2 = (x0 * y2) ^ (x1 * y1) ^ (x2 * y0) ^ (x3 * y3);
+        long z3 = (x0 * y3) ^ (x1 * y2) ^ (x2 * y1) ^ (x3 * y0);
+        return (z0 & 0x1111111111111111L) | (z1 & 0x2222222222222222L)
+                | (z2 & 0x4444444444444444L) | (z3 & 0x8888888888888888L);
+    }
+
+    private static long rev64(long x) {
+        x = ((x & 0x5555555555555555L) << 1) | ((x >>> 1) & 0x5555555555555555L);
+        x = ((x & 0x3333333333333333L) << 2) | ((x >>> 2) & 0x3333333333333333L);
+        x = ((x & 0x0F0F0F0F0F0F0F0FL) << 4) | ((x >>> 4) & 0x0F0F0F0F0F0F0F0FL);
+        x = ((x & 0x00FF00FF00FF00FFL) << 8) | ((x >>> 8) & 0x00FF00FF00FF00FFL);
+        x = ((x & 0x0000FFFF0000FFFFL) << 16) | ((x >>> 16) & 0x0000FFFF0000FFFFL);
+        return (x << 32) | (x >>> 32);
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (b[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] b, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.ciphershield.security;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted files stored under their original paths, with an encrypted index
+ * Layout of the vault directory:
+ * - vault.hdr: a CL3 header with no payload, its key block wraps the vault key
+ * - index.root and index-<ID>.cvi: the paged name index, see VaultIndex
+ * - blobs/<xx>/<BLOB_ID>.csb: one CL3 container per file with FLAG_VAULT and
+ *   an empty extension, so no blob header hints at what it holds
+ *
+ * Blob keys are derived from the vault key, the blob id and the blob header,
+ * so adding a file costs no key pair or KDF run, and a blob moved under
+ * another id no longer opens. Paths, sizes and times live only in the index:
+ * listing and lookup never touch a blob.
+ *
+ * Changes are visible after commit, which close also does. Blobs replaced or
+ * removed are deleted only then; blobs written by an add that was never
+ * committed are left behind unreferenced
+ */
+public class Vault implements Closeable {
+
+    public static final String HEADER_FILE = "vault.hdr";
+    static final int BLOB_ID_LENGTH = 16;
+    private static final String BLOB_DIRECTORY = "blobs";
+    private static final String BLOB_SUFFIX = ".csb";
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final byte[] INDEX_LABEL = "CV index".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BLOB_LABEL = "CV blob".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * One stored file; modified is carried through as-is, in epoch millis
+     */
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final long modified;
+        private final byte[] blobId;
+
+        Entry(String path, long size, long modified, byte[] blobId) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.blobId = blobId;
+        }
+
+        byte[] blobId() {
+            return blobId;
+        }
+    }
+
+    private final Path root;
+    private final SecretKey vaultKey;
+    private final VaultIndex index;
+    private final SecureRandom random = new SecureRandom();
+    private final List<byte[]> orphanedBlobs = new ArrayList<>();
+
+    private Vault(Path root, ChunkedFileHeader header, SecretKey vaultKey) throws Exception {
+        this.root = root;
+        this.vaultKey = vaultKey;
+        this.index = VaultIndex.open(root, derive(vaultKey, INDEX_LABEL, header.digest), header.digest);
+    }
+
+    /**
+     * Creates an empty vault in root, wrapped to a recipient key
+     */
+    public static Vault create(Path root, PublicKey recipient) throws Exception {
+        if (recipient == null) {
+            throw new IllegalArgumentException("Recipient key is required");
+        }
+        return create(root, null, recipient);
+    }
+
+    /**
+     * Creates an empty vault in root under a password; the KDF runs once per open
+     */
+    public static Vault createWithPassword(Path root, String password) throws Exception {
+        if (password == null || password.length() < 8) {
+            throw new IllegalArgumentException("Password must be at least 8 characters");
+        }
+        return create(root, password, null);
+    }
+
+    private static Vault create(Path root, String password, PublicKey recipient) throws Exception {
+        Files.createDirectories(root);
+        Path headerFile = root.resolve(HEADER_FILE);
+        if (Files.exists(headerFile)) {
+            throw new IOException("A vault already exists in " + root);
+        }
+        ChunkedFileCipher.SealingKeys keys = ChunkedFileCipher.newSealingKeys("", password, recipient, 0);
+        Files.write(headerFile, keys.header.toBytes(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new Vault(root, keys.header, keys.dataKey);
+    }
+
+    public static Vault open(Path root, PrivateKey privateKey) throws Exception {
+        ChunkedFileHeader header = readHeader(root);
+        return new Vault(root, header, header.unwrapKey(privateKey));
+    }
+
+    public static Vault openWithPassword(Path root, String password) throws Exception {
+        ChunkedFileHeader header = readHeader(root);
+        char[] passwordChars = password.toCharArray();
+        try {
+            return new Vault(root, header, header.unwrapKey(passwordChars));
+        } finally {
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    /**
+     * Whether root holds a vault, and whether it is password-protected, without opening it
+     */
+    public static boolean isVault(Path root) {
+        return Files.isRegularFile(root.resolve(HEADER_FILE));
+    }
+
+    public static boolean isPasswordProtected(Path root) throws Exception {
+        return readHeader(root).isPasswordProtected();
+    }
+
+    public synchronized long size() {
+        return index.size();
+    }
+
+    /**
+     * The entry stored under exactly this path, or null
+     */
+    public synchronized Entry find(String path) throws Exception {
+        return index.find(path);
+    }
+
+    /**
+     * Entries whose path starts with prefix, in path order
+     * Index pages are decrypted as the iteration reaches them; do not change
+     * the vault while iterating
+     */
+    public synchronized Iterator<Entry> list(String prefix) throws Exception {
+        return index.list(prefix);
+    }
+
+    /**
+     * Encrypts source into a new blob and stores it under path, replacing any
+     * entry already there
+     */
+    public synchronized Entry add(String path, CryptoSource source, long modified,
+                                  ChunkedFileCipher.ProgressCallback callback) throws Exception {
+        byte[] blobId = new byte[BLOB_ID_LENGTH];
+        random.nextBytes(blobId);
+        Path blob = blobPath(blobId);
+        Files.createDirectories(blob.getParent());
+        Path partial = blob.resolveSibling(blob.getFileName() + ".part");
+
+        int flags = ChunkedFileHeader.FLAG_INDEXED | ChunkedFileHeader.FLAG_UPDATABLE | ChunkedFileHeader.FLAG_VAULT;
+        // Not chosen by extension, which would show the file type; each segment's entropy sample decides instead
+        if (SegmentCompression.codec() != null) {
+            flags |= ChunkedFileHeader.FLAG_COMPRESSED;
+        }
+        byte[] nonce = new byte[ParallelSegmentCipher.GCM_IV_LENGTH];
+        random.nextBytes(nonce);
+        // The key block carries the blob id, which the blob key is derived from
+        ChunkedFileHeader header = ChunkedFileHeader.create(flags, SEGMENT_SIZE, nonce, "", blobId);
+
+        // The size comes from what was actually read; the final report carries it
+        long[] size = new long[1];
+        ChunkedFileCipher.ProgressCallback counting = new ChunkedFileCipher.ProgressCallback() {
+            @Override
+            public void onProgress(int percentage, long bytesProcessed, long totalBytes) {
+                size[0] = Math.max(size[0], bytesProcessed);
+                if (callback != null) callback.onProgress(percentage, bytesProcessed, totalBytes);
+            }
+
+            @Override
+            public void onComplete() {
+                if (callback != null) callback.onComplete();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (callback != null) callback.onError(e);
+            }
+        };
+
+        try {
+            ChunkedFileCipher.encryptSegments(source, PathIO.sink(partial), header,
+                    blobKey(vaultKey, header, blobId), counting);
+            Files.move(partial, blob, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        Entry entry = new Entry(path, size[0], modified, blobId);
+        Entry replaced = index.put(entry);
+        if (replaced != null) orphanedBlobs.add(replaced.blobId);
+        return entry;
+    }
+
+    /**
+     * Decrypts the blob of entry to sink
+     */
+    public synchronized void extract(Entry entry, CryptoSink sink, ChunkedFileCipher.ProgressCallback callback)
+            throws Exception {
+        ChunkedFileCipher.decryptVaultBlob(PathIO.source(blobPath(entry.blobId)), sink, vaultKey, entry.blobId,
+                callback);
+    }
+
+    /**
+     * Random access to the plaintext of entry, e.g. for streaming media
+     */
+    public synchronized SeekableDecryptor openSeekable(Entry entry) throws Exception {
+        FileChannel channel = FileChannel.open(blobPath(entry.blobId), StandardOpenOption.READ);
+        try {
+            ChunkedFileHeader header = ChunkedFileHeader.read(
+                    new BufferedInputStream(Channels.newInputStream(channel), 1024));
+            return SeekableDecryptor.open(channel, header, blobKey(vaultKey, header, entry.blobId));
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the entry stored under path; returns it, or null if there was none
+     */
+    public synchronized Entry remove(String path) throws Exception {
+        Entry removed = index.remove(path);
+        if (removed != null) orphanedBlobs.add(removed.blobId);
+        return removed;
+    }
+
+    /**
+     * Makes every change since the last commit visible, then deletes the blobs
+     * no entry refers to anymore
+     */
+    public synchronized void commit() throws Exception {
+        index.commit();
+        for (byte[] blobId : orphanedBlobs) {
+            Files.deleteIfExists(blobPath(blobId));
+        }
+        orphanedBlobs.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Data key of a vault blob, checked against the id its entry expects
+     */
+    static SecretKey blobKey(SecretKey vaultKey, ChunkedFileHeader header, byte[] blobId) throws Exception {
+        if (!header.isVaultBlob() || !MessageDigest.isEqual(header.keyBlock, blobId)) {
+            throw new Exception("Blob does not belong to this vault entry");
+        }
+        return derive(vaultKey, BLOB_LABEL, header.keyBlock, header.digest);
+    }
+
+    private static SecretKey derive(SecretKey key, byte[] label, byte[]... parts) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        mac.update(label);
+        for (byte[] part : parts) {
+            mac.update(part);
+        }
+        byte[] derived = mac.doFinal();
+        try {
+            return new SecretKeySpec(derived, "AES");
+        } finally {
+            Arrays.fill(derived, (byte) 0);
+        }
+    }
+
+    private static ChunkedFileHeader readHeader(Path root) throws Exception {
+        Path headerFile = root.resolve(HEADER_FILE);
+        if (!Files.isRegularFile(headerFile)) {
+            throw new IOException("No vault in " + root);
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(headerFile))) {
+            return ChunkedFileHeader.read(in);
+        }
+    }
+
+    private Path blobPath(byte[] blobId) {
+        String name = toHex(blobId);
+        // Spread over 256 directories so none of them grows past a few hundred files per 100k
+        return root.resolve(BLOB_DIRECTORY).resolve(name.substring(0, 2)).resolve(name + BLOB_SUFFIX);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
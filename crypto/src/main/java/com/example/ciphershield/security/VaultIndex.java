@@ -0,0 +1,536 @@
+package com.example.ciphershield.security;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypted name index of a Vault: entries sorted by path, split into pages
+ * of at most MAX_PAGE_ENTRIES that are sealed one by one
+ * index-<ID>.cvi holds the sealed pages, each [NONCE:12][GCM(page)] bound to
+ * the file id and its offset. index.root is the only page read on open:
+ * [MAGIC][NONCE:12][GCM([FILE_ID:16][FILE_LENGTH:8][GARBAGE:8][PAGE_COUNT:4]
+ * then [FIRST_LENGTH:2][FIRST_PATH][OFFSET:8][LENGTH:4][COUNT:4] per page)]
+ *
+ * A lookup is a binary search over the root and one page decrypt; listing
+ * decrypts pages as the iteration reaches them, and only CACHED_PAGES of them
+ * stay in memory. Changed pages are appended, never rewritten, and become
+ * visible when commit replaces index.root, so an interrupted commit leaves the
+ * previous index intact. Once dead pages outweigh live ones the file is
+ * rewritten under a new id
+ */
+class VaultIndex implements Closeable {
+
+    static final String ROOT_FILE = "index.root";
+    private static final String ROOT_MAGIC = "CVR";
+    private static final int FILE_ID_LENGTH = 16;
+    private static final int BLOB_ID_LENGTH = Vault.BLOB_ID_LENGTH;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final int MAX_PATH_LENGTH = 0xFFFF;
+    private static final int MAX_PAGE_ENTRIES = 256;
+    private static final int CACHED_PAGES = 256;
+    private static final int MAX_DIRTY_PAGES = 1024; // Appended early, still invisible until commit
+    private static final long MIN_COMPACT_GARBAGE = 1024 * 1024;
+
+    /**
+     * One page as the root sees it; entries is null until the page is read
+     */
+    private static class Page {
+        String first;
+        long offset = -1;
+        int length;
+        int count;
+        List<Vault.Entry> entries;
+        boolean dirty;
+    }
+
+    private final Path directory;
+    private final SecretKey key;
+    private final byte[] headerDigest;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Page> pages = new ArrayList<>();
+    private final LinkedHashMap<Page, Boolean> loaded = new LinkedHashMap<>(16, 0.75f, true);
+
+    private byte[] fileId;
+    private FileChannel file;
+    private long fileLength;
+    private long garbage;
+    private int dirtyPages;
+
+    private VaultIndex(Path directory, SecretKey key, byte[] headerDigest) {
+        this.directory = directory;
+        this.key = key;
+        this.headerDigest = headerDigest;
+    }
+
+    /**
+     * Reads index.root, or starts an empty index when there is none yet
+     */
+    static VaultIndex open(Path directory, SecretKey key, byte[] headerDigest) throws Exception {
+        VaultIndex index = new VaultIndex(directory, key, headerDigest);
+        Path root = directory.resolve(ROOT_FILE);
+        if (Files.exists(root)) {
+            index.readRoot(Files.readAllBytes(root));
+        } else {
+            index.fileId = new byte[FILE_ID_LENGTH];
+            index.random.nextBytes(index.fileId);
+        }
+        index.file = FileChannel.open(index.indexFile(index.fileId), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Pages appended by a commit that never finished
+        if (index.file.size() > index.fileLength) {
+            index.file.truncate(index.fileLength);
+        }
+        return index;
+    }
+
+    long size() {
+        long total = 0;
+        for (Page page : pages) {
+            total += page.count;
+        }
+        return total;
+    }
+
+    Vault.Entry find(String path) throws Exception {
+        int p = pageFor(path);
+        if (p < 0) return null;
+        List<Vault.Entry> entries = load(pages.get(p));
+        int i = search(entries, path);
+        return i >= 0 ? entries.get(i) : null;
+    }
+
+    /**
+     * Entries whose path starts with prefix, in path order, read page by page
+     */
+    Iterator<Vault.Entry> list(String prefix) throws Exception {
+        int startPage = Math.max(0, pageFor(prefix));
+        return new Iterator<Vault.Entry>() {
+            private int page = startPage;
+            private int position = -1;
+            private Vault.Entry next = advance();
+
+            private Vault.Entry advance() {
+                try {
+                    while (page < pages.size()) {
+                        List<Vault.Entry> entries = load(pages.get(page));
+                        if (position < 0) {
+                            int i = search(entries, prefix);
+                            position = i >= 0 ? i : -i - 1;
+                        }
+                        if (position < entries.size()) {
+                            Vault.Entry entry = entries.get(position++);
+                            return entry.path.startsWith(prefix) ? entry : null;
+                        }
+                        page++;
+                        position = 0;
+                    }
+                    return null;
+                } catch (Exception e) {
+                    throw new IllegalStateException("Cannot read vault index: " + e.getMessage(), e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Vault.Entry next() {
+                if (next == null) throw new NoSuchElementException();
+                Vault.Entry entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Adds or replaces the entry for entry.path; returns the one it replaced
+     */
+    Vault.Entry put(Vault.Entry entry) throws Exception {
+        if (entry.path.isEmpty() || entry.path.getBytes(StandardCharsets.UTF_8).length > MAX_PATH_LENGTH) {
+            throw new IllegalArgumentException("Invalid vault path: " + entry.path);
+        }
+        if (pages.isEmpty()) {
+            Page page = new Page();
+            page.first = entry.path;
+            page.entries = new ArrayList<>();
+            pages.add(page);
+            loaded.put(page, Boolean.TRUE);
+        }
+
+        int p = Math.max(0, pageFor(entry.path));
+        Page page = pages.get(p);
+        List<Vault.Entry> entries = load(page);
+        int i = search(entries, entry.path);
+        Vault.Entry replaced = null;
+        if (i >= 0) {
+            replaced = entries.set(i, entry);
+        } else {
+            entries.add(-i - 1, entry);
+        }
+        touch(page);
+
+        if (entries.size() > MAX_PAGE_ENTRIES) {
+            Page upper = new Page();
+            upper.entries = new ArrayList<>(entries.subList(entries.size() / 2, entries.size()));
+            entries.subList(entries.size() / 2, entries.size()).clear();
+            pages.add(p + 1, upper);
+            loaded.put(upper, Boolean.TRUE);
+            touch(page);
+            touch(upper);
+        }
+        if (dirtyPages > MAX_DIRTY_PAGES) {
+            writeDirtyPages();
+        }
+        return replaced;
+    }
+
+    Vault.Entry remove(String path) throws Exception {
+        int p = pageFor(path);
+        if (p < 0) return null;
+        Page page = pages.get(p);
+        List<Vault.Entry> entries = load(page);
+        int i = search(entries, path);
+        if (i < 0) return null;
+
+        Vault.Entry removed = entries.remove(i);
+        if (entries.isEmpty()) {
+            pages.remove(p);
+            loaded.remove(page);
+            if (page.dirty) dirtyPages--;
+            if (page.offset >= 0) garbage += page.length;
+        } else {
+            touch(page);
+        }
+        return removed;
+    }
+
+    /**
+     * Seals the changed pages and makes them visible by replacing index.root
+     */
+    void commit() throws Exception {
+        writeDirtyPages();
+        file.force(false);
+        writeRoot();
+
+        long live = fileLength - garbage;
+        if (garbage > MIN_COMPACT_GARBAGE && garbage > live) {
+            compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private Path indexFile(byte[] id) {
+        return directory.resolve("index-" + Vault.toHex(id) + ".cvi");
+    }
+
+    /**
+     * Last page whose first path is not after path, or -1 if path sorts before every page
+     */
+    private int pageFor(String path) {
+        int low = 0;
+        int high = pages.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (pages.get(mid).first.compareTo(path) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // Paths before the first page still belong to it
+        return found < 0 && !pages.isEmpty() ? 0 : found;
+    }
+
+    private static int search(List<Vault.Entry> entries, String path) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = entries.get(mid).path.compareTo(path);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void touch(Page page) {
+        if (!page.dirty) {
+            page.dirty = true;
+            dirtyPages++;
+        }
+        page.first = page.entries.get(0).path;
+        page.count = page.entries.size();
+    }
+
+    private List<Vault.Entry> load(Page page) throws Exception {
+        if (page.entries != null) {
+            loaded.get(page);
+            return page.entries;
+        }
+        page.entries = decodeEntries(ByteBuffer.wrap(openPage(readPage(page.offset, page.length), fileId, page.offset)));
+        if (page.entries.size() != page.count || !page.entries.get(0).path.equals(page.first)) {
+            throw new IOException("Corrupted vault index");
+        }
+        loaded.put(page, Boolean.TRUE);
+
+        // Drop the least recently used clean pages; dirty ones wait for the next write
+        Iterator<Page> eldest = loaded.keySet().iterator();
+        while (loaded.size() > CACHED_PAGES && eldest.hasNext()) {
+            Page candidate = eldest.next();
+            if (!candidate.dirty && candidate != page) {
+                candidate.entries = null;
+                eldest.remove();
+            }
+        }
+        return page.entries;
+    }
+
+    private void writeDirtyPages() throws Exception {
+        for (Page page : pages) {
+            if (!page.dirty) continue;
+            if (page.offset >= 0) garbage += page.length;
+            byte[] sealed = sealPage(encodePage(page.entries), fileId, fileLength);
+            writeAt(file, sealed, fileLength);
+            page.offset = fileLength;
+            page.length = sealed.length;
+            page.dirty = false;
+            fileLength += sealed.length;
+        }
+        dirtyPages = 0;
+    }
+
+    /**
+     * Rewrites every live page into a new index file, then drops the old one
+     */
+    private void compact() throws Exception {
+        byte[] newId = new byte[FILE_ID_LENGTH];
+        random.nextBytes(newId);
+        Path newPath = indexFile(newId);
+        long[] offsets = new long[pages.size()];
+        int[] lengths = new int[pages.size()];
+        long length = 0;
+
+        try (FileChannel target = FileChannel.open(newPath, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            for (int i = 0; i < pages.size(); i++) {
+                Page page = pages.get(i);
+                // Pages move without being decoded; only the binding to file and offset changes
+                byte[] plain = page.entries != null
+                        ? encodePage(page.entries) : openPage(readPage(page.offset, page.length), fileId, page.offset);
+                byte[] sealed = sealPage(plain, newId, length);
+                writeAt(target, sealed, length);
+                offsets[i] = length;
+                lengths[i] = sealed.length;
+                length += sealed.length;
+            }
+            target.force(false);
+        }
+
+        Path oldPath = indexFile(fileId);
+        FileChannel oldFile = file;
+        fileId = newId;
+        fileLength = length;
+        garbage = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            pages.get(i).offset = offsets[i];
+            pages.get(i).length = lengths[i];
+        }
+        file = FileChannel.open(newPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeRoot();
+
+        oldFile.close();
+        Files.deleteIfExists(oldPath);
+    }
+
+    private void writeRoot() throws Exception {
+        List<byte[]> firsts = new ArrayList<>(pages.size());
+        int size = FILE_ID_LENGTH + 8 + 8 + 4;
+        for (Page page : pages) {
+            byte[] first = page.first.getBytes(StandardCharsets.UTF_8);
+            firsts.add(first);
+            size += 2 + first.length + 8 + 4 + 4;
+        }
+        ByteBuffer body = ByteBuffer.allocate(size);
+        body.put(fileId).putLong(fileLength).putLong(garbage).putInt(pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            body.putShort((short) firsts.get(i).length).put(firsts.get(i))
+                    .putLong(page.offset).putInt(page.length).putInt(page.count);
+        }
+
+        byte[] nonce = new byte[ParallelSegmentCipher.GCM_IV_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+        cipher.updateAAD(headerDigest);
+        byte[] sealed = cipher.doFinal(body.array());
+
+        ByteBuffer encoded = ByteBuffer.allocate(ROOT_MAGIC.length() + nonce.length + sealed.length);
+        encoded.put(ROOT_MAGIC.getBytes(StandardCharsets.US_ASCII)).put(nonce).put(sealed);
+
+        Path root = directory.resolve(ROOT_FILE);
+        Path partial = directory.resolve(ROOT_FILE + ".part");
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeAt(out, encoded.array(), 0);
+            out.force(false);
+        }
+        Files.move(partial, root, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readRoot(byte[] encoded) throws Exception {
+        int nonceOffset = ROOT_MAGIC.length();
+        int bodyOffset = nonceOffset + ParallelSegmentCipher.GCM_IV_LENGTH;
+        if (encoded.length < bodyOffset + GCM_TAG_LENGTH / 8
+                || !ROOT_MAGIC.equals(new String(encoded, 0, nonceOffset, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not a vault index");
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(GCM_TAG_LENGTH, encoded, nonceOffset, ParallelSegmentCipher.GCM_IV_LENGTH));
+        cipher.updateAAD(headerDigest);
+        ByteBuffer body = ByteBuffer.wrap(cipher.doFinal(encoded, bodyOffset, encoded.length - bodyOffset));
+
+        try {
+            fileId = new byte[FILE_ID_LENGTH];
+            body.get(fileId);
+            fileLength = body.getLong();
+            garbage = body.getLong();
+            int count = body.getInt();
+            if (count < 0 || fileLength < 0) throw new IOException("Corrupted vault index");
+            for (int i = 0; i < count; i++) {
+                Page page = new Page();
+                byte[] first = new byte[body.getShort() & 0xFFFF];
+                body.get(first);
+                page.first = new String(first, StandardCharsets.UTF_8);
+                page.offset = body.getLong();
+                page.length = body.getInt();
+                page.count = body.getInt();
+                if (page.offset < 0 || page.length <= 0 || page.offset > fileLength - page.length
+                        || page.count <= 0) {
+                    throw new IOException("Corrupted vault index");
+                }
+                pages.add(page);
+            }
+            if (body.hasRemaining()) throw new IOException("Corrupted vault index");
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted vault index");
+        }
+    }
+
+    private byte[] readPage(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Truncated vault index");
+            }
+        }
+        return buffer.array();
+    }
+
+    private byte[] sealPage(byte[] plain, byte[] id, long offset) throws Exception {
+        byte[] nonce = new byte[ParallelSegmentCipher.GCM_IV_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+        cipher.updateAAD(pageAad(id, offset));
+        byte[] sealed = cipher.doFinal(plain);
+        return ByteBuffer.allocate(nonce.length + sealed.length).put(nonce).put(sealed).array();
+    }
+
+    private byte[] openPage(byte[] sealed, byte[] id, long offset) throws Exception {
+        if (sealed.length < ParallelSegmentCipher.GCM_IV_LENGTH + GCM_TAG_LENGTH / 8) {
+            throw new IOException("Corrupted vault index");
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(GCM_TAG_LENGTH, sealed, 0, ParallelSegmentCipher.GCM_IV_LENGTH));
+        cipher.updateAAD(pageAad(id, offset));
+        return cipher.doFinal(sealed, ParallelSegmentCipher.GCM_IV_LENGTH,
+                sealed.length - ParallelSegmentCipher.GCM_IV_LENGTH);
+    }
+
+    /**
+     * A page only opens at the offset, and in the index file, the root says it is at
+     */
+    private byte[] pageAad(byte[] id, long offset) {
+        return ByteBuffer.allocate(headerDigest.length + id.length + 8)
+                .put(headerDigest).put(id).putLong(offset).array();
+    }
+
+    private static List<Vault.Entry> decodeEntries(ByteBuffer page) throws IOException {
+        try {
+            int count = page.getInt();
+            if (count <= 0 || count > MAX_PAGE_ENTRIES) throw new IOException("Corrupted vault index");
+            List<Vault.Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] path = new byte[page.getShort() & 0xFFFF];
+                page.get(path);
+                long size = page.getLong();
+                long modified = page.getLong();
+                byte[] blobId = new byte[BLOB_ID_LENGTH];
+                page.get(blobId);
+                entries.add(new Vault.Entry(new String(path, StandardCharsets.UTF_8), size, modified, blobId));
+            }
+            if (page.hasRemaining()) throw new IOException("Corrupted vault index");
+            return entries;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted vault index");
+        }
+    }
+
+    private static byte[] encodePage(List<Vault.Entry> entries) {
+        List<byte[]> paths = new ArrayList<>(entries.size());
+        int size = 4;
+        for (Vault.Entry entry : entries) {
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            paths.add(path);
+            size += 2 + path.length + 8 + 8 + BLOB_ID_LENGTH;
+        }
+        ByteBuffer page = ByteBuffer.allocate(size);
+        page.putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Vault.Entry entry = entries.get(i);
+            page.putShort((short) paths.get(i).length).put(paths.get(i))
+                    .putLong(entry.size).putLong(entry.modified).put(entry.blobId());
+        }
+        return page.array();
+    }
+
+    private static void writeAt(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.ciphershield.security;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.example.ciphershield.security.TestBytes.randomBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Packing and unpacking, including entries that share or span segments
+ */
+public class ArchiveCipherTest {
+
+    private static final int[] SIZES = {0, 1, 5000, 1024 * 1024 + 3, 70000, 2 * 1024 * 1024};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void packAndUnpack() throws Exception {
+        List<byte[]> contents = new ArrayList<>();
+        List<ArchiveCipher.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < SIZES.length; i++) {
+            contents.add(randomBytes(SIZES[i], i));
+            entries.add(new ArchiveCipher.Entry("dir/file" + i + ".bin", PathIO.source(write(contents.get(i))),
+                    1000L * i));
+        }
+        Path archive = folder.newFile().toPath();
+        byte[] privateKey = ArchiveCipher.pack(entries, PathIO.sink(archive), null).privateKey;
+
+        try (ArchiveCipher.Reader reader = ArchiveCipher.Reader.open(open(archive), privateKey)) {
+            assertEquals(SIZES.length, reader.entries().size());
+            // Back to front, so every entry is opened on its own
+            for (int i = SIZES.length - 1; i >= 0; i--) {
+                ArchiveCipher.EntryInfo info = reader.find("dir/file" + i + ".bin");
+                assertEquals(SIZES[i], info.size);
+                assertEquals(1000L * i, info.modified);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals(SIZES[i], reader.extract(info, out));
+                assertArrayEquals(contents.get(i), out.toByteArray());
+            }
+            assertNull(reader.find("missing"));
+        }
+
+        // The whole archive is also an ordinary CL3 file
+        assertTrue(ChunkedFileCipher.verify(PathIO.source(archive), privateKey, 1).intact);
+    }
+
+    @Test
+    public void packWithPassword() throws Exception {
+        byte[] content = randomBytes(12345, 42);
+        List<ArchiveCipher.Entry> entries = new ArrayList<>();
+        entries.add(new ArchiveCipher.Entry("notes.txt", PathIO.source(write(content)), 7));
+        Path archive = folder.newFile().toPath();
+        ArchiveCipher.packWithPassword(entries, PathIO.sink(archive), "password123", null);
+
+        try (ArchiveCipher.Reader reader = ArchiveCipher.Reader.openWithPassword(open(archive), "password123")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            reader.extract(reader.find("notes.txt"), out);
+            assertArrayEquals(content, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void rejectsFlippedDirectoryBit() throws Exception {
+        List<ArchiveCipher.Entry> entries = new ArrayList<>();
+        entries.add(new ArchiveCipher.Entry("a.bin", PathIO.source(write(randomBytes(3000, 1))), 0));
+        entries.add(new ArchiveCipher.Entry("b.bin", PathIO.source(write(randomBytes(3000, 2))), 0));
+        Path archive = folder.newFile().toPath();
+        byte[] privateKey = ArchiveCipher.pack(entries, PathIO.sink(archive), null).privateKey;
+
+        // The directory sits in the last segment, just before the trailer
+        byte[] bytes = Files.readAllBytes(archive);
+        int trailer = 4 + 2 * SegmentIndex.ENTRY_SIZE + SegmentIndex.FOOTER_SIZE;
+        bytes[bytes.length - trailer - 30] ^= 1;
+        Path tampered = write(bytes);
+        try {
+            ArchiveCipher.Reader.open(open(tampered), privateKey).close();
+            fail("Opened an archive with a damaged directory");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateNames() throws Exception {
+        List<ArchiveCipher.Entry> entries = new ArrayList<>();
+        entries.add(new ArchiveCipher.Entry("same", PathIO.source(write(new byte[1])), 0));
+        entries.add(new ArchiveCipher.Entry("same", PathIO.source(write(new byte[2])), 0));
+        ArchiveCipher.pack(entries, PathIO.sink(folder.newFile().toPath()), null);
+    }
+
+    private static FileChannel open(Path archive) throws IOException {
+        return FileChannel.open(archive, StandardOpenOption.READ);
+    }
+
+    private Path write(byte[] bytes) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        return file;
+    }
+}
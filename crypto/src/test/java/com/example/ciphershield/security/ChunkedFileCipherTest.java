@@ -0,0 +1,391 @@
+package com.example.ciphershield.security;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.example.ciphershield.security.TestBytes.randomBytes;
+import static org.junit.Assert.*;
+
+/**
+ * CL3 round trips in every key mode, rejection of a flipped bit in the
+ * header, key block, a segment and the segment index, and in-place updates
+ * carried over from one to the next through the segment manifest
+ */
+public class ChunkedFileCipherTest {
+
+    private static final int SEGMENT = 1024 * 1024;
+    private static final String PASSWORD = "password123";
+    private static final int NONCE_OFFSET = 3 + 4 + 4 + 4;
+    private static final int EXT_OFFSET = NONCE_OFFSET + 12 + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rsaRoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(3 * SEGMENT + 17, 1);
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(container),
+                ".jpg", null).privateKey;
+
+        ChunkedFileHeader header = headerOf(container);
+        assertFalse(header.isCompressed());
+        assertTrue(header.isIndexed() && header.isUpdatable());
+        assertArrayEquals(plaintext, decrypt(container, privateKey));
+        assertTrue(ChunkedFileCipher.verify(PathIO.source(container), privateKey, 1).intact);
+    }
+
+    @Test
+    public void compressedRoundTrip() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 2 * SEGMENT + 999; i++) {
+            text.append("line ").append(i).append(" of a compressible document\n");
+        }
+        byte[] plaintext = text.toString().getBytes(StandardCharsets.UTF_8);
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(container),
+                ".txt", null).privateKey;
+
+        assertTrue(headerOf(container).isCompressed());
+        assertTrue(Files.size(container) < plaintext.length / 2);
+        assertArrayEquals(plaintext, decrypt(container, privateKey));
+    }
+
+    @Test
+    public void emptyFileRoundTrip() throws Exception {
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(new byte[0])), PathIO.sink(container),
+                ".bin", null).privateKey;
+        assertArrayEquals(new byte[0], decrypt(container, privateKey));
+    }
+
+    @Test
+    public void recipientRoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(2 * SEGMENT, 2);
+        KeyPair pair = RsaKeyPool.take();
+        Path container = folder.newFile().toPath();
+        ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(container), ".bin", pair.getPublic(),
+                null);
+
+        Path output = folder.newFile().toPath();
+        ChunkedFileCipher.decrypt(PathIO.source(container), PathIO.sink(output), pair.getPrivate(), null);
+        assertArrayEquals(plaintext, Files.readAllBytes(output));
+    }
+
+    @Test
+    public void multiRecipientRoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(SEGMENT + 5, 3);
+        KeyPair first = RsaKeyPool.take();
+        KeyPair second = RsaKeyPool.take();
+        List<PublicKey> recipients = Arrays.asList(first.getPublic(), second.getPublic());
+        Path container = folder.newFile().toPath();
+        ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(container), ".bin", recipients, null);
+
+        assertTrue(headerOf(container).hasRecipientList());
+        for (KeyPair pair : Arrays.asList(first, second)) {
+            Path output = folder.newFile().toPath();
+            ChunkedFileCipher.decrypt(PathIO.source(container), PathIO.sink(output), pair.getPrivate(), null);
+            assertArrayEquals(plaintext, Files.readAllBytes(output));
+        }
+    }
+
+    @Test
+    public void passwordRoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(2 * SEGMENT + 3, 4);
+        Path container = folder.newFile().toPath();
+        ChunkedFileCipher.encryptWithPassword(PathIO.source(write(plaintext)), PathIO.sink(container), ".bin",
+                PASSWORD, null);
+
+        assertTrue(headerOf(container).isPasswordProtected());
+        Path output = folder.newFile().toPath();
+        ChunkedFileCipher.decryptWithPassword(PathIO.source(container), PathIO.sink(output), PASSWORD, null);
+        assertArrayEquals(plaintext, Files.readAllBytes(output));
+        try {
+            ChunkedFileCipher.decryptWithPassword(PathIO.source(container), PathIO.sink(folder.newFile().toPath()),
+                    "wrongpassword", null);
+            fail("Opened with the wrong password");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void rejectsFlippedHeaderBit() throws Exception {
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(randomBytes(SEGMENT + 1, 5))),
+                PathIO.sink(container), ".bin", null).privateKey;
+
+        // The nonce and extension are bound to every segment through the header digest
+        for (int offset : new int[]{NONCE_OFFSET + 3, EXT_OFFSET + 1}) {
+            Path tampered = flip(container, offset);
+            assertDecryptFails(tampered, privateKey);
+            assertVerifyFails(tampered, privateKey);
+        }
+    }
+
+    @Test
+    public void rejectsFlippedKeyBlockBit() throws Exception {
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(randomBytes(SEGMENT + 1, 6))),
+                PathIO.sink(container), ".bin", null).privateKey;
+        ChunkedFileHeader header = headerOf(container);
+
+        Path tampered = flip(container, header.length() - header.keyBlock.length + 40);
+        assertDecryptFails(tampered, privateKey);
+        assertVerifyFails(tampered, privateKey);
+    }
+
+    @Test
+    public void rejectsFlippedSegmentBit() throws Exception {
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(randomBytes(3 * SEGMENT, 7))),
+                PathIO.sink(container), ".jpg", null).privateKey;
+
+        Path tampered = flip(container, headerOf(container).length() + SEGMENT + SEGMENT / 2);
+        assertDecryptFails(tampered, privateKey);
+        IntegrityReport report = ChunkedFileCipher.verify(PathIO.source(tampered), privateKey, 1);
+        assertFalse(report.intact);
+        assertEquals(Arrays.asList(1L), report.damagedSegments);
+    }
+
+    @Test
+    public void rejectsFlippedIndexBit() throws Exception {
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(randomBytes(3 * SEGMENT, 8))),
+                PathIO.sink(container), ".jpg", null).privateKey;
+        long size = Files.size(container);
+
+        // An entry hash, the count and the MAC over the tree
+        for (long offset : new long[]{size - SegmentIndex.FOOTER_SIZE - 10, size - 33, size - 1}) {
+            Path tampered = flip(container, offset);
+            assertDecryptFails(tampered, privateKey);
+            assertVerifyFails(tampered, privateKey);
+            try (FileChannel channel = FileChannel.open(tampered, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE); FileChannel journal = openJournal(tampered)) {
+                ChunkedFileCipher.update(PathIO.source(write(randomBytes(10, 9))), channel, channel, journal, null,
+                        privateKey, null);
+                fail("Updated a file with a damaged index");
+            } catch (Exception expected) {
+            }
+        }
+    }
+
+    @Test
+    public void updateThenDecrypt() throws Exception {
+        byte[] plaintext = randomBytes(5 * SEGMENT + 100, 10);
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(container),
+                ".jpg", null).privateKey;
+
+        // No manifest yet, so the first update takes the digests from the file
+        plaintext[2 * SEGMENT + 7] ^= 1;
+        ChunkedFileCipher.UpdateResult first = update(container, plaintext, null, privateKey);
+        assertTrue(first.manifestRebuilt);
+        assertEquals(6, first.segments);
+        assertEquals(1, first.resealed);
+        assertArrayEquals(plaintext, decrypt(container, privateKey));
+
+        // The manifest carries over; a grown segment moves everything after it
+        byte[] grown = new byte[plaintext.length + 1000];
+        System.arraycopy(plaintext, 0, grown, 0, 3 * SEGMENT);
+        System.arraycopy(plaintext, 3 * SEGMENT, grown, 3 * SEGMENT + 1000, plaintext.length - 3 * SEGMENT);
+        ChunkedFileCipher.UpdateResult second = update(container, grown, first.manifest, privateKey);
+        assertFalse(second.manifestRebuilt);
+        assertEquals(grown.length, second.plaintextBytes);
+        assertArrayEquals(grown, decrypt(container, privateKey));
+        assertTrue(ChunkedFileCipher.verify(PathIO.source(container), privateKey, 1).intact);
+
+        // Shrinking truncates the file after the new trailer
+        byte[] shrunk = Arrays.copyOf(grown, 2 * SEGMENT + 5);
+        ChunkedFileCipher.UpdateResult third = update(container, shrunk, second.manifest, privateKey);
+        assertFalse(third.manifestRebuilt);
+        assertEquals(1, third.resealed);
+        assertArrayEquals(shrunk, decrypt(container, privateKey));
+    }
+
+    @Test
+    public void tamperedManifestIsRebuilt() throws Exception {
+        byte[] plaintext = randomBytes(3 * SEGMENT, 11);
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(container),
+                ".jpg", null).privateKey;
+        byte[] manifest = update(container, plaintext, null, privateKey).manifest;
+
+        manifest[manifest.length / 2] ^= 1;
+        plaintext[10] ^= 1;
+        ChunkedFileCipher.UpdateResult result = update(container, plaintext, manifest, privateKey);
+        assertTrue(result.manifestRebuilt);
+        assertEquals(1, result.resealed);
+        assertArrayEquals(plaintext, decrypt(container, privateKey));
+    }
+
+    @Test
+    public void cl2FixtureIsUnauthenticated() throws Exception {
+        byte[] plaintext = randomBytes(100000, 12);
+        KeyPair pair = RsaKeyPool.take();
+        Path container = write(legacyContainer(plaintext, pair.getPublic()));
+
+        Path output = folder.newFile().toPath();
+        ChunkedFileCipher.decrypt(PathIO.source(container), PathIO.sink(output), pair.getPrivate(), null);
+        assertArrayEquals(plaintext, Files.readAllBytes(output));
+
+        // A stream handing out one byte per read must not tear any header field
+        for (CryptoSource source : Arrays.asList(PathIO.source(container), trickle(container))) {
+            IntegrityReport report = ChunkedFileCipher.verify(source, pair.getPrivate(), 1);
+            assertEquals("CL2", report.format);
+            assertTrue(report.problem, report.intact);
+            assertFalse(report.authenticated);
+        }
+    }
+
+    @Test
+    public void cl2CorruptLengthIsReported() throws Exception {
+        KeyPair pair = RsaKeyPool.take();
+        byte[] bytes = legacyContainer(randomBytes(1000, 13), pair.getPublic());
+        // The salt length, far past anything a header holds
+        bytes[3] = 0x7f;
+
+        IntegrityReport report = ChunkedFileCipher.verify(PathIO.source(write(bytes)), pair.getPrivate(), 1);
+        assertFalse(report.intact);
+        assertNotNull(report.problem);
+    }
+
+    private ChunkedFileCipher.UpdateResult update(Path container, byte[] plaintext, byte[] manifest,
+                                                  byte[] privateKey) throws Exception {
+        try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journal = openJournal(container)) {
+            return ChunkedFileCipher.update(PathIO.source(write(plaintext)), channel, channel, journal, manifest,
+                    privateKey, null);
+        }
+    }
+
+    private void assertDecryptFails(Path container, byte[] privateKey) throws IOException {
+        try {
+            decrypt(container, privateKey);
+            fail("Decrypted a tampered file");
+        } catch (Exception expected) {
+        }
+    }
+
+    private static void assertVerifyFails(Path container, byte[] privateKey) {
+        try {
+            assertFalse(ChunkedFileCipher.verify(PathIO.source(container), privateKey, 1).intact);
+        } catch (Exception expected) {
+            // Damage before the first segment leaves nothing to check
+        }
+    }
+
+    private byte[] decrypt(Path container, byte[] privateKey) throws Exception {
+        Path output = folder.newFile().toPath();
+        ChunkedFileCipher.decrypt(PathIO.source(container), PathIO.sink(output), privateKey, null);
+        return Files.readAllBytes(output);
+    }
+
+    private static ChunkedFileHeader headerOf(Path container) throws Exception {
+        try (InputStream in = Files.newInputStream(container)) {
+            return ChunkedFileHeader.read(in);
+        }
+    }
+
+    private Path flip(Path container, long offset) throws IOException {
+        byte[] bytes = Files.readAllBytes(container);
+        bytes[(int) offset] ^= 1;
+        return write(bytes);
+    }
+
+    private Path write(byte[] bytes) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        return file;
+    }
+
+    // [CL2][SALT][IV][EXT][KEY][HMAC] then [LEN][CBC BYTES] frames, as the app used to write
+    private static byte[] legacyContainer(byte[] plaintext, PublicKey publicKey) throws Exception {
+        byte[] salt = randomBytes(16, 20);
+        byte[] iv = randomBytes(16, 21);
+        SecretKeySpec aesKey = new SecretKeySpec(randomBytes(32, 22), "AES");
+        Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        rsa.init(Cipher.ENCRYPT_MODE, publicKey);
+        byte[] wrappedKey = rsa.doFinal(aesKey.getEncoded());
+        Cipher aes = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        aes.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        DataOutputStream framesOut = new DataOutputStream(frames);
+        for (int offset = 0; offset <= plaintext.length; offset += 8192) {
+            int length = Math.min(8192, plaintext.length - offset);
+            byte[] sealed = length < 8192
+                    ? aes.doFinal(plaintext, offset, length)
+                    : aes.update(plaintext, offset, length);
+            hmac.update(sealed);
+            framesOut.writeInt(sealed.length);
+            framesOut.write(sealed);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write("CL2".getBytes(StandardCharsets.UTF_8));
+        for (byte[] field : new byte[][]{salt, iv, ".bin".getBytes(StandardCharsets.UTF_8), wrappedKey,
+                hmac.doFinal()}) {
+            out.writeInt(field.length);
+            out.write(field);
+        }
+        out.write(frames.toByteArray());
+        return bytes.toByteArray();
+    }
+
+    private static CryptoSource trickle(Path container) {
+        return new CryptoSource() {
+            @Override
+            public long sizeHint() {
+                return UNKNOWN_SIZE;
+            }
+
+            @Override
+            public FileChannel openChannel() {
+                return null;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FilterInputStream(Files.newInputStream(container)) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        return super.read(b, off, Math.min(len, 1));
+                    }
+
+                    @Override
+                    public int available() {
+                        return 0;
+                    }
+                };
+            }
+        };
+    }
+
+    private static FileChannel openJournal(Path container) throws IOException {
+        return FileChannel.open(container.resolveSibling(container.getFileName() + RollbackJournal.UPDATE_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.ciphershield.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes through to the file until it has done writesLeft writes, then
+ * writes half of the next one and fails, as does everything after; stands
+ * in for a crash in the middle of an in-place rewrite
+ */
+class DyingChannel extends FileChannel {
+    private final FileChannel file;
+    private int writesLeft;
+
+    DyingChannel(FileChannel file, int writesLeft) {
+        this.file = file;
+        this.writesLeft = writesLeft;
+    }
+
+    private void checkAlive() throws IOException {
+        if (writesLeft < 0) throw new IOException("Writer died");
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        checkAlive();
+        if (writesLeft-- == 0) {
+            ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            file.write(half, position);
+            throw new IOException("Writer died");
+        }
+        return file.write(src, position);
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        checkAlive();
+        if (writesLeft-- == 0) throw new IOException("Writer died");
+        file.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        checkAlive();
+        file.force(metaData);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return file.read(dst, position);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return file.size();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long position() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        // The wrapped channel is closed by its owner
+    }
+}
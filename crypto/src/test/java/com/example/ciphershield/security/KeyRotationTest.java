@@ -0,0 +1,235 @@
+package com.example.ciphershield.security;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import static com.example.ciphershield.security.TestBytes.randomBytes;
+import static org.junit.Assert.*;
+
+/**
+ * In-place key rotation of each format followed by a decrypt, including a
+ * rotation whose write is torn by a crash
+ */
+public class KeyRotationTest {
+
+    private static final String PASSWORD = "password123";
+    private static final String NEW_PASSWORD = "newpassword9";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cp5PasswordChange() throws Exception {
+        byte[] plaintext = randomBytes(5000, 10);
+        Path file = write(SecureEncryptionUtil.encryptWithPassword(plaintext, PASSWORD, ".txt",
+                KdfParams.scrypt(1024, 8, 1)).encryptedData);
+        byte[] before = Files.readAllBytes(file);
+
+        KeyRotation.Result result = rotate(file, (channel, journal) ->
+                KeyRotation.changePassword(channel, channel, journal, PASSWORD, NEW_PASSWORD));
+        assertEquals("CP5", result.format);
+        assertOnlyKeyFieldChanged(before, Files.readAllBytes(file), result);
+        assertArrayEquals(plaintext,
+                SecureEncryptionUtil.decryptWithPassword(Files.readAllBytes(file), NEW_PASSWORD).decryptedData);
+        try {
+            SecureEncryptionUtil.decryptWithPassword(Files.readAllBytes(file), PASSWORD);
+            fail("Old password still opens the file");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void cs2KeyRotation() throws Exception {
+        byte[] plaintext = randomBytes(5000, 11);
+        SecureEncryptionUtil.EncryptionResult sealed = SecureEncryptionUtil.encrypt(plaintext, ".bin");
+        Path file = write(sealed.encryptedData);
+        KeyPair next = RsaKeyPool.take();
+
+        KeyRotation.Result result = rotate(file, (channel, journal) ->
+                KeyRotation.rotateKey(channel, channel, journal, sealed.privateKey, next.getPublic()));
+        assertOnlyKeyFieldChanged(sealed.encryptedData, Files.readAllBytes(file), result);
+        assertArrayEquals(plaintext,
+                SecureEncryptionUtil.decrypt(Files.readAllBytes(file), next.getPrivate()).decryptedData);
+    }
+
+    @Test
+    public void cs3ReplacesOneRecipient() throws Exception {
+        byte[] plaintext = randomBytes(5000, 12);
+        KeyPair kept = RsaKeyPool.take();
+        KeyPair leaving = RsaKeyPool.take();
+        KeyPair joining = RsaKeyPool.take();
+        Path file = write(SecureEncryptionUtil.encrypt(plaintext, ".bin",
+                Arrays.asList(kept.getPublic(), leaving.getPublic())).encryptedData);
+
+        rotate(file, (channel, journal) ->
+                KeyRotation.rotateKey(channel, channel, journal, leaving.getPrivate(), joining.getPublic()));
+        byte[] rotated = Files.readAllBytes(file);
+        assertArrayEquals(plaintext, SecureEncryptionUtil.decrypt(rotated, kept.getPrivate()).decryptedData);
+        assertArrayEquals(plaintext, SecureEncryptionUtil.decrypt(rotated, joining.getPrivate()).decryptedData);
+        try {
+            SecureEncryptionUtil.decrypt(rotated, leaving.getPrivate());
+            fail("Replaced recipient still opens the file");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void cl3PasswordChange() throws Exception {
+        byte[] plaintext = randomBytes(2 * 1024 * 1024 + 1, 13);
+        Path file = folder.newFile().toPath();
+        ChunkedFileCipher.encryptWithPassword(PathIO.source(write(plaintext)), PathIO.sink(file), ".bin", PASSWORD,
+                null);
+
+        rotate(file, (channel, journal) ->
+                KeyRotation.changePassword(channel, channel, journal, PASSWORD, NEW_PASSWORD));
+        Path output = folder.newFile().toPath();
+        ChunkedFileCipher.decryptWithPassword(PathIO.source(file), PathIO.sink(output), NEW_PASSWORD, null);
+        assertArrayEquals(plaintext, Files.readAllBytes(output));
+    }
+
+    @Test
+    public void vaultHeaderRotation() throws Exception {
+        KeyPair pair = RsaKeyPool.take();
+        KeyPair next = RsaKeyPool.take();
+        Path root = folder.getRoot().toPath().resolve("vault");
+        byte[] content = randomBytes(5000, 14);
+        try (Vault vault = Vault.create(root, pair.getPublic())) {
+            vault.add("a.bin", PathIO.source(write(content)), 0, null);
+        }
+
+        rotate(root.resolve(Vault.HEADER_FILE), (channel, journal) ->
+                KeyRotation.rotateKey(channel, channel, journal, pair.getPrivate(), next.getPublic()));
+        try (Vault vault = Vault.open(root, next.getPrivate())) {
+            Path output = folder.newFile().toPath();
+            vault.extract(vault.find("a.bin"), PathIO.sink(output), null);
+            assertArrayEquals(content, Files.readAllBytes(output));
+        }
+    }
+
+    @Test
+    public void rejectsKeyOfAnotherSize() throws Exception {
+        SecureEncryptionUtil.EncryptionResult sealed = SecureEncryptionUtil.encrypt(randomBytes(100, 15), ".bin");
+        Path file = write(sealed.encryptedData);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(3072);
+        PublicKey larger = generator.generateKeyPair().getPublic();
+
+        try {
+            rotate(file, (channel, journal) ->
+                    KeyRotation.rotateKey(channel, channel, journal, sealed.privateKey, larger));
+            fail("Rewrote a key field with one of another length");
+        } catch (Exception expected) {
+        }
+        assertArrayEquals(sealed.encryptedData, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void tornPasswordChangeRollsBack() throws Exception {
+        byte[] plaintext = randomBytes(5000, 1);
+        Path file = write(SecureEncryptionUtil.encryptWithPassword(plaintext, PASSWORD, "txt").encryptedData);
+        byte[] original = Files.readAllBytes(file);
+        Path journalFile = journalOf(file);
+
+        try (FileChannel channel = open(file); FileChannel journal = open(journalFile)) {
+            KeyRotation.changePassword(channel, new DyingChannel(channel, 0), journal, PASSWORD, NEW_PASSWORD);
+            fail("Rotation survived a torn write");
+        } catch (IOException expected) {
+        }
+        assertFalse("field torn", Arrays.equals(original, Files.readAllBytes(file)));
+        assertTrue(Files.size(journalFile) > 0);
+
+        try (FileChannel channel = open(file); FileChannel journal = open(journalFile)) {
+            assertTrue(RollbackJournal.rollBack(journal, channel, channel));
+        }
+        assertArrayEquals(original, Files.readAllBytes(file));
+        assertArrayEquals(plaintext, SecureEncryptionUtil.decryptWithPassword(original, PASSWORD).decryptedData);
+    }
+
+    @Test
+    public void nextRotationRollsBackFirst() throws Exception {
+        byte[] plaintext = randomBytes(3 * 1024 * 1024, 2);
+        Path file = folder.newFile().toPath();
+        byte[] privateKey = ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(file), "bin",
+                null).privateKey;
+        KeyPair next = RsaKeyPool.take();
+        Path journalFile = journalOf(file);
+
+        try (FileChannel channel = open(file); FileChannel journal = open(journalFile)) {
+            KeyRotation.rotateKey(channel, new DyingChannel(channel, 0), journal, privateKey, next.getPublic());
+            fail("Rotation survived a torn write");
+        } catch (IOException expected) {
+        }
+
+        // The torn field would fail to unwrap; the rotation puts the old one back before reading it
+        try (FileChannel channel = open(file); FileChannel journal = open(journalFile)) {
+            KeyRotation.rotateKey(channel, channel, journal, privateKey, next.getPublic());
+            assertEquals(0, journal.size());
+        }
+        Path output = folder.newFile().toPath();
+        ChunkedFileCipher.decrypt(PathIO.source(file), PathIO.sink(output), next.getPrivate(), null);
+        assertArrayEquals(plaintext, Files.readAllBytes(output));
+    }
+
+    @Test
+    public void completedRotationLeavesEmptyJournal() throws Exception {
+        byte[] plaintext = randomBytes(5000, 3);
+        Path file = write(SecureEncryptionUtil.encryptWithPassword(plaintext, PASSWORD, "txt").encryptedData);
+        Path journalFile = journalOf(file);
+
+        try (FileChannel channel = open(file); FileChannel journal = open(journalFile)) {
+            KeyRotation.changePassword(channel, channel, journal, PASSWORD, NEW_PASSWORD);
+            assertEquals(0, journal.size());
+        }
+        assertArrayEquals(plaintext,
+                SecureEncryptionUtil.decryptWithPassword(Files.readAllBytes(file), NEW_PASSWORD).decryptedData);
+    }
+
+    private interface Rotation {
+        KeyRotation.Result run(FileChannel channel, FileChannel journal) throws Exception;
+    }
+
+    private static KeyRotation.Result rotate(Path file, Rotation rotation) throws Exception {
+        Path journalFile = journalOf(file);
+        try (FileChannel channel = open(file); FileChannel journal = open(journalFile)) {
+            KeyRotation.Result result = rotation.run(channel, journal);
+            assertEquals(0, journal.size());
+            return result;
+        } finally {
+            Files.deleteIfExists(journalFile);
+        }
+    }
+
+    private static void assertOnlyKeyFieldChanged(byte[] before, byte[] after, KeyRotation.Result result) {
+        assertEquals(before.length, after.length);
+        int start = (int) result.position;
+        assertArrayEquals(Arrays.copyOf(before, start), Arrays.copyOf(after, start));
+        assertArrayEquals(Arrays.copyOfRange(before, start + result.length, before.length),
+                Arrays.copyOfRange(after, start + result.length, after.length));
+        assertFalse(Arrays.equals(before, after));
+    }
+
+    private Path write(byte[] bytes) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        return file;
+    }
+
+    private static Path journalOf(Path file) {
+        return file.resolveSibling(file.getFileName() + RollbackJournal.ROTATION_SUFFIX);
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
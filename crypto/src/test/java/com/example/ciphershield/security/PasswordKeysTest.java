@@ -0,0 +1,48 @@
+package com.example.ciphershield.security;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sealing keys never repeat a salt, and opening reproduces them with or
+ * without the cache
+ */
+public class PasswordKeysTest {
+
+    private static final char[] PASSWORD = "password123".toCharArray();
+
+    @Test
+    public void everySealGetsItsOwnSaltAndKey() throws Exception {
+        KdfParams kdf = KdfParams.pbkdf2(PasswordKeys.MIN_ITERATIONS);
+        PasswordKeys.SealingKey first = PasswordKeys.forSealing(PASSWORD, kdf);
+        PasswordKeys.SealingKey second = PasswordKeys.forSealing(PASSWORD, kdf);
+
+        assertFalse(Arrays.equals(first.salt, second.salt));
+        assertFalse(Arrays.equals(first.key.getEncoded(), second.key.getEncoded()));
+    }
+
+    @Test
+    public void openingReproducesTheSealingKey() throws Exception {
+        for (KdfParams kdf : new KdfParams[]{KdfParams.pbkdf2(PasswordKeys.MIN_ITERATIONS),
+                KdfParams.scrypt(1024, 8, 1)}) {
+            PasswordKeys.SealingKey sealing = PasswordKeys.forSealing(PASSWORD, kdf);
+
+            PasswordKeys.clearCache();
+            byte[] derived = PasswordKeys.derive(PASSWORD, sealing.salt, kdf).getEncoded();
+            byte[] cached = PasswordKeys.derive(PASSWORD, sealing.salt, kdf).getEncoded();
+            assertArrayEquals(sealing.key.getEncoded(), derived);
+            assertArrayEquals(derived, cached);
+        }
+    }
+
+    @Test
+    public void otherPasswordGivesOtherKey() throws Exception {
+        KdfParams kdf = KdfParams.pbkdf2(PasswordKeys.MIN_ITERATIONS);
+        PasswordKeys.SealingKey sealing = PasswordKeys.forSealing(PASSWORD, kdf);
+        byte[] other = PasswordKeys.derive("password124".toCharArray(), sealing.salt, kdf).getEncoded();
+        assertFalse(Arrays.equals(sealing.key.getEncoded(), other));
+    }
+}
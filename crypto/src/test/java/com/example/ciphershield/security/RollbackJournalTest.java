@@ -0,0 +1,223 @@
+package com.example.ciphershield.security;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.example.ciphershield.security.TestBytes.randomBytes;
+import static org.junit.Assert.*;
+
+/**
+ * In-place updates cut short at every stage, as by a crash: the writer dies
+ * after a number of writes, tearing the last one, and nothing it does after
+ * that reaches the file. The journal must then restore the old file exactly
+ */
+public class RollbackJournalTest {
+
+    private static final int SEGMENT = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void crashAtAnyWriteRollsBack() throws Exception {
+        byte[] oldPlaintext = randomBytes(20 * SEGMENT + 1234, 1);
+        byte[] newPlaintext = edited(oldPlaintext);
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = encrypt(oldPlaintext, container);
+        byte[] original = Files.readAllBytes(container);
+
+        for (int writes : new int[]{0, 1, 7, 8, 15, 18}) {
+            Files.write(container, original);
+            Path journalFile = folder.getRoot().toPath().resolve("crash-" + writes + RollbackJournal.UPDATE_SUFFIX);
+            try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel journal = open(journalFile)) {
+                try {
+                    ChunkedFileCipher.update(PathIO.source(write(newPlaintext)), channel,
+                            new DyingChannel(channel, writes), journal, null, privateKey, null);
+                    fail("Update survived " + writes + " writes");
+                } catch (IOException expected) {
+                    // The in-process rollback died with the writer, so the journal is all that is left
+                }
+            }
+            assertTrue("journal kept after " + writes + " writes", Files.size(journalFile) > 0);
+
+            try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel journal = open(journalFile)) {
+                assertTrue(RollbackJournal.rollBack(journal, channel, channel));
+                assertEquals(0, journal.size());
+            }
+            assertArrayEquals("after " + writes + " writes", original, Files.readAllBytes(container));
+            assertArrayEquals(oldPlaintext, decrypt(container, privateKey));
+        }
+    }
+
+    @Test
+    public void crashWhileShrinkingRollsBack() throws Exception {
+        byte[] oldPlaintext = randomBytes(6 * SEGMENT + 99, 8);
+        byte[] newPlaintext = Arrays.copyOfRange(oldPlaintext, 1000, oldPlaintext.length - SEGMENT);
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = encrypt(oldPlaintext, container);
+        byte[] original = Files.readAllBytes(container);
+
+        // Every write in turn, up to the truncate that cuts off the old tail
+        for (int writes = 0; ; writes++) {
+            Files.write(container, original);
+            Path journalFile = folder.getRoot().toPath().resolve("shrink-" + writes + RollbackJournal.UPDATE_SUFFIX);
+            try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel journal = open(journalFile)) {
+                try {
+                    ChunkedFileCipher.update(PathIO.source(write(newPlaintext)), channel,
+                            new DyingChannel(channel, writes), journal, null, privateKey, null);
+                    assertEquals(0, journal.size());
+                    break;
+                } catch (IOException expected) {
+                }
+                assertTrue(RollbackJournal.rollBack(journal, channel, channel));
+            }
+            assertArrayEquals("after " + writes + " writes", original, Files.readAllBytes(container));
+        }
+        assertArrayEquals(newPlaintext, decrypt(container, privateKey));
+    }
+
+    @Test
+    public void nextUpdateRollsBackFirst() throws Exception {
+        byte[] oldPlaintext = randomBytes(6 * SEGMENT, 2);
+        byte[] newPlaintext = edited(oldPlaintext);
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = encrypt(oldPlaintext, container);
+        Path journalFile = folder.getRoot().toPath().resolve("next" + RollbackJournal.UPDATE_SUFFIX);
+
+        try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journal = open(journalFile)) {
+            try {
+                ChunkedFileCipher.update(PathIO.source(write(newPlaintext)), channel, new DyingChannel(channel, 3),
+                        journal, null, privateKey, null);
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+
+        ChunkedFileCipher.UpdateResult result;
+        try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journal = open(journalFile)) {
+            result = ChunkedFileCipher.update(PathIO.source(write(newPlaintext)), channel, channel, journal, null,
+                    privateKey, null);
+            assertEquals(0, journal.size());
+        }
+        assertTrue(result.manifestRebuilt);
+        assertArrayEquals(newPlaintext, decrypt(container, privateKey));
+    }
+
+    @Test
+    public void completedUpdateLeavesEmptyJournal() throws Exception {
+        byte[] oldPlaintext = randomBytes(5 * SEGMENT + 10, 3);
+        byte[] newPlaintext = Arrays.copyOf(oldPlaintext, oldPlaintext.length);
+        newPlaintext[2 * SEGMENT + 5] ^= 1;
+        Path container = folder.newFile().toPath();
+        byte[] privateKey = encrypt(oldPlaintext, container);
+        Path journalFile = folder.getRoot().toPath().resolve("done" + RollbackJournal.UPDATE_SUFFIX);
+
+        try (FileChannel channel = FileChannel.open(container, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journal = open(journalFile)) {
+            ChunkedFileCipher.UpdateResult result = ChunkedFileCipher.update(PathIO.source(write(newPlaintext)),
+                    channel, channel, journal, null, privateKey, null);
+            assertEquals(1, result.resealed);
+            assertEquals(0, journal.size());
+            assertFalse(RollbackJournal.rollBack(journal, channel, channel));
+        }
+        assertArrayEquals(newPlaintext, decrypt(container, privateKey));
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws Exception {
+        byte[] original = randomBytes(4096, 4);
+        Path file = write(original);
+        Path journalFile = folder.getRoot().toPath().resolve("torn" + RollbackJournal.UPDATE_SUFFIX);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journal = open(journalFile)) {
+            RollbackJournal undo = RollbackJournal.begin(journal, channel);
+            undo.save(100, 200);
+            undo.save(4000, 500); // Runs past the end; rollBack truncates the rest
+            undo.force();
+            channel.write(ByteBuffer.wrap(new byte[200]), 100);
+            channel.write(ByteBuffer.wrap(new byte[500]), 4000);
+
+            // A record cut off by the crash, whose region was never written
+            long end = journal.size();
+            undo.save(1000, 300);
+            journal.truncate(end + 100);
+
+            assertTrue(RollbackJournal.rollBack(journal, channel, channel));
+        }
+        assertArrayEquals(original, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void journalWithTornHeaderUndoesNothing() throws Exception {
+        byte[] original = randomBytes(1000, 6);
+        Path file = write(original);
+        Path journalFile = folder.getRoot().toPath().resolve("header" + RollbackJournal.UPDATE_SUFFIX);
+        Files.write(journalFile, new byte[]{0x43, 0x53, 0x4a});
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journal = open(journalFile)) {
+            assertFalse(RollbackJournal.rollBack(journal, channel, channel));
+            assertEquals(0, journal.size());
+        }
+        assertArrayEquals(original, Files.readAllBytes(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void beginRefusesLeftoverJournal() throws Exception {
+        Path file = write(randomBytes(100, 7));
+        Path journalFile = write(new byte[]{1});
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel journal = open(journalFile)) {
+            RollbackJournal.begin(journal, channel);
+        }
+    }
+
+    // Changes segments 1 and 12, and grows segment 4 so every later segment moves
+    private static byte[] edited(byte[] plaintext) {
+        byte[] edited = new byte[plaintext.length + 777];
+        System.arraycopy(plaintext, 0, edited, 0, 4 * SEGMENT);
+        System.arraycopy(randomBytes(777, 9), 0, edited, 4 * SEGMENT, 777);
+        System.arraycopy(plaintext, 4 * SEGMENT, edited, 4 * SEGMENT + 777, plaintext.length - 4 * SEGMENT);
+        edited[SEGMENT + 3] ^= 1;
+        if (edited.length > 12 * SEGMENT) edited[12 * SEGMENT + 1] ^= 1;
+        return edited;
+    }
+
+    private byte[] encrypt(byte[] plaintext, Path container) throws Exception {
+        return ChunkedFileCipher.encrypt(PathIO.source(write(plaintext)), PathIO.sink(container), "bin", null)
+                .privateKey;
+    }
+
+    private byte[] decrypt(Path container, byte[] privateKey) throws Exception {
+        Path output = folder.newFile().toPath();
+        ChunkedFileCipher.decrypt(PathIO.source(container), PathIO.sink(output), privateKey, null);
+        return Files.readAllBytes(output);
+    }
+
+    private Path write(byte[] bytes) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), bytes);
+        return file.toPath();
+    }
+
+    private static FileChannel open(Path journalFile) throws IOException {
+        return FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+}
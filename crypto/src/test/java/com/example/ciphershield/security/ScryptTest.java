@@ -0,0 +1,101 @@
+package com.example.ciphershield.security;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scrypt against the RFC 7914 section 12 vectors
+ * The fourth vector (N=2^20, 1GB) is above KdfParams.MAX_SCRYPT_MEMORY and left out
+ */
+public class ScryptTest {
+
+    @Test
+    public void emptyPasswordAndSalt() throws Exception {
+        assertVector("", "", 16, 1, 1,
+                "77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+                        + "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906");
+    }
+
+    @Test
+    public void passwordNaCl() throws Exception {
+        assertVector("password", "NaCl", 1024, 8, 16,
+                "fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+                        + "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640");
+    }
+
+    @Test
+    public void pleaseLetMeIn() throws Exception {
+        assertVector("pleaseletmein", "SodiumChloride", 16384, 8, 1,
+                "7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+                        + "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887");
+    }
+
+    @Test
+    public void concurrentDerivationsAgree() throws Exception {
+        KdfParams kdf = KdfParams.scrypt(1024, 8, 1);
+        byte[] expected = Scrypt.derive(bytes("password"), bytes("NaCl"), kdf, 32);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> Scrypt.derive(bytes("password"), bytes("NaCl"), kdf, 32)));
+            }
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(expected, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsInvalidCost() {
+        int[][] invalid = {{1000, 8, 1}, {0, 8, 1}, {1 << 23, 1, 1}, {1024, 0, 1}, {1024, 8, 0},
+                {1024, 8, 17}, {1 << 22, 32, 1}};
+        for (int[] cost : invalid) {
+            try {
+                KdfParams.scrypt(cost[0], cost[1], cost[2]);
+                fail("accepted N=" + cost[0] + ", r=" + cost[1] + ", p=" + cost[2]);
+            } catch (GeneralSecurityException expected) {
+                // Out of bounds or N not a power of two
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPbkdf2Params() throws Exception {
+        Scrypt.derive(bytes("password"), bytes("NaCl"), KdfParams.pbkdf2(1000), 32);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroKeyLength() throws Exception {
+        Scrypt.derive(bytes("password"), bytes("NaCl"), KdfParams.scrypt(16, 1, 1), 0);
+    }
+
+    private static void assertVector(String password, String salt, int n, int r, int p, String hex)
+            throws Exception {
+        byte[] derived = Scrypt.derive(bytes(password), bytes(salt), KdfParams.scrypt(n, r, p), 64);
+        assertEquals(hex, toHex(derived));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.ciphershield.security;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static com.example.ciphershield.security.TestBytes.randomBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the small-file containers, in memory and streamed, and
+ * rejection of a flipped bit in each part of them
+ * CP3 and CP4 are no longer written, so their fixtures are built here from
+ * the documented layout
+ */
+public class SecureEncryptionUtilTest {
+
+    private static final String PASSWORD = "password123";
+    private static final int SALT_OFFSET = 3 + 4;
+    private static final int IV_OFFSET = SALT_OFFSET + 16 + 4;
+    private static final int EXT_OFFSET = IV_OFFSET + 12 + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cs2RoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(70000, 1);
+        SecureEncryptionUtil.EncryptionResult sealed = SecureEncryptionUtil.encrypt(plaintext, ".pdf");
+        assertEquals("CS2", versionOf(sealed.encryptedData));
+
+        SecureEncryptionUtil.DecryptionResult opened = SecureEncryptionUtil.decrypt(sealed.encryptedData,
+                sealed.privateKey);
+        assertArrayEquals(plaintext, opened.decryptedData);
+        assertEquals(".pdf", opened.originalExtension);
+        assertTrue(opened.verified);
+    }
+
+    @Test
+    public void cs2StreamRoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(300000, 2);
+        Path file = folder.newFile().toPath();
+        SecureEncryptionUtil.EncryptionResult sealed;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            sealed = SecureEncryptionUtil.encrypt(new ByteArrayInputStream(plaintext), out, ".bin");
+        }
+
+        // Streamed and in-memory containers are the same format
+        assertArrayEquals(plaintext,
+                SecureEncryptionUtil.decrypt(Files.readAllBytes(file), sealed.privateKey).decryptedData);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(file)) {
+            assertTrue(SecureEncryptionUtil.decrypt(in, out, sealed.privateKey).verified);
+        }
+        assertArrayEquals(plaintext, out.toByteArray());
+    }
+
+    @Test
+    public void cs3RoundTripForEveryRecipient() throws Exception {
+        byte[] plaintext = randomBytes(50000, 3);
+        List<KeyPair> pairs = new ArrayList<>();
+        List<PublicKey> recipients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            pairs.add(RsaKeyPool.take());
+            recipients.add(pairs.get(i).getPublic());
+        }
+        byte[] container = SecureEncryptionUtil.encrypt(plaintext, ".txt", recipients).encryptedData;
+        assertEquals("CS3", versionOf(container));
+
+        for (KeyPair pair : pairs) {
+            SecureEncryptionUtil.DecryptionResult opened = SecureEncryptionUtil.decrypt(container, pair.getPrivate());
+            assertArrayEquals(plaintext, opened.decryptedData);
+            assertTrue(opened.verified);
+        }
+        try {
+            SecureEncryptionUtil.decrypt(container, RsaKeyPool.take().getPrivate());
+            fail("Opened with a key that is not listed");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void cp5RoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(40000, 4);
+        byte[] container = SecureEncryptionUtil.encryptWithPassword(plaintext, PASSWORD, ".txt").encryptedData;
+        assertEquals("CP5", versionOf(container));
+
+        SecureEncryptionUtil.DecryptionResult opened = SecureEncryptionUtil.decryptWithPassword(container, PASSWORD);
+        assertArrayEquals(plaintext, opened.decryptedData);
+        assertTrue(opened.verified);
+        try {
+            SecureEncryptionUtil.decryptWithPassword(container, "wrongpassword");
+            fail("Opened with the wrong password");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void cp5ScryptStreamRoundTrip() throws Exception {
+        byte[] plaintext = randomBytes(200000, 5);
+        Path file = folder.newFile().toPath();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            SecureEncryptionUtil.encryptWithPassword(new ByteArrayInputStream(plaintext), out, PASSWORD, ".bin",
+                    KdfParams.scrypt(1024, 8, 1));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(file)) {
+            assertTrue(SecureEncryptionUtil.decryptWithPassword(in, out, PASSWORD).verified);
+        }
+        assertArrayEquals(plaintext, out.toByteArray());
+    }
+
+    @Test
+    public void cp3FixtureOpens() throws Exception {
+        byte[] plaintext = randomBytes(30000, 6);
+        byte[] salt = randomBytes(16, 7);
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = factory.generateSecret(new PBEKeySpec(PASSWORD.toCharArray(), salt, 100000, 256)).getEncoded();
+        byte[] kdfField = ByteBuffer.allocate(4).putInt(100000).array();
+        byte[] container = legacyContainer("CP3", salt, kdfField, key, plaintext, ".txt");
+
+        SecureEncryptionUtil.DecryptionResult opened = SecureEncryptionUtil.decryptWithPassword(container, PASSWORD);
+        assertArrayEquals(plaintext, opened.decryptedData);
+        assertEquals(".txt", opened.originalExtension);
+        assertTrue(opened.verified);
+    }
+
+    @Test
+    public void cp4FixtureOpens() throws Exception {
+        byte[] plaintext = randomBytes(30000, 8);
+        byte[] salt = randomBytes(16, 9);
+        KdfParams kdf = KdfParams.scrypt(1024, 8, 1);
+        byte[] key = Scrypt.derive(PASSWORD.getBytes(StandardCharsets.UTF_8), salt, kdf, 32);
+        byte[] encoded = kdf.encode();
+        byte[] kdfField = ByteBuffer.allocate(4 + encoded.length).putInt(encoded.length).put(encoded).array();
+        byte[] container = legacyContainer("CP4", salt, kdfField, key, plaintext, ".doc");
+
+        SecureEncryptionUtil.DecryptionResult opened = SecureEncryptionUtil.decryptWithPassword(container, PASSWORD);
+        assertArrayEquals(plaintext, opened.decryptedData);
+        assertTrue(opened.verified);
+    }
+
+    @Test
+    public void cs2RejectsFlippedBits() throws Exception {
+        SecureEncryptionUtil.EncryptionResult sealed = SecureEncryptionUtil.encrypt(randomBytes(20000, 10), ".pdf");
+        byte[] container = sealed.encryptedData;
+        int keyOffset = EXT_OFFSET + ".pdf".length() + 4;
+
+        // The salt keys the HMAC only, so a flip there is caught but not fatal to decryption
+        assertFalse(SecureEncryptionUtil.decrypt(flip(container, SALT_OFFSET), sealed.privateKey).verified);
+        for (int offset : new int[]{0, IV_OFFSET, EXT_OFFSET, keyOffset + 100, container.length - 1, 1000}) {
+            try {
+                SecureEncryptionUtil.decrypt(flip(container, offset), sealed.privateKey);
+                fail("Flipped bit at " + offset + " went unnoticed");
+            } catch (Exception expected) {
+            }
+        }
+    }
+
+    @Test
+    public void cp5RejectsFlippedBits() throws Exception {
+        byte[] container = SecureEncryptionUtil.encryptWithPassword(randomBytes(20000, 11), PASSWORD, ".txt")
+                .encryptedData;
+        int keyOffset = EXT_OFFSET + ".txt".length() + 4;
+
+        for (int offset : new int[]{IV_OFFSET, EXT_OFFSET, keyOffset + 10, container.length - 1, 500}) {
+            try {
+                SecureEncryptionUtil.decryptWithPassword(flip(container, offset), PASSWORD);
+                fail("Flipped bit at " + offset + " went unnoticed");
+            } catch (Exception expected) {
+            }
+        }
+    }
+
+    @Test
+    public void streamRejectsFlippedPayload() throws Exception {
+        SecureEncryptionUtil.EncryptionResult sealed = SecureEncryptionUtil.encrypt(randomBytes(200000, 12), ".bin");
+        byte[] tampered = flip(sealed.encryptedData, sealed.encryptedData.length / 2);
+        try {
+            SecureEncryptionUtil.decrypt(new ByteArrayInputStream(tampered), new ByteArrayOutputStream(),
+                    sealed.privateKey);
+            fail("Flipped payload bit went unnoticed");
+        } catch (Exception expected) {
+        }
+        assertFalse(SecureEncryptionUtil.verify(new ByteArrayInputStream(tampered), sealed.privateKey).intact);
+    }
+
+    // [VERSION][SALT][KDF FIELD][IV][EXT][HMAC] and the payload sealed with the password key itself
+    private static byte[] legacyContainer(String version, byte[] salt, byte[] kdfField, byte[] key,
+                                          byte[] plaintext, String extension) throws Exception {
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        byte[] ext = extension.getBytes(StandardCharsets.UTF_8);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        cipher.updateAAD(ext);
+        byte[] ciphertext = cipher.doFinal(plaintext);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] hmac = mac.doFinal(ciphertext);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(version.getBytes(StandardCharsets.UTF_8));
+        out.writeInt(salt.length);
+        out.write(salt);
+        out.write(kdfField);
+        out.writeInt(iv.length);
+        out.write(iv);
+        out.writeInt(ext.length);
+        out.write(ext);
+        out.writeInt(hmac.length);
+        out.write(hmac);
+        out.write(ciphertext);
+        return bytes.toByteArray();
+    }
+
+    private static String versionOf(byte[] container) {
+        return new String(container, 0, 3, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] flip(byte[] bytes, int offset) {
+        byte[] flipped = bytes.clone();
+        flipped[offset] ^= 1;
+        return flipped;
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.ciphershield.security;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * StreamingGcm against the platform "AES/GCM/NoPadding", byte for byte
+ */
+public class StreamingGcmTest {
+
+    private static final int[] LENGTHS = {0, 1, 15, 16, 17, 31, 32, 33, 255, 4096, 65535, 65536 + 7};
+
+    private final Random random = new Random(8);
+
+    @Test
+    public void matchesPlatformGcm() throws Exception {
+        for (int length : LENGTHS) {
+            for (int aadLength : new int[]{0, 3, 16, 21}) {
+                SecretKey key = randomKey();
+                byte[] iv = randomBytes(12);
+                byte[] aad = randomBytes(aadLength);
+                byte[] plain = randomBytes(length);
+
+                byte[] expected = platform(Cipher.ENCRYPT_MODE, key, iv, aad, plain);
+                byte[] sealed = streaming(true, key, iv, aad, plain);
+                assertArrayEquals("length " + length + ", aad " + aadLength, expected, sealed);
+
+                assertArrayEquals(plain, streaming(false, key, iv, aad, sealed));
+                assertArrayEquals(plain, platform(Cipher.DECRYPT_MODE, key, iv, aad, sealed));
+            }
+        }
+    }
+
+    @Test
+    public void matchesPlatformGcmOnRandomInputs() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            SecretKey key = randomKey();
+            byte[] iv = randomBytes(12);
+            byte[] aad = randomBytes(random.nextInt(40));
+            byte[] plain = randomBytes(random.nextInt(3000));
+
+            byte[] sealed = streaming(true, key, iv, aad, plain);
+            assertArrayEquals(platform(Cipher.ENCRYPT_MODE, key, iv, aad, plain), sealed);
+            assertArrayEquals(plain, streaming(false, key, iv, aad, sealed));
+        }
+    }
+
+    @Test
+    public void rejectsTamperedCiphertextTagAndAad() throws Exception {
+        SecretKey key = randomKey();
+        byte[] iv = randomBytes(12);
+        byte[] aad = randomBytes(4);
+        byte[] sealed = platform(Cipher.ENCRYPT_MODE, key, iv, aad, randomBytes(1000));
+
+        for (int position : new int[]{0, 500, sealed.length - 17, sealed.length - 16, sealed.length - 1}) {
+            byte[] tampered = sealed.clone();
+            tampered[position] ^= 1;
+            assertRejected(key, iv, aad, tampered);
+        }
+
+        byte[] otherAad = aad.clone();
+        otherAad[0] ^= 1;
+        assertRejected(key, iv, otherAad, sealed);
+        assertRejected(key, iv, aad, Arrays.copyOf(sealed, sealed.length - 1));
+
+        // Shorter than a tag; the platform reports this as a provider error instead
+        try {
+            streaming(false, key, iv, aad, Arrays.copyOf(sealed, 10));
+            fail("StreamingGcm accepted a truncated message");
+        } catch (AEADBadTagException expected) {
+            // No room for a tag
+        }
+    }
+
+    @Test
+    public void refusesMessagesPastTheGcmLimit() throws Exception {
+        byte[] output = new byte[64];
+        for (boolean encrypt : new boolean[]{true, false}) {
+            StreamingGcm gcm = new StreamingGcm(encrypt, randomKey(), randomBytes(12), new byte[0]);
+            gcm.ciphertextLength = StreamingGcm.MAX_MESSAGE_LENGTH - 16;
+            // Decryption holds the last 16 bytes back as the tag, so it takes 16 more to reach the limit
+            gcm.update(new byte[encrypt ? 16 : 32], 0, encrypt ? 16 : 32, output, 0);
+            try {
+                gcm.update(new byte[1], 0, 1, output, 0);
+                fail("Went past the GCM limit when " + (encrypt ? "encrypting" : "decrypting"));
+            } catch (GeneralSecurityException expected) {
+            }
+        }
+    }
+
+    private void assertRejected(SecretKey key, byte[] iv, byte[] aad, byte[] sealed) throws Exception {
+        try {
+            platform(Cipher.DECRYPT_MODE, key, iv, aad, sealed);
+            fail("platform GCM accepted a tampered message");
+        } catch (AEADBadTagException expected) {
+            // Both implementations must agree
+        }
+        try {
+            streaming(false, key, iv, aad, sealed);
+            fail("StreamingGcm accepted a tampered message");
+        } catch (AEADBadTagException expected) {
+            // Tag mismatch
+        }
+    }
+
+    private static byte[] platform(int mode, SecretKey key, byte[] iv, byte[] aad, byte[] input) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(128, iv));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(input);
+    }
+
+    /**
+     * Feeds input in random-sized pieces, as the streaming containers do
+     */
+    private byte[] streaming(boolean encrypt, SecretKey key, byte[] iv, byte[] aad, byte[] input) throws Exception {
+        StreamingGcm gcm = new StreamingGcm(encrypt, key, iv, aad);
+        byte[] output = new byte[input.length + 2 * StreamingGcm.TAG_LENGTH];
+        int written = 0;
+        int offset = 0;
+        while (offset < input.length) {
+            int piece = Math.min(input.length - offset, 1 + random.nextInt(100));
+            byte[] out = new byte[piece + StreamingGcm.TAG_LENGTH];
+            int count = gcm.update(input, offset, piece, out, 0);
+            System.arraycopy(out, 0, output, written, count);
+            written += count;
+            offset += piece;
+        }
+        written += gcm.doFinal(output, written);
+        return Arrays.copyOf(output, written);
+    }
+
+    private SecretKey randomKey() {
+        return new SecretKeySpec(randomBytes(32), "AES");
+    }
+
+    private byte[] randomBytes(int length) {
+        return TestBytes.randomBytes(length, random.nextLong());
+    }
+}
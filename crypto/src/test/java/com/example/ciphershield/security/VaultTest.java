@@ -0,0 +1,199 @@
+package com.example.ciphershield.security;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.example.ciphershield.security.TestBytes.randomBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Vault add, list, extract and remove across reopening, with an index large
+ * enough to span several pages, and rejection of a damaged index or blob
+ */
+public class VaultTest {
+
+    private static final String PASSWORD = "password123";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entriesSurviveReopening() throws Exception {
+        KeyPair pair = RsaKeyPool.take();
+        Path root = folder.getRoot().toPath().resolve("vault");
+        byte[] large = randomBytes(1024 * 1024 + 99, 1);
+
+        try (Vault vault = Vault.create(root, pair.getPublic())) {
+            // More entries than one index page holds
+            for (int i = 0; i < 600; i++) {
+                vault.add(String.format("docs/%04d.txt", i), PathIO.source(write(randomBytes(i, i))), i, null);
+            }
+            vault.add("media/large.bin", PathIO.source(write(large)), 5, null);
+        }
+
+        try (Vault vault = Vault.open(root, pair.getPrivate())) {
+            assertEquals(601, vault.size());
+            assertArrayEquals(large, extract(vault, "media/large.bin"));
+            assertArrayEquals(randomBytes(321, 321), extract(vault, "docs/0321.txt"));
+            assertEquals(321, vault.find("docs/0321.txt").modified);
+            assertNull(vault.find("docs/9999.txt"));
+
+            List<String> listed = new ArrayList<>();
+            Iterator<Vault.Entry> it = vault.list("docs/");
+            while (it.hasNext()) {
+                listed.add(it.next().path);
+            }
+            assertEquals(600, listed.size());
+            assertEquals("docs/0000.txt", listed.get(0));
+            assertEquals("docs/0599.txt", listed.get(599));
+
+            assertNotNull(vault.remove("docs/0321.txt"));
+            vault.add("media/large.bin", PathIO.source(write(new byte[]{1, 2, 3})), 6, null);
+        }
+
+        try (Vault vault = Vault.open(root, pair.getPrivate())) {
+            assertEquals(600, vault.size());
+            assertNull(vault.find("docs/0321.txt"));
+            assertArrayEquals(new byte[]{1, 2, 3}, extract(vault, "media/large.bin"));
+        }
+        // The replaced and removed blobs are gone after commit
+        assertEquals(600, countBlobs(root));
+    }
+
+    @Test
+    public void passwordVault() throws Exception {
+        Path root = folder.getRoot().toPath().resolve("vault");
+        byte[] content = randomBytes(5000, 2);
+        try (Vault vault = Vault.createWithPassword(root, PASSWORD)) {
+            vault.add("a.bin", PathIO.source(write(content)), 0, null);
+        }
+        assertTrue(Vault.isPasswordProtected(root));
+        try (Vault vault = Vault.openWithPassword(root, PASSWORD)) {
+            assertArrayEquals(content, extract(vault, "a.bin"));
+        }
+        try {
+            Vault.openWithPassword(root, "wrongpassword").close();
+            fail("Opened with the wrong password");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void blobHeadersHideFileType() throws Exception {
+        KeyPair pair = RsaKeyPool.take();
+        Path root = folder.getRoot().toPath().resolve("vault");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 200000; i++) {
+            text.append("line ").append(i).append(" of a compressible document\n");
+        }
+        byte[] notes = text.toString().getBytes(StandardCharsets.UTF_8);
+        try (Vault vault = Vault.create(root, pair.getPublic())) {
+            vault.add("photo.jpg", PathIO.source(write(randomBytes(200000, 5))), 0, null);
+            vault.add("notes.txt", PathIO.source(write(notes)), 0, null);
+        }
+
+        List<Path> blobs;
+        try (Stream<Path> files = Files.walk(root.resolve("blobs"))) {
+            blobs = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        long smallest = Long.MAX_VALUE;
+        for (Path blob : blobs) {
+            try (InputStream in = Files.newInputStream(blob)) {
+                ChunkedFileHeader header = ChunkedFileHeader.read(in);
+                assertEquals(0, header.extension.length);
+                assertTrue(header.isCompressed());
+            }
+            smallest = Math.min(smallest, Files.size(blob));
+        }
+        // Compression still follows the content
+        assertTrue(smallest < notes.length / 2);
+        try (Vault vault = Vault.open(root, pair.getPrivate())) {
+            assertArrayEquals(notes, extract(vault, "notes.txt"));
+        }
+    }
+
+    @Test
+    public void rejectsFlippedIndexBit() throws Exception {
+        KeyPair pair = RsaKeyPool.take();
+        Path root = folder.getRoot().toPath().resolve("vault");
+        try (Vault vault = Vault.create(root, pair.getPublic())) {
+            vault.add("a.bin", PathIO.source(write(randomBytes(10, 3))), 0, null);
+        }
+
+        Path pages;
+        try (Stream<Path> files = Files.list(root)) {
+            pages = files.filter(p -> p.getFileName().toString().endsWith(".cvi")).findFirst().get();
+        }
+        flip(pages, 20);
+        try (Vault vault = Vault.open(root, pair.getPrivate())) {
+            vault.find("a.bin");
+            fail("Read a damaged index page");
+        } catch (Exception expected) {
+        }
+
+        flip(pages, 20);
+        flip(root.resolve(VaultIndex.ROOT_FILE), 20);
+        try {
+            Vault.open(root, pair.getPrivate()).close();
+            fail("Opened a vault with a damaged index root");
+        } catch (Exception expected) {
+        }
+    }
+
+    @Test
+    public void rejectsFlippedBlobBit() throws Exception {
+        KeyPair pair = RsaKeyPool.take();
+        Path root = folder.getRoot().toPath().resolve("vault");
+        try (Vault vault = Vault.create(root, pair.getPublic())) {
+            vault.add("a.bin", PathIO.source(write(randomBytes(100000, 4))), 0, null);
+        }
+        Path blob;
+        try (Stream<Path> files = Files.walk(root.resolve("blobs"))) {
+            blob = files.filter(Files::isRegularFile).findFirst().get();
+        }
+        flip(blob, (int) Files.size(blob) / 2);
+
+        try (Vault vault = Vault.open(root, pair.getPrivate())) {
+            extract(vault, "a.bin");
+            fail("Extracted a damaged blob");
+        } catch (Exception expected) {
+        }
+    }
+
+    private byte[] extract(Vault vault, String path) throws Exception {
+        Path output = folder.newFile().toPath();
+        vault.extract(vault.find(path), PathIO.sink(output), null);
+        return Files.readAllBytes(output);
+    }
+
+    private static long countBlobs(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root.resolve("blobs"))) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static void flip(Path file, int offset) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[offset] ^= 1;
+        Files.write(file, bytes);
+    }
+
+    private Path write(byte[] bytes) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        return file;
+    }
+}
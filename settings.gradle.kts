@@ -21,4 +21,7 @@ dependencyResolutionManagement {
 
 rootProject.name = "Cipher Shield"
 include(":app")
+include(":crypto")
+include(":benchmark")
+include(":cli")
  
\ No newline at end of file